@@ -1,14 +1,40 @@
 // License: GPL. For details, see LICENSE file.
 package org.openstreetmap.josm.plugins.strava.heatmap;
 
+import org.openstreetmap.josm.actions.JosmAction;
 import org.openstreetmap.josm.gui.MainApplication;
+import org.openstreetmap.josm.gui.MainMenu;
 import org.openstreetmap.josm.gui.layer.Layer;
 import org.openstreetmap.josm.gui.layer.LayerManager;
 import org.openstreetmap.josm.gui.preferences.PreferenceSetting;
+import org.openstreetmap.josm.io.session.SessionWriter;
 import org.openstreetmap.josm.plugins.Plugin;
 import org.openstreetmap.josm.plugins.PluginInformation;
+import org.openstreetmap.josm.plugins.strava.heatmap.action.StravaHeatmapAddCompositeAction;
+import org.openstreetmap.josm.plugins.strava.heatmap.action.StravaHeatmapCancelPrefetchAction;
+import org.openstreetmap.josm.plugins.strava.heatmap.action.StravaHeatmapExportPackAction;
+import org.openstreetmap.josm.plugins.strava.heatmap.action.StravaHeatmapImportPackAction;
+import org.openstreetmap.josm.plugins.strava.heatmap.action.StravaHeatmapMissingWaysAction;
+import org.openstreetmap.josm.plugins.strava.heatmap.action.StravaHeatmapPrefetchAction;
+import org.openstreetmap.josm.plugins.strava.heatmap.action.StravaHeatmapSnapAction;
+import org.openstreetmap.josm.plugins.strava.heatmap.action.StravaHeatmapTraceAction;
+import org.openstreetmap.josm.plugins.strava.heatmap.authentication.StravaAuthenticationService;
+import org.openstreetmap.josm.plugins.strava.heatmap.cache.StravaTileStore;
+import org.openstreetmap.josm.plugins.strava.heatmap.http.StravaHttpClientFactory;
+import org.openstreetmap.josm.plugins.strava.heatmap.layer.StravaTileLoader;
+import org.openstreetmap.josm.plugins.strava.heatmap.layer.StravaHeatmapLayer;
 import org.openstreetmap.josm.plugins.strava.heatmap.layer.StravaHeatmapLayerProcessor;
+import org.openstreetmap.josm.plugins.strava.heatmap.layer.StravaHeatmapSessionExporter;
+import org.openstreetmap.josm.plugins.strava.heatmap.layer.StravaTilePrefetcher;
+import org.openstreetmap.josm.plugins.strava.heatmap.metrics.StravaMetrics;
 import org.openstreetmap.josm.plugins.strava.heatmap.preference.StravaHeatmapPreferenceSetting;
+import org.openstreetmap.josm.tools.Destroyable;
+import org.openstreetmap.josm.tools.I18n;
+
+import javax.swing.JCheckBoxMenuItem;
+import javax.swing.JMenu;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Plugin providing access to the high-resolution Strava heatmap.
@@ -16,10 +42,19 @@ import org.openstreetmap.josm.plugins.strava.heatmap.preference.StravaHeatmapPre
  * When a layer is opened, the plugin checks whether it is a default Strava layer and add the required credentials.
  *
  */
-public class StravaHeatmapPlugin extends Plugin implements LayerManager.LayerChangeListener {
+public class StravaHeatmapPlugin extends Plugin implements LayerManager.LayerChangeListener, Destroyable {
 
     private StravaHeatmapLayerProcessor stravaHeatmapProcessor = new StravaHeatmapLayerProcessor();
 
+    private final StravaHeatmapSnapAction snapAction = new StravaHeatmapSnapAction();
+
+    /**
+     * The actions of the "Strava heatmap" submenu of the Tools menu, released when the plugin is unloaded.
+     */
+    private final List<JosmAction> menuActions = new ArrayList<>();
+
+    private final JMenu menu = new JMenu(I18n.tr("Strava heatmap"));
+
     /**
      * Initializes the plugin.
      *
@@ -27,7 +62,22 @@ public class StravaHeatmapPlugin extends Plugin implements LayerManager.LayerCha
      */
     public StravaHeatmapPlugin(PluginInformation info) {
         super(info);
+        SessionWriter.registerSessionLayerExporter(StravaHeatmapLayer.class, StravaHeatmapSessionExporter.class);
         MainApplication.getLayerManager().addLayerChangeListener(this);
+        menuActions.add(new StravaHeatmapPrefetchAction());
+        menuActions.add(new StravaHeatmapCancelPrefetchAction());
+        menuActions.add(new StravaHeatmapExportPackAction());
+        menuActions.add(new StravaHeatmapImportPackAction());
+        menuActions.add(new StravaHeatmapTraceAction());
+        menuActions.add(new StravaHeatmapMissingWaysAction());
+        menuActions.add(new StravaHeatmapAddCompositeAction());
+        for (JosmAction action : menuActions) {
+            MainMenu.add(menu, action);
+        }
+        menu.add(new JCheckBoxMenuItem(snapAction));
+        MainApplication.getMenu().toolsMenu.add(menu);
+        StravaMetrics.registerMBean();
+        StravaAuthenticationService.getInstance().warmUpIfEnabled();
     }
 
     @Override
@@ -43,9 +93,29 @@ public class StravaHeatmapPlugin extends Plugin implements LayerManager.LayerCha
 
     @Override
     public void layerRemoving(LayerManager.LayerRemoveEvent layerRemoveEvent) {
+        Layer layer = layerRemoveEvent.getRemovedLayer();
+        stravaHeatmapProcessor.processRemovedLayer(layer);
     }
 
     @Override
     public void layerOrderChanged(LayerManager.LayerOrderChangeEvent layerOrderChangeEvent) {
     }
+
+    /**
+     * Releases the plugin resources when the plugin is unloaded.
+     */
+    @Override
+    public void destroy() {
+        MainApplication.getLayerManager().removeLayerChangeListener(this);
+        stravaHeatmapProcessor.destroy();
+        MainApplication.getMenu().toolsMenu.remove(menu);
+        menuActions.forEach(JosmAction::destroy);
+        snapAction.destroy();
+        StravaTilePrefetcher.shutdown();
+        StravaAuthenticationService.getInstance().shutdown();
+        StravaHttpClientFactory.shutdown();
+        StravaTileLoader.shutdown();
+        StravaTileStore.closeInstance();
+        StravaMetrics.unregisterMBean();
+    }
 }
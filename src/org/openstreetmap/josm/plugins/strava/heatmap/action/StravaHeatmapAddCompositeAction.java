@@ -0,0 +1,29 @@
+package org.openstreetmap.josm.plugins.strava.heatmap.action;
+
+import org.openstreetmap.josm.actions.JosmAction;
+import org.openstreetmap.josm.plugins.strava.heatmap.layer.StravaCompositeActivity;
+import org.openstreetmap.josm.plugins.strava.heatmap.layer.StravaCompositeLayer;
+import org.openstreetmap.josm.tools.I18n;
+
+import java.awt.event.ActionEvent;
+
+/**
+ * Opens a single layer blending the cycling, running and water heatmaps, with the activity settings
+ * used last time, see {@link StravaCompositeLayer}.
+ */
+public class StravaHeatmapAddCompositeAction extends JosmAction {
+
+    /**
+     * Creates the action.
+     */
+    public StravaHeatmapAddCompositeAction() {
+        super(I18n.tr("Add Strava composite heatmap"), null,
+                I18n.tr("Display several Strava activity heatmaps blended in a single layer"),
+                null, false);
+    }
+
+    @Override
+    public void actionPerformed(ActionEvent e) {
+        getLayerManager().addLayer(new StravaCompositeLayer(StravaCompositeActivity.load()));
+    }
+}
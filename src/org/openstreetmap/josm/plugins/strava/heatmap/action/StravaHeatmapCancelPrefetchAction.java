@@ -0,0 +1,33 @@
+package org.openstreetmap.josm.plugins.strava.heatmap.action;
+
+import org.openstreetmap.josm.actions.JosmAction;
+import org.openstreetmap.josm.plugins.strava.heatmap.layer.StravaHeatmapLayer;
+import org.openstreetmap.josm.plugins.strava.heatmap.layer.StravaTilePrefetcher;
+import org.openstreetmap.josm.tools.I18n;
+
+import java.awt.event.ActionEvent;
+
+/**
+ * Cancels the background download started by {@link StravaHeatmapPrefetchAction}.
+ */
+public class StravaHeatmapCancelPrefetchAction extends JosmAction {
+
+    /**
+     * Creates the action.
+     */
+    public StravaHeatmapCancelPrefetchAction() {
+        super(I18n.tr("Cancel Strava heatmap prefetch"), null,
+                I18n.tr("Stop downloading the Strava heatmap tiles in the background"),
+                null, false);
+    }
+
+    @Override
+    public void actionPerformed(ActionEvent e) {
+        StravaTilePrefetcher.cancelPrefetch();
+    }
+
+    @Override
+    protected void updateEnabledState() {
+        setEnabled(!getLayerManager().getLayersOfType(StravaHeatmapLayer.class).isEmpty());
+    }
+}
@@ -0,0 +1,99 @@
+package org.openstreetmap.josm.plugins.strava.heatmap.action;
+
+import org.openstreetmap.josm.actions.JosmAction;
+import org.openstreetmap.josm.data.Bounds;
+import org.openstreetmap.josm.gui.MainApplication;
+import org.openstreetmap.josm.plugins.strava.heatmap.layer.StravaHeatmapLayer;
+import org.openstreetmap.josm.plugins.strava.heatmap.layer.StravaTilePackExportTask;
+import org.openstreetmap.josm.tools.GBC;
+import org.openstreetmap.josm.tools.I18n;
+
+import javax.swing.*;
+import javax.swing.filechooser.FileNameExtensionFilter;
+import java.awt.*;
+import java.awt.event.ActionEvent;
+import java.io.File;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Exports the authenticated heatmap tiles of the current map view into a region pack,
+ * which can be opened without network access with {@link StravaHeatmapImportPackAction}.
+ */
+public class StravaHeatmapExportPackAction extends JosmAction {
+
+    /**
+     * The file extension of the region packs.
+     */
+    static final String PACK_EXTENSION = "stravapack";
+
+    private static final int MAX_ZOOM = 15;
+
+    /**
+     * Creates the action.
+     */
+    public StravaHeatmapExportPackAction() {
+        super(I18n.tr("Export Strava heatmap region pack..."), null,
+                I18n.tr("Save the Strava heatmap tiles of the current view into a file, for offline use"),
+                null, false);
+    }
+
+    @Override
+    public void actionPerformed(ActionEvent e) {
+        List<StravaHeatmapLayer> layers = getAuthenticatedLayers();
+        if (layers.isEmpty() || !MainApplication.isDisplayingMapView()) {
+            return;
+        }
+        Bounds bounds = MainApplication.getMap().mapView.getRealBounds();
+
+        JComboBox<String> layerComboBox = new JComboBox<>(layers.stream().map(StravaHeatmapLayer::getName).toArray(String[]::new));
+        JSpinner minZoomSpinner = new JSpinner(new SpinnerNumberModel(12, 0, MAX_ZOOM, 1));
+        JSpinner maxZoomSpinner = new JSpinner(new SpinnerNumberModel(MAX_ZOOM, 0, MAX_ZOOM, 1));
+        JPanel panel = new JPanel(new GridBagLayout());
+        panel.add(new JLabel(I18n.tr("Heatmap")), GBC.std().insets(0, 0, 5, 5));
+        panel.add(layerComboBox, GBC.eol().fill(GBC.HORIZONTAL).insets(0, 0, 0, 5));
+        panel.add(new JLabel(I18n.tr("Lowest zoom level")), GBC.std().insets(0, 0, 5, 5));
+        panel.add(minZoomSpinner, GBC.eol().insets(0, 0, 0, 5));
+        panel.add(new JLabel(I18n.tr("Highest zoom level")), GBC.std().insets(0, 0, 5, 5));
+        panel.add(maxZoomSpinner, GBC.eol().insets(0, 0, 0, 5));
+        if (JOptionPane.showConfirmDialog(MainApplication.getMainFrame(), panel, I18n.tr("Export Strava heatmap region pack"),
+                JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE) != JOptionPane.OK_OPTION) {
+            return;
+        }
+        StravaHeatmapLayer layer = layers.get(layerComboBox.getSelectedIndex());
+        int minZoom = (Integer) minZoomSpinner.getValue();
+        int maxZoom = Math.max(minZoom, (Integer) maxZoomSpinner.getValue());
+
+        long tileCount = StravaTilePackExportTask.getTileCount(bounds, minZoom, maxZoom);
+        int maxTileCount = StravaTilePackExportTask.getMaxTileCount();
+        if (tileCount > maxTileCount) {
+            JOptionPane.showMessageDialog(MainApplication.getMainFrame(),
+                    I18n.tr("The area contains {0} tiles, the maximum is {1}.\n"
+                            + "Zoom in or lower the highest zoom level.", tileCount, maxTileCount),
+                    I18n.tr("Export Strava heatmap region pack"), JOptionPane.WARNING_MESSAGE);
+            return;
+        }
+
+        JFileChooser fileChooser = new JFileChooser();
+        fileChooser.setFileFilter(new FileNameExtensionFilter(I18n.tr("Strava heatmap region packs"), PACK_EXTENSION));
+        if (fileChooser.showSaveDialog(MainApplication.getMainFrame()) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        File file = fileChooser.getSelectedFile();
+        if (!file.getName().endsWith("." + PACK_EXTENSION)) {
+            file = new File(file.getParentFile(), file.getName() + "." + PACK_EXTENSION);
+        }
+        MainApplication.worker.submit(new StravaTilePackExportTask(layer, bounds, minZoom, maxZoom, file));
+    }
+
+    @Override
+    protected void updateEnabledState() {
+        setEnabled(!getAuthenticatedLayers().isEmpty());
+    }
+
+    private static List<StravaHeatmapLayer> getAuthenticatedLayers() {
+        return getLayerManager().getLayersOfType(StravaHeatmapLayer.class).stream()
+                .filter(layer -> layer.getTileStoreKey() != null)
+                .collect(Collectors.toList());
+    }
+}
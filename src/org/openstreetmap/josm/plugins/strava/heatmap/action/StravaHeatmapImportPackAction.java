@@ -0,0 +1,46 @@
+package org.openstreetmap.josm.plugins.strava.heatmap.action;
+
+import org.openstreetmap.josm.actions.JosmAction;
+import org.openstreetmap.josm.gui.MainApplication;
+import org.openstreetmap.josm.plugins.strava.heatmap.cache.StravaTilePackReader;
+import org.openstreetmap.josm.plugins.strava.heatmap.layer.StravaTilePackLayer;
+import org.openstreetmap.josm.tools.I18n;
+import org.openstreetmap.josm.tools.Logging;
+
+import javax.swing.*;
+import javax.swing.filechooser.FileNameExtensionFilter;
+import java.awt.event.ActionEvent;
+import java.io.IOException;
+
+/**
+ * Opens a region pack exported by {@link StravaHeatmapExportPackAction} as a read-only layer.
+ */
+public class StravaHeatmapImportPackAction extends JosmAction {
+
+    /**
+     * Creates the action.
+     */
+    public StravaHeatmapImportPackAction() {
+        super(I18n.tr("Open Strava heatmap region pack..."), null,
+                I18n.tr("Display the Strava heatmap tiles saved in a region pack, without network access"),
+                null, false);
+    }
+
+    @Override
+    public void actionPerformed(ActionEvent e) {
+        JFileChooser fileChooser = new JFileChooser();
+        fileChooser.setFileFilter(new FileNameExtensionFilter(I18n.tr("Strava heatmap region packs"),
+                StravaHeatmapExportPackAction.PACK_EXTENSION));
+        if (fileChooser.showOpenDialog(MainApplication.getMainFrame()) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        try {
+            StravaTilePackReader reader = new StravaTilePackReader(fileChooser.getSelectedFile());
+            getLayerManager().addLayer(new StravaTilePackLayer(reader));
+        } catch (IOException ex) {
+            Logging.error(ex);
+            JOptionPane.showMessageDialog(MainApplication.getMainFrame(), ex.getMessage(),
+                    I18n.tr("Error"), JOptionPane.ERROR_MESSAGE);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package org.openstreetmap.josm.plugins.strava.heatmap.action;
+
+import org.openstreetmap.josm.actions.JosmAction;
+import org.openstreetmap.josm.data.Bounds;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.gui.MainApplication;
+import org.openstreetmap.josm.plugins.strava.heatmap.analysis.StravaMissingWayTask;
+import org.openstreetmap.josm.plugins.strava.heatmap.layer.StravaHeatmapLayer;
+import org.openstreetmap.josm.tools.I18n;
+
+import javax.swing.*;
+import java.awt.event.ActionEvent;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Looks for the heatmap corridors without any highway in the downloaded areas of the edited data layer,
+ * or in the current map view if the data layer has no downloaded area.
+ */
+public class StravaHeatmapMissingWaysAction extends JosmAction {
+
+    /**
+     * Creates the action.
+     */
+    public StravaHeatmapMissingWaysAction() {
+        super(I18n.tr("Find missing ways with the Strava heatmap"), null,
+                I18n.tr("Report the paths of the Strava heatmap without any highway nearby in the edited data layer"),
+                null, false);
+    }
+
+    @Override
+    public void actionPerformed(ActionEvent e) {
+        DataSet dataSet = getLayerManager().getEditDataSet();
+        Optional<StravaHeatmapLayer> layer = getAuthenticatedLayer();
+        if (dataSet == null || !layer.isPresent() || !MainApplication.isDisplayingMapView()) {
+            return;
+        }
+        Bounds bounds = null;
+        List<Bounds> dataSourceBounds = dataSet.getDataSourceBounds();
+        for (Bounds dataSourceBound : dataSourceBounds) {
+            if (bounds == null) {
+                bounds = new Bounds(dataSourceBound);
+            } else {
+                bounds.extend(dataSourceBound);
+            }
+        }
+        if (bounds == null) {
+            bounds = MainApplication.getMap().mapView.getRealBounds();
+        }
+        StravaMissingWayTask task = new StravaMissingWayTask(layer.get(), dataSet, bounds);
+        int maxTileCount = StravaMissingWayTask.getMaxTileCount();
+        if (task.getTileCount() > maxTileCount) {
+            JOptionPane.showMessageDialog(MainApplication.getMainFrame(),
+                    I18n.tr("The area contains {0} tiles at zoom level 15, the maximum is {1}.", task.getTileCount(), maxTileCount),
+                    I18n.tr("Find missing ways with the Strava heatmap"), JOptionPane.WARNING_MESSAGE);
+            return;
+        }
+        MainApplication.worker.submit(task);
+    }
+
+    @Override
+    protected void updateEnabledState() {
+        setEnabled(getLayerManager().getEditDataSet() != null && getAuthenticatedLayer().isPresent());
+    }
+
+    private static Optional<StravaHeatmapLayer> getAuthenticatedLayer() {
+        return getLayerManager().getLayersOfType(StravaHeatmapLayer.class).stream()
+                .filter(layer -> layer.getTileStoreKey() != null)
+                .findFirst();
+    }
+}
@@ -0,0 +1,41 @@
+package org.openstreetmap.josm.plugins.strava.heatmap.action;
+
+import org.openstreetmap.josm.actions.JosmAction;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.plugins.strava.heatmap.layer.StravaHeatmapLayer;
+import org.openstreetmap.josm.plugins.strava.heatmap.layer.StravaTilePrefetcher;
+import org.openstreetmap.josm.tools.I18n;
+
+import java.awt.event.ActionEvent;
+import java.util.List;
+
+/**
+ * Downloads in the background the heatmap tiles covering the downloaded areas of the edited data layer,
+ * for all the open authenticated Strava layers.
+ */
+public class StravaHeatmapPrefetchAction extends JosmAction {
+
+    /**
+     * Creates the action.
+     */
+    public StravaHeatmapPrefetchAction() {
+        super(I18n.tr("Prefetch Strava heatmap"), null,
+                I18n.tr("Download the Strava heatmap tiles covering the downloaded areas, for offline use while mapping"),
+                null, false);
+    }
+
+    @Override
+    public void actionPerformed(ActionEvent e) {
+        DataSet dataSet = getLayerManager().getEditDataSet();
+        if (dataSet != null) {
+            StravaTilePrefetcher.prefetch(getLayerManager().getLayersOfType(StravaHeatmapLayer.class), dataSet.getDataSourceBounds());
+        }
+    }
+
+    @Override
+    protected void updateEnabledState() {
+        List<StravaHeatmapLayer> layers = getLayerManager().getLayersOfType(StravaHeatmapLayer.class);
+        setEnabled(getLayerManager().getEditDataSet() != null
+                && layers.stream().anyMatch(layer -> layer.getTileStoreKey() != null));
+    }
+}
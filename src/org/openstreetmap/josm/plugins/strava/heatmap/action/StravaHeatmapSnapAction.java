@@ -0,0 +1,167 @@
+package org.openstreetmap.josm.plugins.strava.heatmap.action;
+
+import org.openstreetmap.josm.actions.ToggleAction;
+import org.openstreetmap.josm.actions.mapmode.DrawAction;
+import org.openstreetmap.josm.actions.mapmode.MapMode;
+import org.openstreetmap.josm.actions.mapmode.SelectAction;
+import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.data.osm.OsmPrimitive;
+import org.openstreetmap.josm.gui.MainApplication;
+import org.openstreetmap.josm.gui.MapFrame;
+import org.openstreetmap.josm.gui.MapView;
+import org.openstreetmap.josm.gui.layer.Layer;
+import org.openstreetmap.josm.plugins.strava.heatmap.analysis.StravaIntensityPyramid;
+import org.openstreetmap.josm.plugins.strava.heatmap.layer.StravaHeatmapLayer;
+import org.openstreetmap.josm.plugins.strava.heatmap.layer.StravaTileRange;
+import org.openstreetmap.josm.spi.preferences.Config;
+import org.openstreetmap.josm.tools.I18n;
+import org.openstreetmap.josm.tools.Shortcut;
+
+import java.awt.AWTEvent;
+import java.awt.Point;
+import java.awt.Toolkit;
+import java.awt.event.AWTEventListener;
+import java.awt.event.ActionEvent;
+import java.awt.event.InputEvent;
+import java.awt.event.KeyEvent;
+import java.awt.event.MouseEvent;
+import java.awt.geom.Point2D;
+import java.util.Optional;
+
+/**
+ * Snaps the nodes being drawn or moved to the nearest path of the Strava heatmap.
+ * <p>
+ * While the action is selected, the mouse events of the map view are moved to the center of the nearest path
+ * before they reach the draw mode, or the select mode while dragging, so that the node, the rubber band line
+ * and the move follow the path. The paths are looked up in the {@link StravaIntensityPyramid} of the active
+ * Strava layer, or of the topmost visible authenticated Strava layer if the active layer is not a Strava layer.
+ * The missing tiles are loaded in the background, the mouse is not snapped until they are loaded.
+ * <p>
+ * The snapping of the draw mode to the existing nodes and ways comes first: the mouse is not snapped to the heatmap
+ * near a node or a way, unless Ctrl is held down. The search radius is read from the preference
+ * "strava.heatmap.snap.radius" (in screen pixels, 10 by default), the lowest intensity of a path from the preference
+ * "strava.heatmap.snap.threshold" (0-255, 64 by default).
+ */
+public class StravaHeatmapSnapAction extends ToggleAction implements AWTEventListener {
+
+    private static final int DEFAULT_RADIUS = 10;
+    private static final int DEFAULT_THRESHOLD = 64;
+
+    /**
+     * Beyond this radius at zoom level 15, i.e. below zoom level 13 or so, the heatmap is not precise enough to snap.
+     */
+    private static final double MAX_PIXEL_RADIUS = StravaIntensityPyramid.TILE_SIZE;
+
+    private final StravaIntensityPyramid pyramid = StravaIntensityPyramid.getInstance();
+
+    /**
+     * Tells if the left button is being dragged in the select mode. Only accessed in the EDT.
+     */
+    private boolean dragging;
+
+    /**
+     * Creates the action, selected if it was selected when JOSM was closed.
+     */
+    public StravaHeatmapSnapAction() {
+        super(I18n.tr("Snap to Strava heatmap"), null,
+                I18n.tr("Snap the nodes being drawn or moved to the nearest path of the Strava heatmap"),
+                Shortcut.registerShortcut("tools:stravasnap", I18n.tr("Tool: {0}", I18n.tr("Snap to Strava heatmap")),
+                        KeyEvent.VK_H, Shortcut.ALT_SHIFT),
+                false);
+        setSelected(Config.getPref().getBoolean("strava.heatmap.snap", false));
+        Toolkit.getDefaultToolkit().addAWTEventListener(this, AWTEvent.MOUSE_EVENT_MASK | AWTEvent.MOUSE_MOTION_EVENT_MASK);
+    }
+
+    @Override
+    public void actionPerformed(ActionEvent e) {
+        toggleSelectedState(e);
+        notifySelectedState();
+        Config.getPref().putBoolean("strava.heatmap.snap", isSelected());
+    }
+
+    @Override
+    protected void updateEnabledState() {
+        setEnabled(getSnappedLayer().isPresent());
+    }
+
+    @Override
+    public void destroy() {
+        Toolkit.getDefaultToolkit().removeAWTEventListener(this);
+        super.destroy();
+    }
+
+    /**
+     * Moves a mouse event of the map view to the nearest path. Called in the EDT, before the map mode receives the event.
+     *
+     * @param event the mouse event.
+     */
+    @Override
+    public void eventDispatched(AWTEvent event) {
+        if (!(event instanceof MouseEvent) || !isSelected() || !MainApplication.isDisplayingMapView()) {
+            return;
+        }
+        MapFrame map = MainApplication.getMap();
+        MouseEvent mouseEvent = (MouseEvent) event;
+        if (mouseEvent.getSource() == map.mapView && isSnapped(map.mapMode, map.mapView, mouseEvent)) {
+            getSnappedLayer().ifPresent(layer -> snap(layer, map.mapView, mouseEvent));
+        }
+    }
+
+    private boolean isSnapped(MapMode mapMode, MapView mapView, MouseEvent e) {
+        if (mapMode instanceof DrawAction) {
+            if (e.getButton() != MouseEvent.NOBUTTON && e.getButton() != MouseEvent.BUTTON1) {
+                return false;
+            }
+            return e.isControlDown() || mapView.getNearestNodeOrWay(e.getPoint(), OsmPrimitive::isSelectable, false) == null;
+        }
+        if (mapMode instanceof SelectAction) {
+            // Ctrl, Alt and Shift select, rotate or scale instead of moving
+            boolean modified = (e.getModifiersEx() & (InputEvent.CTRL_DOWN_MASK | InputEvent.ALT_DOWN_MASK | InputEvent.SHIFT_DOWN_MASK)) != 0;
+            if (e.getID() == MouseEvent.MOUSE_DRAGGED) {
+                dragging = !modified && (e.getModifiersEx() & InputEvent.BUTTON1_DOWN_MASK) != 0;
+                return dragging;
+            }
+            if (e.getID() == MouseEvent.MOUSE_RELEASED && dragging) {
+                dragging = false;
+                return e.getButton() == MouseEvent.BUTTON1;
+            }
+        }
+        return false;
+    }
+
+    private void snap(StravaHeatmapLayer layer, MapView mapView, MouseEvent e) {
+        Point point = e.getPoint();
+        int radius = Math.max(1, Config.getPref().getInt("strava.heatmap.snap.radius", DEFAULT_RADIUS));
+        LatLon latLon = mapView.getLatLon(point.x, point.y);
+        LatLon edge = mapView.getLatLon(point.x + radius, point.y);
+        int zoom = StravaIntensityPyramid.ZOOM;
+        int tileSize = StravaIntensityPyramid.TILE_SIZE;
+        double x = StravaTileRange.toTileX(latLon.lon(), zoom) * tileSize;
+        double y = StravaTileRange.toTileY(latLon.lat(), zoom) * tileSize;
+        double pixelRadius = Math.abs(StravaTileRange.toTileX(edge.lon(), zoom) * tileSize - x);
+        if (pixelRadius > MAX_PIXEL_RADIUS) {
+            return;
+        }
+        for (int tileY = (int) Math.floor((y - pixelRadius) / tileSize); tileY <= (int) Math.floor((y + pixelRadius) / tileSize); tileY++) {
+            for (int tileX = (int) Math.floor((x - pixelRadius) / tileSize); tileX <= (int) Math.floor((x + pixelRadius) / tileSize); tileX++) {
+                pyramid.load(layer, tileX, tileY);
+            }
+        }
+        int threshold = Config.getPref().getInt("strava.heatmap.snap.threshold", DEFAULT_THRESHOLD);
+        double[] ridge = pyramid.findRidge(layer.getTileStoreKey(), x, y, pixelRadius, threshold);
+        if (ridge != null) {
+            Point2D snapped = mapView.getPoint2D(StravaTileRange.toLatLon(zoom, ridge[0] / tileSize, ridge[1] / tileSize));
+            e.translatePoint((int) Math.round(snapped.getX()) - point.x, (int) Math.round(snapped.getY()) - point.y);
+        }
+    }
+
+    private static Optional<StravaHeatmapLayer> getSnappedLayer() {
+        Layer activeLayer = getLayerManager().getActiveLayer();
+        if (activeLayer instanceof StravaHeatmapLayer && ((StravaHeatmapLayer) activeLayer).getTileStoreKey() != null) {
+            return Optional.of((StravaHeatmapLayer) activeLayer);
+        }
+        return getLayerManager().getLayersOfType(StravaHeatmapLayer.class).stream()
+                .filter(stravaLayer -> stravaLayer.isVisible() && stravaLayer.getTileStoreKey() != null)
+                .findFirst();
+    }
+}
@@ -0,0 +1,61 @@
+package org.openstreetmap.josm.plugins.strava.heatmap.action;
+
+import org.openstreetmap.josm.actions.JosmAction;
+import org.openstreetmap.josm.gui.MainApplication;
+import org.openstreetmap.josm.gui.layer.Layer;
+import org.openstreetmap.josm.plugins.strava.heatmap.analysis.StravaRidgeVectorizeTask;
+import org.openstreetmap.josm.plugins.strava.heatmap.layer.StravaHeatmapLayer;
+import org.openstreetmap.josm.tools.I18n;
+
+import javax.swing.*;
+import java.awt.event.ActionEvent;
+import java.util.Optional;
+
+/**
+ * Traces candidate ways along the paths of the heatmap displayed in the current map view.
+ * The active Strava layer is traced, or the first authenticated Strava layer if the active layer is not a Strava layer.
+ */
+public class StravaHeatmapTraceAction extends JosmAction {
+
+    /**
+     * Creates the action.
+     */
+    public StravaHeatmapTraceAction() {
+        super(I18n.tr("Trace Strava heatmap"), null,
+                I18n.tr("Create a layer with candidate ways following the paths of the Strava heatmap in the current view"),
+                null, false);
+    }
+
+    @Override
+    public void actionPerformed(ActionEvent e) {
+        Optional<StravaHeatmapLayer> layer = getTracedLayer();
+        if (!layer.isPresent() || !MainApplication.isDisplayingMapView()) {
+            return;
+        }
+        StravaRidgeVectorizeTask task = new StravaRidgeVectorizeTask(layer.get(), MainApplication.getMap().mapView.getRealBounds());
+        int maxTileCount = StravaRidgeVectorizeTask.getMaxTileCount();
+        if (task.getTileCount() > maxTileCount) {
+            JOptionPane.showMessageDialog(MainApplication.getMainFrame(),
+                    I18n.tr("The current view contains {0} tiles at zoom level {1}, the maximum is {2}.\nPlease zoom in.",
+                            task.getTileCount(), StravaRidgeVectorizeTask.ZOOM, maxTileCount),
+                    I18n.tr("Trace Strava heatmap"), JOptionPane.WARNING_MESSAGE);
+            return;
+        }
+        MainApplication.worker.submit(task);
+    }
+
+    @Override
+    protected void updateEnabledState() {
+        setEnabled(getTracedLayer().isPresent());
+    }
+
+    private static Optional<StravaHeatmapLayer> getTracedLayer() {
+        Layer activeLayer = getLayerManager().getActiveLayer();
+        if (activeLayer instanceof StravaHeatmapLayer && ((StravaHeatmapLayer) activeLayer).getTileStoreKey() != null) {
+            return Optional.of((StravaHeatmapLayer) activeLayer);
+        }
+        return getLayerManager().getLayersOfType(StravaHeatmapLayer.class).stream()
+                .filter(stravaLayer -> stravaLayer.getTileStoreKey() != null)
+                .findFirst();
+    }
+}
@@ -0,0 +1,133 @@
+package org.openstreetmap.josm.plugins.strava.heatmap.analysis;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The pixels of a grid lying within a given distance of the existing ways.
+ * The segments of the ways are rasterized one clip rectangle at a time, so that several threads can fill
+ * the mask at the same time as long as their clip rectangles do not overlap.
+ */
+public class StravaCoverageMask {
+
+    private final int width;
+    private final int height;
+    private final byte[] mask;
+
+    /**
+     * Creates an empty mask.
+     *
+     * @param width  the width of the grid.
+     * @param height the height of the grid.
+     */
+    public StravaCoverageMask(int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.mask = new byte[width * height];
+    }
+
+    /**
+     * Marks the pixels of a clip rectangle lying within a distance of a segment.
+     *
+     * @param x0       the x coordinate of the first end of the segment, in pixels.
+     * @param y0       the y coordinate of the first end of the segment, in pixels.
+     * @param x1       the x coordinate of the second end of the segment, in pixels.
+     * @param y1       the y coordinate of the second end of the segment, in pixels.
+     * @param radius   the distance, in pixels.
+     * @param clipMinX the lowest x coordinate of the clip rectangle.
+     * @param clipMinY the lowest y coordinate of the clip rectangle.
+     * @param clipMaxX the highest x coordinate of the clip rectangle, exclusive.
+     * @param clipMaxY the highest y coordinate of the clip rectangle, exclusive.
+     */
+    public void addSegment(double x0, double y0, double x1, double y1, double radius,
+                           int clipMinX, int clipMinY, int clipMaxX, int clipMaxY) {
+        int minX = Math.max(Math.max(0, clipMinX), (int) Math.floor(Math.min(x0, x1) - radius));
+        int maxX = Math.min(Math.min(width, clipMaxX) - 1, (int) Math.ceil(Math.max(x0, x1) + radius));
+        int minY = Math.max(Math.max(0, clipMinY), (int) Math.floor(Math.min(y0, y1) - radius));
+        int maxY = Math.min(Math.min(height, clipMaxY) - 1, (int) Math.ceil(Math.max(y0, y1) + radius));
+        double dx = x1 - x0;
+        double dy = y1 - y0;
+        double squaredLength = dx * dx + dy * dy;
+        double squaredRadius = radius * radius;
+        for (int y = minY; y <= maxY; y++) {
+            for (int x = minX; x <= maxX; x++) {
+                // the projection of the pixel on the segment
+                double t = squaredLength == 0 ? 0 : Math.max(0, Math.min(1, ((x - x0) * dx + (y - y0) * dy) / squaredLength));
+                double px = x0 + t * dx - x;
+                double py = y0 + t * dy - y;
+                if (px * px + py * py <= squaredRadius) {
+                    mask[y * width + x] = 1;
+                }
+            }
+        }
+    }
+
+    /**
+     * Tests if a pixel lies within the distance of a way.
+     *
+     * @param x the pixel x coordinate.
+     * @param y the pixel y coordinate.
+     * @return true if the pixel is covered, false if it is not or if it lies outside the grid.
+     */
+    public boolean isCovered(int x, int y) {
+        return x >= 0 && y >= 0 && x < width && y < height && mask[y * width + x] == 1;
+    }
+
+    /**
+     * Returns the stretches of polylines which are not covered by the mask.
+     *
+     * @param polylines the polylines, each as an array of pixel coordinates x0, y0, x1, y1...
+     * @param minLength the minimum length of a stretch, in pixels.
+     * @return the uncovered stretches, as arrays of pixel coordinates.
+     */
+    public List<int[]> findUncoveredStretches(List<int[]> polylines, double minLength) {
+        List<int[]> stretches = new ArrayList<>();
+        for (int[] polyline : polylines) {
+            List<Integer> stretch = new ArrayList<>();
+            double stretchLength = 0;
+            // the last point of the stretch is an intermediate pixel, which is replaced by the next pixel
+            boolean lastPointReplaceable = false;
+            for (int i = 0; i + 3 < polyline.length; i += 2) {
+                int x0 = polyline[i];
+                int y0 = polyline[i + 1];
+                int x1 = polyline[i + 2];
+                int y1 = polyline[i + 3];
+                // walk along the segment one pixel at a time
+                int steps = Math.max(1, Math.max(Math.abs(x1 - x0), Math.abs(y1 - y0)));
+                double stepLength = Math.hypot(x1 - x0, y1 - y0) / steps;
+                for (int step = i == 0 ? 0 : 1; step <= steps; step++) {
+                    int x = x0 + Math.round((float) (x1 - x0) * step / steps);
+                    int y = y0 + Math.round((float) (y1 - y0) * step / steps);
+                    if (isCovered(x, y)) {
+                        addStretch(stretches, stretch, stretchLength, minLength);
+                        stretch = new ArrayList<>();
+                        stretchLength = 0;
+                        lastPointReplaceable = false;
+                        continue;
+                    }
+                    if (stretch.isEmpty()) {
+                        lastPointReplaceable = false;
+                    } else {
+                        stretchLength += stepLength;
+                        if (lastPointReplaceable) {
+                            stretch.remove(stretch.size() - 1);
+                            stretch.remove(stretch.size() - 1);
+                        }
+                        // only the ends of the stretch and the vertices of the polyline are kept
+                        lastPointReplaceable = step < steps;
+                    }
+                    stretch.add(x);
+                    stretch.add(y);
+                }
+            }
+            addStretch(stretches, stretch, stretchLength, minLength);
+        }
+        return stretches;
+    }
+
+    private static void addStretch(List<int[]> stretches, List<Integer> stretch, double stretchLength, double minLength) {
+        if (stretch.size() >= 4 && stretchLength >= minLength) {
+            stretches.add(stretch.stream().mapToInt(Integer::intValue).toArray());
+        }
+    }
+}
@@ -0,0 +1,253 @@
+package org.openstreetmap.josm.plugins.strava.heatmap.analysis;
+
+import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.UploadPolicy;
+import org.openstreetmap.josm.data.osm.Way;
+import org.openstreetmap.josm.gui.progress.ProgressMonitor;
+import org.openstreetmap.josm.plugins.strava.heatmap.cache.StravaTileStore;
+import org.openstreetmap.josm.plugins.strava.heatmap.layer.StravaHeatmapLayer;
+import org.openstreetmap.josm.plugins.strava.heatmap.layer.StravaHeatmapPalette;
+import org.openstreetmap.josm.plugins.strava.heatmap.layer.StravaTileFetcher;
+import org.openstreetmap.josm.plugins.strava.heatmap.layer.StravaTileRange;
+import org.openstreetmap.josm.spi.preferences.Config;
+import org.openstreetmap.josm.tools.Logging;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+/**
+ * The heatmap intensity of a range of tiles, as a single grid of unsigned bytes.
+ * <p>
+ * The tiles are decoded one by one into the grid as soon as they are loaded,
+ * so that a single image per decoding thread is held in memory.
+ * The tiles are read from the {@link StravaTileStore} when available, otherwise downloaded by the {@link StravaTileFetcher}.
+ */
+public class StravaIntensityGrid {
+
+    /**
+     * The size of a tile in the grid, in pixels.
+     */
+    public static final int TILE_SIZE = 256;
+
+    private static final int DEFAULT_WORKERS = 8;
+    private static final long CANCEL_POLL_MILLIS = 100;
+
+    private final StravaTileRange range;
+    private final int width;
+    private final int height;
+    private final byte[] intensities;
+    private final AtomicInteger failedTiles = new AtomicInteger();
+
+    private StravaIntensityGrid(StravaTileRange range) {
+        this.range = range;
+        this.width = (range.getMaxX() - range.getMinX() + 1) * TILE_SIZE;
+        this.height = (range.getMaxY() - range.getMinY() + 1) * TILE_SIZE;
+        this.intensities = new byte[width * height];
+    }
+
+    /**
+     * Loads the intensity of a range of tiles.
+     * Several tiles are loaded in parallel, their number is read from the preference "strava.heatmap.analysis.workers".
+     *
+     * @param layer           the authenticated heatmap layer.
+     * @param cookies         the authentication cookies formatted as an HTTP "Cookie" header.
+     * @param range           the tiles to load.
+     * @param progressMonitor the progress monitor, which is advanced by one tick per tile.
+     * @param cancelled       tells if the loading has been cancelled.
+     * @return the intensity grid, the pixels of the tiles that cannot be loaded are left at 0.
+     * The grid is incomplete if the loading has been cancelled.
+     */
+    public static StravaIntensityGrid load(StravaHeatmapLayer layer, String cookies, StravaTileRange range,
+                                           ProgressMonitor progressMonitor, BooleanSupplier cancelled) {
+        StravaIntensityGrid grid = new StravaIntensityGrid(range);
+        String tileStoreKey = layer.getTileStoreKey();
+        int zoom = range.getZoom();
+        StravaTileStore tileStore = StravaTileStore.getInstance();
+        StravaTileFetcher tileFetcher = StravaTileFetcher.getInstance();
+        int workerCount = Math.max(1, Config.getPref().getInt("strava.heatmap.analysis.workers", DEFAULT_WORKERS));
+        Semaphore workers = new Semaphore(workerCount);
+        for (int x = range.getMinX(); x <= range.getMaxX() && !cancelled.getAsBoolean(); x++) {
+            for (int y = range.getMinY(); y <= range.getMaxY() && !cancelled.getAsBoolean(); y++) {
+                int offsetX = (x - range.getMinX()) * TILE_SIZE;
+                int offsetY = (y - range.getMinY()) * TILE_SIZE;
+                byte[] storedTile = tileStore == null ? null : tileStore.get(tileStoreKey, zoom, x, y);
+                workers.acquireUninterruptibly();
+                if (storedTile != null) {
+                    ForkJoinPool.commonPool().execute(() -> {
+                        try {
+                            grid.decodeTile(storedTile, offsetX, offsetY);
+                            progressMonitor.worked(1);
+                        } finally {
+                            workers.release();
+                        }
+                    });
+                    continue;
+                }
+                int tileX = x;
+                int tileY = y;
+                tileFetcher.fetch(layer.getTileUrl(zoom, x, y), cookies).whenCompleteAsync((encodedImage, throwable) -> {
+                    try {
+                        if (throwable != null) {
+                            grid.failedTiles.incrementAndGet();
+                            Logging.debug(throwable);
+                        } else {
+                            if (tileStore != null) {
+                                tileStore.put(tileStoreKey, zoom, tileX, tileY, encodedImage);
+                            }
+                            grid.decodeTile(encodedImage, offsetX, offsetY);
+                        }
+                        progressMonitor.worked(1);
+                    } finally {
+                        workers.release();
+                    }
+                }, ForkJoinPool.commonPool());
+            }
+        }
+        // wait for the last tiles, unless the loading is cancelled: the grid is then left to the last tiles
+        try {
+            while (!workers.tryAcquire(workerCount, CANCEL_POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                if (cancelled.getAsBoolean()) {
+                    break;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return grid;
+    }
+
+    /**
+     * Decodes a tile into its area of the grid. The areas of the tiles never overlap.
+     */
+    private void decodeTile(byte[] encodedImage, int offsetX, int offsetY) {
+        try {
+            BufferedImage image = ImageIO.read(new ByteArrayInputStream(encodedImage));
+            if (image == null) {
+                throw new IOException("Unsupported tile image format");
+            }
+            boolean hasAlpha = image.getColorModel().hasAlpha();
+            // high-resolution tiles (512 pixels) are sampled
+            int scale = Math.max(1, image.getWidth() / TILE_SIZE);
+            for (int y = 0; y < TILE_SIZE && y * scale < image.getHeight(); y++) {
+                for (int x = 0; x < TILE_SIZE && x * scale < image.getWidth(); x++) {
+                    intensities[(offsetY + y) * width + offsetX + x] = (byte) StravaHeatmapPalette.intensity(image.getRGB(x * scale, y * scale), hasAlpha);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // ImageIO also throws runtime exceptions for some malformed images
+            failedTiles.incrementAndGet();
+            Logging.debug(e);
+        }
+    }
+
+    /**
+     * Returns the coordinates of the center of a pixel.
+     *
+     * @param x the pixel x coordinate.
+     * @param y the pixel y coordinate.
+     * @return the coordinates.
+     */
+    public LatLon toLatLon(double x, double y) {
+        return StravaTileRange.toLatLon(range.getZoom(),
+                range.getMinX() + (x + 0.5) / TILE_SIZE, range.getMinY() + (y + 0.5) / TILE_SIZE);
+    }
+
+    /**
+     * Returns the pixel x coordinate of a longitude.
+     *
+     * @param lon the longitude.
+     * @return the pixel x coordinate, with a fractional part, possibly outside the grid.
+     */
+    public double toPixelX(double lon) {
+        return (StravaTileRange.toTileX(lon, range.getZoom()) - range.getMinX()) * TILE_SIZE - 0.5;
+    }
+
+    /**
+     * Returns the pixel y coordinate of a latitude.
+     *
+     * @param lat the latitude.
+     * @return the pixel y coordinate, with a fractional part, possibly outside the grid.
+     */
+    public double toPixelY(double lat) {
+        return (StravaTileRange.toTileY(lat, range.getZoom()) - range.getMinY()) * TILE_SIZE - 0.5;
+    }
+
+    /**
+     * Creates a data set with a way along each polyline. The data set cannot be uploaded.
+     *
+     * @param polylines the polylines, each as an array of pixel coordinates x0, y0, x1, y1...
+     * @return the data set.
+     */
+    public DataSet toDataSet(List<int[]> polylines) {
+        DataSet dataSet = new DataSet();
+        for (int[] polyline : polylines) {
+            List<Node> nodes = new ArrayList<>();
+            for (int i = 0; i < polyline.length; i += 2) {
+                Node node = new Node(toLatLon(polyline[i], polyline[i + 1]));
+                dataSet.addPrimitive(node);
+                nodes.add(node);
+            }
+            Way way = new Way();
+            way.setNodes(nodes);
+            dataSet.addPrimitive(way);
+        }
+        dataSet.setUploadPolicy(UploadPolicy.BLOCKED);
+        return dataSet;
+    }
+
+    /**
+     * Returns the tile range of the grid.
+     *
+     * @return the tile range.
+     */
+    public StravaTileRange getRange() {
+        return range;
+    }
+
+    /**
+     * Returns the intensities, row by row.
+     *
+     * @return the intensities.
+     */
+    public byte[] getIntensities() {
+        return intensities;
+    }
+
+    /**
+     * Returns the width of the grid.
+     *
+     * @return the width, in pixels.
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Returns the height of the grid.
+     *
+     * @return the height, in pixels.
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Returns the number of tiles that could not be loaded.
+     *
+     * @return the number of failed tiles.
+     */
+    public int getFailedTiles() {
+        return failedTiles.get();
+    }
+}
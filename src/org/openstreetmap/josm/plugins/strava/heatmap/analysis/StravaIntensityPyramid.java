@@ -0,0 +1,431 @@
+package org.openstreetmap.josm.plugins.strava.heatmap.analysis;
+
+import org.openstreetmap.josm.plugins.strava.heatmap.cache.StravaTileStore;
+import org.openstreetmap.josm.plugins.strava.heatmap.layer.StravaHeatmapLayer;
+import org.openstreetmap.josm.plugins.strava.heatmap.layer.StravaHeatmapPalette;
+import org.openstreetmap.josm.plugins.strava.heatmap.layer.StravaOverzoomCache;
+import org.openstreetmap.josm.plugins.strava.heatmap.layer.StravaTileFetcher;
+import org.openstreetmap.josm.plugins.strava.heatmap.layer.StravaTileLoader;
+import org.openstreetmap.josm.spi.preferences.Config;
+import org.openstreetmap.josm.tools.Logging;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The heatmap intensity of the z15 tiles, answering the nearest ridge queries of the snapping to the heatmap.
+ * <p>
+ * Each tile is stored as a single array of unsigned bytes: the 256x256 intensities, followed by 8 coarser levels
+ * whose pixels hold the maximum intensity of the 2x2 pixels below them, down to a single pixel.
+ * A query walks down the levels from the whole tile, skipping the blocks darker than the threshold or farther than
+ * the nearest bright pixel found so far, so that it only reads a few hundred bytes. The nearest bright pixel is then
+ * moved uphill to the center of the path.
+ * <p>
+ * The tiles are kept in a least-recently-used cache, whose size is read from the preference
+ * "strava.heatmap.snap.cache" (in tiles, 128 by default, about 11 MB).
+ * The tiles that could not be loaded are not requested again before a delay, doubled after each failure.
+ */
+public class StravaIntensityPyramid {
+
+    /**
+     * The zoom level of the tiles, the highest zoom level of the authenticated heatmap.
+     */
+    public static final int ZOOM = StravaOverzoomCache.MAX_NATIVE_ZOOM;
+
+    /**
+     * The size of a tile, in pixels.
+     */
+    public static final int TILE_SIZE = StravaIntensityGrid.TILE_SIZE;
+
+    /**
+     * The number of levels, from 256x256 to 1x1 pixel.
+     */
+    private static final int LEVEL_COUNT = 9;
+
+    private static final int[] LEVEL_OFFSETS = new int[LEVEL_COUNT];
+
+    private static final int PYRAMID_SIZE;
+
+    static {
+        int offset = 0;
+        for (int level = 0; level < LEVEL_COUNT; level++) {
+            LEVEL_OFFSETS[level] = offset;
+            offset += (TILE_SIZE >> level) * (TILE_SIZE >> level);
+        }
+        PYRAMID_SIZE = offset;
+    }
+
+    private static final int DEFAULT_CACHE_SIZE = 128;
+
+    private static final long MIN_RETRY_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(30);
+    private static final long MAX_RETRY_DELAY_MILLIS = TimeUnit.MINUTES.toMillis(30);
+    private static final int MAX_FAILED_TILES = 256;
+
+    private static StravaIntensityPyramid instance;
+
+    private final Map<String, byte[]> tiles;
+
+    /**
+     * The keys of the tiles being loaded.
+     */
+    private final Set<String> pendingTiles = ConcurrentHashMap.newKeySet();
+
+    /**
+     * The tiles that could not be loaded, with the number of consecutive failures and the time of the next attempt.
+     */
+    private final Map<String, long[]> failedTiles = new LinkedHashMap<String, long[]>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, long[]> eldest) {
+            return size() > MAX_FAILED_TILES;
+        }
+    };
+
+    /**
+     * Creates a pyramid.
+     *
+     * @param maxSize the maximum number of tiles kept in memory.
+     */
+    public StravaIntensityPyramid(int maxSize) {
+        this.tiles = new LinkedHashMap<String, byte[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Returns the pyramid shared by all the layers.
+     *
+     * @return the intensity pyramid.
+     */
+    public static synchronized StravaIntensityPyramid getInstance() {
+        if (instance == null) {
+            instance = new StravaIntensityPyramid(Config.getPref().getInt("strava.heatmap.snap.cache", DEFAULT_CACHE_SIZE));
+        }
+        return instance;
+    }
+
+    /**
+     * Tests if a tile is in memory.
+     *
+     * @param namespace the key identifying the heatmap, i.e. the tile store key.
+     * @param x         the tile x coordinate.
+     * @param y         the tile y coordinate.
+     * @return true if the tile can be queried.
+     */
+    public synchronized boolean contains(String namespace, int x, int y) {
+        return tiles.containsKey(StravaOverzoomCache.getKey(namespace, ZOOM, x, y));
+    }
+
+    /**
+     * Adds a tile, evicting the least recently used tile if the cache is full.
+     *
+     * @param namespace   the key identifying the heatmap, i.e. the tile store key.
+     * @param x           the tile x coordinate.
+     * @param y           the tile y coordinate.
+     * @param intensities the 256x256 intensities of the tile, row by row, as unsigned bytes.
+     */
+    public void put(String namespace, int x, int y, byte[] intensities) {
+        if (intensities.length != TILE_SIZE * TILE_SIZE) {
+            throw new IllegalArgumentException("Invalid tile size: " + intensities.length);
+        }
+        byte[] pyramid = build(intensities);
+        synchronized (this) {
+            tiles.put(StravaOverzoomCache.getKey(namespace, ZOOM, x, y), pyramid);
+        }
+    }
+
+    /**
+     * Loads a tile in the background, unless it is already in memory, being loaded, or failed recently.
+     * The tile is read from the {@link StravaTileStore} when available, otherwise downloaded by the
+     * {@link StravaTileFetcher} as a background download. The tile store is read and the tiles are decoded
+     * by the threads of the {@link StravaTileLoader#getTileStoreExecutor() tile store}.
+     *
+     * @param layer the authenticated heatmap layer.
+     * @param x     the tile x coordinate.
+     * @param y     the tile y coordinate.
+     */
+    public void load(StravaHeatmapLayer layer, int x, int y) {
+        String namespace = layer.getTileStoreKey();
+        if (namespace == null || contains(namespace, x, y)) {
+            return;
+        }
+        String key = StravaOverzoomCache.getKey(namespace, ZOOM, x, y);
+        if (isRetryDelayed(key, System.currentTimeMillis()) || !pendingTiles.add(key)) {
+            return;
+        }
+        StravaTileLoader.getTileStoreExecutor().execute(() -> {
+            StravaTileStore tileStore = StravaTileStore.getInstance();
+            byte[] storedTile = tileStore == null ? null : tileStore.get(namespace, ZOOM, x, y);
+            if (storedTile != null) {
+                decodeTile(key, namespace, x, y, storedTile);
+                return;
+            }
+            StravaTileFetcher.getInstance().fetch(layer.getTileUrl(ZOOM, x, y), layer.getInfo().getCookies(), true)
+                    .whenCompleteAsync((encodedImage, throwable) -> {
+                        if (throwable != null) {
+                            Logging.debug(throwable);
+                            recordFailure(key);
+                        } else {
+                            if (tileStore != null) {
+                                tileStore.put(namespace, ZOOM, x, y, encodedImage);
+                            }
+                            decodeTile(key, namespace, x, y, encodedImage);
+                        }
+                    }, StravaTileLoader.getTileStoreExecutor());
+        });
+    }
+
+    private synchronized boolean isRetryDelayed(String key, long nowMillis) {
+        long[] failure = failedTiles.get(key);
+        return failure != null && nowMillis < failure[1];
+    }
+
+    /**
+     * Records a failed tile and delays its next attempt, the delay being doubled after each consecutive failure.
+     */
+    private void recordFailure(String key) {
+        synchronized (this) {
+            long[] failure = failedTiles.computeIfAbsent(key, k -> new long[2]);
+            long delay = Math.min(MAX_RETRY_DELAY_MILLIS, MIN_RETRY_DELAY_MILLIS << Math.min(failure[0], 16));
+            failure[0]++;
+            failure[1] = System.currentTimeMillis() + delay;
+        }
+        pendingTiles.remove(key);
+    }
+
+    private void decodeTile(String key, String namespace, int x, int y, byte[] encodedImage) {
+        try {
+            BufferedImage image = ImageIO.read(new ByteArrayInputStream(encodedImage));
+            if (image == null) {
+                throw new IOException("Unsupported tile image format");
+            }
+            put(namespace, x, y, toIntensities(image));
+        } catch (IOException e) {
+            Logging.debug(e);
+            recordFailure(key);
+            return;
+        }
+        synchronized (this) {
+            failedTiles.remove(key);
+        }
+        pendingTiles.remove(key);
+    }
+
+    /**
+     * Returns the intensities of a decoded tile. High-resolution tiles (512 pixels) are sampled.
+     *
+     * @param image the decoded tile, either a colored tile or an intensity image (see {@link StravaHeatmapPalette}).
+     * @return the 256x256 intensities, row by row, as unsigned bytes.
+     */
+    public static byte[] toIntensities(BufferedImage image) {
+        byte[] intensities = new byte[TILE_SIZE * TILE_SIZE];
+        boolean gray = image.getType() == BufferedImage.TYPE_BYTE_GRAY;
+        boolean hasAlpha = image.getColorModel().hasAlpha();
+        int scale = Math.max(1, image.getWidth() / TILE_SIZE);
+        for (int y = 0; y < TILE_SIZE && y * scale < image.getHeight(); y++) {
+            for (int x = 0; x < TILE_SIZE && x * scale < image.getWidth(); x++) {
+                intensities[y * TILE_SIZE + x] = (byte) (gray
+                        ? image.getRaster().getSample(x * scale, y * scale, 0)
+                        : StravaHeatmapPalette.intensity(image.getRGB(x * scale, y * scale), hasAlpha));
+            }
+        }
+        return intensities;
+    }
+
+    /**
+     * Builds the levels of a tile.
+     */
+    private static byte[] build(byte[] intensities) {
+        byte[] pyramid = new byte[PYRAMID_SIZE];
+        System.arraycopy(intensities, 0, pyramid, 0, intensities.length);
+        for (int level = 1; level < LEVEL_COUNT; level++) {
+            int size = TILE_SIZE >> level;
+            int childSize = size * 2;
+            int offset = LEVEL_OFFSETS[level];
+            int childOffset = LEVEL_OFFSETS[level - 1];
+            for (int y = 0; y < size; y++) {
+                for (int x = 0; x < size; x++) {
+                    int child = childOffset + 2 * y * childSize + 2 * x;
+                    int max = Math.max(
+                            Math.max(pyramid[child] & 0xff, pyramid[child + 1] & 0xff),
+                            Math.max(pyramid[child + childSize] & 0xff, pyramid[child + childSize + 1] & 0xff));
+                    pyramid[offset + y * size + x] = (byte) max;
+                }
+            }
+        }
+        return pyramid;
+    }
+
+    /**
+     * Finds the center of the nearest path: the pixel at least as bright as the threshold nearest to a point,
+     * moved uphill to the brightest pixel around it, then to the intensity-weighted center of its 3x3 neighborhood.
+     * The tiles that are not in memory are considered dark.
+     *
+     * @param namespace the key identifying the heatmap, i.e. the tile store key.
+     * @param x         the x coordinate of the point, in pixels at zoom level {@link #ZOOM} ({@code tileX * 256}).
+     * @param y         the y coordinate of the point, in pixels at zoom level {@link #ZOOM}.
+     * @param radius    the search radius, in pixels.
+     * @param threshold the lowest intensity (0-255) considered as a path.
+     * @return the x and y coordinates of the center of the path, in pixels, or null if there is no path within the radius.
+     */
+    public double[] findRidge(String namespace, double x, double y, double radius, int threshold) {
+        Query query = new Query(x, y, radius, Math.max(1, threshold));
+        synchronized (this) {
+            for (int row = 0; row < query.rows; row++) {
+                for (int column = 0; column < query.columns; column++) {
+                    query.tiles[row * query.columns + column] = tiles.get(StravaOverzoomCache.getKey(namespace, ZOOM,
+                            query.minTileX + column, query.minTileY + row));
+                }
+            }
+        }
+        for (int row = 0; row < query.rows; row++) {
+            for (int column = 0; column < query.columns; column++) {
+                byte[] tile = query.tiles[row * query.columns + column];
+                if (tile != null) {
+                    query.search(tile, (query.minTileX + column) * TILE_SIZE, (query.minTileY + row) * TILE_SIZE,
+                            LEVEL_COUNT - 1, 0, 0);
+                }
+            }
+        }
+        return query.found ? query.climb() : null;
+    }
+
+    /**
+     * The state of a nearest ridge query. The coordinates are global pixel coordinates at zoom level {@link #ZOOM}.
+     */
+    private static final class Query {
+        private final double x;
+        private final double y;
+        private final double radiusSquared;
+        private final int threshold;
+        private final int minTileX;
+        private final int minTileY;
+        private final int columns;
+        private final int rows;
+        private final byte[][] tiles;
+
+        private boolean found;
+        private double bestDistanceSquared;
+        private int bestX;
+        private int bestY;
+
+        private Query(double x, double y, double radius, int threshold) {
+            this.x = x;
+            this.y = y;
+            this.radiusSquared = radius * radius;
+            this.threshold = threshold;
+            this.minTileX = (int) Math.floor((x - radius) / TILE_SIZE);
+            this.minTileY = (int) Math.floor((y - radius) / TILE_SIZE);
+            this.columns = (int) Math.floor((x + radius) / TILE_SIZE) - minTileX + 1;
+            this.rows = (int) Math.floor((y + radius) / TILE_SIZE) - minTileY + 1;
+            this.tiles = new byte[columns * rows][];
+            this.bestDistanceSquared = radiusSquared;
+        }
+
+        /**
+         * Searches a block of a tile for a bright pixel nearer than the best one.
+         */
+        private void search(byte[] tile, int tileOriginX, int tileOriginY, int level, int blockX, int blockY) {
+            int levelSize = TILE_SIZE >> level;
+            if ((tile[LEVEL_OFFSETS[level] + blockY * levelSize + blockX] & 0xff) < threshold) {
+                return;
+            }
+            int blockSize = 1 << level;
+            // the distance to the nearest pixel center of the block
+            double minX = tileOriginX + blockX * blockSize + 0.5;
+            double minY = tileOriginY + blockY * blockSize + 0.5;
+            double dx = Math.max(0, Math.max(minX - x, x - (minX + blockSize - 1)));
+            double dy = Math.max(0, Math.max(minY - y, y - (minY + blockSize - 1)));
+            double distanceSquared = dx * dx + dy * dy;
+            if (distanceSquared > bestDistanceSquared) {
+                return;
+            }
+            if (level == 0) {
+                found = true;
+                bestDistanceSquared = distanceSquared;
+                bestX = tileOriginX + blockX;
+                bestY = tileOriginY + blockY;
+                return;
+            }
+            for (int child = 0; child < 4; child++) {
+                search(tile, tileOriginX, tileOriginY, level - 1, 2 * blockX + (child & 1), 2 * blockY + (child >> 1));
+            }
+        }
+
+        /**
+         * Moves the best pixel uphill within the search radius, then returns the center of its neighborhood.
+         */
+        private double[] climb() {
+            int pixelX = bestX;
+            int pixelY = bestY;
+            int maxSteps = (int) Math.sqrt(radiusSquared) * 2 + 1;
+            for (int step = 0; step < maxSteps; step++) {
+                int current = intensity(pixelX, pixelY);
+                int brightest = current;
+                double nearest = Double.MAX_VALUE;
+                int nextX = pixelX;
+                int nextY = pixelY;
+                // the brightest neighbor, the one nearest to the point among the equally bright ones,
+                // so that the pixel does not slide along the path
+                for (int dy = -1; dy <= 1; dy++) {
+                    for (int dx = -1; dx <= 1; dx++) {
+                        int value = intensity(pixelX + dx, pixelY + dy);
+                        double distanceSquared = distanceSquared(pixelX + dx, pixelY + dy);
+                        if (value > current && (value > brightest || value == brightest && distanceSquared < nearest)
+                                && distanceSquared <= radiusSquared) {
+                            brightest = value;
+                            nearest = distanceSquared;
+                            nextX = pixelX + dx;
+                            nextY = pixelY + dy;
+                        }
+                    }
+                }
+                if (nextX == pixelX && nextY == pixelY) {
+                    break;
+                }
+                pixelX = nextX;
+                pixelY = nextY;
+            }
+            double sumX = 0;
+            double sumY = 0;
+            double sum = 0;
+            for (int dy = -1; dy <= 1; dy++) {
+                for (int dx = -1; dx <= 1; dx++) {
+                    int value = intensity(pixelX + dx, pixelY + dy);
+                    sumX += value * (pixelX + dx + 0.5);
+                    sumY += value * (pixelY + dy + 0.5);
+                    sum += value;
+                }
+            }
+            return new double[] {sumX / sum, sumY / sum};
+        }
+
+        private double distanceSquared(int pixelX, int pixelY) {
+            double dx = pixelX + 0.5 - x;
+            double dy = pixelY + 0.5 - y;
+            return dx * dx + dy * dy;
+        }
+
+        /**
+         * Returns the intensity of a pixel, 0 outside the tiles of the query.
+         */
+        private int intensity(int pixelX, int pixelY) {
+            int column = Math.floorDiv(pixelX, TILE_SIZE) - minTileX;
+            int row = Math.floorDiv(pixelY, TILE_SIZE) - minTileY;
+            if (column < 0 || row < 0 || column >= columns || row >= rows) {
+                return 0;
+            }
+            byte[] tile = tiles[row * columns + column];
+            return tile == null ? 0 : tile[Math.floorMod(pixelY, TILE_SIZE) * TILE_SIZE + Math.floorMod(pixelX, TILE_SIZE)] & 0xff;
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package org.openstreetmap.josm.plugins.strava.heatmap.analysis;
+
+import org.openstreetmap.josm.data.Bounds;
+import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.data.osm.BBox;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.Way;
+import org.openstreetmap.josm.data.validation.Severity;
+import org.openstreetmap.josm.data.validation.TestError;
+import org.openstreetmap.josm.gui.MainApplication;
+import org.openstreetmap.josm.gui.PleaseWaitRunnable;
+import org.openstreetmap.josm.gui.layer.OsmDataLayer;
+import org.openstreetmap.josm.plugins.strava.heatmap.authentication.StravaAuthenticationService;
+import org.openstreetmap.josm.plugins.strava.heatmap.layer.StravaHeatmapLayer;
+import org.openstreetmap.josm.plugins.strava.heatmap.layer.StravaTileRange;
+import org.openstreetmap.josm.spi.preferences.Config;
+import org.openstreetmap.josm.tools.I18n;
+import org.openstreetmap.josm.tools.Logging;
+
+import javax.swing.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.locks.Lock;
+import java.util.stream.IntStream;
+
+/**
+ * Finds the heatmap corridors with a high intensity but without any highway nearby in a data set.
+ * <ol>
+ * <li>The z15 tiles covering the downloaded areas of the data set are decoded into a {@link StravaIntensityGrid}.</li>
+ * <li>The highways are rasterized into a {@link StravaCoverageMask}, one tile at a time in parallel:
+ * the highway segments are first read under the read lock of the data set, and listed by tile.</li>
+ * <li>The bright ridges of the heatmap are extracted by the {@link StravaRidgeExtractor},
+ * the stretches of ridges outside the mask are reported.</li>
+ * </ol>
+ * The corridors are added to a new data layer, which cannot be uploaded, and reported as validator warnings
+ * along with the results of the other validator tests.
+ */
+public class StravaMissingWayTask extends PleaseWaitRunnable {
+
+    private static final int ZOOM = 15;
+
+    private static final int DEFAULT_MAX_TILES = 900;
+    private static final int DEFAULT_THRESHOLD = 96;
+    private static final int DEFAULT_DISTANCE = 20;
+    private static final int DEFAULT_MIN_LENGTH = 100;
+    private static final double SIMPLIFICATION_TOLERANCE = 1.5;
+
+    private static final double EARTH_CIRCUMFERENCE = 40075016.686;
+
+    private final StravaHeatmapLayer layer;
+    private final DataSet dataSet;
+    private final StravaTileRange range;
+    private volatile boolean cancelled;
+    private String errorMessage;
+    private DataSet corridors;
+
+    /**
+     * Creates the task.
+     *
+     * @param layer   the authenticated heatmap layer.
+     * @param dataSet the data set whose highways are compared to the heatmap.
+     * @param bounds  the area to analyse, usually the downloaded areas of the data set.
+     */
+    public StravaMissingWayTask(StravaHeatmapLayer layer, DataSet dataSet, Bounds bounds) {
+        super(I18n.tr("Looking for missing ways"));
+        this.layer = layer;
+        this.dataSet = dataSet;
+        this.range = new StravaTileRange(bounds, ZOOM);
+    }
+
+    /**
+     * Returns the number of tiles of the area.
+     *
+     * @return the number of tiles.
+     */
+    public long getTileCount() {
+        return range.getTileCount();
+    }
+
+    /**
+     * Returns the maximum number of tiles analysed at once, which bounds the size of the intensity grid.
+     * The value is read from the preference "strava.heatmap.gaps.maxtiles".
+     *
+     * @return the maximum number of tiles.
+     */
+    public static int getMaxTileCount() {
+        return Config.getPref().getInt("strava.heatmap.gaps.maxtiles", DEFAULT_MAX_TILES);
+    }
+
+    @Override
+    protected void realRun() {
+        if (layer.getTileStoreKey() == null) {
+            errorMessage = I18n.tr("The Strava heatmap layer is not authenticated.");
+            return;
+        }
+        String cookies;
+        try {
+            cookies = StravaAuthenticationService.getInstance().getCookiesAsHttpHeaderAsync().join();
+        } catch (CompletionException e) {
+            Logging.error(e.getCause());
+            errorMessage = I18n.tr("Authentication on the Strava website failed.");
+            return;
+        }
+
+        getProgressMonitor().setTicksCount((int) range.getTileCount() + 2);
+        getProgressMonitor().setCustomText(I18n.tr("Loading the heatmap tiles"));
+        StravaIntensityGrid grid = StravaIntensityGrid.load(layer, cookies, range, getProgressMonitor(), () -> cancelled);
+        if (cancelled) {
+            return;
+        }
+
+        // the scale of the web mercator projection at the center of the area
+        LatLon center = grid.toLatLon(grid.getWidth() / 2.0, grid.getHeight() / 2.0);
+        double metersPerPixel = EARTH_CIRCUMFERENCE * Math.cos(Math.toRadians(center.lat()))
+                / ((1 << ZOOM) * StravaIntensityGrid.TILE_SIZE);
+        int distance = Config.getPref().getInt("strava.heatmap.gaps.distance", DEFAULT_DISTANCE);
+        int minLength = Config.getPref().getInt("strava.heatmap.gaps.minlength", DEFAULT_MIN_LENGTH);
+
+        getProgressMonitor().setCustomText(I18n.tr("Rasterizing the highways"));
+        StravaCoverageMask mask = createMask(grid, distance / metersPerPixel);
+        getProgressMonitor().worked(1);
+        if (cancelled) {
+            return;
+        }
+
+        getProgressMonitor().setCustomText(I18n.tr("Comparing the heatmap with the highways"));
+        int threshold = Config.getPref().getInt("strava.heatmap.gaps.threshold", DEFAULT_THRESHOLD);
+        List<int[]> ridges = new StravaRidgeExtractor(threshold, SIMPLIFICATION_TOLERANCE, 0)
+                .extract(grid.getIntensities(), grid.getWidth(), grid.getHeight());
+        List<int[]> gaps = mask.findUncoveredStretches(ridges, minLength / metersPerPixel);
+        corridors = grid.toDataSet(gaps);
+        getProgressMonitor().worked(1);
+        Logging.info("Strava heatmap missing ways: " + gaps.size() + " corridors, " + grid.getFailedTiles() + " tiles failed");
+    }
+
+    /**
+     * Rasterizes the highways of the data set, each tile of the grid being filled by its own task.
+     * The highway segments are read once under the read lock of the data set, the tasks only use this snapshot.
+     */
+    private StravaCoverageMask createMask(StravaIntensityGrid grid, double radius) {
+        StravaCoverageMask mask = new StravaCoverageMask(grid.getWidth(), grid.getHeight());
+        int tilesX = grid.getWidth() / StravaIntensityGrid.TILE_SIZE;
+        int tilesY = grid.getHeight() / StravaIntensityGrid.TILE_SIZE;
+        List<List<double[]>> tileSegments = snapshotSegments(grid, radius, tilesX, tilesY);
+        IntStream.range(0, tilesX * tilesY).parallel().forEach(tile -> {
+            int clipMinX = (tile % tilesX) * StravaIntensityGrid.TILE_SIZE;
+            int clipMinY = (tile / tilesX) * StravaIntensityGrid.TILE_SIZE;
+            int clipMaxX = clipMinX + StravaIntensityGrid.TILE_SIZE;
+            int clipMaxY = clipMinY + StravaIntensityGrid.TILE_SIZE;
+            for (double[] segment : tileSegments.get(tile)) {
+                mask.addSegment(segment[0], segment[1], segment[2], segment[3], radius,
+                        clipMinX, clipMinY, clipMaxX, clipMaxY);
+            }
+        });
+        return mask;
+    }
+
+    /**
+     * Reads the highway segments near the grid, in pixel coordinates x0, y0, x1, y1,
+     * and lists them by tile of the grid, each segment being listed in all the tiles within the radius.
+     */
+    private List<List<double[]>> snapshotSegments(StravaIntensityGrid grid, double radius, int tilesX, int tilesY) {
+        List<List<double[]>> tileSegments = new ArrayList<>(tilesX * tilesY);
+        for (int tile = 0; tile < tilesX * tilesY; tile++) {
+            tileSegments.add(new ArrayList<>());
+        }
+        // the ways of the grid, extended by the radius
+        LatLon topLeft = grid.toLatLon(-radius - 1, -radius - 1);
+        LatLon bottomRight = grid.toLatLon(grid.getWidth() + radius, grid.getHeight() + radius);
+        BBox bbox = new BBox(topLeft.lon(), topLeft.lat(), bottomRight.lon(), bottomRight.lat());
+        Lock readLock = dataSet.getReadLock();
+        readLock.lock();
+        try {
+            for (Way way : dataSet.searchWays(bbox)) {
+                if (!way.isUsable() || !way.hasKey("highway")) {
+                    continue;
+                }
+                List<Node> nodes = way.getNodes();
+                for (int i = 1; i < nodes.size(); i++) {
+                    LatLon from = nodes.get(i - 1).getCoor();
+                    LatLon to = nodes.get(i).getCoor();
+                    if (from != null && to != null) {
+                        double[] segment = {grid.toPixelX(from.lon()), grid.toPixelY(from.lat()),
+                                grid.toPixelX(to.lon()), grid.toPixelY(to.lat())};
+                        addToTiles(segment, radius + 1, tilesX, tilesY, tileSegments);
+                    }
+                }
+            }
+        } finally {
+            readLock.unlock();
+        }
+        return tileSegments;
+    }
+
+    private static void addToTiles(double[] segment, double margin, int tilesX, int tilesY, List<List<double[]>> tileSegments) {
+        double minTileX = Math.floor((Math.min(segment[0], segment[2]) - margin) / StravaIntensityGrid.TILE_SIZE);
+        double maxTileX = Math.floor((Math.max(segment[0], segment[2]) + margin) / StravaIntensityGrid.TILE_SIZE);
+        double minTileY = Math.floor((Math.min(segment[1], segment[3]) - margin) / StravaIntensityGrid.TILE_SIZE);
+        double maxTileY = Math.floor((Math.max(segment[1], segment[3]) + margin) / StravaIntensityGrid.TILE_SIZE);
+        for (int tileY = (int) Math.max(0, minTileY); tileY <= Math.min(tilesY - 1, maxTileY); tileY++) {
+            for (int tileX = (int) Math.max(0, minTileX); tileX <= Math.min(tilesX - 1, maxTileX); tileX++) {
+                tileSegments.get(tileY * tilesX + tileX).add(segment);
+            }
+        }
+    }
+
+    @Override
+    protected void finish() {
+        if (errorMessage != null) {
+            JOptionPane.showMessageDialog(MainApplication.getMainFrame(), errorMessage,
+                    I18n.tr("Error"), JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        if (corridors == null) {
+            return;
+        }
+        if (corridors.getWays().isEmpty()) {
+            JOptionPane.showMessageDialog(MainApplication.getMainFrame(),
+                    I18n.tr("No heatmap corridor without a highway has been found."),
+                    I18n.tr("Strava heatmap missing ways"), JOptionPane.INFORMATION_MESSAGE);
+            return;
+        }
+        MainApplication.getLayerManager().addLayer(new OsmDataLayer(corridors,
+                I18n.tr("Missing ways from {0}", layer.getName()), null));
+        if (MainApplication.getMap() != null && MainApplication.getMap().validatorDialog != null) {
+            StravaMissingWayValidation validation = new StravaMissingWayValidation();
+            int distance = Config.getPref().getInt("strava.heatmap.gaps.distance", DEFAULT_DISTANCE);
+            List<TestError> errors = new ArrayList<>();
+            for (Way corridor : corridors.getWays()) {
+                errors.add(TestError.builder(validation, Severity.WARNING, StravaMissingWayValidation.MISSING_WAY)
+                        .message(I18n.tr("Heatmap corridor without any highway within {0} m", distance))
+                        .primitives(corridor)
+                        .build());
+            }
+            // the errors of the other tests are kept, the corridors of a previous analysis are replaced
+            for (TestError error : MainApplication.getMap().validatorDialog.tree.getErrors()) {
+                if (!(error.getTester() instanceof StravaMissingWayValidation)) {
+                    errors.add(error);
+                }
+            }
+            MainApplication.getMap().validatorDialog.tree.setErrors(errors);
+            MainApplication.getMap().validatorDialog.unfurlDialog();
+        }
+    }
+
+    @Override
+    protected void cancel() {
+        cancelled = true;
+    }
+}
@@ -0,0 +1,24 @@
+package org.openstreetmap.josm.plugins.strava.heatmap.analysis;
+
+import org.openstreetmap.josm.data.validation.Test;
+import org.openstreetmap.josm.tools.I18n;
+
+/**
+ * The validator test reporting the heatmap corridors without any way, see {@link StravaMissingWayTask}.
+ * The test is not registered in the validator: the heatmap is only analysed on the user's request.
+ */
+public class StravaMissingWayValidation extends Test {
+
+    /**
+     * The code of the errors reported for a heatmap corridor without any way.
+     */
+    public static final int MISSING_WAY = 3900;
+
+    /**
+     * Creates the test.
+     */
+    public StravaMissingWayValidation() {
+        super(I18n.tr("Strava heatmap missing ways"),
+                I18n.tr("Finds the paths of the Strava heatmap without any highway nearby"));
+    }
+}
@@ -0,0 +1,450 @@
+package org.openstreetmap.josm.plugins.strava.heatmap.analysis;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Extracts the center lines of the bright ridges of an intensity grid, e.g. the paths of a heatmap.
+ * <ol>
+ * <li>The grid is smoothed with a 3x3 box filter and thresholded into a binary image.</li>
+ * <li>The binary image is thinned into a one-pixel wide skeleton (Zhang-Suen algorithm),
+ * the redundant pixels of the staircases left by the thinning are removed.</li>
+ * <li>The skeleton is traced into polylines between its end points and junctions,
+ * the polylines are simplified (Douglas-Peucker algorithm) and the short ones are dropped.</li>
+ * </ol>
+ * The first two steps are run in parallel on bands of rows, in the common fork/join pool.
+ */
+public class StravaRidgeExtractor {
+
+    /**
+     * Bands of rows smaller than this are processed by a single task.
+     */
+    private static final int MIN_ROWS_PER_TASK = 32;
+
+    private static final int[] NEIGHBOR_DX = {0, 1, 1, 1, 0, -1, -1, -1};
+    private static final int[] NEIGHBOR_DY = {-1, -1, 0, 1, 1, 1, 0, -1};
+
+    private final int threshold;
+    private final double simplificationTolerance;
+    private final int minLength;
+
+    /**
+     * Creates a ridge extractor.
+     *
+     * @param threshold               the lowest intensity (0-255) considered as a ridge.
+     * @param simplificationTolerance the maximum distance between a polyline and its simplification, in pixels.
+     * @param minLength               the minimum length of a polyline, in pixels.
+     */
+    public StravaRidgeExtractor(int threshold, double simplificationTolerance, int minLength) {
+        this.threshold = threshold;
+        this.simplificationTolerance = simplificationTolerance;
+        this.minLength = minLength;
+    }
+
+    /**
+     * Extracts the ridges of an intensity grid.
+     *
+     * @param intensities the intensities, row by row, as unsigned bytes.
+     * @param width       the width of the grid.
+     * @param height      the height of the grid.
+     * @return the polylines, each as an array of pixel coordinates x0, y0, x1, y1...
+     */
+    public List<int[]> extract(byte[] intensities, int width, int height) {
+        byte[] image = new byte[width * height];
+        ForkJoinPool.commonPool().invoke(new ThresholdTask(intensities, image, width, height, 0, height));
+        thin(image, width, height);
+        prune(image, width, height);
+        List<int[]> polylines = new ArrayList<>();
+        for (int[] polyline : trace(image, width, height)) {
+            if (length(polyline) >= minLength) {
+                polylines.add(simplify(polyline));
+            }
+        }
+        return polylines;
+    }
+
+    /**
+     * Thins the binary image in place with the Zhang-Suen algorithm.
+     */
+    static void thin(byte[] image, int width, int height) {
+        byte[] marks = new byte[width * height];
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int pass = 0; pass < 2; pass++) {
+                if (ForkJoinPool.commonPool().invoke(new ThinningTask(image, marks, width, height, pass, 0, height))) {
+                    changed = true;
+                    ForkJoinPool.commonPool().invoke(new ClearTask(image, marks, width, 0, height));
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes the skeleton pixels whose removal does not change the connectivity of the skeleton,
+     * e.g. the corner pixel of an "L" step along a diagonal line, so that only the junctions have more than 2 neighbors.
+     * The pixels are removed one after the other, since removing two neighbor pixels could disconnect the skeleton.
+     */
+    static void prune(byte[] image, int width, int height) {
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                if (image[y * width + x] == 1 && neighbors(image, width, height, x, y) >= 2
+                        && connectivityNumber(image, width, height, x, y) == 1) {
+                    image[y * width + x] = 0;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the 8-connectivity number of a pixel (Yokoi): the number of 8-connected components of the skeleton
+     * around the pixel that its removal would separate.
+     */
+    private static int connectivityNumber(byte[] image, int width, int height, int x, int y) {
+        int number = 0;
+        // the 4-connected neighbors are the even indexes, each followed by the next diagonal neighbor
+        for (int i = 0; i < 8; i += 2) {
+            int orthogonal = 1 - pixel(image, width, height, x + NEIGHBOR_DX[i], y + NEIGHBOR_DY[i]);
+            int diagonal = 1 - pixel(image, width, height, x + NEIGHBOR_DX[i + 1], y + NEIGHBOR_DY[i + 1]);
+            int nextOrthogonal = 1 - pixel(image, width, height, x + NEIGHBOR_DX[(i + 2) % 8], y + NEIGHBOR_DY[(i + 2) % 8]);
+            number += orthogonal - orthogonal * diagonal * nextOrthogonal;
+        }
+        return number;
+    }
+
+    private static int neighbors(byte[] image, int width, int height, int x, int y) {
+        int count = 0;
+        for (int i = 0; i < 8; i++) {
+            count += pixel(image, width, height, x + NEIGHBOR_DX[i], y + NEIGHBOR_DY[i]);
+        }
+        return count;
+    }
+
+    private static int pixel(byte[] image, int width, int height, int x, int y) {
+        return x < 0 || y < 0 || x >= width || y >= height ? 0 : image[y * width + x];
+    }
+
+    /**
+     * Returns the number of 0 to 1 transitions in the circular sequence of the 8 neighbors of a pixel.
+     */
+    private static int transitions(byte[] image, int width, int height, int x, int y) {
+        int count = 0;
+        int previous = pixel(image, width, height, x + NEIGHBOR_DX[7], y + NEIGHBOR_DY[7]);
+        for (int i = 0; i < 8; i++) {
+            int current = pixel(image, width, height, x + NEIGHBOR_DX[i], y + NEIGHBOR_DY[i]);
+            if (previous == 0 && current == 1) {
+                count++;
+            }
+            previous = current;
+        }
+        return count;
+    }
+
+    /**
+     * Traces the skeleton into polylines. The skeleton is erased.
+     */
+    private static List<int[]> trace(byte[] image, int width, int height) {
+        byte[] nodes = new byte[width * height];
+        // the end points and the junctions
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                if (image[y * width + x] == 1 && neighbors(image, width, height, x, y) != 2) {
+                    nodes[y * width + x] = 1;
+                }
+            }
+        }
+        List<int[]> polylines = new ArrayList<>();
+        // the branches starting from an end point or a junction
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                if (nodes[y * width + x] == 1) {
+                    int[] branch;
+                    while ((branch = walk(image, nodes, width, height, x, y)) != null) {
+                        polylines.add(branch);
+                    }
+                }
+            }
+        }
+        // the remaining pixels form closed loops
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                if (image[y * width + x] == 1) {
+                    nodes[y * width + x] = 1;
+                    int[] loop = walk(image, nodes, width, height, x, y);
+                    if (loop != null) {
+                        polylines.add(loop);
+                    }
+                    image[y * width + x] = 0;
+                }
+            }
+        }
+        return polylines;
+    }
+
+    /**
+     * Follows a branch of the skeleton from a node until the next node or the end of the branch,
+     * erasing the pixels of the branch.
+     *
+     * @return the branch, or null if no branch starts from the node.
+     */
+    private static int[] walk(byte[] image, byte[] nodes, int width, int height, int startX, int startY) {
+        IntList points = new IntList();
+        points.add(startX, startY);
+        int previous = -1;
+        int current = startY * width + startX;
+        while (true) {
+            int next = nextPixel(image, nodes, width, height, current, previous);
+            if (next < 0) {
+                break;
+            }
+            points.add(next % width, next / width);
+            if (nodes[next] == 1) {
+                break;
+            }
+            image[next] = 0;
+            previous = current;
+            current = next;
+        }
+        return points.size() > 2 ? points.toArray() : null;
+    }
+
+    /**
+     * Returns the next pixel of a branch, the 4-connected neighbors being preferred to the diagonal ones.
+     * A node ends the branch: it is only chosen if the branch cannot be continued, and never right after another node.
+     */
+    private static int nextPixel(byte[] image, byte[] nodes, int width, int height, int current, int previous) {
+        int x = current % width;
+        int y = current / width;
+        int node = -1;
+        for (int pass = 0; pass < 2; pass++) {
+            for (int i = pass; i < 8; i += 2) {
+                int nx = x + NEIGHBOR_DX[i];
+                int ny = y + NEIGHBOR_DY[i];
+                int index = ny * width + nx;
+                if (pixel(image, width, height, nx, ny) == 1 && index != previous) {
+                    if (nodes[index] == 0) {
+                        return index;
+                    } else if (node < 0 && nodes[current] == 0) {
+                        node = index;
+                    }
+                }
+            }
+        }
+        return node;
+    }
+
+    private static double length(int[] polyline) {
+        double length = 0;
+        for (int i = 2; i < polyline.length; i += 2) {
+            length += Math.hypot(polyline[i] - polyline[i - 2], polyline[i + 1] - polyline[i - 1]);
+        }
+        return length;
+    }
+
+    private int[] simplify(int[] polyline) {
+        int pointCount = polyline.length / 2;
+        boolean[] kept = new boolean[pointCount];
+        kept[0] = true;
+        kept[pointCount - 1] = true;
+        simplify(polyline, kept, 0, pointCount - 1);
+        IntList simplified = new IntList();
+        for (int i = 0; i < pointCount; i++) {
+            if (kept[i]) {
+                simplified.add(polyline[2 * i], polyline[2 * i + 1]);
+            }
+        }
+        return simplified.toArray();
+    }
+
+    private void simplify(int[] polyline, boolean[] kept, int first, int last) {
+        double x1 = polyline[2 * first];
+        double y1 = polyline[2 * first + 1];
+        double dx = polyline[2 * last] - x1;
+        double dy = polyline[2 * last + 1] - y1;
+        double segmentLength = Math.hypot(dx, dy);
+        double maxDistance = 0;
+        int farthest = -1;
+        for (int i = first + 1; i < last; i++) {
+            double px = polyline[2 * i] - x1;
+            double py = polyline[2 * i + 1] - y1;
+            double distance = segmentLength == 0 ? Math.hypot(px, py) : Math.abs(px * dy - py * dx) / segmentLength;
+            if (distance > maxDistance) {
+                maxDistance = distance;
+                farthest = i;
+            }
+        }
+        if (farthest >= 0 && maxDistance > simplificationTolerance) {
+            kept[farthest] = true;
+            simplify(polyline, kept, first, farthest);
+            simplify(polyline, kept, farthest, last);
+        }
+    }
+
+    /**
+     * A growable array of pixel coordinates.
+     */
+    private static final class IntList {
+        private int[] values = new int[32];
+        private int size;
+
+        private void add(int x, int y) {
+            if (size + 2 > values.length) {
+                int[] newValues = new int[values.length * 2];
+                System.arraycopy(values, 0, newValues, 0, size);
+                values = newValues;
+            }
+            values[size++] = x;
+            values[size++] = y;
+        }
+
+        private int size() {
+            return size;
+        }
+
+        private int[] toArray() {
+            int[] array = new int[size];
+            System.arraycopy(values, 0, array, 0, size);
+            return array;
+        }
+    }
+
+    /**
+     * Smooths and thresholds a band of rows.
+     */
+    private final class ThresholdTask extends RecursiveAction {
+        private final byte[] intensities;
+        private final byte[] image;
+        private final int width;
+        private final int height;
+        private final int fromRow;
+        private final int toRow;
+
+        private ThresholdTask(byte[] intensities, byte[] image, int width, int height, int fromRow, int toRow) {
+            this.intensities = intensities;
+            this.image = image;
+            this.width = width;
+            this.height = height;
+            this.fromRow = fromRow;
+            this.toRow = toRow;
+        }
+
+        @Override
+        protected void compute() {
+            if (toRow - fromRow > MIN_ROWS_PER_TASK) {
+                int middle = (fromRow + toRow) >>> 1;
+                invokeAll(new ThresholdTask(intensities, image, width, height, fromRow, middle),
+                        new ThresholdTask(intensities, image, width, height, middle, toRow));
+                return;
+            }
+            for (int y = fromRow; y < toRow; y++) {
+                for (int x = 0; x < width; x++) {
+                    int sum = 0;
+                    int count = 0;
+                    for (int ny = Math.max(0, y - 1); ny <= Math.min(height - 1, y + 1); ny++) {
+                        for (int nx = Math.max(0, x - 1); nx <= Math.min(width - 1, x + 1); nx++) {
+                            sum += intensities[ny * width + nx] & 0xff;
+                            count++;
+                        }
+                    }
+                    image[y * width + x] = (byte) (sum >= threshold * count ? 1 : 0);
+                }
+            }
+        }
+    }
+
+    /**
+     * Marks the pixels of a band of rows removed by a pass of the Zhang-Suen algorithm.
+     * The image is only read, so that all the bands see the same image.
+     */
+    private static final class ThinningTask extends RecursiveTask<Boolean> {
+        private final byte[] image;
+        private final byte[] marks;
+        private final int width;
+        private final int height;
+        private final int pass;
+        private final int fromRow;
+        private final int toRow;
+
+        private ThinningTask(byte[] image, byte[] marks, int width, int height, int pass, int fromRow, int toRow) {
+            this.image = image;
+            this.marks = marks;
+            this.width = width;
+            this.height = height;
+            this.pass = pass;
+            this.fromRow = fromRow;
+            this.toRow = toRow;
+        }
+
+        @Override
+        protected Boolean compute() {
+            if (toRow - fromRow > MIN_ROWS_PER_TASK) {
+                int middle = (fromRow + toRow) >>> 1;
+                ThinningTask first = new ThinningTask(image, marks, width, height, pass, fromRow, middle);
+                first.fork();
+                boolean secondChanged = new ThinningTask(image, marks, width, height, pass, middle, toRow).compute();
+                return first.join() | secondChanged;
+            }
+            boolean changed = false;
+            for (int y = fromRow; y < toRow; y++) {
+                for (int x = 0; x < width; x++) {
+                    if (image[y * width + x] == 1 && isRemovable(x, y)) {
+                        marks[y * width + x] = 1;
+                        changed = true;
+                    }
+                }
+            }
+            return changed;
+        }
+
+        private boolean isRemovable(int x, int y) {
+            int p2 = pixel(image, width, height, x, y - 1);
+            int p4 = pixel(image, width, height, x + 1, y);
+            int p6 = pixel(image, width, height, x, y + 1);
+            int p8 = pixel(image, width, height, x - 1, y);
+            int neighbors = neighbors(image, width, height, x, y);
+            if (neighbors < 2 || neighbors > 6 || transitions(image, width, height, x, y) != 1) {
+                return false;
+            }
+            return pass == 0
+                    ? p2 * p4 * p6 == 0 && p4 * p6 * p8 == 0
+                    : p2 * p4 * p8 == 0 && p2 * p6 * p8 == 0;
+        }
+    }
+
+    /**
+     * Removes the marked pixels of a band of rows.
+     */
+    private static final class ClearTask extends RecursiveAction {
+        private final byte[] image;
+        private final byte[] marks;
+        private final int width;
+        private final int fromRow;
+        private final int toRow;
+
+        private ClearTask(byte[] image, byte[] marks, int width, int fromRow, int toRow) {
+            this.image = image;
+            this.marks = marks;
+            this.width = width;
+            this.fromRow = fromRow;
+            this.toRow = toRow;
+        }
+
+        @Override
+        protected void compute() {
+            if (toRow - fromRow > MIN_ROWS_PER_TASK) {
+                int middle = (fromRow + toRow) >>> 1;
+                invokeAll(new ClearTask(image, marks, width, fromRow, middle), new ClearTask(image, marks, width, middle, toRow));
+                return;
+            }
+            for (int i = fromRow * width; i < toRow * width; i++) {
+                if (marks[i] == 1) {
+                    image[i] = 0;
+                    marks[i] = 0;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package org.openstreetmap.josm.plugins.strava.heatmap.analysis;
+
+import org.openstreetmap.josm.data.Bounds;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.gui.MainApplication;
+import org.openstreetmap.josm.gui.PleaseWaitRunnable;
+import org.openstreetmap.josm.gui.layer.OsmDataLayer;
+import org.openstreetmap.josm.plugins.strava.heatmap.authentication.StravaAuthenticationService;
+import org.openstreetmap.josm.plugins.strava.heatmap.layer.StravaHeatmapLayer;
+import org.openstreetmap.josm.plugins.strava.heatmap.layer.StravaTileRange;
+import org.openstreetmap.josm.spi.preferences.Config;
+import org.openstreetmap.josm.tools.I18n;
+import org.openstreetmap.josm.tools.Logging;
+
+import javax.swing.*;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Traces candidate ways along the paths of the heatmap of an area, see {@link StravaRidgeExtractor}.
+ * <p>
+ * The z15 tiles of the area are decoded into a {@link StravaIntensityGrid}.
+ * The candidate ways are added to a new data layer, which cannot be uploaded:
+ * the user reviews them and copies the relevant ones into the edited data layer.
+ */
+public class StravaRidgeVectorizeTask extends PleaseWaitRunnable {
+
+    /**
+     * The zoom level of the traced tiles, the highest zoom level of the authenticated heatmap.
+     */
+    public static final int ZOOM = 15;
+
+    private static final int DEFAULT_MAX_TILES = 900;
+    private static final int DEFAULT_THRESHOLD = 64;
+    private static final double SIMPLIFICATION_TOLERANCE = 1.5;
+    private static final int MIN_LENGTH = 20;
+
+    private final StravaHeatmapLayer layer;
+    private final StravaTileRange range;
+    private volatile boolean cancelled;
+    private String errorMessage;
+    private DataSet candidates;
+
+    /**
+     * Creates the task.
+     *
+     * @param layer  the authenticated heatmap layer to trace.
+     * @param bounds the area to trace.
+     */
+    public StravaRidgeVectorizeTask(StravaHeatmapLayer layer, Bounds bounds) {
+        super(I18n.tr("Tracing the Strava heatmap"));
+        this.layer = layer;
+        this.range = new StravaTileRange(bounds, ZOOM);
+    }
+
+    /**
+     * Returns the number of tiles of the area.
+     *
+     * @return the number of tiles.
+     */
+    public long getTileCount() {
+        return range.getTileCount();
+    }
+
+    /**
+     * Returns the maximum number of tiles traced at once, which bounds the size of the intensity grid.
+     * The value is read from the preference "strava.heatmap.vectorize.maxtiles".
+     *
+     * @return the maximum number of tiles.
+     */
+    public static int getMaxTileCount() {
+        return Config.getPref().getInt("strava.heatmap.vectorize.maxtiles", DEFAULT_MAX_TILES);
+    }
+
+    @Override
+    protected void realRun() {
+        String tileStoreKey = layer.getTileStoreKey();
+        if (tileStoreKey == null) {
+            errorMessage = I18n.tr("The Strava heatmap layer is not authenticated.");
+            return;
+        }
+        String cookies;
+        try {
+            cookies = StravaAuthenticationService.getInstance().getCookiesAsHttpHeaderAsync().join();
+        } catch (CompletionException e) {
+            Logging.error(e.getCause());
+            errorMessage = I18n.tr("Authentication on the Strava website failed.");
+            return;
+        }
+
+        getProgressMonitor().setTicksCount((int) range.getTileCount() + 1);
+        getProgressMonitor().setCustomText(I18n.tr("Loading the heatmap tiles"));
+        StravaIntensityGrid grid = StravaIntensityGrid.load(layer, cookies, range, getProgressMonitor(), () -> cancelled);
+        if (cancelled) {
+            return;
+        }
+
+        getProgressMonitor().setCustomText(I18n.tr("Tracing the paths"));
+        int threshold = Config.getPref().getInt("strava.heatmap.vectorize.threshold", DEFAULT_THRESHOLD);
+        List<int[]> polylines = new StravaRidgeExtractor(threshold, SIMPLIFICATION_TOLERANCE, MIN_LENGTH)
+                .extract(grid.getIntensities(), grid.getWidth(), grid.getHeight());
+        candidates = grid.toDataSet(polylines);
+        getProgressMonitor().worked(1);
+        Logging.info("Strava heatmap tracing: " + polylines.size() + " candidate ways, " + grid.getFailedTiles() + " tiles failed");
+    }
+
+    @Override
+    protected void finish() {
+        if (errorMessage != null) {
+            JOptionPane.showMessageDialog(MainApplication.getMainFrame(), errorMessage,
+                    I18n.tr("Error"), JOptionPane.ERROR_MESSAGE);
+        } else if (candidates != null) {
+            MainApplication.getLayerManager().addLayer(new OsmDataLayer(candidates,
+                    I18n.tr("Candidate ways from {0}", layer.getName()), null));
+        }
+    }
+
+    @Override
+    protected void cancel() {
+        cancelled = true;
+    }
+}
@@ -0,0 +1,110 @@
+package org.openstreetmap.josm.plugins.strava.heatmap.authentication;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Remembers the recent failures of the authentication process so that the following attempts fail fast,
+ * without accessing the network, until a backoff delay has elapsed.
+ * <p>
+ * The delay starts at the initial backoff and doubles after each consecutive failure, up to the maximum backoff.
+ * Once the delay has elapsed, the next attempt is allowed to reach the Strava website: a success closes the breaker,
+ * a failure opens it again for twice as long.
+ * <p>
+ * A {@link StravaAuthenticationException} means that the credentials were rejected: retrying with the same credentials
+ * cannot succeed, so the breaker opens for the maximum backoff right away. It is closed as soon as the credentials change.
+ */
+public class StravaAuthenticationCircuitBreaker {
+
+    private final long initialBackoffMillis;
+    private final long maxBackoffMillis;
+    private final LongSupplier clock;
+
+    private int consecutiveFailures;
+    private long openUntilMillis;
+    private Exception lastFailure;
+    private Object failedCredentials;
+
+    /**
+     * Creates a breaker using the system clock.
+     *
+     * @param initialBackoffMillis the delay after the first failure.
+     * @param maxBackoffMillis     the maximum delay.
+     */
+    public StravaAuthenticationCircuitBreaker(long initialBackoffMillis, long maxBackoffMillis) {
+        this(initialBackoffMillis, maxBackoffMillis, System::currentTimeMillis);
+    }
+
+    /**
+     * Creates a breaker.
+     *
+     * @param initialBackoffMillis the delay after the first failure.
+     * @param maxBackoffMillis     the maximum delay.
+     * @param clock                the clock returning the current time in milliseconds.
+     */
+    public StravaAuthenticationCircuitBreaker(long initialBackoffMillis, long maxBackoffMillis, LongSupplier clock) {
+        this.initialBackoffMillis = initialBackoffMillis;
+        this.maxBackoffMillis = Math.max(initialBackoffMillis, maxBackoffMillis);
+        this.clock = clock;
+    }
+
+    /**
+     * Returns the failure that must be reported instead of attempting to authenticate.
+     *
+     * @param credentials the credentials that would be used by the attempt, compared by equality
+     *                    with the credentials of a rejected attempt.
+     * @return the last failure if the breaker is open, or null if the attempt is allowed.
+     */
+    public synchronized Exception getFailureIfOpen(Object credentials) {
+        if (lastFailure == null) {
+            return null;
+        }
+        if (lastFailure instanceof StravaAuthenticationException && !credentials.equals(failedCredentials)) {
+            reset();
+            return null;
+        }
+        return clock.getAsLong() < openUntilMillis ? lastFailure : null;
+    }
+
+    /**
+     * Returns the time left before the next attempt is allowed.
+     *
+     * @return the remaining delay in milliseconds, 0 if the breaker is closed.
+     */
+    public synchronized long getRemainingMillis() {
+        return lastFailure == null ? 0 : Math.max(0, openUntilMillis - clock.getAsLong());
+    }
+
+    /**
+     * Closes the breaker after a successful authentication.
+     */
+    public synchronized void recordSuccess() {
+        reset();
+    }
+
+    /**
+     * Opens the breaker after a failed authentication.
+     *
+     * @param failure     the exception thrown by the authentication process.
+     * @param credentials the credentials used by the failed attempt.
+     */
+    public synchronized void recordFailure(Exception failure, Object credentials) {
+        consecutiveFailures++;
+        long backoffMillis;
+        if (failure instanceof StravaAuthenticationException) {
+            backoffMillis = maxBackoffMillis;
+        } else {
+            // the shift is bounded to avoid an overflow after many consecutive failures
+            backoffMillis = Math.min(initialBackoffMillis << Math.min(consecutiveFailures - 1, 30), maxBackoffMillis);
+        }
+        openUntilMillis = clock.getAsLong() + backoffMillis;
+        lastFailure = failure;
+        failedCredentials = credentials;
+    }
+
+    private void reset() {
+        consecutiveFailures = 0;
+        openUntilMillis = 0;
+        lastFailure = null;
+        failedCredentials = null;
+    }
+}
@@ -0,0 +1,254 @@
+package org.openstreetmap.josm.plugins.strava.heatmap.authentication;
+
+import org.openstreetmap.josm.plugins.strava.heatmap.http.StravaHttpException;
+import org.openstreetmap.josm.spi.preferences.Config;
+import org.openstreetmap.josm.tools.Logging;
+import org.openstreetmap.josm.tools.Utils;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Asynchronous front-end to {@link StravaCookiesRetriever}.
+ * The authentication process (validity check and, if required, the login sequence) runs on a background thread
+ * so that the Event Dispatch Thread is never blocked by network requests.
+ * Concurrent callers share the same in-flight authentication: at most one login is running at any time.
+ * Once authenticated, the cookies are renewed in the background shortly before they expire,
+ * see {@link StravaCookieRefreshScheduler}.
+ * After a failure, the following authentications fail fast with the same exception until a backoff delay has elapsed,
+ * see {@link StravaAuthenticationCircuitBreaker}. The delay starts at the value of the preference
+ * "strava.heatmap.backoff.initial" (in seconds, 30 by default) and doubles after each consecutive failure,
+ * up to the value of the preference "strava.heatmap.backoff.max" (in minutes, 30 by default).
+ * <p>
+ * If the preference "strava.heatmap.warmup" is enabled, the connections are opened and the cookies are checked
+ * when the plugin starts, see {@link #warmUpIfEnabled()}.
+ */
+public class StravaAuthenticationService {
+
+    private static final int DEFAULT_INITIAL_BACKOFF_SECONDS = 30;
+    private static final int DEFAULT_MAX_BACKOFF_MINUTES = 30;
+
+    private static final StravaAuthenticationService INSTANCE = new StravaAuthenticationService();
+
+    private final StravaCookiesRetriever cookiesRetriever = new StravaCookiesRetriever();
+
+    private final ExecutorService executor =
+            Executors.newSingleThreadExecutor(Utils.newThreadFactory("strava-heatmap-authentication-%d", Thread.NORM_PRIORITY));
+
+    private final StravaCookieRefreshScheduler refreshScheduler = new StravaCookieRefreshScheduler(this::refreshCookies);
+
+    private final StravaAuthenticationCircuitBreaker circuitBreaker = new StravaAuthenticationCircuitBreaker(
+            TimeUnit.SECONDS.toMillis(Config.getPref().getInt("strava.heatmap.backoff.initial", DEFAULT_INITIAL_BACKOFF_SECONDS)),
+            TimeUnit.MINUTES.toMillis(Config.getPref().getInt("strava.heatmap.backoff.max", DEFAULT_MAX_BACKOFF_MINUTES)));
+
+    private final List<Consumer<String>> cookiesRefreshListeners = new CopyOnWriteArrayList<>();
+
+    private CompletableFuture<String> inFlightAuthentication;
+
+    /**
+     * Returns the unique instance of the authentication service.
+     *
+     * @return the authentication service.
+     */
+    public static StravaAuthenticationService getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the heatmap authentication cookies asynchronously.
+     * If the stored cookies are known to be still valid, the returned future is already completed.
+     * If an authentication is already in progress, the caller receives the same future as the other callers.
+     * The future completes exceptionally with a {@link CompletionException} wrapping either a
+     * {@link StravaAuthenticationException} or a {@link StravaHttpException}.
+     *
+     * @return a future of the cookies formatted as an HTTP "Cookie" header.
+     */
+    public synchronized CompletableFuture<String> getCookiesAsHttpHeaderAsync() {
+        String validCookies = getCookiesAsHttpHeaderIfValid();
+        if (validCookies != null) {
+            return CompletableFuture.completedFuture(validCookies);
+        }
+        return authenticate(cookiesRetriever::getCookiesAsHttpHeader);
+    }
+
+    /**
+     * Returns the stored heatmap authentication cookies if they are known to be still valid.
+     * This method never accesses the network.
+     *
+     * @return the cookies formatted as an HTTP "Cookie" header, or null if the cookies must be checked or renewed
+     * or if an authentication is in progress.
+     */
+    public synchronized String getCookiesAsHttpHeaderIfValid() {
+        if (inFlightAuthentication == null) {
+            String validCookies = cookiesRetriever.getCookiesAsHttpHeaderIfValid();
+            if (validCookies != null) {
+                if (!refreshScheduler.isRefreshScheduled()) {
+                    refreshScheduler.scheduleRefresh(cookiesRetriever.getStoredSession());
+                }
+                return validCookies;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Opens the connections to the Strava servers and checks the cookies in the background,
+     * so that the first heatmap layer is displayed without waiting for the handshakes and the validity check.
+     * The cookies are checked, and renewed if needed, only if the account details are set.
+     * Does nothing unless the preference "strava.heatmap.warmup" is enabled.
+     */
+    public void warmUpIfEnabled() {
+        if (!Config.getPref().getBoolean("strava.heatmap.warmup", false)) {
+            return;
+        }
+        CompletableFuture.runAsync(() -> {
+            try {
+                cookiesRetriever.openConnections();
+            } catch (StravaHttpException e) {
+                // the layers will open the connections themselves
+                Logging.debug(e);
+            }
+        }, executor).thenRun(() -> {
+            String email = Config.getPref().get("strava.heatmap.email");
+            String password = Config.getPref().get("strava.heatmap.password");
+            if (email != null && !email.isEmpty() && password != null && !password.isEmpty()) {
+                getCookiesAsHttpHeaderAsync().whenComplete((cookies, throwable) -> {
+                    if (throwable != null) {
+                        Logging.warn("Unable to check the Strava heatmap cookies at startup: " + throwable.getMessage());
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Adds a listener notified with the new cookies each time they are renewed in the background.
+     * The listener is called from a background thread.
+     *
+     * @param listener the listener receiving the cookies formatted as an HTTP "Cookie" header.
+     */
+    public void addCookiesRefreshListener(Consumer<String> listener) {
+        cookiesRefreshListeners.add(listener);
+    }
+
+    /**
+     * Removes a listener added with {@link #addCookiesRefreshListener(Consumer)}.
+     *
+     * @param listener the listener to remove.
+     */
+    public void removeCookiesRefreshListener(Consumer<String> listener) {
+        cookiesRefreshListeners.remove(listener);
+    }
+
+    /**
+     * Cancels the background renewal of the cookies.
+     * Called when no heatmap layer is open anymore: the cookies will be renewed on demand when a layer is opened again.
+     */
+    public void cancelScheduledRefresh() {
+        refreshScheduler.cancel();
+    }
+
+    /**
+     * Stops the background threads.
+     * Called when the plugin is unloaded.
+     */
+    public void shutdown() {
+        refreshScheduler.shutdown();
+        executor.shutdownNow();
+    }
+
+    /**
+     * Runs an authentication task in the background, unless an authentication is already in progress.
+     * The renewal of the cookies is scheduled each time the task succeeds.
+     * While the circuit breaker is open, the task is not run and the returned future is already completed
+     * with the last failure.
+     *
+     * @param authenticationTask the task returning the cookies.
+     * @return the future of the in-flight authentication.
+     */
+    private synchronized CompletableFuture<String> authenticate(AuthenticationTask authenticationTask) {
+        if (inFlightAuthentication == null) {
+            Object credentials = getCredentials();
+            Exception lastFailure = circuitBreaker.getFailureIfOpen(credentials);
+            if (lastFailure != null) {
+                Logging.info("Strava authentication skipped after a recent failure, next attempt allowed in "
+                        + TimeUnit.MILLISECONDS.toSeconds(circuitBreaker.getRemainingMillis()) + " s: " + lastFailure.getMessage());
+                CompletableFuture<String> failedAuthentication = new CompletableFuture<>();
+                failedAuthentication.completeExceptionally(new CompletionException(lastFailure));
+                return failedAuthentication;
+            }
+            CompletableFuture<String> authentication = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return authenticationTask.call();
+                } catch (StravaAuthenticationException | StravaHttpException e) {
+                    throw new CompletionException(e);
+                }
+            }, executor);
+            inFlightAuthentication = authentication;
+            authentication.whenComplete((cookies, throwable) -> {
+                clearInFlightAuthentication(authentication);
+                if (throwable == null) {
+                    circuitBreaker.recordSuccess();
+                    refreshScheduler.scheduleRefresh(cookiesRetriever.getStoredSession());
+                } else if (throwable.getCause() instanceof StravaAuthenticationException
+                        || throwable.getCause() instanceof StravaHttpException) {
+                    circuitBreaker.recordFailure((Exception) throwable.getCause(), credentials);
+                }
+            });
+        } else if (Logging.isDebugEnabled()) {
+            Logging.debug("Joining the Strava authentication already in progress");
+        }
+        return inFlightAuthentication;
+    }
+
+    private synchronized void clearInFlightAuthentication(CompletableFuture<String> authentication) {
+        if (inFlightAuthentication == authentication) {
+            inFlightAuthentication = null;
+        }
+    }
+
+    /**
+     * Returns the credentials used by the login sequence, so that a rejected login is not retried
+     * until the user changes the account details.
+     *
+     * @return the email address and the password.
+     */
+    private static Object getCredentials() {
+        return Arrays.asList(Config.getPref().get("strava.heatmap.email"), Config.getPref().get("strava.heatmap.password"));
+    }
+
+    /**
+     * Renews the cookies in the background and notifies the listeners.
+     * A failure caused by a network issue is retried later, an authentication failure is not.
+     */
+    private void refreshCookies() {
+        Logging.info("Renewing the Strava heatmap cookies before they expire");
+        authenticate(cookiesRetriever::refreshCookiesAsHttpHeader).whenComplete((cookies, throwable) -> {
+            if (throwable == null) {
+                for (Consumer<String> listener : cookiesRefreshListeners) {
+                    listener.accept(cookies);
+                }
+            } else if (throwable.getCause() instanceof StravaHttpException) {
+                Logging.warn("Unable to renew the Strava heatmap cookies, retrying later: " + throwable.getCause().getMessage());
+                refreshScheduler.scheduleRetry();
+            } else {
+                Logging.error(throwable);
+            }
+        });
+    }
+
+    /**
+     * A task returning the heatmap authentication cookies.
+     */
+    @FunctionalInterface
+    private interface AuthenticationTask {
+        String call() throws StravaAuthenticationException, StravaHttpException;
+    }
+}
@@ -0,0 +1,108 @@
+package org.openstreetmap.josm.plugins.strava.heatmap.authentication;
+
+import org.openstreetmap.josm.spi.preferences.Config;
+import org.openstreetmap.josm.tools.Logging;
+import org.openstreetmap.josm.tools.Utils;
+
+import java.util.Date;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Schedules the renewal of the heatmap authentication cookies shortly before they expire.
+ * The refresh margin is read from the preference "strava.heatmap.refresh.margin" (in minutes, 10 by default).
+ * At most one refresh is scheduled at any time: scheduling a new refresh cancels the previous one.
+ */
+public class StravaCookieRefreshScheduler {
+
+    private static final int DEFAULT_REFRESH_MARGIN_MINUTES = 10;
+
+    /**
+     * Minimum delay between two refresh attempts.
+     * Also used as the delay before retrying a refresh that failed because of a network issue.
+     */
+    private static final long RETRY_DELAY_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private final ScheduledExecutorService scheduler =
+            Executors.newSingleThreadScheduledExecutor(Utils.newThreadFactory("strava-heatmap-cookie-refresh-%d", Thread.MIN_PRIORITY));
+
+    private final Runnable refreshTask;
+
+    private ScheduledFuture<?> scheduledRefresh;
+
+    /**
+     * Creates a scheduler.
+     *
+     * @param refreshTask the task renewing the cookies.
+     */
+    public StravaCookieRefreshScheduler(Runnable refreshTask) {
+        this.refreshTask = refreshTask;
+    }
+
+    /**
+     * Schedules the renewal of the cookies before the session expires.
+     * Nothing is scheduled if there is no session or if the expiry date of the session is unknown.
+     *
+     * @param session the current session, or null if no cookies are stored.
+     */
+    public synchronized void scheduleRefresh(StravaCookieSession session) {
+        if (session == null) {
+            Logging.warn("No Strava heatmap cookies stored, the cookies will be renewed on demand only");
+            return;
+        }
+        if (!session.hasKnownExpiry()) {
+            Logging.info("Expiry date of the Strava heatmap cookies unknown, the cookies will be renewed on demand only");
+            return;
+        }
+        long refreshTime = session.getExpiryMillis() - getRefreshMarginMillis();
+        if (Logging.isDebugEnabled()) {
+            Logging.debug("Strava heatmap cookies renewal scheduled at " + new Date(refreshTime));
+        }
+        schedule(refreshTime - System.currentTimeMillis());
+    }
+
+    /**
+     * Schedules a new refresh attempt after a failure.
+     */
+    public synchronized void scheduleRetry() {
+        schedule(RETRY_DELAY_MILLIS);
+    }
+
+    /**
+     * Tests if a refresh is currently scheduled.
+     *
+     * @return true if a refresh is scheduled and not yet started.
+     */
+    public synchronized boolean isRefreshScheduled() {
+        return scheduledRefresh != null && !scheduledRefresh.isDone();
+    }
+
+    /**
+     * Cancels the scheduled refresh, if any.
+     */
+    public synchronized void cancel() {
+        if (scheduledRefresh != null) {
+            scheduledRefresh.cancel(false);
+            scheduledRefresh = null;
+        }
+    }
+
+    /**
+     * Stops the background thread.
+     * Called when the plugin is unloaded.
+     */
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    private void schedule(long delayMillis) {
+        cancel();
+        scheduledRefresh = scheduler.schedule(refreshTask, Math.max(delayMillis, RETRY_DELAY_MILLIS), TimeUnit.MILLISECONDS);
+    }
+
+    private static long getRefreshMarginMillis() {
+        return TimeUnit.MINUTES.toMillis(Config.getPref().getInt("strava.heatmap.refresh.margin", DEFAULT_REFRESH_MARGIN_MINUTES));
+    }
+}
@@ -0,0 +1,118 @@
+package org.openstreetmap.josm.plugins.strava.heatmap.authentication;
+
+import org.openstreetmap.josm.tools.Logging;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The heatmap authentication cookies together with their expiry date.
+ * The heatmap tile server is a CloudFront distribution using signed cookies with a custom policy.
+ * The "CloudFront-Policy" cookie is a base64-encoded JSON policy whose "DateLessThan" condition gives the expiry date
+ * of the cookies as an epoch time in seconds.
+ * The policy is decoded once when the session is created, so that validity checks do not need any network access.
+ */
+public class StravaCookieSession {
+
+    private static final String POLICY_COOKIE_NAME = "CloudFront-Policy";
+    private static final String REGEX_EPOCH_TIME = "\"DateLessThan\"\\s*:\\s*\\{\\s*\"AWS:EpochTime\"\\s*:\\s*(\\d+)";
+    private static final Pattern PATTERN_EPOCH_TIME = Pattern.compile(REGEX_EPOCH_TIME);
+
+    /**
+     * The cookies are considered as expired slightly before their actual expiry date,
+     * to cope with clock differences between the computer and the tile server.
+     */
+    private static final long CLOCK_SKEW_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private static final long UNKNOWN_EXPIRY = -1;
+
+    private final String cookieHeader;
+    private final long expiryMillis;
+
+    /**
+     * Creates a session from the cookies formatted as an HTTP "Cookie" header.
+     *
+     * @param cookieHeader the cookies formatted as an HTTP "Cookie" header.
+     */
+    public StravaCookieSession(String cookieHeader) {
+        this.cookieHeader = cookieHeader;
+        this.expiryMillis = parseExpiry(cookieHeader);
+    }
+
+    public String getCookieHeader() {
+        return cookieHeader;
+    }
+
+    /**
+     * Tests if the expiry date could be decoded from the "CloudFront-Policy" cookie.
+     *
+     * @return true if the expiry date is known.
+     */
+    public boolean hasKnownExpiry() {
+        return expiryMillis != UNKNOWN_EXPIRY;
+    }
+
+    /**
+     * Returns the expiry date of the cookies.
+     *
+     * @return the expiry date in milliseconds since the epoch, or -1 if the expiry date is unknown.
+     */
+    public long getExpiryMillis() {
+        return expiryMillis;
+    }
+
+    /**
+     * Tests if the cookies are still valid at a given time.
+     * Always returns false when the expiry date is unknown.
+     *
+     * @param timeMillis the time in milliseconds since the epoch.
+     * @return true if the cookies are still valid at the given time.
+     */
+    public boolean isValidAt(long timeMillis) {
+        return hasKnownExpiry() && timeMillis < expiryMillis - CLOCK_SKEW_MILLIS;
+    }
+
+    /**
+     * Decodes the expiry date from the "CloudFront-Policy" cookie.
+     *
+     * @param cookieHeader the cookies formatted as an HTTP "Cookie" header.
+     * @return the expiry date in milliseconds since the epoch, or -1 if the policy cannot be decoded.
+     */
+    private static long parseExpiry(String cookieHeader) {
+        if (cookieHeader == null) {
+            return UNKNOWN_EXPIRY;
+        }
+        for (String cookie : cookieHeader.split(";")) {
+            int separatorIndex = cookie.indexOf('=');
+            if (separatorIndex > 0 && POLICY_COOKIE_NAME.equals(cookie.substring(0, separatorIndex).trim())) {
+                return parsePolicyExpiry(cookie.substring(separatorIndex + 1).trim());
+            }
+        }
+        return UNKNOWN_EXPIRY;
+    }
+
+    private static long parsePolicyExpiry(String policy) {
+        try {
+            // CloudFront replaces the characters that are invalid in cookies: '+' by '-', '=' by '_' and '/' by '~'
+            String base64Policy = policy.replace('-', '+').replace('_', '=').replace('~', '/');
+            String jsonPolicy = new String(Base64.getMimeDecoder().decode(base64Policy), StandardCharsets.UTF_8);
+            Matcher matcher = PATTERN_EPOCH_TIME.matcher(jsonPolicy);
+            if (matcher.find()) {
+                long expiryMillis = TimeUnit.SECONDS.toMillis(Long.parseLong(matcher.group(1)));
+                if (Logging.isDebugEnabled()) {
+                    Logging.debug("Strava heatmap cookies expire at " + new Date(expiryMillis));
+                }
+                return expiryMillis;
+            }
+        } catch (IllegalArgumentException e) {
+            // NumberFormatException is an IllegalArgumentException as well
+            Logging.debug(e);
+        }
+        Logging.warn("Unable to decode the expiry date of the Strava heatmap cookies");
+        return UNKNOWN_EXPIRY;
+    }
+}
@@ -1,12 +1,24 @@
 package org.openstreetmap.josm.plugins.strava.heatmap.authentication;
 
+import org.openstreetmap.josm.io.auth.CredentialsAgentException;
+import org.openstreetmap.josm.io.auth.CredentialsManager;
 import org.openstreetmap.josm.plugins.strava.heatmap.http.*;
+import org.openstreetmap.josm.plugins.strava.heatmap.metrics.StravaMetrics;
 import org.openstreetmap.josm.spi.preferences.Config;
 import org.openstreetmap.josm.tools.Logging;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
+import java.net.Authenticator;
+import java.net.HttpCookie;
+import java.net.PasswordAuthentication;
+import java.net.URI;
 import java.net.URLEncoder;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 import java.util.stream.Collectors;
 
@@ -20,21 +32,84 @@ import java.util.stream.Collectors;
  * The cookies are stored in the JOSM preferences and reused as long as they are valid.
  * When the stored cookies become obsolete the authentication process is triggered again
  * and the cookies values are refreshed.
+ * <p>
+ * The website session is kept by the HTTP client: as long as it is valid, the heatmap cookies are renewed
+ * with the 3rd step only, without posting the credentials again.
+ * This can be disabled with the preference "strava.heatmap.session.reuse", the login form is then always submitted.
+ * <p>
+ * If the preference "strava.heatmap.session.store" is enabled (disabled by default), the cookies of the website
+ * session are also stored through the JOSM {@link CredentialsManager}, see {@link StravaSessionCookieJar}, so that
+ * the session outlives JOSM. The session cookies give access to the Strava account as much as the password does:
+ * unless a credentials agent protecting the passwords is installed, e.g. by a keyring plugin, they end up
+ * in plain text in the preferences file, like the password.
  */
 public class StravaCookiesRetriever {
 
 
     private static final String BASE_URL = "https://www.strava.com";
-    private static final String LOGIN_FORM_URL = BASE_URL + "/login";
-    private static final String LOGIN_POST_URL = BASE_URL + "/session";
-    private static final String DASHBOARD_URL = BASE_URL + "/dashboard";
-    private static final String ONBOARDING_URL = BASE_URL + "/onboarding";
-
     private static final String HEATMAP_BASE_URL = "https://heatmap-external-a.strava.com";
-    private static final String HEATMAP_AUTH_URL = HEATMAP_BASE_URL + "/auth";
-    private static final String HEATMAP_TILE_URL = HEATMAP_BASE_URL + "/tiles-auth/winter/bluered/9/256/255";
 
-    private StravaHttpClient stravaHttpClient = StravaHttpClientFactory.getStravaHttpClient();
+    /**
+     * The host under which the website session is stored in the JOSM credentials manager.
+     */
+    private static final String SESSION_CREDENTIALS_HOST = "strava-heatmap-session";
+
+    /**
+     * Separates the cookies of the website session in the stored password.
+     */
+    private static final String SESSION_COOKIE_SEPARATOR = "\n";
+
+    private final URI websiteUri;
+    private final URI heatmapUri;
+    private final String loginFormUrl;
+    private final String loginPostUrl;
+    private final String dashboardUrl;
+    private final String onboardingUrl;
+    private final String heatmapAuthUrl;
+    private final String heatmapTileUrl;
+    private final String[] warmUpUrls;
+
+    private final StravaHttpClient stravaHttpClient;
+    private StravaMetrics metrics = StravaMetrics.getInstance();
+
+    /**
+     * The session built from the cookies stored in the JOSM preferences.
+     * It is kept in memory so that the cookie policy is decoded only once.
+     */
+    private StravaCookieSession storedSession;
+
+    /**
+     * The email of the account logged on the website with the session cookies of the HTTP client,
+     * or null if the HTTP client holds no usable website session.
+     */
+    private volatile String sessionEmail;
+
+    /**
+     * Creates a retriever for the Strava website, using the HTTP client shared by the plugin.
+     */
+    public StravaCookiesRetriever() {
+        this(StravaHttpClientFactory.getStravaHttpClient(), BASE_URL, HEATMAP_BASE_URL);
+    }
+
+    /**
+     * Creates a retriever for another server emulating the Strava website, such as a local test server.
+     *
+     * @param stravaHttpClient the HTTP client.
+     * @param baseUrl          the URL of the website, without trailing slash.
+     * @param heatmapBaseUrl   the URL of the heatmap tile server, without trailing slash.
+     */
+    public StravaCookiesRetriever(StravaHttpClient stravaHttpClient, String baseUrl, String heatmapBaseUrl) {
+        this.stravaHttpClient = stravaHttpClient;
+        this.websiteUri = URI.create(baseUrl + "/");
+        this.heatmapUri = URI.create(heatmapBaseUrl + "/");
+        this.loginFormUrl = baseUrl + "/login";
+        this.loginPostUrl = baseUrl + "/session";
+        this.dashboardUrl = baseUrl + "/dashboard";
+        this.onboardingUrl = baseUrl + "/onboarding";
+        this.heatmapAuthUrl = heatmapBaseUrl + "/auth";
+        this.heatmapTileUrl = heatmapBaseUrl + "/tiles-auth/winter/bluered/9/256/255";
+        this.warmUpUrls = new String[]{baseUrl + "/robots.txt", heatmapBaseUrl + "/robots.txt"};
+    }
 
     /**
      * Returns the heatmap authentication cookies.
@@ -44,15 +119,209 @@ public class StravaCookiesRetriever {
      * @return the cookies formatted as an HTTP "Cookie" header.
      */
     public String getCookiesAsHttpHeader() throws StravaHttpException, StravaAuthenticationException {
-        String cookies = Config.getPref().get("strava.heatmap.cookies");
-        if (cookies != null && !cookies.isEmpty() && areCookiesStillValid(cookies)) {
-            return cookies;
+        StravaCookieSession session = getStoredSession();
+        if (session != null && isSessionStillValid(session)) {
+            return session.getCookieHeader();
         } else {
-            logonStrava();
-            String newCookies = retrieveHeatmapCookies();
-            Config.getPref().put("strava.heatmap.cookies", newCookies);
+            return refreshCookiesAsHttpHeader();
+        }
+    }
+
+    /**
+     * Triggers the authentication process and stores the new heatmap authentication cookies,
+     * regardless of the validity of the stored cookies.
+     * The login form is submitted only if the website session has expired.
+     *
+     * @return the new cookies formatted as an HTTP "Cookie" header.
+     */
+    public String refreshCookiesAsHttpHeader() throws StravaHttpException, StravaAuthenticationException {
+        boolean reuseSession = Config.getPref().getBoolean("strava.heatmap.session.reuse", true);
+        String newCookies = reuseSession ? renewHeatmapCookies() : null;
+        if (newCookies == null) {
+            String email = logonStrava();
+            newCookies = retrieveHeatmapCookies();
+            saveWebSession(email, reuseSession);
+        }
+        Config.getPref().put("strava.heatmap.cookies", newCookies);
+        return newCookies;
+    }
+
+    /**
+     * Renews the heatmap authentication cookies with the website session of the current account,
+     * restored from the credentials manager if the HTTP client does not hold it yet.
+     *
+     * @return the new cookies, or null if there is no valid website session for the current account.
+     */
+    private String renewHeatmapCookies() throws StravaHttpException {
+        String email = Config.getPref().get("strava.heatmap.email");
+        if (email == null || email.isEmpty() || (!email.equals(sessionEmail) && !restoreWebSession(email))) {
+            return null;
+        }
+        StravaHttpResponse response = sendHeatmapAuthRequest();
+        String newCookies = buildHeatmapCookieHeader(response.getCookies());
+        if (response.getHttpStatusCode() == 200 && isRenewal(newCookies)) {
             return newCookies;
         }
+        Logging.info("The Strava website session has expired, logging in again");
+        clearWebSession();
+        return null;
+    }
+
+    /**
+     * Tests if the heatmap cookies returned by the heatmap server replace the stored cookies.
+     *
+     * @param newCookies the heatmap cookies formatted as an HTTP "Cookie" header.
+     * @return true if the cookies are not empty, and differ from the stored cookies and expire later when their expiry is known.
+     */
+    private boolean isRenewal(String newCookies) {
+        if (newCookies.isEmpty()) {
+            return false;
+        }
+        StravaCookieSession previousSession = getStoredSession();
+        if (previousSession == null) {
+            return true;
+        }
+        if (newCookies.equals(previousSession.getCookieHeader())) {
+            return false;
+        }
+        StravaCookieSession newSession = new StravaCookieSession(newCookies);
+        return !newSession.hasKnownExpiry() || !previousSession.hasKnownExpiry()
+                || newSession.getExpiryMillis() > previousSession.getExpiryMillis();
+    }
+
+    /**
+     * Adds the website session cookies stored in the credentials manager to the HTTP client.
+     *
+     * @param email the email of the current account.
+     * @return true if cookies of a session of this account have been restored.
+     */
+    private synchronized boolean restoreWebSession(String email) {
+        if (email.equals(sessionEmail)) {
+            return true;
+        }
+        if (!Config.getPref().getBoolean("strava.heatmap.session.store", false)) {
+            return false;
+        }
+        PasswordAuthentication storedSession;
+        try {
+            storedSession = CredentialsManager.getInstance().lookup(Authenticator.RequestorType.SERVER, SESSION_CREDENTIALS_HOST);
+        } catch (CredentialsAgentException e) {
+            Logging.warn(e);
+            return false;
+        }
+        if (storedSession == null || !email.equals(storedSession.getUserName()) || storedSession.getPassword() == null) {
+            return false;
+        }
+        List<HttpCookie> cookies = StravaSessionCookieJar.decode(
+                Arrays.asList(new String(storedSession.getPassword()).split(SESSION_COOKIE_SEPARATOR)), System.currentTimeMillis());
+        if (cookies.isEmpty()) {
+            return false;
+        }
+        for (HttpCookie cookie : cookies) {
+            stravaHttpClient.addCookie(websiteUri, cookie);
+        }
+        sessionEmail = email;
+        return true;
+    }
+
+    /**
+     * Remembers the website session opened by a successful login,
+     * and stores its cookies in the credentials manager if the preference "strava.heatmap.session.store" is enabled.
+     *
+     * @param email the email of the logged account.
+     * @param reuse true if the session is reused to renew the heatmap cookies.
+     */
+    private synchronized void saveWebSession(String email, boolean reuse) {
+        sessionEmail = email;
+        if (reuse && Config.getPref().getBoolean("strava.heatmap.session.store", false)) {
+            String cookies = String.join(SESSION_COOKIE_SEPARATOR,
+                    StravaSessionCookieJar.encode(stravaHttpClient.getCookies(websiteUri), System.currentTimeMillis()));
+            storeWebSession(new PasswordAuthentication(email, cookies.toCharArray()));
+        } else {
+            forgetStoredWebSession();
+        }
+    }
+
+    /**
+     * Forgets the expired website session.
+     */
+    private synchronized void clearWebSession() {
+        sessionEmail = null;
+        forgetStoredWebSession();
+    }
+
+    /**
+     * Removes the website session from the credentials manager, if a session is stored.
+     */
+    public static void forgetStoredWebSession() {
+        PasswordAuthentication storedSession;
+        try {
+            storedSession = CredentialsManager.getInstance().lookup(Authenticator.RequestorType.SERVER, SESSION_CREDENTIALS_HOST);
+        } catch (CredentialsAgentException e) {
+            Logging.warn(e);
+            return;
+        }
+        boolean emptyUserName = storedSession == null || storedSession.getUserName() == null || storedSession.getUserName().isEmpty();
+        if (emptyUserName && (storedSession == null || storedSession.getPassword() == null || storedSession.getPassword().length == 0)) {
+            return;
+        }
+        storeWebSession(new PasswordAuthentication("", new char[0]));
+    }
+
+    private static void storeWebSession(PasswordAuthentication session) {
+        try {
+            CredentialsManager.getInstance().store(Authenticator.RequestorType.SERVER, SESSION_CREDENTIALS_HOST, session);
+        } catch (CredentialsAgentException e) {
+            Logging.warn(e);
+        }
+    }
+
+    /**
+     * Returns the stored heatmap authentication cookies if they are known to be still valid,
+     * based only on the expiry date decoded from the cookies.
+     * This method never accesses the network.
+     *
+     * @return the cookies formatted as an HTTP "Cookie" header, or null if the cookies are missing, expired
+     * or if their expiry date is unknown.
+     */
+    public String getCookiesAsHttpHeaderIfValid() {
+        StravaCookieSession session = getStoredSession();
+        if (session != null && session.isValidAt(System.currentTimeMillis())) {
+            return session.getCookieHeader();
+        }
+        return null;
+    }
+
+    /**
+     * Returns the session built from the cookies stored in the JOSM preferences.
+     * The session is rebuilt only when the stored cookies change.
+     *
+     * @return the stored session, or null if no cookies are stored.
+     */
+    public synchronized StravaCookieSession getStoredSession() {
+        String cookies = Config.getPref().get("strava.heatmap.cookies");
+        if (cookies == null || cookies.isEmpty()) {
+            return null;
+        }
+        if (storedSession == null || !storedSession.getCookieHeader().equals(cookies)) {
+            storedSession = new StravaCookieSession(cookies);
+        }
+        return storedSession;
+    }
+
+    /**
+     * Tests if the session is still valid.
+     * The expiry date decoded from the cookies is used when available,
+     * otherwise the cookies are tested against the tile server.
+     *
+     * @param session the session to be tested for validity.
+     * @return true if the session is still valid.
+     */
+    private boolean isSessionStillValid(StravaCookieSession session) throws StravaHttpException {
+        if (session.hasKnownExpiry()) {
+            return session.isValidAt(System.currentTimeMillis());
+        }
+        return areCookiesStillValid(session.getCookieHeader());
     }
 
     /**
@@ -66,13 +335,21 @@ public class StravaCookiesRetriever {
     public boolean areCookiesStillValid(String cookies) throws StravaHttpException {
 
         if (Logging.isDebugEnabled()) {
-            Logging.debug("Checking authentication status on " + HEATMAP_TILE_URL);
+            Logging.debug("Checking authentication status on " + heatmapTileUrl);
         }
 
         StravaHttpRequest request = new StravaHttpRequest();
-        request.setUri(HEATMAP_TILE_URL);
+        request.setUri(heatmapTileUrl);
         request.setCookieHeader(cookies);
-        StravaHttpResponse response = stravaHttpClient.sendRequest(request);
+        // only the status matters, the tile is never decoded
+        request.setBodyMode(StravaHttpRequest.BodyMode.DISCARD);
+        long startNanos = System.nanoTime();
+        StravaHttpResponse response;
+        try {
+            response = stravaHttpClient.sendRequest(request);
+        } finally {
+            metrics.record(StravaMetrics.Step.VALIDITY_PROBE, startNanos);
+        }
 
         int httpStatusCode = response.getHttpStatusCode();
         if (httpStatusCode == 200) {
@@ -86,11 +363,28 @@ public class StravaCookiesRetriever {
     }
 
 
+    /**
+     * Opens the connections to the website and to the heatmap tile server, so that the next requests
+     * skip the DNS resolution and the TLS handshake.
+     * A small resource is requested from each server, its status does not matter.
+     */
+    public void openConnections() throws StravaHttpException {
+        for (String url : warmUpUrls) {
+            StravaHttpRequest request = new StravaHttpRequest();
+            request.setUri(url);
+            // reading the body to the end lets the connection be reused
+            request.setBodyMode(StravaHttpRequest.BodyMode.DISCARD);
+            stravaHttpClient.sendRequest(request);
+        }
+    }
+
     /**
      * Logs on the Strava website by submitting the HTML login form.
      * Upon successful authentication the web server should redirect to either the "Dashboard" or the "Onboarding" pages.
+     *
+     * @return the email of the logged account.
      */
-    private void logonStrava() throws StravaHttpException, StravaAuthenticationException {
+    private String logonStrava() throws StravaHttpException, StravaAuthenticationException {
 
         String email = Config.getPref().get("strava.heatmap.email");
         if (email == null || email.isEmpty()) {
@@ -104,37 +398,57 @@ public class StravaCookiesRetriever {
         String requestParametersString = buildRequestParametersString(email, password, csrfToken);
 
         StravaHttpRequest request = new StravaHttpRequest();
-        request.setUri(LOGIN_POST_URL);
+        request.setUri(loginPostUrl);
         request.setPost(true);
         request.setParameters(requestParametersString);
-        StravaHttpResponse response = stravaHttpClient.sendRequest(request);
+        // only the status and the redirection matter
+        request.setBodyMode(StravaHttpRequest.BodyMode.DISCARD);
+        long startNanos = System.nanoTime();
+        StravaHttpResponse response;
+        try {
+            response = stravaHttpClient.sendRequest(request);
+        } finally {
+            metrics.record(StravaMetrics.Step.LOGIN, startNanos);
+        }
 
         int httpStatusCode = response.getHttpStatusCode();
         String redirect = response.getLocationHeader();
 
         if (httpStatusCode != 302) {
             throw new StravaHttpException("The website returned an unexpected status " + httpStatusCode);
-        } else if (LOGIN_FORM_URL.equals(redirect)) {
+        } else if (loginFormUrl.equals(redirect)) {
             // redirection back to the login form means that authentication failed
             throw new StravaAuthenticationException("Authentication failed");
-        } else if (!DASHBOARD_URL.equals(redirect) && !ONBOARDING_URL.equals(redirect)) {
+        } else if (!dashboardUrl.equals(redirect) && !onboardingUrl.equals(redirect)) {
             throw new StravaHttpException("The website redirected to an unexpected page: " + redirect);
         }
+        return email;
     }
 
     /**
      * Retrieves the CSRF token from the HTML login form.
      * A valid CSRF token is required for submitting the form.
+     * The login page is never fully downloaded, see {@link StravaCsrfTokenParser#findCsrfToken(InputStream)}.
      *
      * @return the CSRF token.
      */
     private String retrieveCsrfToken() throws StravaHttpException {
         StravaHttpRequest request = new StravaHttpRequest();
-        request.setUri(LOGIN_FORM_URL);
-        StravaHttpResponse response = stravaHttpClient.sendRequest(request);
-        String stravaLoginPageHtmlContent = response.getBody();
-        StravaCsrfTokenParser csrfTokenParser = new StravaCsrfTokenParser(stravaLoginPageHtmlContent);
-        String csrfToken = csrfTokenParser.findCsrfToken();
+        request.setUri(loginFormUrl);
+        // the page is scanned while it is downloaded, the rest of the page is discarded once the token is found
+        request.setBodyMode(StravaHttpRequest.BodyMode.STREAM);
+        long startNanos = System.nanoTime();
+        String csrfToken;
+        try {
+            StravaHttpResponse response = stravaHttpClient.sendRequest(request);
+            try (InputStream stravaLoginPageHtmlContent = response.getBodyStream()) {
+                csrfToken = StravaCsrfTokenParser.findCsrfToken(stravaLoginPageHtmlContent);
+            } catch (IOException e) {
+                throw new StravaHttpException(e);
+            }
+        } finally {
+            metrics.record(StravaMetrics.Step.CSRF_TOKEN, startNanos);
+        }
         if (csrfToken.isEmpty()) {
             throw new StravaHttpException("The CSRF token was not found in the login page");
         }
@@ -146,15 +460,57 @@ public class StravaCookiesRetriever {
      * This must be performed after a successful login with {@link #logonStrava()}.
      *
      * @return the heatmap authentication cookies.
+     * @throws StravaAuthenticationException if the heatmap server returned no authentication cookies,
+     *                                       e.g. if the account is not allowed to access the heatmap.
+     *                                       The cookies of a previous grant are not taken for new cookies,
+     *                                       see {@link #sendHeatmapAuthRequest()}.
      */
-    private String retrieveHeatmapCookies() throws StravaHttpException {
+    private String retrieveHeatmapCookies() throws StravaHttpException, StravaAuthenticationException {
+        StravaHttpResponse response = sendHeatmapAuthRequest();
+        if (response.getHttpStatusCode() != 200) {
+            throw new StravaHttpException("The Strava heatmap server returned an unexpected status " + response.getHttpStatusCode());
+        }
+        String cookies = buildHeatmapCookieHeader(response.getCookies());
+        if (cookies.isEmpty()) {
+            throw new StravaAuthenticationException("The Strava heatmap server returned no authentication cookies");
+        }
+        return cookies;
+    }
 
+    /**
+     * Requests the heatmap authentication cookies with the website session cookies of the HTTP client.
+     * The cookies of the response are read from the cookie store of the HTTP client: the heatmap cookies of
+     * the previous request are removed first, so that they are not taken for cookies set by this response.
+     *
+     * @return the response of the heatmap server.
+     */
+    private StravaHttpResponse sendHeatmapAuthRequest() throws StravaHttpException {
+        for (HttpCookie cookie : new ArrayList<>(stravaHttpClient.getCookies(heatmapUri))) {
+            if (cookie.getName().startsWith("CloudFront")) {
+                stravaHttpClient.removeCookie(heatmapUri, cookie);
+            }
+        }
         StravaHttpRequest request = new StravaHttpRequest();
-        request.setUri(HEATMAP_AUTH_URL);
-        StravaHttpResponse response = stravaHttpClient.sendRequest(request);
-
-        Map<String, String> cookies = response.getCookies();
+        request.setUri(heatmapAuthUrl);
+        // only the cookies matter
+        request.setBodyMode(StravaHttpRequest.BodyMode.DISCARD);
+        long startNanos = System.nanoTime();
+        StravaHttpResponse response;
+        try {
+            response = stravaHttpClient.sendRequest(request);
+        } finally {
+            metrics.record(StravaMetrics.Step.HEATMAP_COOKIES, startNanos);
+        }
+        return response;
+    }
 
+    /**
+     * Builds the HTTP "Cookie" header holding the heatmap authentication cookies, i.e. the CloudFront cookies.
+     *
+     * @param cookies the cookies set by the heatmap server, by name.
+     * @return the heatmap authentication cookies formatted as an HTTP "Cookie" header.
+     */
+    public static String buildHeatmapCookieHeader(Map<String, String> cookies) {
         return cookies.entrySet().stream()
                 .filter(cookie -> cookie.getKey().startsWith("CloudFront"))
                 .map(c -> c.getKey() + "=" + c.getValue())
@@ -204,5 +560,6 @@ public class StravaCookiesRetriever {
      */
     public void removeAllCookiesFromCookieStore() {
         stravaHttpClient.removeAllCookiesFromCookieStore();
+        sessionEmail = null;
     }
 }
@@ -2,17 +2,27 @@ package org.openstreetmap.josm.plugins.strava.heatmap.authentication;
 
 import org.openstreetmap.josm.tools.Logging;
 
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.io.IOException;
+import java.io.InputStream;
 
 
 /**
  * Utility class for extracting the CSRF token from the login page.
+ * <p>
+ * The page is scanned incrementally for the tag {@code <meta name="csrf-token" content="...">},
+ * so that the scan stops at the end of the tag. When the page is read from a stream, the rest of the page
+ * is never read and can be discarded by closing the stream.
  */
 public class StravaCsrfTokenParser {
 
-    private static final String REGEX_CSRF_TOKEN = "\\<meta name\\=\\\"csrf-token\\\" content\\=\\\"(.*?)\\\" /\\>";
-    private static final Pattern PATTERN_CSRF_TOKEN = Pattern.compile(REGEX_CSRF_TOKEN);
+    private static final String CSRF_TOKEN_PREFIX = "<meta name=\"csrf-token\" content=\"";
+
+    /**
+     * The maximum length of a token, which stops the scan of a malformed tag.
+     */
+    private static final int MAX_TOKEN_LENGTH = 1024;
+
+    private static final int BUFFER_SIZE = 4096;
 
     private String htmlContent;
 
@@ -27,26 +37,88 @@ public class StravaCsrfTokenParser {
      * @return the CSRF token or an empty string if the token is not found.
      */
     public String findCsrfToken() {
+        TokenScanner scanner = new TokenScanner();
+        for (int i = 0; i < htmlContent.length(); i++) {
+            if (scanner.accept(htmlContent.charAt(i))) {
+                return scanner.getFoundToken();
+            }
+        }
+        return "";
+    }
+
+    /**
+     * Extracts the CSRF token from an HTML page read from a stream.
+     * The stream is read up to the end of the tag holding the token and is not closed.
+     * The token and the tag are ASCII, so the page is scanned byte by byte without being decoded.
+     *
+     * @param htmlContent the HTML page.
+     * @return the CSRF token or an empty string if the token is not found.
+     * @throws IOException if the page cannot be read.
+     */
+    public static String findCsrfToken(InputStream htmlContent) throws IOException {
+        TokenScanner scanner = new TokenScanner();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int length;
+        while ((length = htmlContent.read(buffer)) != -1) {
+            for (int i = 0; i < length; i++) {
+                if (scanner.accept((char) (buffer[i] & 0xff))) {
+                    return scanner.getFoundToken();
+                }
+            }
+        }
+        return "";
+    }
 
-        Matcher matcher = PATTERN_CSRF_TOKEN.matcher(htmlContent);
+    /**
+     * The state of the scan of a page.
+     */
+    private static class TokenScanner {
 
-        if (matcher.find()) {
+        /**
+         * The number of characters of {@link #CSRF_TOKEN_PREFIX} matched so far.
+         */
+        private int matchedPrefixLength;
+        private StringBuilder token;
+        private long scannedCharacters;
 
-            String token = matcher.group(1);
+        /**
+         * Scans the next character of the page.
+         *
+         * @param c the character.
+         * @return true if the token is complete.
+         */
+        boolean accept(char c) {
+            scannedCharacters++;
+            if (token != null) {
+                if (c == '"') {
+                    return true;
+                }
+                token.append(c);
+                if (token.length() > MAX_TOKEN_LENGTH) {
+                    // malformed tag, look for the next one
+                    token = null;
+                    matchedPrefixLength = 0;
+                }
+                return false;
+            }
+            if (c == CSRF_TOKEN_PREFIX.charAt(matchedPrefixLength)) {
+                matchedPrefixLength++;
+            } else {
+                // the first character of the prefix does not occur elsewhere in the prefix
+                matchedPrefixLength = c == CSRF_TOKEN_PREFIX.charAt(0) ? 1 : 0;
+            }
+            if (matchedPrefixLength == CSRF_TOKEN_PREFIX.length()) {
+                token = new StringBuilder();
+            }
+            return false;
+        }
 
+        String getFoundToken() {
+            String foundToken = token.toString();
             if (Logging.isDebugEnabled()) {
-                Logging.debug("Found tag <meta>" +
-                                " \"%s\" starting at " +
-                                "index %d and ending at index %d.%n",
-                        matcher.group(),
-                        matcher.start(),
-                        matcher.end());
-                Logging.debug("Found CSRF token: " + token);
-
+                Logging.debug("Found CSRF token after scanning " + scannedCharacters + " characters: " + foundToken);
             }
-            return token;
-        } else {
-            return "";
+            return foundToken;
         }
     }
 }
@@ -0,0 +1,103 @@
+package org.openstreetmap.josm.plugins.strava.heatmap.authentication;
+
+import java.net.HttpCookie;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The cookies of a Strava website session, in a form that can be stored in the JOSM credentials manager.
+ * <p>
+ * As long as the website session is valid, the heatmap authentication cookies can be renewed with a single request
+ * to the heatmap server, without submitting the login form again. Storing the session cookies lets the session
+ * outlive JOSM, like in a web browser. They must be protected like the password of the account.
+ * <p>
+ * Each cookie is encoded as one entry holding its name, value, domain, path, flags and expiry date.
+ * The expiry date is computed when the jar is saved, right after the login. A cookie set without an expiry date
+ * only lives as long as the browser session: it is kept for {@link #SESSION_COOKIE_LIFETIME_MILLIS} at most.
+ */
+public final class StravaSessionCookieJar {
+
+    /**
+     * The lifetime given to the cookies set without an expiry date.
+     */
+    public static final long SESSION_COOKIE_LIFETIME_MILLIS = TimeUnit.DAYS.toMillis(7);
+
+    private static final String SEPARATOR = "\t";
+    private static final int FIELD_COUNT = 7;
+
+    private StravaSessionCookieJar() {
+        // utility class
+    }
+
+    /**
+     * Encodes cookies into entries.
+     * The heatmap authentication cookies are left out, they are stored on their own.
+     *
+     * @param cookies   the cookies of the website session.
+     * @param nowMillis the current time in milliseconds since the epoch.
+     * @return the entries, one per cookie.
+     */
+    public static List<String> encode(List<HttpCookie> cookies, long nowMillis) {
+        List<String> entries = new ArrayList<>();
+        for (HttpCookie cookie : cookies) {
+            if (cookie.getName().startsWith("CloudFront") || cookie.hasExpired()) {
+                continue;
+            }
+            long expiryMillis = cookie.getMaxAge() < 0
+                    ? nowMillis + SESSION_COOKIE_LIFETIME_MILLIS
+                    : nowMillis + TimeUnit.SECONDS.toMillis(cookie.getMaxAge());
+            entries.add(String.join(SEPARATOR,
+                    cookie.getName(),
+                    cookie.getValue(),
+                    cookie.getDomain() == null ? "" : cookie.getDomain(),
+                    cookie.getPath() == null ? "" : cookie.getPath(),
+                    Boolean.toString(cookie.getSecure()),
+                    Boolean.toString(cookie.isHttpOnly()),
+                    Long.toString(expiryMillis)));
+        }
+        return entries;
+    }
+
+    /**
+     * Decodes the cookies that have not expired yet from entries.
+     * The malformed entries are ignored.
+     *
+     * @param entries   the entries, see {@link #encode(List, long)}.
+     * @param nowMillis the current time in milliseconds since the epoch.
+     * @return the cookies, whose maximum age is the time left before their expiry date.
+     */
+    public static List<HttpCookie> decode(List<String> entries, long nowMillis) {
+        List<HttpCookie> cookies = new ArrayList<>();
+        for (String entry : entries) {
+            String[] fields = entry.split(SEPARATOR, -1);
+            if (fields.length != FIELD_COUNT || fields[0].isEmpty()) {
+                continue;
+            }
+            long expiryMillis;
+            try {
+                expiryMillis = Long.parseLong(fields[6]);
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            long maxAgeSeconds = TimeUnit.MILLISECONDS.toSeconds(expiryMillis - nowMillis);
+            if (maxAgeSeconds <= 0) {
+                continue;
+            }
+            HttpCookie cookie = new HttpCookie(fields[0], fields[1]);
+            if (!fields[2].isEmpty()) {
+                cookie.setDomain(fields[2]);
+            }
+            if (!fields[3].isEmpty()) {
+                cookie.setPath(fields[3]);
+            }
+            cookie.setSecure(Boolean.parseBoolean(fields[4]));
+            cookie.setHttpOnly(Boolean.parseBoolean(fields[5]));
+            cookie.setMaxAge(maxAgeSeconds);
+            // the cookies set by the website are Netscape cookies, sent without the RFC 2965 attributes
+            cookie.setVersion(0);
+            cookies.add(cookie);
+        }
+        return cookies;
+    }
+}
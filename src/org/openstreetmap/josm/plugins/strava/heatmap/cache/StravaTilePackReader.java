@@ -0,0 +1,198 @@
+package org.openstreetmap.josm.plugins.strava.heatmap.cache;
+
+import org.openstreetmap.josm.tools.Logging;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Read-only access to a region pack: a single file holding the heatmap tiles of an area, written by {@link StravaTilePackWriter}.
+ * <p>
+ * A region pack is made of three sections:
+ * <ul>
+ * <li>a fixed-size header,</li>
+ * <li>the encoded images of the tiles, identical images (e.g. blank tiles) being stored once,</li>
+ * <li>a directory of the tiles sorted by tile id, followed by the metadata of the pack.</li>
+ * </ul>
+ * The directory is memory-mapped and searched by bisection, the tile images are read with positional reads:
+ * the pack is never unpacked and can be read by several threads at the same time.
+ */
+public class StravaTilePackReader implements Closeable {
+
+    static final long MAGIC = 0x5354524156504b31L;
+    static final int VERSION = 1;
+
+    static final int HEADER_SIZE = 64;
+    static final int HEADER_MAGIC = 0;
+    static final int HEADER_VERSION = 8;
+    static final int HEADER_MIN_ZOOM = 12;
+    static final int HEADER_MAX_ZOOM = 16;
+    static final int HEADER_TILE_COUNT = 20;
+    static final int HEADER_DIRECTORY_OFFSET = 24;
+    static final int HEADER_METADATA_LENGTH = 32;
+
+    static final int ENTRY_SIZE = 20;
+    static final int ENTRY_TILE_ID = 0;
+    static final int ENTRY_OFFSET = 8;
+    static final int ENTRY_LENGTH = 16;
+
+    private final File file;
+    private final RandomAccessFile randomAccessFile;
+    private final FileChannel channel;
+    private final MappedByteBuffer directory;
+    private final int tileCount;
+    private final int minZoom;
+    private final int maxZoom;
+    private final String metadata;
+
+    /**
+     * Opens a region pack.
+     *
+     * @param file the region pack file.
+     * @throws IOException if the file cannot be read or is not a complete region pack.
+     */
+    public StravaTilePackReader(File file) throws IOException {
+        this.file = file;
+        this.randomAccessFile = new RandomAccessFile(file, "r");
+        this.channel = randomAccessFile.getChannel();
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            readFully(header, 0);
+            if (header.getLong(HEADER_MAGIC) != MAGIC || header.getInt(HEADER_VERSION) != VERSION) {
+                throw new IOException("Not a Strava heatmap region pack: " + file);
+            }
+            this.minZoom = header.getInt(HEADER_MIN_ZOOM);
+            this.maxZoom = header.getInt(HEADER_MAX_ZOOM);
+            this.tileCount = header.getInt(HEADER_TILE_COUNT);
+            long directoryOffset = header.getLong(HEADER_DIRECTORY_OFFSET);
+            int metadataLength = header.getInt(HEADER_METADATA_LENGTH);
+            long directoryLength = (long) tileCount * ENTRY_SIZE;
+            if (tileCount < 0 || metadataLength < 0 || directoryOffset < HEADER_SIZE
+                    || directoryOffset + directoryLength + metadataLength != channel.size()) {
+                throw new IOException("Corrupted Strava heatmap region pack: " + file);
+            }
+            this.directory = channel.map(FileChannel.MapMode.READ_ONLY, directoryOffset, directoryLength);
+            ByteBuffer metadataBuffer = ByteBuffer.allocate(metadataLength);
+            readFully(metadataBuffer, directoryOffset + directoryLength);
+            this.metadata = new String(metadataBuffer.array(), StandardCharsets.UTF_8);
+        } catch (IOException | RuntimeException e) {
+            randomAccessFile.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the encoded image of a tile.
+     *
+     * @param zoom the tile zoom level.
+     * @param x    the tile x coordinate.
+     * @param y    the tile y coordinate.
+     * @return the encoded image, or null if the tile is not in the pack.
+     */
+    public byte[] getTile(int zoom, int x, int y) {
+        long tileId = tileId(zoom, x, y);
+        int low = 0;
+        int high = tileCount - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int position = middle * ENTRY_SIZE;
+            long middleTileId = directory.getLong(position + ENTRY_TILE_ID);
+            if (middleTileId < tileId) {
+                low = middle + 1;
+            } else if (middleTileId > tileId) {
+                high = middle - 1;
+            } else {
+                ByteBuffer data = ByteBuffer.allocate(directory.getInt(position + ENTRY_LENGTH));
+                try {
+                    readFully(data, directory.getLong(position + ENTRY_OFFSET));
+                } catch (IOException e) {
+                    Logging.warn(e);
+                    return null;
+                }
+                return data.array();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the number of tiles in the pack.
+     *
+     * @return the number of tiles.
+     */
+    public int getTileCount() {
+        return tileCount;
+    }
+
+    /**
+     * Returns the lowest zoom level of the pack.
+     *
+     * @return the lowest zoom level.
+     */
+    public int getMinZoom() {
+        return minZoom;
+    }
+
+    /**
+     * Returns the highest zoom level of the pack.
+     *
+     * @return the highest zoom level.
+     */
+    public int getMaxZoom() {
+        return maxZoom;
+    }
+
+    /**
+     * Returns the metadata recorded when the pack was written, e.g. the heatmap name.
+     *
+     * @return the metadata.
+     */
+    public String getMetadata() {
+        return metadata;
+    }
+
+    /**
+     * Returns the region pack file.
+     *
+     * @return the file.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    @Override
+    public void close() {
+        try {
+            randomAccessFile.close();
+        } catch (IOException e) {
+            Logging.warn(e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "StravaTilePackReader [" + file + "]";
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                throw new IOException("Unexpected end of file " + file);
+            }
+        }
+    }
+
+    /**
+     * Returns the id of a tile, the tiles are sorted by zoom level, then by x, then by y.
+     */
+    static long tileId(int zoom, int x, int y) {
+        return ((long) zoom << 56) | ((long) x << 28) | y;
+    }
+}
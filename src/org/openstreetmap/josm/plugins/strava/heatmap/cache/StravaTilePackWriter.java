@@ -0,0 +1,197 @@
+package org.openstreetmap.josm.plugins.strava.heatmap.cache;
+
+import org.openstreetmap.josm.tools.Logging;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes a region pack, see {@link StravaTilePackReader} for the file layout.
+ * The tiles can be added in any order and from several threads. The pack is readable only after {@link #finish(String)}:
+ * the header is written last, so that an interrupted export never looks like a valid pack.
+ */
+public class StravaTilePackWriter implements Closeable {
+
+    /**
+     * Tiles up to this size are deduplicated: the blank tiles of a sparse area are all identical.
+     */
+    private static final int MAX_DEDUPLICATED_TILE_SIZE = 2048;
+
+    private final File file;
+    private final RandomAccessFile randomAccessFile;
+    private final FileChannel channel;
+    private final Map<Long, long[]> entries = new HashMap<>();
+    /**
+     * The entries of the small tiles written, by 64-bit hash of their content.
+     * The content itself is not kept: on a hash match, the tile is read back from the pack to be compared.
+     */
+    private final Map<Long, List<long[]>> smallTiles = new HashMap<>();
+    private long position = StravaTilePackReader.HEADER_SIZE;
+    private int minZoom = Integer.MAX_VALUE;
+    private int maxZoom = Integer.MIN_VALUE;
+    private boolean finished;
+
+    /**
+     * Creates a region pack, overwriting the file if it exists.
+     *
+     * @param file the region pack file.
+     * @throws IOException if the file cannot be created.
+     */
+    public StravaTilePackWriter(File file) throws IOException {
+        this.file = file;
+        this.randomAccessFile = new RandomAccessFile(file, "rw");
+        this.channel = randomAccessFile.getChannel();
+        try {
+            randomAccessFile.setLength(0);
+        } catch (IOException e) {
+            randomAccessFile.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Adds a tile to the pack. A tile added twice is replaced.
+     *
+     * @param zoom the tile zoom level.
+     * @param x    the tile x coordinate.
+     * @param y    the tile y coordinate.
+     * @param data the encoded image.
+     * @throws IOException if the tile cannot be written.
+     */
+    public synchronized void addTile(int zoom, int x, int y, byte[] data) throws IOException {
+        long[] entry = null;
+        Long hash = null;
+        if (data.length <= MAX_DEDUPLICATED_TILE_SIZE) {
+            hash = hash(data);
+            entry = findSmallTile(smallTiles.get(hash), data);
+        }
+        if (entry == null) {
+            entry = new long[] {position, data.length};
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+            if (hash != null) {
+                smallTiles.computeIfAbsent(hash, key -> new ArrayList<>(1)).add(entry);
+            }
+        }
+        entries.put(StravaTilePackReader.tileId(zoom, x, y), entry);
+        minZoom = Math.min(minZoom, zoom);
+        maxZoom = Math.max(maxZoom, zoom);
+    }
+
+    /**
+     * Returns the number of tiles added to the pack.
+     *
+     * @return the number of tiles.
+     */
+    public synchronized int getTileCount() {
+        return entries.size();
+    }
+
+    /**
+     * Writes the directory, the metadata and the header, and closes the file.
+     *
+     * @param metadata free text recorded in the pack, e.g. the heatmap name.
+     * @throws IOException if the pack cannot be written.
+     */
+    public synchronized void finish(String metadata) throws IOException {
+        List<Long> tileIds = new ArrayList<>(entries.keySet());
+        tileIds.sort(null);
+        byte[] metadataBytes = metadata.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer directory = ByteBuffer.allocate(tileIds.size() * StravaTilePackReader.ENTRY_SIZE + metadataBytes.length);
+        for (long tileId : tileIds) {
+            long[] entry = entries.get(tileId);
+            directory.putLong(tileId).putLong(entry[0]).putInt((int) entry[1]);
+        }
+        directory.put(metadataBytes);
+        directory.flip();
+        long directoryOffset = position;
+        while (directory.hasRemaining()) {
+            position += channel.write(directory, position);
+        }
+        channel.force(false);
+
+        ByteBuffer header = ByteBuffer.allocate(StravaTilePackReader.HEADER_SIZE);
+        header.putLong(StravaTilePackReader.HEADER_MAGIC, StravaTilePackReader.MAGIC);
+        header.putInt(StravaTilePackReader.HEADER_VERSION, StravaTilePackReader.VERSION);
+        header.putInt(StravaTilePackReader.HEADER_MIN_ZOOM, tileIds.isEmpty() ? 0 : minZoom);
+        header.putInt(StravaTilePackReader.HEADER_MAX_ZOOM, tileIds.isEmpty() ? 0 : maxZoom);
+        header.putInt(StravaTilePackReader.HEADER_TILE_COUNT, tileIds.size());
+        header.putLong(StravaTilePackReader.HEADER_DIRECTORY_OFFSET, directoryOffset);
+        header.putInt(StravaTilePackReader.HEADER_METADATA_LENGTH, metadataBytes.length);
+        while (header.hasRemaining()) {
+            channel.write(header, header.position());
+        }
+        channel.force(true);
+        finished = true;
+        randomAccessFile.close();
+    }
+
+    /**
+     * Closes the file. An unfinished pack is deleted.
+     */
+    @Override
+    public synchronized void close() {
+        if (!finished) {
+            try {
+                randomAccessFile.close();
+            } catch (IOException e) {
+                Logging.warn(e);
+            }
+            if (!file.delete()) {
+                Logging.warn("Unable to delete incomplete region pack " + file);
+            }
+            finished = true;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "StravaTilePackWriter [" + file + "]";
+    }
+
+    /**
+     * Returns the entry of a small tile already written with the same content, comparing the tiles read back from the pack.
+     */
+    private long[] findSmallTile(List<long[]> candidates, byte[] data) throws IOException {
+        if (candidates == null) {
+            return null;
+        }
+        for (long[] candidate : candidates) {
+            if (candidate[1] == data.length) {
+                ByteBuffer buffer = ByteBuffer.allocate(data.length);
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, candidate[0] + buffer.position()) < 0) {
+                        throw new IOException("Unexpected end of region pack " + file);
+                    }
+                }
+                if (Arrays.equals(data, buffer.array())) {
+                    return candidate;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the 64-bit FNV-1a hash of a tile, mixed with its length.
+     */
+    private static long hash(byte[] data) {
+        long hash = 0xcbf29ce484222325L ^ data.length;
+        for (byte b : data) {
+            hash = (hash ^ (b & 0xff)) * 0x100000001b3L;
+        }
+        return hash;
+    }
+}
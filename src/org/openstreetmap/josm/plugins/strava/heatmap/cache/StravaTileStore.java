@@ -0,0 +1,566 @@
+package org.openstreetmap.josm.plugins.strava.heatmap.cache;
+
+import org.openstreetmap.josm.spi.preferences.Config;
+import org.openstreetmap.josm.tools.Logging;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Persistent store for the authenticated heatmap tiles, shared by all the JOSM instances of the user.
+ * <p>
+ * The store is a single memory-mapped file made of three regions:
+ * <ul>
+ * <li>a header holding the geometry of the file and the state of the data region,</li>
+ * <li>an index: an open-addressing hash table (linear probing) mapping (layer, zoom, x, y) to a record of the data region,</li>
+ * <li>a data region used as a circular log of records, each record holding the encoded image of a tile.</li>
+ * </ul>
+ * New tiles are appended at the head of the log. When the log is full, the oldest records are evicted at its tail.
+ * Tiles read close to the tail are appended again at the head, so that frequently used tiles are not evicted:
+ * the eviction order approximates the least-recently-used order.
+ * <p>
+ * Every operation holds an exclusive lock on the file, so that several JOSM processes can share the store safely.
+ * <p>
+ * The file may be left inconsistent by a crash, a torn write or another version of the plugin: the header and the records
+ * are checked when the store is opened, the records and the index entries when they are read, and the store is cleared
+ * as soon as an inconsistency is found.
+ */
+public class StravaTileStore {
+
+    private static final int MAGIC = 0x53544856;
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 64;
+    private static final int HEADER_MAGIC = 0;
+    private static final int HEADER_VERSION = 4;
+    private static final int HEADER_SLOT_COUNT = 8;
+    private static final int HEADER_DATA_CAPACITY = 16;
+    private static final int HEADER_HEAD = 24;
+    private static final int HEADER_TAIL = 32;
+    private static final int HEADER_USED = 40;
+    private static final int HEADER_ENTRY_COUNT = 48;
+
+    private static final int SLOT_SIZE = 32;
+    private static final int SLOT_LAYER_HASH = 0;
+    private static final int SLOT_TILE_ID = 8;
+    private static final int SLOT_OFFSET = 16;
+    private static final int SLOT_LENGTH = 24;
+
+    private static final int RECORD_HEADER_SIZE = 24;
+    private static final int RECORD_TOTAL_LENGTH = 0;
+    private static final int RECORD_PAYLOAD_LENGTH = 4;
+    private static final int RECORD_LAYER_HASH = 8;
+    private static final int RECORD_TILE_ID = 16;
+    private static final int WRAP_MARKER = -1;
+
+    /**
+     * Average size of a heatmap tile, used to size the index.
+     */
+    private static final int AVERAGE_TILE_SIZE = 8 * 1024;
+
+    private static final int DEFAULT_SIZE_MB = 256;
+    private static final int MAX_SIZE_MB = 1024;
+
+    private static StravaTileStore instance;
+
+    private final File file;
+    private final RandomAccessFile randomAccessFile;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final int slotCount;
+    private final long dataCapacity;
+    private final int dataStart;
+
+    /**
+     * Returns the store located in the JOSM cache directory, opening it on first use.
+     * The size of the store is read from the preference "strava.heatmap.tilestore.size" (in MB, 256 by default)
+     * when the file is created.
+     *
+     * @return the store, or null if the store cannot be opened.
+     */
+    public static synchronized StravaTileStore getInstance() {
+        if (instance == null) {
+            File directory = new File(Config.getDirs().getCacheDirectory(true), "strava_heatmap");
+            int sizeMb = Math.min(Config.getPref().getInt("strava.heatmap.tilestore.size", DEFAULT_SIZE_MB), MAX_SIZE_MB);
+            try {
+                if (!directory.isDirectory() && !directory.mkdirs()) {
+                    throw new IOException("Unable to create directory " + directory);
+                }
+                instance = new StravaTileStore(new File(directory, "tiles.store"), sizeMb * 1024L * 1024L);
+            } catch (IOException e) {
+                Logging.log(Logging.LEVEL_ERROR, "Unable to open the Strava heatmap tile store", e);
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Closes the store returned by {@link #getInstance()}, if it has been opened.
+     * Called when the plugin is unloaded.
+     */
+    public static synchronized void closeInstance() {
+        if (instance != null) {
+            instance.close();
+            instance = null;
+        }
+    }
+
+    /**
+     * Opens a store, creating the file if needed.
+     * If the file already exists, its geometry is kept and the requested capacity is ignored.
+     *
+     * @param file         the store file.
+     * @param dataCapacity the size of the data region of a new file, in bytes.
+     * @throws IOException if the file cannot be opened or mapped.
+     */
+    public StravaTileStore(File file, long dataCapacity) throws IOException {
+        this.file = file;
+        this.randomAccessFile = new RandomAccessFile(file, "rw");
+        this.channel = randomAccessFile.getChannel();
+        try (FileLock ignored = channel.lock()) {
+            int existingSlotCount = 0;
+            long existingDataCapacity = 0;
+            if (channel.size() >= HEADER_SIZE) {
+                MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+                if (header.getInt(HEADER_MAGIC) == MAGIC && header.getInt(HEADER_VERSION) == VERSION) {
+                    existingSlotCount = header.getInt(HEADER_SLOT_COUNT);
+                    existingDataCapacity = header.getLong(HEADER_DATA_CAPACITY);
+                }
+            }
+            boolean initialize = existingSlotCount <= 0 || existingDataCapacity <= 0
+                    || channel.size() != fileSize(existingSlotCount, existingDataCapacity);
+            if (initialize) {
+                this.dataCapacity = dataCapacity & ~7L;
+                this.slotCount = computeSlotCount(this.dataCapacity);
+            } else {
+                this.dataCapacity = existingDataCapacity;
+                this.slotCount = existingSlotCount;
+            }
+            this.dataStart = HEADER_SIZE + slotCount * SLOT_SIZE;
+            long size = fileSize(slotCount, this.dataCapacity);
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Tile store too large: " + size);
+            }
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            if (initialize || !isHeaderConsistent() || !isLogConsistent()) {
+                Logging.info("Initializing the Strava heatmap tile store " + file);
+                initialize();
+            }
+        } catch (IOException | RuntimeException e) {
+            randomAccessFile.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the encoded image of a tile.
+     *
+     * @param layerKey the key identifying the heatmap (activity and color).
+     * @param zoom     the tile zoom level.
+     * @param x        the tile x coordinate.
+     * @param y        the tile y coordinate.
+     * @return the encoded image, or null if the tile is not in the store.
+     */
+    public synchronized byte[] get(String layerKey, int zoom, int x, int y) {
+        long layerHash = layerHash(layerKey);
+        long tileId = tileId(zoom, x, y);
+        try (FileLock ignored = channel.lock()) {
+            int slot = findSlot(layerHash, tileId);
+            if (slot < 0) {
+                return null;
+            }
+            long offset = buffer.getLong(slotPosition(slot) + SLOT_OFFSET);
+            int length = buffer.getInt(slotPosition(slot) + SLOT_LENGTH);
+            if (!isRecordConsistent(offset, layerHash, tileId, length)) {
+                clearCorruptedStore();
+                return null;
+            }
+            byte[] data = new byte[length];
+            ByteBuffer payload = buffer.duplicate();
+            payload.position((int) (dataStart + offset + RECORD_HEADER_SIZE));
+            payload.get(data);
+            // tiles about to be evicted are moved to the head of the log
+            long distanceFromTail = Math.floorMod(offset - getLong(HEADER_TAIL), dataCapacity);
+            if (distanceFromTail < getLong(HEADER_USED) / 4) {
+                append(layerHash, tileId, data);
+            }
+            return data;
+        } catch (IOException e) {
+            Logging.warn(e);
+            return null;
+        }
+    }
+
+    /**
+     * Tests if a tile is in the store, without reading it.
+     *
+     * @param layerKey the key identifying the heatmap (activity and color).
+     * @param zoom     the tile zoom level.
+     * @param x        the tile x coordinate.
+     * @param y        the tile y coordinate.
+     * @return true if the tile is in the store.
+     */
+    public synchronized boolean contains(String layerKey, int zoom, int x, int y) {
+        try (FileLock ignored = channel.lock()) {
+            return findSlot(layerHash(layerKey), tileId(zoom, x, y)) >= 0;
+        } catch (IOException e) {
+            Logging.warn(e);
+            return false;
+        }
+    }
+
+    /**
+     * Stores the encoded image of a tile, evicting the oldest tiles if needed.
+     *
+     * @param layerKey the key identifying the heatmap (activity and color).
+     * @param zoom     the tile zoom level.
+     * @param x        the tile x coordinate.
+     * @param y        the tile y coordinate.
+     * @param data     the encoded image.
+     */
+    public synchronized void put(String layerKey, int zoom, int x, int y, byte[] data) {
+        if (align(RECORD_HEADER_SIZE + data.length) > dataCapacity) {
+            return;
+        }
+        try (FileLock ignored = channel.lock()) {
+            append(layerHash(layerKey), tileId(zoom, x, y), data);
+        } catch (IOException e) {
+            Logging.warn(e);
+        }
+    }
+
+    /**
+     * Returns the number of tiles in the store.
+     *
+     * @return the number of tiles.
+     */
+    public synchronized int size() {
+        return (int) getLong(HEADER_ENTRY_COUNT);
+    }
+
+    /**
+     * Closes the store file.
+     */
+    public synchronized void close() {
+        try {
+            buffer.force();
+            randomAccessFile.close();
+        } catch (IOException e) {
+            Logging.warn(e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "StravaTileStore [" + file + "]";
+    }
+
+    private void initialize() {
+        for (int i = 0; i < dataStart; i += 8) {
+            buffer.putLong(i, 0);
+        }
+        buffer.putInt(HEADER_MAGIC, MAGIC);
+        buffer.putInt(HEADER_VERSION, VERSION);
+        buffer.putInt(HEADER_SLOT_COUNT, slotCount);
+        buffer.putLong(HEADER_DATA_CAPACITY, dataCapacity);
+    }
+
+    private void clearCorruptedStore() {
+        Logging.warn("The Strava heatmap tile store " + file + " is corrupted, clearing it");
+        initialize();
+    }
+
+    private boolean isHeaderConsistent() {
+        long head = getLong(HEADER_HEAD);
+        long tail = getLong(HEADER_TAIL);
+        long used = getLong(HEADER_USED);
+        long entryCount = getLong(HEADER_ENTRY_COUNT);
+        return head >= 0 && head <= dataCapacity && head % 8 == 0 && tail >= 0 && tail <= dataCapacity && tail % 8 == 0
+                && used >= 0 && used <= dataCapacity && entryCount >= 0 && entryCount <= slotCount;
+    }
+
+    /**
+     * Walks the log from its tail to its head, checking the length of each record.
+     * Must be called with the file lock held, after {@link #isHeaderConsistent()}.
+     *
+     * @return true if the records fill exactly the used part of the data region and are at least as many as the index entries.
+     */
+    private boolean isLogConsistent() {
+        long position = getLong(HEADER_TAIL);
+        long remaining = getLong(HEADER_USED);
+        long recordCount = 0;
+        while (remaining > 0) {
+            int totalLength = recordTotalLength(position);
+            if (totalLength == WRAP_MARKER) {
+                remaining -= dataCapacity - position;
+                position = 0;
+            } else if (totalLength > 0) {
+                remaining -= totalLength;
+                position += totalLength;
+                recordCount++;
+            } else {
+                return false;
+            }
+        }
+        return remaining == 0 && position % dataCapacity == getLong(HEADER_HEAD) % dataCapacity
+                && recordCount >= getLong(HEADER_ENTRY_COUNT);
+    }
+
+    /**
+     * Reads the length of the record at a position of the data region.
+     *
+     * @return the total length of the record, {@link #WRAP_MARKER} if the log restarts at the beginning of the data region,
+     * or 0 if the length is not valid.
+     */
+    private int recordTotalLength(long position) {
+        if (position >= dataCapacity) {
+            return position == dataCapacity ? WRAP_MARKER : 0;
+        }
+        if (dataCapacity - position < RECORD_HEADER_SIZE) {
+            // too short for a record, the log can only restart at the beginning of the data region
+            return WRAP_MARKER;
+        }
+        int totalLength = buffer.getInt((int) (dataStart + position) + RECORD_TOTAL_LENGTH);
+        if (totalLength == WRAP_MARKER) {
+            return WRAP_MARKER;
+        }
+        int payloadLength = buffer.getInt((int) (dataStart + position) + RECORD_PAYLOAD_LENGTH);
+        boolean valid = totalLength >= RECORD_HEADER_SIZE && totalLength % 8 == 0 && totalLength <= dataCapacity - position
+                && payloadLength >= 0 && payloadLength <= totalLength - RECORD_HEADER_SIZE;
+        return valid ? totalLength : 0;
+    }
+
+    /**
+     * Tests if an index entry points to the record of its tile.
+     */
+    private boolean isRecordConsistent(long offset, long layerHash, long tileId, int length) {
+        if (offset < 0 || offset % 8 != 0 || offset >= dataCapacity || length < 0 || recordTotalLength(offset) < RECORD_HEADER_SIZE + length) {
+            return false;
+        }
+        int recordPosition = (int) (dataStart + offset);
+        return buffer.getInt(recordPosition + RECORD_PAYLOAD_LENGTH) == length
+                && buffer.getLong(recordPosition + RECORD_LAYER_HASH) == layerHash
+                && buffer.getLong(recordPosition + RECORD_TILE_ID) == tileId;
+    }
+
+    /**
+     * Appends a record at the head of the log and points the index to it.
+     * Must be called with the file lock held.
+     */
+    private void append(long layerHash, long tileId, byte[] data) {
+        int totalLength = (int) align(RECORD_HEADER_SIZE + data.length);
+        long offset = reserve(totalLength);
+        if (offset < 0) {
+            clearCorruptedStore();
+            offset = reserve(totalLength);
+        }
+        int recordPosition = (int) (dataStart + offset);
+        buffer.putInt(recordPosition + RECORD_TOTAL_LENGTH, totalLength);
+        buffer.putInt(recordPosition + RECORD_PAYLOAD_LENGTH, data.length);
+        buffer.putLong(recordPosition + RECORD_LAYER_HASH, layerHash);
+        buffer.putLong(recordPosition + RECORD_TILE_ID, tileId);
+        ByteBuffer payload = buffer.duplicate();
+        payload.position(recordPosition + RECORD_HEADER_SIZE);
+        payload.put(data);
+        putLong(HEADER_HEAD, offset + totalLength);
+        putLong(HEADER_USED, getLong(HEADER_USED) + totalLength);
+
+        int slot = findSlot(layerHash, tileId);
+        if (slot < 0) {
+            slot = -slot - 1;
+            putLong(HEADER_ENTRY_COUNT, getLong(HEADER_ENTRY_COUNT) + 1);
+        }
+        int slotPosition = slotPosition(slot);
+        buffer.putLong(slotPosition + SLOT_TILE_ID, tileId);
+        buffer.putLong(slotPosition + SLOT_OFFSET, offset);
+        buffer.putInt(slotPosition + SLOT_LENGTH, data.length);
+        buffer.putLong(slotPosition + SLOT_LAYER_HASH, layerHash);
+    }
+
+    /**
+     * Finds room for a record of the given length at the head of the log, evicting records at the tail if needed,
+     * and keeping the index load factor below 3/4.
+     *
+     * @return the offset of the free space in the data region, or -1 if the store is inconsistent.
+     */
+    private long reserve(long length) {
+        if (!isHeaderConsistent()) {
+            return -1;
+        }
+        // each eviction frees a record, at least a record header, or restarts the log at the beginning of the data region
+        long maxEvictions = 2 * (dataCapacity / RECORD_HEADER_SIZE + 1);
+        while (getLong(HEADER_ENTRY_COUNT) >= slotCount * 3L / 4) {
+            if (getLong(HEADER_USED) == 0 || maxEvictions-- <= 0 || !evictTail()) {
+                return -1;
+            }
+        }
+        while (true) {
+            long head = getLong(HEADER_HEAD);
+            long tail = getLong(HEADER_TAIL);
+            long used = getLong(HEADER_USED);
+            boolean wrapped = head < tail || (head == tail && used > 0);
+            if (!wrapped) {
+                if (dataCapacity - head >= length) {
+                    return head;
+                }
+                // not enough room before the end of the data region: restart at its beginning
+                if (dataCapacity - head >= 4) {
+                    buffer.putInt((int) (dataStart + head) + RECORD_TOTAL_LENGTH, WRAP_MARKER);
+                }
+                putLong(HEADER_USED, used + dataCapacity - head);
+                putLong(HEADER_HEAD, 0);
+            } else if (tail - head >= length) {
+                return head;
+            } else if (maxEvictions-- <= 0 || !evictTail()) {
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * Removes the oldest record of the log, and its index entry if the record is still the current one for its tile.
+     *
+     * @return false if the record at the tail is not valid, nothing is removed then.
+     */
+    private boolean evictTail() {
+        long tail = getLong(HEADER_TAIL);
+        long used = getLong(HEADER_USED);
+        int totalLength = recordTotalLength(tail);
+        if (totalLength == 0) {
+            return false;
+        }
+        if (totalLength == WRAP_MARKER) {
+            used -= dataCapacity - tail;
+            tail = 0;
+        } else {
+            int recordPosition = (int) (dataStart + tail);
+            long layerHash = buffer.getLong(recordPosition + RECORD_LAYER_HASH);
+            long tileId = buffer.getLong(recordPosition + RECORD_TILE_ID);
+            int slot = findSlot(layerHash, tileId);
+            if (slot >= 0 && buffer.getLong(slotPosition(slot) + SLOT_OFFSET) == tail) {
+                removeSlot(slot);
+                putLong(HEADER_ENTRY_COUNT, getLong(HEADER_ENTRY_COUNT) - 1);
+            }
+            used -= totalLength;
+            tail += totalLength;
+        }
+        if (used <= 0) {
+            // the log is empty: restart from the beginning of the data region
+            used = 0;
+            tail = 0;
+            putLong(HEADER_HEAD, 0);
+        }
+        putLong(HEADER_TAIL, tail);
+        putLong(HEADER_USED, used);
+        return true;
+    }
+
+    /**
+     * Looks up a tile in the index.
+     *
+     * @return the slot of the tile if found, otherwise (-(insertion slot) - 1).
+     */
+    private int findSlot(long layerHash, long tileId) {
+        int mask = slotCount - 1;
+        int slot = homeSlot(layerHash, tileId);
+        while (true) {
+            int slotPosition = slotPosition(slot);
+            long slotLayerHash = buffer.getLong(slotPosition + SLOT_LAYER_HASH);
+            if (slotLayerHash == 0) {
+                return -slot - 1;
+            }
+            if (slotLayerHash == layerHash && buffer.getLong(slotPosition + SLOT_TILE_ID) == tileId) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * Removes an index entry, shifting back the following entries of the probe sequence.
+     */
+    private void removeSlot(int slot) {
+        int mask = slotCount - 1;
+        int hole = slot;
+        int next = slot;
+        while (true) {
+            next = (next + 1) & mask;
+            int nextPosition = slotPosition(next);
+            long layerHash = buffer.getLong(nextPosition + SLOT_LAYER_HASH);
+            if (layerHash == 0) {
+                break;
+            }
+            int home = homeSlot(layerHash, buffer.getLong(nextPosition + SLOT_TILE_ID));
+            // the entry can fill the hole if its home slot is not cyclically between the hole (excluded) and itself
+            boolean canMove = hole <= next ? (home <= hole || home > next) : (home <= hole && home > next);
+            if (canMove) {
+                copySlot(next, hole);
+                hole = next;
+            }
+        }
+        buffer.putLong(slotPosition(hole) + SLOT_LAYER_HASH, 0);
+    }
+
+    private void copySlot(int from, int to) {
+        int fromPosition = slotPosition(from);
+        int toPosition = slotPosition(to);
+        for (int i = 0; i < SLOT_SIZE; i += 8) {
+            buffer.putLong(toPosition + i, buffer.getLong(fromPosition + i));
+        }
+    }
+
+    private int homeSlot(long layerHash, long tileId) {
+        long hash = (layerHash ^ tileId) * 0x9E3779B97F4A7C15L;
+        return (int) (hash >>> 32) & (slotCount - 1);
+    }
+
+    private int slotPosition(int slot) {
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    private long getLong(int headerField) {
+        return buffer.getLong(headerField);
+    }
+
+    private void putLong(int headerField, long value) {
+        buffer.putLong(headerField, value);
+    }
+
+    private static long fileSize(int slotCount, long dataCapacity) {
+        return HEADER_SIZE + (long) slotCount * SLOT_SIZE + dataCapacity;
+    }
+
+    private static int computeSlotCount(long dataCapacity) {
+        long tiles = Math.max(dataCapacity / AVERAGE_TILE_SIZE, 1024);
+        return Integer.highestOneBit((int) Math.min(tiles * 2 - 1, 1 << 24)) << 1;
+    }
+
+    private static long align(long length) {
+        return (length + 7) & ~7L;
+    }
+
+    /**
+     * Packs the tile coordinates into a single value. Zoom levels up to 27 are supported.
+     */
+    private static long tileId(int zoom, int x, int y) {
+        return ((long) zoom << 56) | ((long) x << 28) | y;
+    }
+
+    /**
+     * Hashes the layer key with the 64-bit FNV-1a function. 0 is reserved for empty index slots.
+     */
+    private static long layerHash(String layerKey) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : layerKey.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash == 0 ? 1 : hash;
+    }
+}
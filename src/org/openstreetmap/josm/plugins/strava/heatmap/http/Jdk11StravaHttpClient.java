@@ -3,28 +3,42 @@ package org.openstreetmap.josm.plugins.strava.heatmap.http;
 import org.openstreetmap.josm.tools.Logging;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.CookieManager;
 import java.net.HttpCookie;
 import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Flow;
 import java.util.stream.Collectors;
 
 /**
  * Implementation of {@link StravaHttpClient} using JDK 11 HTTP client features (java.net.http).
+ * The underlying {@link HttpClient} keeps a pool of HTTP/2 connections that is reused by all the requests
+ * sent through this instance.
  */
 public class Jdk11StravaHttpClient implements StravaHttpClient {
 
     private CookieManager cookieManager = new CookieManager(null, new AllStravaSubDomainsCookiePolicy());
 
+    private ExecutorService executor = StravaHttpClientFactory.newRequestExecutor("strava-heatmap-http-%d");
+
     private HttpClient httpClient = HttpClient.newBuilder()
             .version(HttpClient.Version.HTTP_2)
             .followRedirects(HttpClient.Redirect.NEVER)
             .connectTimeout(Duration.ofSeconds(20))
             .cookieHandler(cookieManager)
+            .executor(executor)
             .build();
 
     public Jdk11StravaHttpClient() {
@@ -36,46 +50,179 @@ public class Jdk11StravaHttpClient implements StravaHttpClient {
     {
         try {
             URI uri = URI.create(stravaHttpRequest.getUri());
-            HttpRequest.Builder httpRequestBuilder = HttpRequest.newBuilder()
-                    .timeout(Duration.ofSeconds(20))
-                    .uri(uri);
-            if (stravaHttpRequest.isPost()) {
-                httpRequestBuilder.setHeader("Content-Type", "application/x-www-form-urlencoded");
-                httpRequestBuilder.POST(HttpRequest.BodyPublishers.ofString(stravaHttpRequest.getParameters()));
-            }
-            String cookieHeader = stravaHttpRequest.getCookieHeader();
-            if (!cookieHeader.isEmpty()) {
-                httpRequestBuilder.setHeader("Cookie", cookieHeader);
+            HttpRequest httpRequest = buildHttpRequest(uri, stravaHttpRequest);
+            HttpResponse<?> response = httpClient.send(httpRequest, bodyHandler(stravaHttpRequest));
+            return toStravaHttpResponse(uri, response);
+        } catch (IOException | InterruptedException e) {
+            throw new StravaHttpException(e);
+        }
+    }
 
+    /**
+     * Sends the request asynchronously: on HTTP/2, concurrent requests to the same host are multiplexed
+     * over a single connection.
+     */
+    @Override
+    public CompletableFuture<StravaHttpResponse> sendRequestAsync(StravaHttpRequest stravaHttpRequest) {
+        URI uri = URI.create(stravaHttpRequest.getUri());
+        HttpRequest httpRequest = buildHttpRequest(uri, stravaHttpRequest);
+        CompletableFuture<StravaHttpResponse> response = httpClient.sendAsync(httpRequest, bodyHandler(stravaHttpRequest))
+                .thenApply(r -> toStravaHttpResponse(uri, r));
+        return response.handle((r, throwable) -> {
+            if (throwable != null) {
+                Throwable cause = throwable instanceof CompletionException && throwable.getCause() != null ? throwable.getCause() : throwable;
+                throw new CompletionException(new StravaHttpException(cause));
             }
-            HttpRequest httpRequest = httpRequestBuilder.build();
+            return r;
+        });
+    }
 
-            HttpResponse<String> response = httpClient.send(httpRequest, HttpResponse.BodyHandlers.ofString());
+    private static HttpResponse.BodyHandler<?> bodyHandler(StravaHttpRequest stravaHttpRequest) {
+        switch (stravaHttpRequest.getBodyMode()) {
+            case BYTES:
+                int maxBodyLength = stravaHttpRequest.getMaxBodyLength();
+                HttpResponse.BodyHandler<byte[]> boundedBytes = responseInfo -> new BoundedByteArraySubscriber(maxBodyLength);
+                return boundedBytes;
+            case STREAM:
+                // closing the stream cancels the subscription to the rest of the body (RST_STREAM on HTTP/2)
+                return HttpResponse.BodyHandlers.ofInputStream();
+            case DISCARD:
+                return HttpResponse.BodyHandlers.discarding();
+            default:
+                return HttpResponse.BodyHandlers.ofString();
+        }
+    }
 
-            Map<String, String> cookies = cookieManager.getCookieStore().get(uri)
-                    .stream().collect(Collectors.toMap(HttpCookie::getName,HttpCookie::getValue));
+    private HttpRequest buildHttpRequest(URI uri, StravaHttpRequest stravaHttpRequest) {
+        HttpRequest.Builder httpRequestBuilder = HttpRequest.newBuilder()
+                .timeout(Duration.ofSeconds(20))
+                .uri(uri);
+        if (stravaHttpRequest.isPost()) {
+            httpRequestBuilder.setHeader("Content-Type", "application/x-www-form-urlencoded");
+            httpRequestBuilder.POST(HttpRequest.BodyPublishers.ofString(stravaHttpRequest.getParameters()));
+        }
+        String cookieHeader = stravaHttpRequest.getCookieHeader();
+        if (!cookieHeader.isEmpty()) {
+            httpRequestBuilder.setHeader("Cookie", cookieHeader);
 
-            String locationHeader = response.headers().firstValue("Location").orElse("");
-            int statusCode = response.statusCode();
-            String body = response.body();
-            StravaHttpResponse stravaHttpResponse = new StravaHttpResponse(statusCode, body, cookies, locationHeader);
+        }
+        return httpRequestBuilder.build();
+    }
 
-            if (Logging.isDebugEnabled()) {
-                Logging.debug("HTTP status code from URI " + uri + ":" + statusCode);
-            }
-            if (Logging.isTraceEnabled()) {
-                Logging.trace("HTML content from URI " + uri + ":\n" + body);
-            }
+    private StravaHttpResponse toStravaHttpResponse(URI uri, HttpResponse<?> response) {
+        Map<String, String> cookies = cookieManager.getCookieStore().get(uri)
+                .stream().collect(Collectors.toMap(HttpCookie::getName,HttpCookie::getValue));
 
-            return stravaHttpResponse;
+        String locationHeader = response.headers().firstValue("Location").orElse("");
+        int statusCode = response.statusCode();
+        Object body = response.body();
+        StravaHttpResponse stravaHttpResponse;
+        if (body instanceof byte[]) {
+            stravaHttpResponse = new StravaHttpResponse(statusCode, (byte[]) body, cookies, locationHeader);
+        } else if (body instanceof InputStream) {
+            stravaHttpResponse = new StravaHttpResponse(statusCode, (InputStream) body, cookies, locationHeader);
+        } else if (body instanceof String) {
+            stravaHttpResponse = new StravaHttpResponse(statusCode, (String) body, cookies, locationHeader);
+        } else {
+            stravaHttpResponse = new StravaHttpResponse(statusCode, cookies, locationHeader);
+        }
 
-        } catch (IOException | InterruptedException e) {
-            throw new StravaHttpException(e);
+        if (Logging.isDebugEnabled()) {
+            Logging.debug("HTTP status code from URI " + uri + ":" + statusCode);
+        }
+        if (Logging.isTraceEnabled() && body instanceof String) {
+            Logging.trace("HTML content from URI " + uri + ":\n" + body);
         }
+
+        return stravaHttpResponse;
+    }
+
+    @Override
+    public List<HttpCookie> getCookies(URI uri) {
+        return cookieManager.getCookieStore().get(uri);
+    }
+
+    @Override
+    public void addCookie(URI uri, HttpCookie cookie) {
+        cookieManager.getCookieStore().add(uri, cookie);
+    }
+
+    @Override
+    public void removeCookie(URI uri, HttpCookie cookie) {
+        cookieManager.getCookieStore().remove(uri, cookie);
     }
 
     @Override
     public void removeAllCookiesFromCookieStore() {
         cookieManager.getCookieStore().removeAll();
     }
+
+    @Override
+    public void shutdown() {
+        // the HttpClient closes its connections once it is no longer referenced and its executor is stopped
+        executor.shutdownNow();
+    }
+
+    /**
+     * Collects the body into a byte array, and cancels the subscription to the rest of the body
+     * as soon as the body exceeds a maximum length.
+     */
+    private static final class BoundedByteArraySubscriber implements HttpResponse.BodySubscriber<byte[]> {
+
+        private final int maxBodyLength;
+        private final CompletableFuture<byte[]> result = new CompletableFuture<>();
+        private final List<ByteBuffer> buffers = new ArrayList<>();
+        private Flow.Subscription subscription;
+        private long bodyLength;
+
+        private BoundedByteArraySubscriber(int maxBodyLength) {
+            this.maxBodyLength = maxBodyLength;
+        }
+
+        @Override
+        public CompletionStage<byte[]> getBody() {
+            return result;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            subscription.request(Long.MAX_VALUE);
+        }
+
+        @Override
+        public void onNext(List<ByteBuffer> items) {
+            if (result.isDone()) {
+                return;
+            }
+            for (ByteBuffer item : items) {
+                bodyLength += item.remaining();
+                buffers.add(item);
+            }
+            if (bodyLength > maxBodyLength) {
+                subscription.cancel();
+                buffers.clear();
+                result.completeExceptionally(new IOException("Response body exceeds " + maxBodyLength + " bytes"));
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            buffers.clear();
+            result.completeExceptionally(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            byte[] body = new byte[(int) bodyLength];
+            int offset = 0;
+            for (ByteBuffer buffer : buffers) {
+                int length = buffer.remaining();
+                buffer.get(body, offset, length);
+                offset += length;
+            }
+            buffers.clear();
+            result.complete(body);
+        }
+    }
 }
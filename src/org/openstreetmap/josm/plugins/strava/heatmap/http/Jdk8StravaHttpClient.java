@@ -3,43 +3,38 @@ package org.openstreetmap.josm.plugins.strava.heatmap.http;
 import org.openstreetmap.josm.tools.HttpClient;
 import org.openstreetmap.josm.tools.Logging;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.*;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
 import java.util.stream.Collectors;
 
 /**
  * Implementation of {@link StravaHttpClient} compatible with JDK 8.
- * This implementation has to override the default cookie handler that is set statically in {@link HttpClient},
- * since its default cookie policy would otherwise reject the Strava sub-domain cookies.
+ * The Strava cookies are kept in a cookie manager of its own, whose policy accepts the Strava sub-domain cookies,
+ * see {@link AllStravaSubDomainsCookiePolicy}. The cookies are added to each request and read from each response
+ * by this client.
+ * <p>
+ * The default cookie handler shared by all the HTTP requests of JOSM is left in place: {@code HttpURLConnection}
+ * still stores the cookies of the Strava responses in it, so this client removes them from its store after each
+ * response. Only the Strava requests pay for this, but a Strava request sent concurrently may still send a cookie
+ * in the short time it is in the default store, next to the same cookie added by this client.
  * See {@link Jdk11StravaHttpClient} for a simpler implementation of the {@link StravaHttpClient} interface.
  */
 public class Jdk8StravaHttpClient implements StravaHttpClient {
 
-    /**
-     * Replaces the default cookie policy by a new one that accepts cookies from one Strava sub-domain to another.
-     * All other cookies are processed according to the original cookie policy set in {@link HttpClient}.
-     */
-    private static final CookiePolicy ACCEPT_STRAVA_SUBDOMAINS = new AllStravaSubDomainsCookiePolicy();
-
-    private static CookieManager STRAVA_COOKIE_MANAGER;
-
-    static {
+    private final CookieManager cookieManager = new CookieManager(null, new AllStravaSubDomainsCookiePolicy());
 
-        try {
-            // force the initialization of the static block in HttpClient where the default cookie handler is set.
-            HttpClient.create(null);
-            // retrieve the default cookie handler
-            CookieManager oldCookieHandler = (CookieManager) CookieHandler.getDefault();
-            // replace the old handler by the new one, and reuse the cookie store
-            STRAVA_COOKIE_MANAGER = new CookieManager(oldCookieHandler.getCookieStore(), ACCEPT_STRAVA_SUBDOMAINS);
-            CookieHandler.setDefault(STRAVA_COOKIE_MANAGER);
-        } catch (Exception e) {
-            Logging.log(Logging.LEVEL_ERROR, "Unable to override default cookie handler", e);
-        }
-    }
 
+    private final ExecutorService executor = StravaHttpClientFactory.newRequestExecutor("strava-heatmap-http-%d");
 
     public Jdk8StravaHttpClient() {
         Logging.info("Using JDK8-compatible HTTP client to connect to Strava website");
@@ -58,25 +53,39 @@ public class Jdk8StravaHttpClient implements StravaHttpClient {
                 httpClient.setHeader("Content-Type", "application/x-www-form-urlencoded");
                 httpClient.setRequestBody(stravaHttpRequest.getParameters().getBytes(StandardCharsets.UTF_8));
             }
-            String cookieHeader = stravaHttpRequest.getCookieHeader();
+            URI uri = URI.create(stravaHttpRequest.getUri());
+            String cookieHeader = buildCookieHeader(uri, stravaHttpRequest.getCookieHeader());
             if (!cookieHeader.isEmpty()) {
                 httpClient.setHeader("Cookie", cookieHeader);
             }
 
             HttpClient.Response response = httpClient.connect();
 
-            URI uri = URI.create(stravaHttpRequest.getUri());
-            Map<String, String> cookies = STRAVA_COOKIE_MANAGER.getCookieStore().get(uri)
+            cookieManager.put(uri, response.getHeaderFields());
+            removeCookiesFromDefaultHandler(uri);
+            Map<String, String> cookies = cookieManager.getCookieStore().get(uri)
                     .stream().collect(Collectors.toMap(HttpCookie::getName, HttpCookie::getValue));
 
             String locationHeader = response.getHeaderField("Location");
             int statusCode = response.getResponseCode();
-            String body = response.fetchContent();
-            StravaHttpResponse stravaHttpResponse = new StravaHttpResponse(statusCode, body, cookies, locationHeader);
-
             if (Logging.isDebugEnabled()) {
                 Logging.debug("HTTP status code from URI " + uri + ":" + statusCode);
             }
+            switch (stravaHttpRequest.getBodyMode()) {
+                case BYTES:
+                    return new StravaHttpResponse(statusCode, readBytes(response, stravaHttpRequest.getMaxBodyLength()), cookies, locationHeader);
+                case STREAM:
+                    // closing the stream early lets HttpURLConnection drain the remaining bytes in the background or close the connection
+                    return new StravaHttpResponse(statusCode, response.getContent(), cookies, locationHeader);
+                case DISCARD:
+                    discard(response);
+                    return new StravaHttpResponse(statusCode, cookies, locationHeader);
+                default:
+                    break;
+            }
+            String body = response.fetchContent();
+            StravaHttpResponse stravaHttpResponse = new StravaHttpResponse(statusCode, body, cookies, locationHeader);
+
             if (Logging.isTraceEnabled()) {
                 Logging.trace("HTML content from URI " + uri + ":\n" + body);
             }
@@ -87,9 +96,105 @@ public class Jdk8StravaHttpClient implements StravaHttpClient {
         }
     }
 
+    /**
+     * Builds the "Cookie" header of a request from the cookies stored for its URI, followed by the cookies
+     * set explicitly on the request.
+     */
+    private String buildCookieHeader(URI uri, String requestCookieHeader) throws IOException {
+        List<String> cookies = new ArrayList<>();
+        for (Map.Entry<String, List<String>> header : cookieManager.get(uri, Collections.emptyMap()).entrySet()) {
+            if ("Cookie".equalsIgnoreCase(header.getKey())) {
+                cookies.addAll(header.getValue());
+            }
+        }
+        if (!requestCookieHeader.isEmpty()) {
+            cookies.add(requestCookieHeader);
+        }
+        return String.join("; ", cookies);
+    }
+
+    /**
+     * Removes the cookies stored for a URI by {@code HttpURLConnection} in the default cookie handler,
+     * if it is a cookie manager as installed by JOSM.
+     */
+    private static void removeCookiesFromDefaultHandler(URI uri) {
+        CookieHandler defaultHandler = CookieHandler.getDefault();
+        if (defaultHandler instanceof CookieManager) {
+            CookieStore cookieStore = ((CookieManager) defaultHandler).getCookieStore();
+            for (HttpCookie cookie : cookieStore.get(uri)) {
+                cookieStore.remove(uri, cookie);
+            }
+        }
+    }
+
+    /**
+     * Sends the request on a background thread, since {@link HttpClient} is blocking.
+     */
+    @Override
+    public CompletableFuture<StravaHttpResponse> sendRequestAsync(StravaHttpRequest stravaHttpRequest) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return sendRequest(stravaHttpRequest);
+            } catch (StravaHttpException e) {
+                throw new CompletionException(e);
+            }
+        }, executor);
+    }
+
+    private static byte[] readBytes(HttpClient.Response response, int maxBodyLength) throws IOException {
+        if (response.getContentLength() > maxBodyLength) {
+            response.disconnect();
+            throw new IOException("Response body of " + response.getContentLength() + " bytes exceeds " + maxBodyLength + " bytes");
+        }
+        try (InputStream inputStream = response.getContent()) {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int length;
+            while ((length = inputStream.read(buffer)) != -1) {
+                if (outputStream.size() + length > maxBodyLength) {
+                    // the length of the body was not announced, the connection is dropped instead of reading the rest
+                    response.disconnect();
+                    throw new IOException("Response body exceeds " + maxBodyLength + " bytes");
+                }
+                outputStream.write(buffer, 0, length);
+            }
+            return outputStream.toByteArray();
+        }
+    }
+
+    private static void discard(HttpClient.Response response) throws IOException {
+        try (InputStream inputStream = response.getContent()) {
+            byte[] buffer = new byte[8192];
+            while (inputStream.read(buffer) != -1) {
+                // the body is dropped
+            }
+        }
+    }
+
+    @Override
+    public List<HttpCookie> getCookies(URI uri) {
+        return cookieManager.getCookieStore().get(uri);
+    }
+
+    @Override
+    public void addCookie(URI uri, HttpCookie cookie) {
+        cookieManager.getCookieStore().add(uri, cookie);
+    }
+
+    @Override
+    public void removeCookie(URI uri, HttpCookie cookie) {
+        cookieManager.getCookieStore().remove(uri, cookie);
+    }
+
     @Override
     public void removeAllCookiesFromCookieStore() {
-        STRAVA_COOKIE_MANAGER.getCookieStore().removeAll();
+        cookieManager.getCookieStore().removeAll();
+    }
+
+    @Override
+    public void shutdown() {
+        // connections are pooled by the JDK for the whole JVM, only the threads of the asynchronous requests are released
+        executor.shutdownNow();
     }
 
 
@@ -1,5 +1,10 @@
 package org.openstreetmap.josm.plugins.strava.heatmap.http;
 
+import java.net.HttpCookie;
+import java.net.URI;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
 /**
  * Interface for abstracting the HTTP-level interactions with the Strava website.
  */
@@ -12,9 +17,45 @@ public interface StravaHttpClient {
      */
     StravaHttpResponse sendRequest(StravaHttpRequest stravaHttpRequest) throws StravaHttpException;
 
+    /**
+     * Sends a request to the website without blocking the calling thread.
+     * The future completes exceptionally with a {@link java.util.concurrent.CompletionException}
+     * wrapping a {@link StravaHttpException} if the request fails.
+     * @param stravaHttpRequest the HTTP request.
+     * @return a future of the HTTP response.
+     */
+    CompletableFuture<StravaHttpResponse> sendRequestAsync(StravaHttpRequest stravaHttpRequest);
+
+    /**
+     * Returns the cookies of the cookie store that would be sent with a request to a URI.
+     * @param uri the URI.
+     * @return the cookies, never null.
+     */
+    List<HttpCookie> getCookies(URI uri);
+
+    /**
+     * Adds a cookie to the cookie store, as if it had been set by a response from a URI.
+     * @param uri    the URI.
+     * @param cookie the cookie.
+     */
+    void addCookie(URI uri, HttpCookie cookie);
+
+    /**
+     * Removes a cookie from the cookie store.
+     * @param uri    the URI the cookie was set by.
+     * @param cookie the cookie, as returned by {@link #getCookies(URI)}.
+     */
+    void removeCookie(URI uri, HttpCookie cookie);
+
     /**
      * Clears the cookies store.
      * Useful for testing.
      */
     void removeAllCookiesFromCookieStore();
+
+    /**
+     * Releases the connections and threads held by the client.
+     * The client must not be used anymore afterwards.
+     */
+    void shutdown();
 }
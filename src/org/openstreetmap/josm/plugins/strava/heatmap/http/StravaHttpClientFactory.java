@@ -1,18 +1,81 @@
 package org.openstreetmap.josm.plugins.strava.heatmap.http;
 
+import org.openstreetmap.josm.spi.preferences.Config;
+import org.openstreetmap.josm.tools.Logging;
+import org.openstreetmap.josm.tools.Utils;
+
 import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * Factory that returns either a JDK8 or JDK11-compatible HTTP client.
+ * A single client is shared by the whole plugin, so that all Strava requests reuse the same connections.
  */
 public class StravaHttpClientFactory {
 
+    private static StravaHttpClient sharedStravaHttpClient;
+
+    /**
+     * Returns the HTTP client shared by the whole plugin.
+     * The client is created on first use, see {@link #createStravaHttpClient()},
+     * and its requests are measured by {@link StravaInstrumentedHttpClient}.
+     * The returned client is thread-safe.
+     * @return an implementation of {@link StravaHttpClient} compatible with the Java runtime environment.
+     */
+    public static synchronized StravaHttpClient getStravaHttpClient() {
+        if (sharedStravaHttpClient == null) {
+            sharedStravaHttpClient = new StravaInstrumentedHttpClient(createStravaHttpClient());
+        }
+        return sharedStravaHttpClient;
+    }
+
+    /**
+     * Releases the connections and threads held by the shared HTTP client.
+     * Called when the plugin is unloaded.
+     */
+    public static synchronized void shutdown() {
+        if (sharedStravaHttpClient != null) {
+            sharedStravaHttpClient.shutdown();
+            sharedStravaHttpClient = null;
+        }
+    }
+
+    /**
+     * Creates the executor running the requests of an HTTP client.
+     * On Java 21 and later, each request runs on its own virtual thread, so that thousands of tile downloads
+     * waiting for the network cost neither memory nor thread creations.
+     * On older runtimes, or if the preference "strava.heatmap.virtualthreads" is disabled,
+     * the requests run on a cached pool of platform threads.
+     * The virtual threads are created by reflection, since the plugin is compiled for Java 8.
+     *
+     * @param nameFormat the name of the threads, "%d" being replaced by the thread number.
+     * @return the executor.
+     */
+    static ExecutorService newRequestExecutor(String nameFormat) {
+        if (Config.getPref().getBoolean("strava.heatmap.virtualthreads", true)) {
+            try {
+                Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+                Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+                builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, nameFormat.replace("%d", ""), 1L);
+                ThreadFactory threadFactory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+                return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+                        .invoke(null, threadFactory);
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                // Java 20 or older, the virtual threads are missing or are a preview feature
+                Logging.trace(e);
+            }
+        }
+        return Executors.newCachedThreadPool(Utils.newThreadFactory(nameFormat, Thread.NORM_PRIORITY));
+    }
+
     /**
      * Creates a JDK11-compatible HTTP client if the JDK 11 HTTP client API is available,
      * falls back to a JDK8-compatible HTTP client otherwise.
      * @return an implementation of {@link StravaHttpClient} compatible with the Java runtime environment.
      */
-    public static StravaHttpClient getStravaHttpClient() {
+    private static StravaHttpClient createStravaHttpClient() {
         try {
             return Class.forName("org.openstreetmap.josm.plugins.strava.heatmap.http.Jdk11StravaHttpClient")
                     .asSubclass(StravaHttpClient.class)
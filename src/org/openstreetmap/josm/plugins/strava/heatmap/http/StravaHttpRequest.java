@@ -5,11 +5,35 @@ package org.openstreetmap.josm.plugins.strava.heatmap.http;
  */
 public class StravaHttpRequest {
 
+    /**
+     * How the body of the response is returned, see {@link StravaHttpResponse}.
+     */
+    public enum BodyMode {
+        /** The body is decoded as a string, see {@link StravaHttpResponse#getBody()}. */
+        STRING,
+        /**
+         * The body is returned as raw bytes, see {@link StravaHttpResponse#getBodyBytes()}.
+         * The request fails if the body is longer than {@link StravaHttpRequest#getMaxBodyLength()}.
+         */
+        BYTES,
+        /**
+         * The body is returned as a stream, see {@link StravaHttpResponse#getBodyStream()}.
+         * The caller must close the stream, which discards the part of the body that was not read.
+         */
+        STREAM,
+        /**
+         * The body is read and dropped without being buffered, only the status, the cookies and the headers are returned.
+         * Reading the body to its end lets the connection be reused.
+         */
+        DISCARD
+    }
 
     private String uri;
     private boolean isPost;
     private String cookieHeader = "";
     private String parameters = "";
+    private BodyMode bodyMode = BodyMode.STRING;
+    private int maxBodyLength = Integer.MAX_VALUE;
 
     public String getUri() {
         return uri;
@@ -42,4 +66,24 @@ public class StravaHttpRequest {
     public void setParameters(String parameters) {
         this.parameters = parameters;
     }
+
+    public BodyMode getBodyMode() {
+        return bodyMode;
+    }
+
+    public void setBodyMode(BodyMode bodyMode) {
+        this.bodyMode = bodyMode;
+    }
+
+    public int getMaxBodyLength() {
+        return maxBodyLength;
+    }
+
+    /**
+     * Sets the maximum length of a body returned as bytes, see {@link BodyMode#BYTES}.
+     * @param maxBodyLength the maximum length in bytes, unbounded by default.
+     */
+    public void setMaxBodyLength(int maxBodyLength) {
+        this.maxBodyLength = maxBodyLength;
+    }
 }
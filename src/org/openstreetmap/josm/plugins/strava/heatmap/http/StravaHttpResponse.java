@@ -1,5 +1,6 @@
 package org.openstreetmap.josm.plugins.strava.heatmap.http;
 
+import java.io.InputStream;
 import java.util.Map;
 
 /**
@@ -11,6 +12,12 @@ public class StravaHttpResponse {
         this(httpStatus,body,cookies,"");
     }
 
+    public StravaHttpResponse(int httpStatus, Map<String,String> cookies, String locationHeader) {
+        this.httpStatusCode = httpStatus;
+        this.cookies=cookies;
+        this.locationHeader=locationHeader;
+    }
+
     public StravaHttpResponse(int httpStatus, String body, Map<String,String> cookies, String locationHeader) {
         this.httpStatusCode = httpStatus;
         this.body=body;
@@ -18,8 +25,24 @@ public class StravaHttpResponse {
         this.locationHeader=locationHeader;
     }
 
+    public StravaHttpResponse(int httpStatus, byte[] bodyBytes, Map<String,String> cookies, String locationHeader) {
+        this.httpStatusCode = httpStatus;
+        this.bodyBytes=bodyBytes;
+        this.cookies=cookies;
+        this.locationHeader=locationHeader;
+    }
+
+    public StravaHttpResponse(int httpStatus, InputStream bodyStream, Map<String,String> cookies, String locationHeader) {
+        this.httpStatusCode = httpStatus;
+        this.bodyStream=bodyStream;
+        this.cookies=cookies;
+        this.locationHeader=locationHeader;
+    }
+
     private int httpStatusCode;
     private String body;
+    private byte[] bodyBytes;
+    private InputStream bodyStream;
     private Map<String,String> cookies;
     private String locationHeader;
 
@@ -28,10 +51,31 @@ public class StravaHttpResponse {
         return httpStatusCode;
     }
 
+    /**
+     * Returns the body of a request sent with {@link StravaHttpRequest.BodyMode#STRING}.
+     * @return the body decoded as a string, or null for the other body modes.
+     */
     public String getBody() {
         return body;
     }
 
+    /**
+     * Returns the body of a request sent with {@link StravaHttpRequest.BodyMode#BYTES}.
+     * @return the raw body, or null for the other body modes.
+     */
+    public byte[] getBodyBytes() {
+        return bodyBytes;
+    }
+
+    /**
+     * Returns the body of a request sent with {@link StravaHttpRequest.BodyMode#STREAM}.
+     * The caller must close the stream.
+     * @return the body as a stream, or null for the other body modes.
+     */
+    public InputStream getBodyStream() {
+        return bodyStream;
+    }
+
     public Map<String, String> getCookies() {
         return cookies;
     }
@@ -0,0 +1,138 @@
+package org.openstreetmap.josm.plugins.strava.heatmap.http;
+
+import org.openstreetmap.josm.plugins.strava.heatmap.metrics.StravaMetrics;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpCookie;
+import java.net.URI;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Records the latency, the status code and the body length of the requests sent through another client,
+ * see {@link StravaMetrics}.
+ * <p>
+ * The latency of a request is measured up to the end of its body, except for the streamed bodies
+ * whose latency ends with the headers. The discarded bodies are not counted in the received bytes.
+ */
+public class StravaInstrumentedHttpClient implements StravaHttpClient {
+
+    private final StravaHttpClient stravaHttpClient;
+    private final StravaMetrics metrics = StravaMetrics.getInstance();
+
+    /**
+     * Creates the client.
+     *
+     * @param stravaHttpClient the client sending the requests.
+     */
+    public StravaInstrumentedHttpClient(StravaHttpClient stravaHttpClient) {
+        this.stravaHttpClient = stravaHttpClient;
+    }
+
+    @Override
+    public StravaHttpResponse sendRequest(StravaHttpRequest stravaHttpRequest) throws StravaHttpException {
+        long startNanos = System.nanoTime();
+        StravaHttpResponse response;
+        try {
+            response = stravaHttpClient.sendRequest(stravaHttpRequest);
+        } catch (StravaHttpException e) {
+            metrics.recordFailedRequest();
+            throw e;
+        } finally {
+            metrics.record(StravaMetrics.Step.HTTP_REQUEST, startNanos);
+        }
+        return recordResponse(response);
+    }
+
+    @Override
+    public CompletableFuture<StravaHttpResponse> sendRequestAsync(StravaHttpRequest stravaHttpRequest) {
+        long startNanos = System.nanoTime();
+        return stravaHttpClient.sendRequestAsync(stravaHttpRequest).handle((response, throwable) -> {
+            metrics.record(StravaMetrics.Step.HTTP_REQUEST, startNanos);
+            if (throwable != null) {
+                metrics.recordFailedRequest();
+                throw throwable instanceof CompletionException ? (CompletionException) throwable : new CompletionException(throwable);
+            }
+            return recordResponse(response);
+        });
+    }
+
+    private StravaHttpResponse recordResponse(StravaHttpResponse response) {
+        long bodyLength = 0;
+        if (response.getBodyBytes() != null) {
+            bodyLength = response.getBodyBytes().length;
+        } else if (response.getBody() != null) {
+            // the pages are mostly ASCII, their length is counted in characters to avoid encoding them again
+            bodyLength = response.getBody().length();
+        }
+        metrics.recordResponse(response.getHttpStatusCode(), bodyLength);
+        if (response.getBodyStream() != null) {
+            return new StravaHttpResponse(response.getHttpStatusCode(), new CountingInputStream(response.getBodyStream()),
+                    response.getCookies(), response.getLocationHeader());
+        }
+        return response;
+    }
+
+    @Override
+    public List<HttpCookie> getCookies(URI uri) {
+        return stravaHttpClient.getCookies(uri);
+    }
+
+    @Override
+    public void addCookie(URI uri, HttpCookie cookie) {
+        stravaHttpClient.addCookie(uri, cookie);
+    }
+
+    @Override
+    public void removeCookie(URI uri, HttpCookie cookie) {
+        stravaHttpClient.removeCookie(uri, cookie);
+    }
+
+    @Override
+    public void removeAllCookiesFromCookieStore() {
+        stravaHttpClient.removeAllCookiesFromCookieStore();
+    }
+
+    @Override
+    public void shutdown() {
+        stravaHttpClient.shutdown();
+    }
+
+    /**
+     * Counts the bytes of a streamed body as they are read.
+     */
+    private final class CountingInputStream extends FilterInputStream {
+
+        private CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                metrics.recordBytesReceived(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int length = super.read(b, off, len);
+            if (length > 0) {
+                metrics.recordBytesReceived(length);
+            }
+            return length;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long length = super.skip(n);
+            metrics.recordBytesReceived(length);
+            return length;
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package org.openstreetmap.josm.plugins.strava.heatmap.layer;
+
+import org.openstreetmap.josm.spi.preferences.Config;
+import org.openstreetmap.josm.tools.I18n;
+import org.openstreetmap.josm.tools.Logging;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.stream.Collectors;
+
+/**
+ * One of the activity heatmaps blended by a {@link StravaCompositeLayer}, with its tint and its weight.
+ * The settings of the composite layer are stored in the preference "strava.heatmap.composite.activities"
+ * as a list of entries formatted as "activity:RRGGBB:weight".
+ */
+public class StravaCompositeActivity {
+
+    public static final int MAX_WEIGHT = 100;
+
+    private static final String PREFERENCE_KEY = "strava.heatmap.composite.activities";
+
+    private static final List<StravaCompositeActivity> DEFAULT_ACTIVITIES = Arrays.asList(
+            new StravaCompositeActivity("ride", 0xff5a00, MAX_WEIGHT),
+            new StravaCompositeActivity("run", 0x2878ff, MAX_WEIGHT),
+            new StravaCompositeActivity("water", 0x00c8b4, MAX_WEIGHT),
+            new StravaCompositeActivity("winter", 0xb450ff, 0));
+
+    private final String activity;
+    private final int tint;
+    private final int weight;
+
+    /**
+     * Creates an activity setting.
+     *
+     * @param activity the activity as it appears in the tile URLs, e.g. "ride".
+     * @param tint     the RGB color of the activity in the composite tiles.
+     * @param weight   the opacity of the activity, from 0 (hidden) to {@link #MAX_WEIGHT}.
+     */
+    public StravaCompositeActivity(String activity, int tint, int weight) {
+        this.activity = activity;
+        this.tint = tint & 0xffffff;
+        this.weight = Math.max(0, Math.min(weight, MAX_WEIGHT));
+    }
+
+    public String getActivity() {
+        return activity;
+    }
+
+    public int getTint() {
+        return tint;
+    }
+
+    public int getWeight() {
+        return weight;
+    }
+
+    /**
+     * Returns the translated name of the activity.
+     *
+     * @return the name displayed to the user.
+     */
+    public String getDisplayName() {
+        switch (activity) {
+            case "ride":
+                return I18n.tr("Cycling");
+            case "run":
+                return I18n.tr("Running");
+            case "water":
+                return I18n.tr("Water");
+            case "winter":
+                return I18n.tr("Winter");
+            default:
+                return activity;
+        }
+    }
+
+    /**
+     * Reads the activity settings from the JOSM preferences.
+     *
+     * @return the activities in blending order, the first one is drawn below the others.
+     */
+    public static List<StravaCompositeActivity> load() {
+        List<String> entries = Config.getPref().getList(PREFERENCE_KEY, null);
+        if (entries == null || entries.isEmpty()) {
+            return DEFAULT_ACTIVITIES;
+        }
+        List<StravaCompositeActivity> activities = new ArrayList<>();
+        for (String entry : entries) {
+            StravaCompositeActivity activity = parse(entry);
+            if (activity != null) {
+                activities.add(activity);
+            }
+        }
+        return activities.isEmpty() ? DEFAULT_ACTIVITIES : activities;
+    }
+
+    /**
+     * Stores the activity settings in the JOSM preferences.
+     *
+     * @param activities the activities in blending order.
+     */
+    public static void save(List<StravaCompositeActivity> activities) {
+        Config.getPref().putList(PREFERENCE_KEY, activities.stream()
+                .map(StravaCompositeActivity::format)
+                .collect(Collectors.toList()));
+    }
+
+    /**
+     * Parses a preference entry.
+     *
+     * @param entry the entry formatted as "activity:RRGGBB:weight".
+     * @return the activity, or null if the entry is malformed.
+     */
+    public static StravaCompositeActivity parse(String entry) {
+        String[] fields = entry.split(":");
+        if (fields.length == 3 && !fields[0].isEmpty()) {
+            try {
+                return new StravaCompositeActivity(fields[0], Integer.parseInt(fields[1], 16), Integer.parseInt(fields[2]));
+            } catch (NumberFormatException e) {
+                Logging.debug(e);
+            }
+        }
+        Logging.warn("Ignoring malformed Strava composite layer setting: " + entry);
+        return null;
+    }
+
+    /**
+     * Formats the activity as a preference entry.
+     *
+     * @return the entry formatted as "activity:RRGGBB:weight".
+     */
+    public String format() {
+        return String.format(Locale.ROOT, "%s:%06x:%d", activity, tint, weight);
+    }
+}
@@ -0,0 +1,54 @@
+package org.openstreetmap.josm.plugins.strava.heatmap.layer;
+
+/**
+ * Pixel operations blending the activity tiles of a {@link StravaCompositeLayer}.
+ * The pixels are non-premultiplied ARGB integers, as stored by a {@code BufferedImage.TYPE_INT_ARGB} image.
+ * The operations work in place on the pixel arrays and never allocate memory.
+ */
+public final class StravaCompositeBlender {
+
+    private StravaCompositeBlender() {
+        // utility class
+    }
+
+    /**
+     * Draws a tinted activity tile over the composite tile.
+     * The color of the activity tile is ignored: its alpha channel gives the intensity of the activity,
+     * which is multiplied by the weight and drawn with the tint using the "source over" rule.
+     *
+     * @param destination the pixels of the composite tile, updated in place.
+     * @param source      the pixels of the activity tile.
+     * @param length      the number of pixels to blend.
+     * @param tint        the RGB color of the activity.
+     * @param weight      the opacity of the activity, from 0 (hidden) to 255.
+     */
+    public static void blendOver(int[] destination, int[] source, int length, int tint, int weight) {
+        if (weight <= 0) {
+            return;
+        }
+        int tintRed = (tint >> 16) & 0xff;
+        int tintGreen = (tint >> 8) & 0xff;
+        int tintBlue = tint & 0xff;
+        for (int i = 0; i < length; i++) {
+            int sourceAlpha = ((source[i] >>> 24) * weight + 127) / 255;
+            if (sourceAlpha == 0) {
+                continue;
+            }
+            int pixel = destination[i];
+            int destinationAlpha = pixel >>> 24;
+            if (sourceAlpha == 255 || destinationAlpha == 0) {
+                destination[i] = (sourceAlpha << 24) | (tint & 0xffffff);
+                continue;
+            }
+            // the colors are weighted by their alpha, scaled to [0, 255 * 255]
+            int sourceFactor = sourceAlpha * 255;
+            int destinationFactor = destinationAlpha * (255 - sourceAlpha);
+            int alpha255 = sourceFactor + destinationFactor;
+            int half = alpha255 >> 1;
+            int red = (tintRed * sourceFactor + ((pixel >> 16) & 0xff) * destinationFactor + half) / alpha255;
+            int green = (tintGreen * sourceFactor + ((pixel >> 8) & 0xff) * destinationFactor + half) / alpha255;
+            int blue = (tintBlue * sourceFactor + (pixel & 0xff) * destinationFactor + half) / alpha255;
+            destination[i] = (((alpha255 + 127) / 255) << 24) | (red << 16) | (green << 8) | blue;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package org.openstreetmap.josm.plugins.strava.heatmap.layer;
+
+import org.openstreetmap.josm.data.imagery.ImageryInfo;
+import org.openstreetmap.josm.data.imagery.TileLoaderFactory;
+import org.openstreetmap.josm.gui.MainApplication;
+import org.openstreetmap.josm.plugins.strava.heatmap.cache.StravaTileStore;
+import org.openstreetmap.josm.tools.I18n;
+
+import javax.swing.*;
+import java.awt.event.ActionEvent;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * A single layer blending several activity heatmaps, e.g. cycling, running and water, instead of stacking
+ * one TMS layer per activity.
+ * For each tile, the activity tiles are requested in parallel and blended into one image, so that the map view
+ * caches and paints a single tile per coordinate. Each activity is drawn with its own tint and weight,
+ * see {@link StravaCompositeActivity}.
+ * The layer is authenticated like the other Strava layers. The activity tiles of the authenticated heatmap
+ * are kept in the {@link StravaTileStore}, the blended tiles are only cached in memory.
+ */
+public class StravaCompositeLayer extends StravaHeatmapLayer {
+
+    /**
+     * The color scheme of the activity tiles, shared with the recolored layers. Only the intensity of the tiles is used.
+     */
+    private static final String COLOR = StravaHeatmapPalette.CANONICAL_COLOR;
+
+    private static final String URL = "https://heatmap-external-{switch:a,b,c}.strava.com/tiles/all/" + COLOR + "/{zoom}/{x}/{y}.png";
+
+    private static final Pattern PATTERN_ACTIVITY = Pattern.compile("(/tiles(?:-auth)?/)[^/]+/[^/]+/");
+
+    private volatile List<StravaCompositeActivity> activities;
+
+    /**
+     * Creates a composite layer.
+     *
+     * @param activities the activities in blending order, the first one is drawn below the others.
+     */
+    public StravaCompositeLayer(List<StravaCompositeActivity> activities) {
+        super(new ImageryInfo(I18n.tr("Strava heatmap (composite)"), URL, "tms", null, null));
+        this.activities = Collections.unmodifiableList(new ArrayList<>(activities));
+    }
+
+    /**
+     * Returns the blended activities.
+     *
+     * @return the activities in blending order.
+     */
+    public List<StravaCompositeActivity> getActivities() {
+        return activities;
+    }
+
+    /**
+     * Changes the blended activities and redraws the layer.
+     * The activity tiles are read again from the tile store, so that the network is accessed only for the
+     * activities that were not displayed before.
+     * Must be called in the EDT.
+     *
+     * @param activities the activities in blending order.
+     */
+    public void setActivities(List<StravaCompositeActivity> activities) {
+        this.activities = Collections.unmodifiableList(new ArrayList<>(activities));
+        reloadTileSource();
+    }
+
+    /**
+     * Returns null: the blended tiles are not stored, the tile store holds the tiles of each activity.
+     */
+    @Override
+    public String getTileStoreKey() {
+        return null;
+    }
+
+    /**
+     * Returns the URL of a tile of one of the activity heatmaps.
+     *
+     * @param activity the activity as it appears in the tile URLs.
+     * @param zoom     the tile zoom level.
+     * @param x        the tile x coordinate.
+     * @param y        the tile y coordinate.
+     * @return the tile URL.
+     */
+    public String getActivityTileUrl(String activity, int zoom, int x, int y) {
+        return PATTERN_ACTIVITY.matcher(getTileUrl(zoom, x, y)).replaceFirst("$1" + activity + "/" + COLOR + "/");
+    }
+
+    /**
+     * Returns the key identifying the heatmap of an activity in the tile store.
+     *
+     * @param activity the activity as it appears in the tile URLs.
+     * @return the key, or null if the layer does not display the authenticated heatmap.
+     */
+    public String getActivityTileStoreKey(String activity) {
+        return isAuthenticated() ? activity + "/" + COLOR : null;
+    }
+
+    @Override
+    protected TileLoaderFactory getTileLoaderFactory() {
+        return (listener, headers, minimumExpiryTime) -> new StravaCompositeTileLoader(listener, this, StravaTileStore.getInstance());
+    }
+
+    /**
+     * Returns false: the activities are tinted by the {@link StravaCompositeBlender}.
+     */
+    @Override
+    protected boolean isRecolorable() {
+        return false;
+    }
+
+    @Override
+    public Action[] getMenuEntries() {
+        List<Action> entries = new ArrayList<>(Arrays.asList(super.getMenuEntries()));
+        entries.add(new CompositeSettingsAction());
+        return entries.toArray(new Action[0]);
+    }
+
+    /**
+     * Lets the user change the tint and the weight of the activities.
+     */
+    private final class CompositeSettingsAction extends AbstractAction {
+
+        private CompositeSettingsAction() {
+            super(I18n.tr("Activities and colors..."));
+        }
+
+        @Override
+        public void actionPerformed(ActionEvent e) {
+            StravaCompositeSettingsPanel panel = new StravaCompositeSettingsPanel(activities);
+            if (JOptionPane.showConfirmDialog(MainApplication.getMainFrame(), panel, I18n.tr("Strava heatmap (composite)"),
+                    JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE) == JOptionPane.OK_OPTION) {
+                List<StravaCompositeActivity> newActivities = panel.getActivities();
+                StravaCompositeActivity.save(newActivities);
+                setActivities(newActivities);
+            }
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package org.openstreetmap.josm.plugins.strava.heatmap.layer;
+
+import org.openstreetmap.josm.tools.GBC;
+import org.openstreetmap.josm.tools.I18n;
+
+import javax.swing.*;
+import java.awt.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Panel editing the tint and the weight of the activities blended by a {@link StravaCompositeLayer}.
+ */
+class StravaCompositeSettingsPanel extends JPanel {
+
+    private final List<StravaCompositeActivity> activities;
+    private final List<JButton> tintButtons = new ArrayList<>();
+    private final List<JSlider> weightSliders = new ArrayList<>();
+
+    /**
+     * Creates the panel.
+     *
+     * @param activities the current activities.
+     */
+    StravaCompositeSettingsPanel(List<StravaCompositeActivity> activities) {
+        super(new GridBagLayout());
+        this.activities = activities;
+        add(new JLabel(I18n.tr("Activity")), GBC.std().insets(0, 0, 10, 5));
+        add(new JLabel(I18n.tr("Color")), GBC.std().insets(0, 0, 10, 5));
+        add(new JLabel(I18n.tr("Weight")), GBC.eol().insets(0, 0, 0, 5));
+        for (StravaCompositeActivity activity : activities) {
+            JButton tintButton = new JButton("    ");
+            tintButton.setBackground(new Color(activity.getTint()));
+            tintButton.setToolTipText(I18n.tr("Color of the activity"));
+            tintButton.addActionListener(e -> {
+                Color tint = JColorChooser.showDialog(this, activity.getDisplayName(), tintButton.getBackground());
+                if (tint != null) {
+                    tintButton.setBackground(tint);
+                }
+            });
+            JSlider weightSlider = new JSlider(0, StravaCompositeActivity.MAX_WEIGHT, activity.getWeight());
+            weightSlider.setToolTipText(I18n.tr("Opacity of the activity, 0 hides the activity"));
+            add(new JLabel(activity.getDisplayName()), GBC.std().insets(0, 0, 10, 0));
+            add(tintButton, GBC.std().insets(0, 0, 10, 0));
+            add(weightSlider, GBC.eol().fill(GBC.HORIZONTAL));
+            tintButtons.add(tintButton);
+            weightSliders.add(weightSlider);
+        }
+    }
+
+    /**
+     * Returns the activities edited by the user.
+     *
+     * @return the activities in the same order as the current activities.
+     */
+    List<StravaCompositeActivity> getActivities() {
+        List<StravaCompositeActivity> editedActivities = new ArrayList<>();
+        for (int i = 0; i < activities.size(); i++) {
+            editedActivities.add(new StravaCompositeActivity(activities.get(i).getActivity(),
+                    tintButtons.get(i).getBackground().getRGB(), weightSliders.get(i).getValue()));
+        }
+        return editedActivities;
+    }
+}
@@ -0,0 +1,300 @@
+package org.openstreetmap.josm.plugins.strava.heatmap.layer;
+
+import org.openstreetmap.gui.jmapviewer.Tile;
+import org.openstreetmap.gui.jmapviewer.interfaces.TileJob;
+import org.openstreetmap.gui.jmapviewer.interfaces.TileLoader;
+import org.openstreetmap.gui.jmapviewer.interfaces.TileLoaderListener;
+import org.openstreetmap.josm.plugins.strava.heatmap.cache.StravaTileStore;
+import org.openstreetmap.josm.plugins.strava.heatmap.metrics.StravaMetrics;
+import org.openstreetmap.josm.tools.I18n;
+import org.openstreetmap.josm.tools.Logging;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tile loader of a {@link StravaCompositeLayer}.
+ * For each tile, the tiles of all the visible activities are loaded in parallel, from the {@link StravaTileStore}
+ * when available and otherwise through the {@link StravaTileFetcher}. Once they are all loaded, they are blended
+ * into a single image by the {@link StravaCompositeBlender}.
+ * The tiles above zoom level 15 are resampled from the blended z15 parent tile, see {@link StravaOverzoomCache}.
+ */
+public class StravaCompositeTileLoader implements TileLoader {
+
+    /**
+     * The pixels of the activity tile being blended and of the composite tile, reused by each blending thread.
+     */
+    private static final ThreadLocal<int[][]> PIXEL_BUFFERS = ThreadLocal.withInitial(() -> new int[2][0]);
+
+    private final TileLoaderListener listener;
+    private final StravaCompositeLayer layer;
+    private final StravaTileStore tileStore;
+    private final StravaTileFetcher tileFetcher = StravaTileFetcher.getInstance();
+    private final StravaOverzoomCache overzoomCache = StravaOverzoomCache.getInstance();
+
+    /**
+     * Identifies the blended tiles of this loader in the overzoom cache.
+     * A new loader is created each time the activity settings change, so that the stale tiles are never reused.
+     */
+    private final String overzoomNamespace = "composite@" + Integer.toHexString(System.identityHashCode(this));
+
+    /**
+     * The requests of the activity tiles downloaded by this loader and not yet completed, so that they can be cancelled.
+     */
+    private final Set<CompletableFuture<byte[]>> pendingRequests = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Creates a tile loader.
+     *
+     * @param listener  the listener notified when a tile is loaded, usually the layer.
+     * @param layer     the composite layer, providing the activities and the authentication cookies.
+     * @param tileStore the tile store, or null if the store is not available.
+     */
+    public StravaCompositeTileLoader(TileLoaderListener listener, StravaCompositeLayer layer, StravaTileStore tileStore) {
+        this.listener = listener;
+        this.layer = layer;
+        this.tileStore = tileStore;
+    }
+
+    @Override
+    public TileJob createTileLoaderJob(Tile tile) {
+        return new TileJob() {
+            @Override
+            public void submit() {
+                submit(false);
+            }
+
+            @Override
+            public void submit(boolean force) {
+                tile.initLoading();
+                load(tile, force);
+            }
+        };
+    }
+
+    @Override
+    public void cancelOutstandingTasks() {
+        for (CompletableFuture<byte[]> request : pendingRequests) {
+            tileFetcher.cancel(request);
+        }
+    }
+
+    private void load(Tile tile, boolean force) {
+        int zoom = tile.getZoom();
+        int x = tile.getXtile();
+        int y = tile.getYtile();
+        if (StravaOverzoomCache.isOverzoomed(zoom)) {
+            BufferedImage image = force ? null : overzoomCache.get(StravaOverzoomCache.getKey(overzoomNamespace, zoom, x, y));
+            if (image != null) {
+                setImage(tile, image);
+                return;
+            }
+            // blend the parent tile
+            x = StravaOverzoomCache.getParentCoordinate(x, zoom);
+            y = StravaOverzoomCache.getParentCoordinate(y, zoom);
+            zoom = StravaOverzoomCache.MAX_NATIVE_ZOOM;
+            BufferedImage parent = force ? null : overzoomCache.get(StravaOverzoomCache.getKey(overzoomNamespace, zoom, x, y));
+            if (parent != null) {
+                StravaTileLoader.getTileStoreExecutor().execute(() -> setOverzoomedImage(tile, parent, false));
+                return;
+            }
+        }
+        List<ActivityTile> activityTiles = new ArrayList<>();
+        for (StravaCompositeActivity activity : layer.getActivities()) {
+            if (activity.getWeight() > 0) {
+                activityTiles.add(new ActivityTile(activity, zoom, x, y, force));
+            }
+        }
+        if (activityTiles.isEmpty()) {
+            tile.finishLoading();
+            tile.setError(I18n.tr("No activity selected"));
+            listener.tileLoadingFinished(tile, false);
+            return;
+        }
+        CompletableFuture.allOf(activityTiles.stream().map(activityTile -> activityTile.future).toArray(CompletableFuture[]::new))
+                .whenCompleteAsync((ignored, throwable) -> blend(tile, activityTiles, force), StravaTileLoader.getTileStoreExecutor());
+    }
+
+    /**
+     * Blends the loaded activity tiles. The activity tiles that could not be loaded are left out,
+     * the tile fails only if none of the activity tiles could be loaded. A tile blended without some of its activities
+     * is not cached, so that the missing activity tiles are requested again with the tile.
+     * If the download of an activity tile has been cancelled, the tile is not blended at all,
+     * it will be requested again when it becomes visible.
+     * When the tile is overzoomed, the activity tiles are those of its parent tile.
+     */
+    private void blend(Tile tile, List<ActivityTile> activityTiles, boolean force) {
+        if (activityTiles.stream().anyMatch(ActivityTile::isCancelled)) {
+            tile.finishLoading();
+            tile.setLoaded(false);
+            listener.tileLoadingFinished(tile, false);
+            return;
+        }
+        BufferedImage composite = null;
+        int[] compositePixels = null;
+        Throwable failure = null;
+        int[][] buffers = PIXEL_BUFFERS.get();
+        for (ActivityTile activityTile : activityTiles) {
+            BufferedImage image;
+            try {
+                image = activityTile.decode();
+            } catch (CompletionException | IOException e) {
+                failure = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                continue;
+            }
+            int width = image.getWidth();
+            int height = image.getHeight();
+            if (composite == null) {
+                composite = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+                if (buffers[0].length < width * height) {
+                    buffers[0] = new int[width * height];
+                    buffers[1] = new int[width * height];
+                }
+                compositePixels = buffers[1];
+                Arrays.fill(compositePixels, 0, width * height, 0);
+            } else if (width != composite.getWidth() || height != composite.getHeight()) {
+                Logging.warn("Ignoring Strava activity tile of unexpected size " + width + "x" + height);
+                continue;
+            }
+            image.getRGB(0, 0, width, height, buffers[0], 0, width);
+            StravaCompositeActivity activity = activityTile.activity;
+            StravaCompositeBlender.blendOver(compositePixels, buffers[0], width * height, activity.getTint(),
+                    activity.getWeight() * 255 / StravaCompositeActivity.MAX_WEIGHT);
+            activityTile.store();
+        }
+        if (composite != null) {
+            // copying the pixels keeps the image managed, so that it can be accelerated when painted
+            composite.getRaster().setDataElements(0, 0, composite.getWidth(), composite.getHeight(), compositePixels);
+            ActivityTile parent = activityTiles.get(0);
+            if (parent.zoom == tile.getZoom()) {
+                setImage(tile, composite);
+            } else if (failure != null) {
+                Logging.warn("Strava composite tile blended without some activities: " + failure);
+                setImage(tile, StravaOverzoomCache.resample(composite, tile.getZoom(), tile.getXtile(), tile.getYtile()));
+            } else {
+                overzoomCache.put(StravaOverzoomCache.getKey(overzoomNamespace, parent.zoom, parent.x, parent.y), composite);
+                setOverzoomedImage(tile, composite, force);
+            }
+        } else {
+            String message = failure.getMessage() != null ? failure.getMessage() : failure.toString();
+            Logging.warn(message);
+            tile.finishLoading();
+            tile.setError(message);
+            listener.tileLoadingFinished(tile, false);
+        }
+    }
+
+    private void setOverzoomedImage(Tile tile, BufferedImage parent, boolean force) {
+        BufferedImage image;
+        if (force) {
+            image = StravaOverzoomCache.resample(parent, tile.getZoom(), tile.getXtile(), tile.getYtile());
+            overzoomCache.put(StravaOverzoomCache.getKey(overzoomNamespace, tile.getZoom(), tile.getXtile(), tile.getYtile()), image);
+        } else {
+            image = overzoomCache.getOverzoomedTile(overzoomNamespace, parent, tile.getZoom(), tile.getXtile(), tile.getYtile());
+        }
+        setImage(tile, image);
+    }
+
+    private void setImage(Tile tile, BufferedImage image) {
+        tile.setImage(image);
+        tile.finishLoading();
+        listener.tileLoadingFinished(tile, true);
+    }
+
+    /**
+     * The tile of one activity at the coordinates of a composite tile, or of its parent tile when overzoomed.
+     */
+    private final class ActivityTile {
+
+        private final StravaCompositeActivity activity;
+        private final int zoom;
+        private final int x;
+        private final int y;
+        private final String tileStoreKey;
+        private final CompletableFuture<byte[]> future;
+        private volatile boolean downloaded;
+
+        private ActivityTile(StravaCompositeActivity activity, int zoom, int x, int y, boolean force) {
+            this.activity = activity;
+            this.zoom = zoom;
+            this.x = x;
+            this.y = y;
+            this.tileStoreKey = tileStore == null ? null : layer.getActivityTileStoreKey(activity.getActivity());
+            if (force || tileStoreKey == null) {
+                // a forced reload bypasses the store
+                future = download();
+            } else {
+                future = CompletableFuture.supplyAsync(() -> tileStore.get(tileStoreKey, zoom, x, y),
+                        StravaTileLoader.getTileStoreExecutor()).thenCompose(encodedImage -> {
+                    if (encodedImage != null) {
+                        StravaMetrics.getInstance().recordTileStoreHit();
+                        return CompletableFuture.completedFuture(encodedImage);
+                    }
+                    StravaMetrics.getInstance().recordTileStoreMiss();
+                    return download();
+                });
+            }
+        }
+
+        private CompletableFuture<byte[]> download() {
+            String url = layer.getActivityTileUrl(activity.getActivity(), zoom, x, y);
+            downloaded = true;
+            CompletableFuture<byte[]> request = tileFetcher.fetch(url, layer.getInfo().getCookies());
+            pendingRequests.add(request);
+            return request.whenComplete((encodedImage, throwable) -> pendingRequests.remove(request));
+        }
+
+        /**
+         * Tests if the download of the tile has been cancelled.
+         * The cancellation of the download reaches the future of the tile wrapped in a {@link CompletionException}.
+         *
+         * @return true if the tile has been cancelled, false if it is loaded, failed or still loading.
+         */
+        private boolean isCancelled() {
+            if (!future.isCompletedExceptionally()) {
+                return false;
+            }
+            try {
+                future.join();
+                return false;
+            } catch (CancellationException e) {
+                return true;
+            } catch (CompletionException e) {
+                return e.getCause() instanceof CancellationException;
+            }
+        }
+
+        /**
+         * Decodes the loaded tile. Must be called once the tile is loaded.
+         *
+         * @return the decoded image.
+         * @throws IOException if the tile cannot be decoded.
+         */
+        private BufferedImage decode() throws IOException {
+            BufferedImage image = ImageIO.read(new ByteArrayInputStream(future.join()));
+            if (image == null) {
+                throw new IOException("Unable to decode the " + activity.getActivity() + " tile " + zoom + "/" + x + "/" + y);
+            }
+            return image;
+        }
+
+        /**
+         * Adds a downloaded tile to the store once it has been decoded successfully.
+         */
+        private void store() {
+            if (downloaded && tileStoreKey != null) {
+                tileStore.put(tileStoreKey, zoom, x, y, future.join());
+            }
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package org.openstreetmap.josm.plugins.strava.heatmap.layer;
+
+/**
+ * The limit of the concurrent downloads from a tile server, adjusted to the observed latency and errors
+ * in the manner of the TCP congestion control (additive increase, multiplicative decrease).
+ * <ul>
+ * <li>Each successful download whose latency stays close to the baseline latency raises the limit
+ * by {@code 1 / limit}, i.e. by one download per round of {@code limit} downloads.
+ * The limit is raised only while it is actually used.</li>
+ * <li>A download whose latency exceeds twice the baseline latency lowers the limit by 10%:
+ * the requests are queuing on the server or on the link.</li>
+ * <li>A download failing because of the load (no response, HTTP 429, 503 or 504) halves the limit.
+ * The other errors tell nothing about the load and are ignored.</li>
+ * </ul>
+ * The limit is lowered at most once per round of downloads, since the downloads started before the decrease
+ * report the same congestion. The baseline latency is the minimum latency observed over the last downloads.
+ */
+public class StravaConcurrencyLimit {
+
+    private static final double LATENCY_TOLERANCE = 2;
+    private static final double LATENCY_DECREASE = 0.9;
+    private static final double FAILURE_DECREASE = 0.5;
+
+    /**
+     * The number of downloads after which the baseline latency is measured again,
+     * so that it follows a lasting change of the network.
+     */
+    private static final int BASELINE_WINDOW = 100;
+
+    private final int minLimit;
+    private int maxLimit;
+    private double limit;
+    private int completionsSinceDecrease;
+
+    private long baselineNanos = Long.MAX_VALUE;
+    private long windowMinNanos = Long.MAX_VALUE;
+    private int windowSamples;
+
+    /**
+     * Creates a limit.
+     *
+     * @param initialLimit the initial limit.
+     * @param minLimit     the lowest limit, at least 1.
+     * @param maxLimit     the highest limit.
+     */
+    public StravaConcurrencyLimit(int initialLimit, int minLimit, int maxLimit) {
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.limit = Math.max(this.minLimit, Math.min(initialLimit, this.maxLimit));
+        this.completionsSinceDecrease = this.maxLimit;
+    }
+
+    /**
+     * Returns the current limit.
+     *
+     * @return the maximum number of concurrent downloads.
+     */
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    /**
+     * Changes the highest limit, lowering the current limit if needed.
+     *
+     * @param maxLimit the highest limit.
+     */
+    public synchronized void setMaxLimit(int maxLimit) {
+        this.maxLimit = Math.max(minLimit, maxLimit);
+        limit = Math.min(limit, this.maxLimit);
+    }
+
+    /**
+     * Records a successful download.
+     *
+     * @param latencyNanos the duration of the download, from the request to the end of the response.
+     * @param inFlight     the number of downloads in progress when the download completed, including it.
+     */
+    public synchronized void onSuccess(long latencyNanos, int inFlight) {
+        updateBaseline(latencyNanos);
+        completionsSinceDecrease++;
+        if (latencyNanos > baselineNanos * LATENCY_TOLERANCE) {
+            decrease(LATENCY_DECREASE);
+        } else if (inFlight * 2 >= (int) limit) {
+            limit = Math.min(maxLimit, limit + 1 / limit);
+        }
+    }
+
+    /**
+     * Records a failed download: no response, or a response telling that the server is overloaded,
+     * see {@link #isOverloaded(int)}.
+     */
+    public synchronized void onFailure() {
+        completionsSinceDecrease++;
+        decrease(FAILURE_DECREASE);
+    }
+
+    /**
+     * Tests if a download failed because the server or the link is overloaded.
+     *
+     * @param statusCode the HTTP status code of the response.
+     * @return true for HTTP 429 (too many requests), 503 (service unavailable) and 504 (gateway timeout).
+     */
+    public static boolean isOverloaded(int statusCode) {
+        return statusCode == 429 || statusCode == 503 || statusCode == 504;
+    }
+
+    private void decrease(double factor) {
+        if (completionsSinceDecrease >= limit) {
+            limit = Math.max(minLimit, limit * factor);
+            completionsSinceDecrease = 0;
+        }
+    }
+
+    private void updateBaseline(long latencyNanos) {
+        baselineNanos = Math.min(baselineNanos, latencyNanos);
+        windowMinNanos = Math.min(windowMinNanos, latencyNanos);
+        if (++windowSamples >= BASELINE_WINDOW) {
+            baselineNanos = windowMinNanos;
+            windowMinNanos = Long.MAX_VALUE;
+            windowSamples = 0;
+        }
+    }
+}
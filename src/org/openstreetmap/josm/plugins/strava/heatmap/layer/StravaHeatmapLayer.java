@@ -0,0 +1,284 @@
+package org.openstreetmap.josm.plugins.strava.heatmap.layer;
+
+import org.openstreetmap.josm.data.imagery.ImageryInfo;
+import org.openstreetmap.josm.data.imagery.TileLoaderFactory;
+import org.openstreetmap.josm.gui.MainApplication;
+import org.openstreetmap.josm.gui.layer.TMSLayer;
+import org.openstreetmap.josm.plugins.strava.heatmap.cache.StravaTileStore;
+import org.openstreetmap.josm.spi.preferences.Config;
+import org.openstreetmap.josm.tools.GBC;
+import org.openstreetmap.josm.tools.I18n;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.ActionEvent;
+import java.awt.image.IndexColorModel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A TMS layer displaying one of the default Strava heatmaps.
+ * The authenticated tiles are loaded by the plugin's own tile loader, see {@link StravaTileLoader}.
+ * Unlike a plain {@link TMSLayer}, the layer can be switched to the authenticated heatmap after it has been displayed,
+ * see {@link #reloadTileSource()}.
+ * <p>
+ * Unless the preference "strava.heatmap.recolor" is disabled, the authenticated heatmap is downloaded and stored
+ * in the canonical color scheme only, and recolored locally with the color scheme of the layer URL,
+ * see {@link StravaHeatmapPalette}. The contrast of the color schemes is read from the preference
+ * "strava.heatmap.contrast" (in percent, 100 by default).
+ */
+public class StravaHeatmapLayer extends TMSLayer {
+
+    /**
+     * Extracts the activity and the color from an authenticated heatmap URL,
+     * e.g. "https://heatmap-external-{switch:a,b,c}.strava.com/tiles-auth/ride/hot/{zoom}/{x}/{y}.png".
+     */
+    private static final Pattern PATTERN_AUTHENTICATED_URL = Pattern.compile("/tiles-auth/([^/]+)/([^/]+)/");
+
+    private static final Pattern PATTERN_SWITCH = Pattern.compile("\\{switch:([^,}]*)[^}]*\\}");
+
+    /**
+     * Extracts the color from a public or authenticated heatmap URL, the first group is the part of the URL before it.
+     */
+    private static final Pattern PATTERN_COLOR = Pattern.compile("(/tiles(?:-auth)?/[^/]+/)([^/]+)/");
+
+    private static final int DEFAULT_CONTRAST_PERCENT = 100;
+    private static final int MIN_CONTRAST_PERCENT = 25;
+    private static final int MAX_CONTRAST_PERCENT = 400;
+
+    /**
+     * The lookup table of the current color scheme and contrast, built on demand.
+     */
+    private IndexColorModel colorModel;
+    private String colorModelKey;
+
+    /**
+     * Creates a Strava heatmap layer.
+     *
+     * @param info the imagery info of one of the default Strava layers.
+     */
+    public StravaHeatmapLayer(ImageryInfo info) {
+        super(info);
+    }
+
+    /**
+     * Returns the key identifying the heatmap in the tile store.
+     *
+     * @return the key made of the activity and the color of the heatmap,
+     * or null if the layer does not display the authenticated heatmap.
+     */
+    public String getTileStoreKey() {
+        Matcher matcher = PATTERN_AUTHENTICATED_URL.matcher(info.getUrl());
+        if (matcher.find()) {
+            return matcher.group(1) + "/" + (isRecolored() ? StravaHeatmapPalette.CANONICAL_COLOR : matcher.group(2));
+        }
+        return null;
+    }
+
+    /**
+     * Returns the color scheme of the layer.
+     *
+     * @return the color scheme as it appears in the layer URL, e.g. "hot", or null if the URL has no color scheme.
+     */
+    public String getColor() {
+        Matcher matcher = PATTERN_COLOR.matcher(info.getUrl());
+        return matcher.find() ? matcher.group(2) : null;
+    }
+
+    /**
+     * Tests if the tiles are downloaded in the canonical color scheme and recolored locally.
+     *
+     * @return true if the layer displays the authenticated heatmap in a color scheme that can be applied locally.
+     */
+    public boolean isRecolored() {
+        return isRecolorable() && isAuthenticated() && StravaHeatmapPalette.isSupported(getColor())
+                && Config.getPref().getBoolean("strava.heatmap.recolor", true);
+    }
+
+    /**
+     * Tests if the layer supports the local recoloring of its tiles.
+     *
+     * @return true by default.
+     */
+    protected boolean isRecolorable() {
+        return true;
+    }
+
+    /**
+     * Returns the lookup table applying the color scheme of the layer to the tile intensity.
+     *
+     * @return the color model, or null if the layer is not recolored.
+     */
+    public synchronized IndexColorModel getColorModel() {
+        if (!isRecolored()) {
+            return null;
+        }
+        int contrastPercent = getContrastPercent();
+        String key = getColor() + "/" + contrastPercent;
+        if (!key.equals(colorModelKey)) {
+            colorModel = StravaHeatmapPalette.createColorModel(getColor(), contrastPercent / 100.0);
+            colorModelKey = key;
+        }
+        return colorModel;
+    }
+
+    /**
+     * Changes the color scheme of the layer and the contrast of all the layers.
+     * If the layer is recolored before and after the change, the loaded tiles are recolored in place,
+     * otherwise the tiles are reloaded. The loaded tiles of the other recolored layers are recolored in place
+     * with the new contrast.
+     * Must be called in the EDT.
+     *
+     * @param color           the color scheme as it appears in the tile URLs.
+     * @param contrastPercent the contrast in percent, applied to all the recolored layers.
+     */
+    public void setColorScheme(String color, int contrastPercent) {
+        boolean wasRecolored = isRecolored();
+        boolean contrastChanged = contrastPercent != getContrastPercent();
+        Config.getPref().putInt("strava.heatmap.contrast", contrastPercent);
+        info.setUrl(PATTERN_COLOR.matcher(info.getUrl()).replaceFirst("$1" + color + "/"));
+        if (!wasRecolored || !recolorLoadedTiles()) {
+            reloadTileSource();
+        }
+        if (contrastChanged) {
+            for (StravaHeatmapLayer layer : MainApplication.getLayerManager().getLayersOfType(StravaHeatmapLayer.class)) {
+                if (layer != this) {
+                    layer.recolorLoadedTiles();
+                }
+            }
+        }
+    }
+
+    /**
+     * Applies the current color scheme and contrast to the loaded tiles, without decoding or downloading them again.
+     *
+     * @return true if the tiles have been recolored, false if the layer is not recolored.
+     */
+    private boolean recolorLoadedTiles() {
+        IndexColorModel newColorModel = getColorModel();
+        if (newColorModel == null || !(tileLoader instanceof StravaTileLoader)) {
+            return false;
+        }
+        ((StravaTileLoader) tileLoader).recolorLoadedTiles(newColorModel);
+        invalidate();
+        return true;
+    }
+
+    private static int getContrastPercent() {
+        int contrastPercent = Config.getPref().getInt("strava.heatmap.contrast", DEFAULT_CONTRAST_PERCENT);
+        return Math.max(MIN_CONTRAST_PERCENT, Math.min(contrastPercent, MAX_CONTRAST_PERCENT));
+    }
+
+    /**
+     * Tests if the layer displays the authenticated heatmap.
+     *
+     * @return true if the tiles are requested from the authenticated tile server.
+     */
+    public boolean isAuthenticated() {
+        return PATTERN_AUTHENTICATED_URL.matcher(info.getUrl()).find();
+    }
+
+    /**
+     * Returns the URL of a tile of the heatmap.
+     * The first host of the "{switch:...}" template is used.
+     * The URL of a recolored layer requests the canonical color scheme.
+     *
+     * @param zoom the tile zoom level.
+     * @param x    the tile x coordinate.
+     * @param y    the tile y coordinate.
+     * @return the tile URL.
+     */
+    public String getTileUrl(int zoom, int x, int y) {
+        return PATTERN_SWITCH.matcher(getRequestedUrl(info.getUrl())).replaceAll("$1")
+                .replace("{zoom}", Integer.toString(zoom))
+                .replace("{z}", Integer.toString(zoom))
+                .replace("{x}", Integer.toString(x))
+                .replace("{y}", Integer.toString(y));
+    }
+
+    /**
+     * Returns the URL actually requested for a tile URL of the layer.
+     *
+     * @param url a tile URL, or the URL template of the layer.
+     * @return the URL in the canonical color scheme if the layer is recolored, otherwise the URL itself.
+     */
+    public String getRequestedUrl(String url) {
+        if (isRecolored()) {
+            return PATTERN_COLOR.matcher(url).replaceFirst("$1" + StravaHeatmapPalette.CANONICAL_COLOR + "/");
+        }
+        return url;
+    }
+
+    /**
+     * Rebuilds the tile source and the tile loader from the imagery info.
+     * Must be called in the EDT after the URL or the cookies of the imagery info have been updated.
+     * Does nothing if the layer has not been attached to the map view yet,
+     * since the tile source is then built from the up-to-date imagery info.
+     */
+    public void reloadTileSource() {
+        if (tileSource != null) {
+            tileLoader.cancelOutstandingTasks();
+            tileSource = getTileSource();
+            initTileSource(tileSource);
+            clearTileCache();
+            invalidate();
+        }
+    }
+
+    /**
+     * Returns a factory creating a {@link StravaTileLoader} for the authenticated heatmap,
+     * and the default TMS tile loader for the public heatmap.
+     */
+    @Override
+    protected TileLoaderFactory getTileLoaderFactory() {
+        TileLoaderFactory defaultTileLoaderFactory = super.getTileLoaderFactory();
+        return (listener, headers, minimumExpiryTime) -> {
+            String tileStoreKey = getTileStoreKey();
+            if (tileStoreKey == null) {
+                return defaultTileLoaderFactory.makeTileLoader(listener, headers, minimumExpiryTime);
+            }
+            return new StravaTileLoader(listener, StravaTileStore.getInstance(), this);
+        };
+    }
+
+    @Override
+    public Action[] getMenuEntries() {
+        if (!isRecolorable()) {
+            return super.getMenuEntries();
+        }
+        List<Action> entries = new ArrayList<>(Arrays.asList(super.getMenuEntries()));
+        entries.add(new ColorSchemeAction());
+        return entries.toArray(new Action[0]);
+    }
+
+    /**
+     * Lets the user change the color scheme and the contrast of the heatmap.
+     */
+    private final class ColorSchemeAction extends AbstractAction {
+
+        private ColorSchemeAction() {
+            super(I18n.tr("Heatmap colors..."));
+        }
+
+        @Override
+        public void actionPerformed(ActionEvent e) {
+            JComboBox<String> colors = new JComboBox<>(StravaHeatmapPalette.getColors().toArray(new String[0]));
+            colors.setSelectedItem(getColor());
+            JSlider contrast = new JSlider(MIN_CONTRAST_PERCENT, MAX_CONTRAST_PERCENT, getContrastPercent());
+            contrast.setToolTipText(I18n.tr("Values above 100 brighten the faint traces"));
+            JPanel panel = new JPanel(new GridBagLayout());
+            panel.add(new JLabel(I18n.tr("Color scheme")), GBC.std().insets(0, 0, 10, 5));
+            panel.add(colors, GBC.eol().fill(GBC.HORIZONTAL).insets(0, 0, 0, 5));
+            panel.add(new JLabel(I18n.tr("Contrast")), GBC.std().insets(0, 0, 10, 0));
+            panel.add(contrast, GBC.eol().fill(GBC.HORIZONTAL));
+            if (JOptionPane.showConfirmDialog(MainApplication.getMainFrame(), panel, I18n.tr("Heatmap colors"),
+                    JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE) == JOptionPane.OK_OPTION
+                    && colors.getSelectedItem() != null) {
+                setColorScheme((String) colors.getSelectedItem(), contrast.getValue());
+            }
+        }
+    }
+}
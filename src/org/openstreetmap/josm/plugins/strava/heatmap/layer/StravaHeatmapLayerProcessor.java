@@ -1,24 +1,32 @@
 package org.openstreetmap.josm.plugins.strava.heatmap.layer;
 
 import org.openstreetmap.josm.data.imagery.ImageryInfo;
+import org.openstreetmap.josm.data.osm.DataSet;
 import org.openstreetmap.josm.gui.MainApplication;
 import org.openstreetmap.josm.gui.layer.Layer;
+import org.openstreetmap.josm.gui.layer.LayerManager;
 import org.openstreetmap.josm.gui.layer.TMSLayer;
 import org.openstreetmap.josm.gui.util.GuiHelper;
 import org.openstreetmap.josm.plugins.strava.heatmap.authentication.StravaAuthenticationException;
-import org.openstreetmap.josm.plugins.strava.heatmap.authentication.StravaCookiesRetriever;
-import org.openstreetmap.josm.plugins.strava.heatmap.http.StravaHttpException;
+import org.openstreetmap.josm.plugins.strava.heatmap.authentication.StravaAuthenticationService;
+import org.openstreetmap.josm.spi.preferences.Config;
+import org.openstreetmap.josm.tools.Destroyable;
 import org.openstreetmap.josm.tools.I18n;
 import org.openstreetmap.josm.tools.Logging;
 
 import javax.swing.*;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
 
 /**
  * Processor that adds the Strava authentication cookies to the Strava heatmap layers.
  */
-public class StravaHeatmapLayerProcessor {
+public class StravaHeatmapLayerProcessor implements Destroyable {
 
 
     /**
@@ -26,31 +34,139 @@ public class StravaHeatmapLayerProcessor {
      */
     private static final List<String> STRAVA_LAYER_IDS = Arrays.asList("strava_cycling_heatmap", "strava_running_heatmap", "strava_both_heatmap", "strava_water_heatmap", "strava_winter_heatmap");
 
+    /**
+     * The delay during which the layers opened together, e.g. by a session restore, are collected before
+     * being authenticated together. The delay is restarted each time a layer is added.
+     */
+    private static final int BATCH_DELAY_MILLIS = 200;
+
+    private final StravaAuthenticationService authenticationService = StravaAuthenticationService.getInstance();
+
+    /**
+     * The last failure reported to the user.
+     * The layers opened together share the same failed authentication, and the authentications attempted
+     * while the circuit breaker is open fail with the same exception: the failure is reported only once.
+     */
+    private Throwable lastReportedFailure;
+
+    /**
+     * The layers waiting for the next batch authentication. Only accessed in the EDT.
+     */
+    private final List<StravaHeatmapLayer> pendingLayers = new ArrayList<>();
+
+    private final Timer batchTimer = new Timer(BATCH_DELAY_MILLIS, e -> authenticatePendingLayers());
+
+    private final Consumer<String> cookiesRefreshListener = cookies -> GuiHelper.runInEDT(() -> updateOpenLayers(cookies));
+
+    /**
+     * Creates the processor and subscribes to the background renewal of the authentication cookies.
+     */
+    public StravaHeatmapLayerProcessor() {
+        authenticationService.addCookiesRefreshListener(cookiesRefreshListener);
+        batchTimer.setRepeats(false);
+    }
+
+    /**
+     * Unsubscribes from the renewal of the cookies and drops the layers waiting for authentication,
+     * when the plugin is unloaded. Must be called in the EDT.
+     */
+    @Override
+    public void destroy() {
+        batchTimer.stop();
+        pendingLayers.clear();
+        authenticationService.removeCookiesRefreshListener(cookiesRefreshListener);
+    }
 
     /**
      * Adds the Strava authentication cookies if and only if the layer is a Strava layer.
+     * A plain TMS layer opened from the imagery menu or restored from a session is replaced by a {@link StravaHeatmapLayer}.
+     * The authentication runs in the background: the layer is displayed right away with the public heatmap
+     * and upgraded to the authenticated heatmap once the authentication completes.
+     * The layers opened within {@link #BATCH_DELAY_MILLIS} of each other are authenticated together.
+     * Must be called in the EDT.
      *
      * @param layer the layer being opened.
      */
     public void processLayer(Layer layer) {
+        if (layer instanceof StravaHeatmapLayer) {
+            StravaHeatmapLayer stravaLayer = (StravaHeatmapLayer) layer;
+            String validCookies = authenticationService.getCookiesAsHttpHeaderIfValid();
+            if (validCookies != null) {
+                // the layer is not yet attached to the map view, its imagery info can be updated in place
+                updateImageryInfo(stravaLayer.getInfo(), validCookies);
+                prefetchIfEnabled(Collections.singletonList(stravaLayer));
+            } else {
+                pendingLayers.add(stravaLayer);
+                batchTimer.restart();
+            }
+        } else if (isStravaHeatmapLayer(layer)) {
+            // the layer cannot be replaced while the other listeners are still being notified of its addition
+            SwingUtilities.invokeLater(() -> replaceLayer((TMSLayer) layer));
+        }
+    }
+
+    /**
+     * Cancels the background renewal of the cookies when the last Strava layer is closed.
+     *
+     * @param layer the layer being closed.
+     */
+    public void processRemovedLayer(Layer layer) {
+        pendingLayers.remove(layer);
         if (isStravaHeatmapLayer(layer)) {
-            updateImageryInfo(((TMSLayer) layer).getInfo());
+            boolean otherStravaLayerOpen = MainApplication.getLayerManager().getLayers().stream()
+                    .anyMatch(otherLayer -> otherLayer != layer && isStravaHeatmapLayer(otherLayer));
+            if (!otherStravaLayerOpen) {
+                authenticationService.cancelScheduledRefresh();
+            }
         }
     }
 
     /**
-     * Tests if the layer is one of the default Strava layers.
+     * Authenticates once for all the layers opened since the last batch,
+     * then upgrades them and prefetches their tiles together.
+     * Must be called in the EDT.
+     */
+    private void authenticatePendingLayers() {
+        List<StravaHeatmapLayer> layers = new ArrayList<>(pendingLayers);
+        pendingLayers.clear();
+        if (layers.isEmpty()) {
+            return;
+        }
+        if (Logging.isDebugEnabled()) {
+            Logging.debug("Authenticating " + layers.size() + " Strava layer(s)");
+        }
+        authenticationService.getCookiesAsHttpHeaderAsync().whenComplete((cookieHeader, throwable) -> GuiHelper.runInEDT(() -> {
+            if (throwable == null) {
+                List<StravaHeatmapLayer> openLayers = layers.stream()
+                        .filter(MainApplication.getLayerManager()::containsLayer)
+                        .collect(Collectors.toList());
+                for (StravaHeatmapLayer layer : openLayers) {
+                    upgradeLayer(layer, cookieHeader);
+                }
+                prefetchIfEnabled(openLayers);
+            } else {
+                handleAuthenticationFailure(throwable);
+            }
+        }));
+    }
+
+    /**
+     * Tests if the layer is a Strava layer: either a {@link StravaHeatmapLayer} or a plain TMS layer
+     * displaying one of the default Strava layers.
      *
      * @param layer the layer being opened.
-     * @return true if the layer is a default Strava layer.
+     * @return true if the layer is a Strava layer.
      */
     private boolean isStravaHeatmapLayer(Layer layer) {
+        if (layer instanceof StravaHeatmapLayer) {
+            return true;
+        }
         if (layer instanceof TMSLayer) {
             TMSLayer tmsLayer = (TMSLayer) layer;
             ImageryInfo imageryInfo = tmsLayer.getInfo();
             if (imageryInfo != null) {
                 String layerId = imageryInfo.getId();
-                if (STRAVA_LAYER_IDS.contains(layerId)) {
+                if (isStravaLayerId(layerId)) {
                     if (Logging.isDebugEnabled()) {
                         Logging.debug("The current layer is a Strava layer " + layerId);
                     }
@@ -62,45 +178,127 @@ public class StravaHeatmapLayerProcessor {
 
     }
 
+    /**
+     * Tests if an imagery identifier is the identifier of one of the default Strava layers.
+     *
+     * @param layerId the imagery identifier, possibly null.
+     * @return true if the identifier is the identifier of a default Strava layer.
+     */
+    public static boolean isStravaLayerId(String layerId) {
+        return STRAVA_LAYER_IDS.contains(layerId);
+    }
+
+    /**
+     * Replaces a plain TMS layer by a {@link StravaHeatmapLayer} at the same position.
+     * Must be called in the EDT.
+     *
+     * @param layer a plain TMS layer displaying one of the default Strava layers.
+     */
+    private void replaceLayer(TMSLayer layer) {
+        LayerManager layerManager = MainApplication.getLayerManager();
+        if (!layerManager.containsLayer(layer)) {
+            // the layer has been closed in the meantime
+            return;
+        }
+        int position = layerManager.getLayers().indexOf(layer);
+        StravaHeatmapLayer stravaLayer = new StravaHeatmapLayer(layer.getInfo());
+        stravaLayer.setOpacity(layer.getOpacity());
+        stravaLayer.setVisible(layer.isVisible());
+        layerManager.addLayer(stravaLayer);
+        layerManager.moveLayer(stravaLayer, position);
+        layerManager.removeLayer(layer);
+    }
+
+    /**
+     * Upgrades a layer that has already been displayed, either with the public heatmap or with expired cookies.
+     * Must be called in the EDT.
+     *
+     * @param layer   the layer to upgrade.
+     * @param cookies the authentication cookies formatted as an HTTP "Cookie" header.
+     */
+    private void upgradeLayer(StravaHeatmapLayer layer, String cookies) {
+        if (MainApplication.getLayerManager().containsLayer(layer)) {
+            boolean authenticated = layer.isAuthenticated();
+            updateImageryInfo(layer.getInfo(), cookies);
+            if (!authenticated) {
+                // the tile loader of an authenticated layer reads the cookies from the imagery info for each tile
+                layer.reloadTileSource();
+            }
+        }
+    }
+
+    /**
+     * Prefetches the tiles covering the downloaded areas of the edited data layer
+     * if the preference "strava.heatmap.prefetch.auto" is enabled.
+     * Must be called in the EDT.
+     *
+     * @param layers the newly authenticated layers.
+     */
+    private void prefetchIfEnabled(List<StravaHeatmapLayer> layers) {
+        DataSet dataSet = MainApplication.getLayerManager().getEditDataSet();
+        if (dataSet != null && !layers.isEmpty() && Config.getPref().getBoolean("strava.heatmap.prefetch.auto", false)) {
+            StravaTilePrefetcher.prefetch(layers, dataSet.getDataSourceBounds());
+        }
+    }
+
+    /**
+     * Pushes renewed authentication cookies into all the open Strava layers.
+     * Must be called in the EDT.
+     *
+     * @param cookies the renewed cookies formatted as an HTTP "Cookie" header.
+     */
+    private void updateOpenLayers(String cookies) {
+        for (StravaHeatmapLayer layer : MainApplication.getLayerManager().getLayersOfType(StravaHeatmapLayer.class)) {
+            if (!cookies.equals(layer.getInfo().getCookies())) {
+                upgradeLayer(layer, cookies);
+            }
+        }
+    }
+
     /**
      * Updates the URL and adds the authentication cookies to the default imagery information.
      *
      * @param imageryInfo the layer's imagery info.
+     * @param cookies     the authentication cookies formatted as an HTTP "Cookie" header.
      */
-    private void updateImageryInfo(ImageryInfo imageryInfo) {
-
-        // get cookies as request parameters (ImageryInfo does not expose a method to set cookies as HTTP header)
-        StravaCookiesRetriever cookiesRetriever = new StravaCookiesRetriever();
-        try {
-            String cookies = cookiesRetriever.getCookiesAsHttpHeader();
-            // set the authentication cookies as a HTTP cookie header
-            imageryInfo.setCookies(cookies);
-            // switch to authenticated tile server
-            // if the layer has been added before, then the URL is already updated --> do nothing.
-            String oldUrl = imageryInfo.getUrl();
-            if (!oldUrl.contains("/tiles-auth/")) {
-                String newUrl = oldUrl.replace("/tiles/", "/tiles-auth/");
-                imageryInfo.setUrl(newUrl);
-            }
-            //increase the default max zoom
-            imageryInfo.setDefaultMaxZoom(15);
-
-
-        } catch (StravaAuthenticationException e) {
-            Logging.error(e);
-            GuiHelper.runInEDT(() ->
-                    JOptionPane.showMessageDialog(MainApplication.getMainFrame(),
-                            I18n.tr("Authentication on the Strava website failed.\n"
-                                    + "Please check your Strava account details in the plugin preferences page.\n"
-                                    + "Without authentication only the low-resolution heatmap will be available.")));
-
-        } catch (StravaHttpException e) {
-            Logging.error(e);
-            GuiHelper.runInEDT(() ->
-                    JOptionPane.showMessageDialog(MainApplication.getMainFrame(),
-                            I18n.tr("An error occurred when trying to authenticate on the Strava website.\n"
-                                    + "This may be a temporary network issue.\n"
-                                    + "Without authentication only the low-resolution heatmap will be available.")));
+    private void updateImageryInfo(ImageryInfo imageryInfo, String cookies) {
+        // set the authentication cookies as a HTTP cookie header
+        imageryInfo.setCookies(cookies);
+        // switch to authenticated tile server
+        // if the layer has been added before, then the URL is already updated --> do nothing.
+        String oldUrl = imageryInfo.getUrl();
+        if (!oldUrl.contains("/tiles-auth/")) {
+            String newUrl = oldUrl.replace("/tiles/", "/tiles-auth/");
+            imageryInfo.setUrl(newUrl);
+        }
+        //increase the default max zoom, the zoom levels above 15 are resampled from the z15 tiles
+        imageryInfo.setDefaultMaxZoom(StravaOverzoomCache.getMaxZoom());
+    }
+
+    /**
+     * Reports an authentication failure to the user, unless the same failure has already been reported.
+     * Must be called in the EDT.
+     *
+     * @param throwable the exception that completed the authentication future.
+     */
+    private void handleAuthenticationFailure(Throwable throwable) {
+        Throwable cause = throwable instanceof CompletionException && throwable.getCause() != null ? throwable.getCause() : throwable;
+        if (cause == lastReportedFailure) {
+            Logging.info("Strava authentication failure already reported: " + cause.getMessage());
+            return;
+        }
+        lastReportedFailure = cause;
+        Logging.error(cause);
+        if (cause instanceof StravaAuthenticationException) {
+            JOptionPane.showMessageDialog(MainApplication.getMainFrame(),
+                    I18n.tr("Authentication on the Strava website failed.\n"
+                            + "Please check your Strava account details in the plugin preferences page.\n"
+                            + "Without authentication only the low-resolution heatmap will be available."));
+        } else {
+            JOptionPane.showMessageDialog(MainApplication.getMainFrame(),
+                    I18n.tr("An error occurred when trying to authenticate on the Strava website.\n"
+                            + "This may be a temporary network issue.\n"
+                            + "Without authentication only the low-resolution heatmap will be available."));
         }
     }
 }
@@ -0,0 +1,159 @@
+package org.openstreetmap.josm.plugins.strava.heatmap.layer;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Local recoloring of the heatmap tiles.
+ * <p>
+ * The tiles are downloaded in a single canonical color scheme ({@link #CANONICAL_COLOR}) and decoded once into
+ * an 8-bit intensity image. The color scheme chosen by the user is a lookup table from the intensity to a color,
+ * applied as the {@link IndexColorModel} of an image sharing the raster of the intensity image.
+ * Changing the color scheme or the contrast therefore neither downloads nor decodes the tiles again.
+ */
+public final class StravaHeatmapPalette {
+
+    /**
+     * The color scheme of the downloaded and stored tiles.
+     */
+    public static final String CANONICAL_COLOR = "gray";
+
+    /**
+     * The colors of the Strava color schemes, from the lowest to the highest intensity, evenly spaced.
+     */
+    private static final Map<String, int[]> COLOR_STOPS = new LinkedHashMap<>();
+
+    static {
+        COLOR_STOPS.put("hot", new int[]{0xb40000, 0xff3c00, 0xffb400, 0xffffdc});
+        COLOR_STOPS.put("blue", new int[]{0x00288c, 0x0064dc, 0x3cb4ff, 0xdcf5ff});
+        COLOR_STOPS.put("purple", new int[]{0x500078, 0x9628c8, 0xd278ff, 0xf5dcff});
+        COLOR_STOPS.put("gray", new int[]{0x404040, 0xffffff});
+        COLOR_STOPS.put("bluered", new int[]{0x0000ff, 0x8000c0, 0xff0000, 0xffff00});
+    }
+
+    private static final ThreadLocal<int[]> ROW_PIXELS = ThreadLocal.withInitial(() -> new int[0]);
+    private static final ThreadLocal<byte[]> INTENSITIES = ThreadLocal.withInitial(() -> new byte[0]);
+
+    private StravaHeatmapPalette() {
+        // utility class
+    }
+
+    /**
+     * Returns the color schemes that can be applied locally.
+     *
+     * @return the names of the color schemes, as they appear in the tile URLs.
+     */
+    public static List<String> getColors() {
+        return new ArrayList<>(COLOR_STOPS.keySet());
+    }
+
+    /**
+     * Tests if a color scheme can be applied locally.
+     *
+     * @param color the name of the color scheme, as it appears in the tile URLs.
+     * @return true if the color scheme is known.
+     */
+    public static boolean isSupported(String color) {
+        return COLOR_STOPS.containsKey(color);
+    }
+
+    /**
+     * Builds the lookup table of a color scheme.
+     * The contrast is applied as a gamma correction of the intensity: a contrast above 1 brightens the faint traces,
+     * a contrast below 1 fades them.
+     *
+     * @param color    the name of a supported color scheme.
+     * @param contrast the contrast, 1 for the original ramp.
+     * @return the color model mapping the intensity to the color. The intensity 0 is transparent.
+     */
+    public static IndexColorModel createColorModel(String color, double contrast) {
+        int[] stops = COLOR_STOPS.get(color);
+        byte[] reds = new byte[256];
+        byte[] greens = new byte[256];
+        byte[] blues = new byte[256];
+        byte[] alphas = new byte[256];
+        double gamma = 1 / Math.max(contrast, 0.01);
+        for (int intensity = 1; intensity < 256; intensity++) {
+            double t = Math.pow(intensity / 255.0, gamma);
+            double position = t * (stops.length - 1);
+            int stop = Math.min((int) position, stops.length - 2);
+            double fraction = position - stop;
+            reds[intensity] = (byte) interpolate(stops[stop] >> 16, stops[stop + 1] >> 16, fraction);
+            greens[intensity] = (byte) interpolate(stops[stop] >> 8, stops[stop + 1] >> 8, fraction);
+            blues[intensity] = (byte) interpolate(stops[stop], stops[stop + 1], fraction);
+            alphas[intensity] = (byte) Math.round(255 * t);
+        }
+        return new IndexColorModel(8, 256, reds, greens, blues, alphas);
+    }
+
+    private static int interpolate(int from, int to, double fraction) {
+        return (int) Math.round((from & 0xff) + ((to & 0xff) - (from & 0xff)) * fraction);
+    }
+
+    /**
+     * Returns the intensity of a heatmap pixel.
+     * The heatmap is transparent where there is no activity and gets more opaque with the activity,
+     * the intensity of an opaque image is its luminance.
+     *
+     * @param argb     the pixel.
+     * @param hasAlpha true if the image has an alpha channel.
+     * @return the intensity, from 0 to 255.
+     */
+    public static int intensity(int argb, boolean hasAlpha) {
+        if (hasAlpha) {
+            return argb >>> 24;
+        }
+        int red = (argb >> 16) & 0xff;
+        int green = (argb >> 8) & 0xff;
+        int blue = argb & 0xff;
+        return (red * 299 + green * 587 + blue * 114) / 1000;
+    }
+
+    /**
+     * Decodes the intensity of a heatmap tile.
+     *
+     * @param image the decoded tile, in any color scheme.
+     * @return a {@code TYPE_BYTE_GRAY} image of the intensity.
+     */
+    public static BufferedImage toIntensityImage(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        boolean hasAlpha = image.getColorModel().hasAlpha();
+        int[] row = ROW_PIXELS.get();
+        if (row.length < width) {
+            row = new int[width];
+            ROW_PIXELS.set(row);
+        }
+        byte[] intensities = INTENSITIES.get();
+        if (intensities.length < width * height) {
+            intensities = new byte[width * height];
+            INTENSITIES.set(intensities);
+        }
+        for (int y = 0; y < height; y++) {
+            image.getRGB(0, y, width, 1, row, 0, width);
+            for (int x = 0; x < width; x++) {
+                intensities[y * width + x] = (byte) intensity(row[x], hasAlpha);
+            }
+        }
+        BufferedImage intensityImage = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+        // copying the intensities keeps the image managed
+        intensityImage.getRaster().setDataElements(0, 0, width, height, intensities);
+        return intensityImage;
+    }
+
+    /**
+     * Applies a color scheme to an intensity image.
+     * The returned image shares the raster of the intensity image: no pixel is copied.
+     *
+     * @param intensityImage the intensity image, or an image previously returned by this method.
+     * @param colorModel     the color scheme, see {@link #createColorModel(String, double)}.
+     * @return the colored image.
+     */
+    public static BufferedImage recolor(BufferedImage intensityImage, IndexColorModel colorModel) {
+        return new BufferedImage(colorModel, intensityImage.getRaster(), false, null);
+    }
+}
@@ -0,0 +1,20 @@
+package org.openstreetmap.josm.plugins.strava.heatmap.layer;
+
+import org.openstreetmap.josm.io.session.ImagerySessionExporter;
+
+/**
+ * Session exporter for {@link StravaHeatmapLayer}.
+ * The layer is saved as a plain imagery layer: when the session is restored,
+ * the plain layer is replaced by a Strava layer again, see {@link StravaHeatmapLayerProcessor}.
+ */
+public class StravaHeatmapSessionExporter extends ImagerySessionExporter {
+
+    /**
+     * Constructs a new {@code StravaHeatmapSessionExporter}.
+     *
+     * @param layer the Strava layer to export.
+     */
+    public StravaHeatmapSessionExporter(StravaHeatmapLayer layer) {
+        super(layer);
+    }
+}
@@ -0,0 +1,184 @@
+package org.openstreetmap.josm.plugins.strava.heatmap.layer;
+
+import org.openstreetmap.josm.spi.preferences.Config;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Serves the zoom levels above the maximum zoom level of the heatmap tile server by resampling the parent tile.
+ * <p>
+ * The tile server stops at zoom level {@link #MAX_NATIVE_ZOOM}. A tile at a higher zoom level is the matching part
+ * of its z15 parent tile, cropped and scaled up with a bilinear interpolation.
+ * The decoded parent tiles and the resampled tiles are kept in a small least-recently-used cache in memory,
+ * so that zooming in beyond z15 costs neither network requests nor repeated resampling.
+ * The size of the cache is read from the preference "strava.heatmap.overzoom.cache" (in tiles, 64 by default),
+ * the maximum zoom level of the layers from the preference "strava.heatmap.overzoom.max" (19 by default).
+ */
+public class StravaOverzoomCache {
+
+    /**
+     * The maximum zoom level served by the heatmap tile server.
+     */
+    public static final int MAX_NATIVE_ZOOM = 15;
+
+    private static final int DEFAULT_MAX_ZOOM = 19;
+
+    /**
+     * Beyond this zoom level, a 256 pixels tile would be scaled up from less than a pixel.
+     */
+    private static final int MAX_OVERZOOM = MAX_NATIVE_ZOOM + 8;
+
+    private static final int DEFAULT_CACHE_SIZE = 64;
+
+    private static StravaOverzoomCache instance;
+
+    private final Map<String, BufferedImage> images;
+
+    /**
+     * Creates a cache.
+     *
+     * @param maxSize the maximum number of images kept in the cache.
+     */
+    public StravaOverzoomCache(int maxSize) {
+        this.images = new LinkedHashMap<String, BufferedImage>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, BufferedImage> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Returns the cache shared by all the layers.
+     *
+     * @return the overzoom cache.
+     */
+    public static synchronized StravaOverzoomCache getInstance() {
+        if (instance == null) {
+            instance = new StravaOverzoomCache(Config.getPref().getInt("strava.heatmap.overzoom.cache", DEFAULT_CACHE_SIZE));
+        }
+        return instance;
+    }
+
+    /**
+     * Returns the maximum zoom level of the Strava layers.
+     *
+     * @return the maximum zoom level, at least {@link #MAX_NATIVE_ZOOM}.
+     */
+    public static int getMaxZoom() {
+        int maxZoom = Config.getPref().getInt("strava.heatmap.overzoom.max", DEFAULT_MAX_ZOOM);
+        return Math.max(MAX_NATIVE_ZOOM, Math.min(maxZoom, MAX_OVERZOOM));
+    }
+
+    /**
+     * Tests if a tile must be resampled from its parent tile.
+     *
+     * @param zoom the tile zoom level.
+     * @return true if the zoom level is not served by the tile server.
+     */
+    public static boolean isOverzoomed(int zoom) {
+        return zoom > MAX_NATIVE_ZOOM;
+    }
+
+    /**
+     * Returns the coordinate of the z15 parent tile.
+     *
+     * @param coordinate the x or y coordinate of an overzoomed tile.
+     * @param zoom       the zoom level of the overzoomed tile.
+     * @return the x or y coordinate of the parent tile.
+     */
+    public static int getParentCoordinate(int coordinate, int zoom) {
+        return coordinate >> (zoom - MAX_NATIVE_ZOOM);
+    }
+
+    /**
+     * Builds the cache key of a tile.
+     *
+     * @param namespace the key identifying the layer or the heatmap, e.g. the tile store key.
+     * @param zoom      the tile zoom level.
+     * @param x         the tile x coordinate.
+     * @param y         the tile y coordinate.
+     * @return the cache key.
+     */
+    public static String getKey(String namespace, int zoom, int x, int y) {
+        return namespace + '/' + zoom + '/' + x + '/' + y;
+    }
+
+    /**
+     * Returns a cached image.
+     *
+     * @param key the cache key, see {@link #getKey(String, int, int, int)}.
+     * @return the image, or null if the image is not cached.
+     */
+    public synchronized BufferedImage get(String key) {
+        return images.get(key);
+    }
+
+    /**
+     * Adds an image to the cache, evicting the least recently used image if the cache is full.
+     *
+     * @param key   the cache key, see {@link #getKey(String, int, int, int)}.
+     * @param image the image.
+     */
+    public synchronized void put(String key, BufferedImage image) {
+        images.put(key, image);
+    }
+
+    /**
+     * Returns an overzoomed tile, resampled from its parent tile unless it is already cached.
+     *
+     * @param namespace the key identifying the layer or the heatmap.
+     * @param parent    the decoded z15 parent tile.
+     * @param zoom      the zoom level of the overzoomed tile.
+     * @param x         the x coordinate of the overzoomed tile.
+     * @param y         the y coordinate of the overzoomed tile.
+     * @return the overzoomed tile.
+     */
+    public BufferedImage getOverzoomedTile(String namespace, BufferedImage parent, int zoom, int x, int y) {
+        String key = getKey(namespace, zoom, x, y);
+        BufferedImage tile = get(key);
+        if (tile == null) {
+            tile = resample(parent, zoom, x, y);
+            put(key, tile);
+        }
+        return tile;
+    }
+
+    /**
+     * Crops the part of a z15 tile covered by an overzoomed tile and scales it up to the size of the z15 tile.
+     *
+     * @param parent the decoded z15 parent tile.
+     * @param zoom   the zoom level of the overzoomed tile.
+     * @param x      the x coordinate of the overzoomed tile.
+     * @param y      the y coordinate of the overzoomed tile.
+     * @return the overzoomed tile, a {@code TYPE_BYTE_GRAY} image if the parent tile is an intensity image
+     * (see {@link StravaHeatmapPalette}), otherwise a {@code TYPE_INT_ARGB} image.
+     */
+    public static BufferedImage resample(BufferedImage parent, int zoom, int x, int y) {
+        int zoomDifference = zoom - MAX_NATIVE_ZOOM;
+        int width = parent.getWidth();
+        int height = parent.getHeight();
+        int childMask = (1 << zoomDifference) - 1;
+        // the source bounds are computed in floating point so that no part of the parent tile is lost to rounding
+        double sourceWidth = (double) width / (1 << zoomDifference);
+        double sourceHeight = (double) height / (1 << zoomDifference);
+        int sourceX1 = (int) Math.round((x & childMask) * sourceWidth);
+        int sourceY1 = (int) Math.round((y & childMask) * sourceHeight);
+        int sourceX2 = Math.max(sourceX1 + 1, (int) Math.round(((x & childMask) + 1) * sourceWidth));
+        int sourceY2 = Math.max(sourceY1 + 1, (int) Math.round(((y & childMask) + 1) * sourceHeight));
+        int type = parent.getType() == BufferedImage.TYPE_BYTE_GRAY ? BufferedImage.TYPE_BYTE_GRAY : BufferedImage.TYPE_INT_ARGB;
+        BufferedImage tile = new BufferedImage(width, height, type);
+        Graphics2D graphics = tile.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.drawImage(parent, 0, 0, width, height, sourceX1, sourceY1, sourceX2, sourceY2, null);
+        } finally {
+            graphics.dispose();
+        }
+        return tile;
+    }
+}
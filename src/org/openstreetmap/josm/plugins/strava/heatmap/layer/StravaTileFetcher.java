@@ -0,0 +1,358 @@
+package org.openstreetmap.josm.plugins.strava.heatmap.layer;
+
+import org.openstreetmap.josm.plugins.strava.heatmap.http.StravaHttpClient;
+import org.openstreetmap.josm.plugins.strava.heatmap.http.StravaHttpClientFactory;
+import org.openstreetmap.josm.plugins.strava.heatmap.http.StravaHttpException;
+import org.openstreetmap.josm.plugins.strava.heatmap.http.StravaHttpRequest;
+import org.openstreetmap.josm.plugins.strava.heatmap.http.StravaHttpResponse;
+import org.openstreetmap.josm.plugins.strava.heatmap.metrics.StravaMetrics;
+import org.openstreetmap.josm.spi.preferences.Config;
+
+import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+
+/**
+ * Downloads the authenticated heatmap tiles through the shared {@link StravaHttpClient}.
+ * <ul>
+ * <li>All the tiles are requested from the same heatmap host, so that the requests are multiplexed
+ * over a single HTTP/2 connection instead of being spread over the "a", "b" and "c" hosts.</li>
+ * <li>Concurrent requests for the same tile are coalesced into a single download.
+ * Each request receives its own future, the handle to cancel it, see {@link #cancel(CompletableFuture)}.</li>
+ * <li>The number of concurrent downloads from each host is bounded, the pending downloads are started
+ * in last-in first-out order so that the tiles of the current view are downloaded first.</li>
+ * <li>The bound of each host adapts to the latency and to the errors of its downloads, see {@link StravaConcurrencyLimit},
+ * between 2 and the value of the preference "strava.heatmap.tile.concurrency" (64 by default).
+ * If the preference "strava.heatmap.tile.adaptive" is disabled, the bound is fixed to that value.</li>
+ * <li>Background downloads (prefetching) are started only when no tile of the current view is waiting,
+ * and use at most a quarter of the concurrent downloads.</li>
+ * </ul>
+ */
+public class StravaTileFetcher {
+
+    private static StravaTileFetcher instance;
+
+    private static final int DEFAULT_MAX_CONCURRENT_FETCHES = 64;
+    private static final int INITIAL_CONCURRENT_FETCHES = 8;
+    private static final int MIN_CONCURRENT_FETCHES = 2;
+
+    /**
+     * The maximum length of an encoded tile, a larger response is not a tile and is dropped without being buffered.
+     */
+    private static final int MAX_TILE_LENGTH = 1 << 20;
+
+    private static final Pattern PATTERN_HEATMAP_HOST = Pattern.compile("//heatmap-external-[a-z]\\.strava\\.com/");
+    private static final String HEATMAP_HOST = "//heatmap-external-a.strava.com/";
+
+    private final Supplier<StravaHttpClient> httpClient;
+    private final boolean adaptive;
+    private final Map<String, Fetch> fetches = new HashMap<>();
+    private final Map<CompletableFuture<byte[]>, Fetch> requests = new HashMap<>();
+    private final Deque<Fetch> pendingFetches = new ArrayDeque<>();
+    private final Deque<Fetch> pendingBackgroundFetches = new ArrayDeque<>();
+    private final Map<String, Host> hosts = new HashMap<>();
+    private int maxConcurrentFetches;
+
+    private StravaTileFetcher() {
+        this(StravaHttpClientFactory::getStravaHttpClient,
+                Config.getPref().getInt("strava.heatmap.tile.concurrency", DEFAULT_MAX_CONCURRENT_FETCHES),
+                Config.getPref().getBoolean("strava.heatmap.tile.adaptive", true));
+    }
+
+    /**
+     * Creates a tile fetcher independent of the shared instance, e.g. for testing.
+     *
+     * @param httpClient           the client sending the requests, called for each download.
+     * @param maxConcurrentFetches the maximum number of concurrent downloads from a host, at least 1.
+     * @param adaptive             true to adapt the bound of each host to its downloads, false for a fixed bound.
+     */
+    public StravaTileFetcher(Supplier<StravaHttpClient> httpClient, int maxConcurrentFetches, boolean adaptive) {
+        this.httpClient = httpClient;
+        this.maxConcurrentFetches = Math.max(1, maxConcurrentFetches);
+        this.adaptive = adaptive;
+    }
+
+    /**
+     * Returns the unique instance of the tile fetcher.
+     *
+     * @return the tile fetcher.
+     */
+    public static synchronized StravaTileFetcher getInstance() {
+        if (instance == null) {
+            instance = new StravaTileFetcher();
+        }
+        return instance;
+    }
+
+    /**
+     * Downloads a tile.
+     * If the tile is already being downloaded, the caller receives the result of the ongoing download.
+     * The future completes exceptionally with a {@link CompletionException} wrapping a {@link StravaHttpException}
+     * if the download fails, or is cancelled if the request is cancelled, see {@link #cancel(CompletableFuture)}.
+     *
+     * @param url          the tile URL.
+     * @param cookieHeader the authentication cookies formatted as an HTTP "Cookie" header.
+     * @return a future of the encoded tile image.
+     */
+    public CompletableFuture<byte[]> fetch(String url, String cookieHeader) {
+        return fetch(url, cookieHeader, false);
+    }
+
+    /**
+     * Downloads a tile, see {@link #fetch(String, String)}.
+     * A background download is started only when no other download is waiting.
+     * If the tile is requested again while its background download is waiting, the download is no longer
+     * considered as a background download.
+     *
+     * @param url          the tile URL.
+     * @param cookieHeader the authentication cookies formatted as an HTTP "Cookie" header.
+     * @param background   true for a low-priority download.
+     * @return a future of the encoded tile image, distinct for each request.
+     */
+    public CompletableFuture<byte[]> fetch(String url, String cookieHeader, boolean background) {
+        List<Fetch> fetchesToStart;
+        CompletableFuture<byte[]> request = new CompletableFuture<>();
+        synchronized (this) {
+            String normalizedUrl = normalizeUrl(url);
+            Fetch fetch = fetches.get(normalizedUrl);
+            if (fetch == null) {
+                fetch = new Fetch(normalizedUrl, getHost(normalizedUrl), cookieHeader, background);
+                fetches.put(normalizedUrl, fetch);
+                (background ? pendingBackgroundFetches : pendingFetches).addLast(fetch);
+            } else if (!fetch.started && !background) {
+                // requested again: move it to the top of the pending downloads
+                (fetch.background ? pendingBackgroundFetches : pendingFetches).remove(fetch);
+                fetch.background = false;
+                pendingFetches.addLast(fetch);
+            }
+            fetch.requests.add(request);
+            requests.put(request, fetch);
+            fetchesToStart = pollFetchesToStart();
+        }
+        fetchesToStart.forEach(this::start);
+        return request;
+    }
+
+    /**
+     * Cancels a request, if its download has not started yet.
+     * The download is dropped if no other request is waiting for it.
+     * A request whose download has started is not cancelled, it completes with the download.
+     *
+     * @param request the future returned by {@link #fetch(String, String, boolean)}.
+     */
+    public void cancel(CompletableFuture<byte[]> request) {
+        synchronized (this) {
+            Fetch fetch = requests.get(request);
+            if (fetch == null || fetch.started) {
+                return;
+            }
+            requests.remove(request);
+            fetch.requests.remove(request);
+            if (fetch.requests.isEmpty()) {
+                (fetch.background ? pendingBackgroundFetches : pendingFetches).remove(fetch);
+                fetches.remove(fetch.url);
+            }
+        }
+        // the callbacks of the caller run outside the lock
+        request.cancel(false);
+    }
+
+    /**
+     * Returns the maximum number of concurrent downloads from a host.
+     * The default value is read from the preference "strava.heatmap.tile.concurrency".
+     *
+     * @return the maximum number of concurrent downloads from a host.
+     */
+    public synchronized int getMaxConcurrentFetches() {
+        return maxConcurrentFetches;
+    }
+
+    /**
+     * Sets the maximum number of concurrent downloads from a host.
+     * The actual bound of each host adapts to its downloads below this value, unless the adaptation is disabled.
+     *
+     * @param maxConcurrentFetches the maximum number of concurrent downloads, at least 1.
+     */
+    public void setMaxConcurrentFetches(int maxConcurrentFetches) {
+        List<Fetch> fetchesToStart;
+        synchronized (this) {
+            this.maxConcurrentFetches = Math.max(1, maxConcurrentFetches);
+            for (Host host : hosts.values()) {
+                host.limit.setMaxLimit(this.maxConcurrentFetches);
+            }
+            fetchesToStart = pollFetchesToStart();
+        }
+        fetchesToStart.forEach(this::start);
+    }
+
+    private Host getHost(String url) {
+        String hostName;
+        try {
+            hostName = URI.create(url).getHost();
+        } catch (IllegalArgumentException e) {
+            hostName = null;
+        }
+        return hosts.computeIfAbsent(hostName == null ? "" : hostName, Host::new);
+    }
+
+    private List<Fetch> pollFetchesToStart() {
+        List<Fetch> fetchesToStart = new ArrayList<>();
+        for (Iterator<Fetch> iterator = pendingFetches.descendingIterator(); iterator.hasNext() && hasFreeSlot(false); ) {
+            Fetch fetch = iterator.next();
+            if (fetch.host.hasFreeSlot(false)) {
+                iterator.remove();
+                startLater(fetch, fetchesToStart);
+            }
+        }
+        if (pendingFetches.isEmpty()) {
+            // background downloads are started in first-in first-out order
+            for (Iterator<Fetch> iterator = pendingBackgroundFetches.iterator(); iterator.hasNext() && hasFreeSlot(true); ) {
+                Fetch fetch = iterator.next();
+                if (fetch.host.hasFreeSlot(true)) {
+                    iterator.remove();
+                    startLater(fetch, fetchesToStart);
+                }
+            }
+        }
+        return fetchesToStart;
+    }
+
+    /**
+     * Tests if a download can be started from any host, so that the pending downloads are not scanned in vain.
+     */
+    private boolean hasFreeSlot(boolean background) {
+        for (Host host : hosts.values()) {
+            if (host.hasFreeSlot(background)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void startLater(Fetch fetch, List<Fetch> fetchesToStart) {
+        fetch.started = true;
+        fetch.host.runningFetches++;
+        if (fetch.background) {
+            fetch.host.runningBackgroundFetches++;
+        }
+        fetchesToStart.add(fetch);
+    }
+
+    private void start(Fetch fetch) {
+        fetch.startNanos = System.nanoTime();
+        StravaHttpRequest request = new StravaHttpRequest();
+        request.setUri(fetch.url);
+        request.setCookieHeader(fetch.cookieHeader);
+        request.setBodyMode(StravaHttpRequest.BodyMode.BYTES);
+        request.setMaxBodyLength(MAX_TILE_LENGTH);
+        CompletableFuture<StravaHttpResponse> response;
+        try {
+            response = httpClient.get().sendRequestAsync(request);
+        } catch (RuntimeException e) {
+            // e.g. an invalid URL, or a client shut down: the slot of the download must still be released
+            complete(fetch, null, new CompletionException(new StravaHttpException(e)));
+            return;
+        }
+        response.whenComplete((httpResponse, throwable) -> complete(fetch, httpResponse, throwable));
+    }
+
+    private void complete(Fetch fetch, StravaHttpResponse response, Throwable throwable) {
+        StravaMetrics metrics = StravaMetrics.getInstance();
+        metrics.record(StravaMetrics.Step.TILE_FETCH, fetch.requestNanos);
+        boolean overloaded = throwable != null || StravaConcurrencyLimit.isOverloaded(response.getHttpStatusCode());
+        boolean fetched = throwable == null && response.getHttpStatusCode() == 200;
+        List<Fetch> fetchesToStart;
+        synchronized (this) {
+            Host host = fetch.host;
+            if (adaptive && overloaded) {
+                host.limit.onFailure();
+            } else if (adaptive && fetched) {
+                // the latency of the other responses, usually short error pages, tells nothing about the load
+                host.limit.onSuccess(System.nanoTime() - fetch.startNanos, host.runningFetches);
+            }
+            host.runningFetches--;
+            if (fetch.background) {
+                host.runningBackgroundFetches--;
+            }
+            metrics.recordTileConcurrencyLimit(host.name, host.getMaxFetches());
+            fetches.remove(fetch.url);
+            fetch.requests.forEach(requests::remove);
+            fetchesToStart = pollFetchesToStart();
+        }
+        if (fetched) {
+            metrics.recordTileFetched(fetch.host.name);
+        }
+        for (CompletableFuture<byte[]> request : fetch.requests) {
+            if (throwable != null) {
+                request.completeExceptionally(throwable);
+            } else if (response.getHttpStatusCode() != 200) {
+                request.completeExceptionally(new CompletionException(
+                        new StravaHttpException("Unable to download tile " + fetch.url + ": HTTP error code " + response.getHttpStatusCode())));
+            } else {
+                request.complete(response.getBodyBytes());
+            }
+        }
+        fetchesToStart.forEach(this::start);
+    }
+
+    private static String normalizeUrl(String url) {
+        return PATTERN_HEATMAP_HOST.matcher(url).replaceFirst(HEATMAP_HOST);
+    }
+
+    /**
+     * The downloads from a tile server.
+     */
+    private final class Host {
+        private final String name;
+        private final StravaConcurrencyLimit limit =
+                new StravaConcurrencyLimit(INITIAL_CONCURRENT_FETCHES, MIN_CONCURRENT_FETCHES, maxConcurrentFetches);
+        private int runningFetches;
+        private int runningBackgroundFetches;
+
+        private Host(String name) {
+            this.name = name;
+        }
+
+        private int getMaxFetches() {
+            return adaptive ? Math.min(limit.getLimit(), maxConcurrentFetches) : maxConcurrentFetches;
+        }
+
+        private boolean hasFreeSlot(boolean background) {
+            int maxFetches = getMaxFetches();
+            return runningFetches < maxFetches && (!background || runningBackgroundFetches < Math.max(1, maxFetches / 4));
+        }
+    }
+
+    /**
+     * The download of a tile, shared by all the callers requesting the same tile.
+     */
+    private static final class Fetch {
+        private final String url;
+        private final Host host;
+        private final String cookieHeader;
+        /**
+         * The futures of the requests waiting for the download, no longer modified once the download has completed.
+         */
+        private final List<CompletableFuture<byte[]>> requests = new ArrayList<>(1);
+        private final long requestNanos = System.nanoTime();
+        private long startNanos;
+        private boolean background;
+        private boolean started;
+
+        private Fetch(String url, Host host, String cookieHeader, boolean background) {
+            this.url = url;
+            this.host = host;
+            this.cookieHeader = cookieHeader;
+            this.background = background;
+        }
+    }
+}
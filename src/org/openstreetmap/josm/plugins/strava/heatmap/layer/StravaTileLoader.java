@@ -0,0 +1,345 @@
+package org.openstreetmap.josm.plugins.strava.heatmap.layer;
+
+import org.openstreetmap.gui.jmapviewer.Tile;
+import org.openstreetmap.gui.jmapviewer.interfaces.TileJob;
+import org.openstreetmap.gui.jmapviewer.interfaces.TileLoader;
+import org.openstreetmap.gui.jmapviewer.interfaces.TileLoaderListener;
+import org.openstreetmap.josm.plugins.strava.heatmap.cache.StravaTileStore;
+import org.openstreetmap.josm.plugins.strava.heatmap.metrics.StravaMetrics;
+import org.openstreetmap.josm.tools.Logging;
+import org.openstreetmap.josm.tools.Utils;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+/**
+ * Tile loader for the authenticated heatmap tiles.
+ * Tiles are served from the persistent {@link StravaTileStore} when available,
+ * otherwise they are downloaded by the {@link StravaTileFetcher} and added to the store.
+ * The tiles above zoom level 15 are resampled from their z15 parent tile, see {@link StravaOverzoomCache}.
+ * When the layer is recolored, the tiles are decoded into intensity images and displayed through the color model
+ * of the layer, see {@link StravaHeatmapPalette}.
+ */
+public class StravaTileLoader implements TileLoader {
+
+    private static ExecutorService tileStoreExecutor;
+
+    private final TileLoaderListener listener;
+    private final StravaTileStore tileStore;
+    private final StravaHeatmapLayer layer;
+    private final String tileStoreKey;
+
+    /**
+     * Identifies the decoded tiles of this loader in the overzoom cache.
+     * The intensity images of the recolored layers are not mixed up with the colored images of the other layers.
+     */
+    private final String overzoomNamespace;
+
+    /**
+     * The color model of the recolored tiles, or null if the layer is not recolored.
+     */
+    private volatile IndexColorModel colorModel;
+
+    /**
+     * The tiles displayed by this loader, so that they can be recolored in place.
+     */
+    private final Set<Tile> loadedTiles = Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<>()));
+    private final StravaTileFetcher tileFetcher = StravaTileFetcher.getInstance();
+    private final StravaOverzoomCache overzoomCache = StravaOverzoomCache.getInstance();
+
+    /**
+     * The requests of the tiles downloaded by this loader and not yet completed, so that they can be cancelled.
+     */
+    private final Set<CompletableFuture<byte[]>> pendingRequests = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Creates a tile loader.
+     *
+     * @param listener  the listener notified when a tile is loaded, usually the layer.
+     * @param tileStore the tile store, or null if the store is not available.
+     * @param layer     the layer, providing the tile store key, the color model and the current authentication cookies,
+     *                  so that renewed cookies are used without recreating the loader.
+     */
+    public StravaTileLoader(TileLoaderListener listener, StravaTileStore tileStore, StravaHeatmapLayer layer) {
+        this.listener = listener;
+        this.tileStore = tileStore;
+        this.layer = layer;
+        this.tileStoreKey = layer.getTileStoreKey();
+        this.colorModel = layer.getColorModel();
+        this.overzoomNamespace = colorModel != null ? tileStoreKey + "#intensity" : tileStoreKey;
+    }
+
+    @Override
+    public TileJob createTileLoaderJob(Tile tile) {
+        return new StravaTileJob(tile);
+    }
+
+    @Override
+    public void cancelOutstandingTasks() {
+        for (CompletableFuture<byte[]> request : pendingRequests) {
+            tileFetcher.cancel(request);
+        }
+    }
+
+    /**
+     * Applies a new color scheme to the tiles already loaded, without decoding or downloading them again.
+     * Does nothing if the layer was not recolored when the loader was created.
+     *
+     * @param newColorModel the new color model of the layer.
+     */
+    public void recolorLoadedTiles(IndexColorModel newColorModel) {
+        if (colorModel == null) {
+            return;
+        }
+        colorModel = newColorModel;
+        synchronized (loadedTiles) {
+            for (Tile tile : loadedTiles) {
+                BufferedImage image = tile.getImage();
+                if (image != null && image.getColorModel() instanceof IndexColorModel) {
+                    tile.setImage(StravaHeatmapPalette.recolor(image, newColorModel));
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops the thread reading the tile store.
+     * Called when the plugin is unloaded.
+     */
+    public static synchronized void shutdown() {
+        if (tileStoreExecutor != null) {
+            tileStoreExecutor.shutdownNow();
+            tileStoreExecutor = null;
+        }
+    }
+
+    /**
+     * Returns the threads reading and decoding the stored tiles, shut down when the plugin is unloaded.
+     *
+     * @return the executor of the tile store reads.
+     */
+    public static synchronized ExecutorService getTileStoreExecutor() {
+        if (tileStoreExecutor == null) {
+            tileStoreExecutor = Executors.newFixedThreadPool(2,
+                    Utils.newThreadFactory("strava-heatmap-tile-store-%d", Thread.NORM_PRIORITY));
+        }
+        return tileStoreExecutor;
+    }
+
+    /**
+     * Loads a tile from the store, falls back to the network if the tile is not in the store.
+     */
+    private final class StravaTileJob implements TileJob {
+
+        private final Tile tile;
+
+        private StravaTileJob(Tile tile) {
+            this.tile = tile;
+        }
+
+        @Override
+        public void submit() {
+            submit(false);
+        }
+
+        @Override
+        public void submit(boolean force) {
+            tile.initLoading();
+            if (StravaOverzoomCache.isOverzoomed(tile.getZoom())) {
+                submitOverzoomed(force);
+                return;
+            }
+            if (force || tileStore == null) {
+                // a forced reload bypasses the store
+                download();
+                return;
+            }
+            getTileStoreExecutor().execute(() -> {
+                byte[] encodedImage = tileStore.get(tileStoreKey, tile.getZoom(), tile.getXtile(), tile.getYtile());
+                if (encodedImage != null && loadImage(encodedImage)) {
+                    StravaMetrics.getInstance().recordTileStoreHit();
+                } else {
+                    StravaMetrics.getInstance().recordTileStoreMiss();
+                    download();
+                }
+            });
+        }
+
+        /**
+         * Serves an overzoomed tile from the overzoom cache, or resamples it from its parent tile,
+         * read from the overzoom cache, from the store or from the network.
+         * A forced reload downloads the parent tile again.
+         */
+        private void submitOverzoomed(boolean force) {
+            int zoom = tile.getZoom();
+            BufferedImage image = force ? null
+                    : overzoomCache.get(StravaOverzoomCache.getKey(overzoomNamespace, zoom, tile.getXtile(), tile.getYtile()));
+            if (image != null) {
+                setImage(image);
+                return;
+            }
+            int parentX = StravaOverzoomCache.getParentCoordinate(tile.getXtile(), zoom);
+            int parentY = StravaOverzoomCache.getParentCoordinate(tile.getYtile(), zoom);
+            String parentKey = StravaOverzoomCache.getKey(overzoomNamespace, StravaOverzoomCache.MAX_NATIVE_ZOOM, parentX, parentY);
+            getTileStoreExecutor().execute(() -> {
+                BufferedImage parent = force ? null : overzoomCache.get(parentKey);
+                if (parent == null && !force && tileStore != null) {
+                    byte[] encodedImage = tileStore.get(tileStoreKey, StravaOverzoomCache.MAX_NATIVE_ZOOM, parentX, parentY);
+                    if (encodedImage != null) {
+                        StravaMetrics.getInstance().recordTileStoreHit();
+                        parent = decode(encodedImage);
+                    } else {
+                        StravaMetrics.getInstance().recordTileStoreMiss();
+                    }
+                    if (parent != null) {
+                        overzoomCache.put(parentKey, parent);
+                    }
+                }
+                if (parent != null) {
+                    setOverzoomedImage(parent, force);
+                } else {
+                    downloadParent(parentX, parentY, parentKey, force);
+                }
+            });
+        }
+
+        private void downloadParent(int parentX, int parentY, String parentKey, boolean force) {
+            String url;
+            try {
+                url = layer.getRequestedUrl(tile.getSource().getTileUrl(StravaOverzoomCache.MAX_NATIVE_ZOOM, parentX, parentY));
+            } catch (IOException e) {
+                finish(e);
+                return;
+            }
+            download(url, encodedImage -> {
+                BufferedImage parent = decode(encodedImage);
+                if (parent == null) {
+                    finish(new IOException("Unable to decode tile " + url));
+                    return;
+                }
+                if (tileStore != null) {
+                    tileStore.put(tileStoreKey, StravaOverzoomCache.MAX_NATIVE_ZOOM, parentX, parentY, encodedImage);
+                }
+                overzoomCache.put(parentKey, parent);
+                setOverzoomedImage(parent, force);
+            });
+        }
+
+        private void setOverzoomedImage(BufferedImage parent, boolean force) {
+            int zoom = tile.getZoom();
+            BufferedImage image;
+            if (force) {
+                image = StravaOverzoomCache.resample(parent, zoom, tile.getXtile(), tile.getYtile());
+                overzoomCache.put(StravaOverzoomCache.getKey(overzoomNamespace, zoom, tile.getXtile(), tile.getYtile()), image);
+            } else {
+                image = overzoomCache.getOverzoomedTile(overzoomNamespace, parent, zoom, tile.getXtile(), tile.getYtile());
+            }
+            setImage(image);
+        }
+
+        private void download() {
+            String url;
+            try {
+                url = layer.getRequestedUrl(tile.getUrl());
+            } catch (IOException e) {
+                finish(e);
+                return;
+            }
+            download(url, encodedImage -> {
+                if (!loadImage(encodedImage)) {
+                    finish(new IOException("Unable to decode tile " + url));
+                } else if (tileStore != null) {
+                    tileStore.put(tileStoreKey, tile.getZoom(), tile.getXtile(), tile.getYtile(), encodedImage);
+                }
+            });
+        }
+
+        private void download(String url, Consumer<byte[]> downloadedImageConsumer) {
+            CompletableFuture<byte[]> request = tileFetcher.fetch(url, layer.getInfo().getCookies());
+            pendingRequests.add(request);
+            request.whenComplete((encodedImage, throwable) -> {
+                pendingRequests.remove(request);
+                if (throwable != null) {
+                    finish(throwable);
+                } else {
+                    downloadedImageConsumer.accept(encodedImage);
+                }
+            });
+        }
+
+        /**
+         * Decodes a tile, into an intensity image if the layer is recolored.
+         *
+         * @return the decoded image, or null if the tile cannot be decoded.
+         */
+        private BufferedImage decode(byte[] encodedImage) {
+            BufferedImage image;
+            try {
+                image = ImageIO.read(new ByteArrayInputStream(encodedImage));
+            } catch (IOException e) {
+                Logging.warn(e);
+                return null;
+            }
+            return image != null && colorModel != null ? StravaHeatmapPalette.toIntensityImage(image) : image;
+        }
+
+        private void setImage(BufferedImage image) {
+            IndexColorModel currentColorModel = colorModel;
+            if (currentColorModel != null && image.getType() == BufferedImage.TYPE_BYTE_GRAY) {
+                image = StravaHeatmapPalette.recolor(image, currentColorModel);
+                // the tiles are equal by their coordinates, the tile of the current tile source replaces the previous one
+                loadedTiles.remove(tile);
+                loadedTiles.add(tile);
+            }
+            tile.setImage(image);
+            tile.finishLoading();
+            listener.tileLoadingFinished(tile, true);
+        }
+
+        private boolean loadImage(byte[] encodedImage) {
+            if (colorModel != null) {
+                BufferedImage image = decode(encodedImage);
+                if (image == null) {
+                    return false;
+                }
+                setImage(image);
+                return true;
+            }
+            try {
+                tile.loadImage(new ByteArrayInputStream(encodedImage));
+            } catch (IOException e) {
+                Logging.warn(e);
+                return false;
+            }
+            tile.finishLoading();
+            listener.tileLoadingFinished(tile, true);
+            return true;
+        }
+
+        private void finish(Throwable throwable) {
+            Throwable cause = throwable instanceof CompletionException && throwable.getCause() != null ? throwable.getCause() : throwable;
+            tile.finishLoading();
+            if (cause instanceof CancellationException) {
+                // the tile will be requested again when it becomes visible
+                tile.setLoaded(false);
+            } else {
+                Logging.warn(cause.getMessage());
+                tile.setError(cause.getMessage());
+            }
+            listener.tileLoadingFinished(tile, false);
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package org.openstreetmap.josm.plugins.strava.heatmap.layer;
+
+import org.openstreetmap.josm.data.Bounds;
+import org.openstreetmap.josm.gui.MainApplication;
+import org.openstreetmap.josm.gui.PleaseWaitRunnable;
+import org.openstreetmap.josm.plugins.strava.heatmap.authentication.StravaAuthenticationService;
+import org.openstreetmap.josm.plugins.strava.heatmap.cache.StravaTilePackWriter;
+import org.openstreetmap.josm.plugins.strava.heatmap.cache.StravaTileStore;
+import org.openstreetmap.josm.spi.preferences.Config;
+import org.openstreetmap.josm.tools.I18n;
+import org.openstreetmap.josm.tools.Logging;
+
+import javax.swing.*;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Exports the authenticated heatmap tiles of an area into a region pack, see {@link StravaTilePackWriter}.
+ * <ul>
+ * <li>The tiles already in the {@link StravaTileStore} are copied, the other tiles are downloaded
+ * by the {@link StravaTileFetcher}.</li>
+ * <li>Several tiles are downloaded in parallel, their number is read from the preference "strava.heatmap.pack.workers".</li>
+ * <li>The number of tiles of a pack is limited by the preference "strava.heatmap.pack.maxtiles".</li>
+ * </ul>
+ */
+public class StravaTilePackExportTask extends PleaseWaitRunnable {
+
+    private static final int DEFAULT_WORKERS = 8;
+    private static final int DEFAULT_MAX_TILES = 50000;
+
+    private final StravaHeatmapLayer layer;
+    private final Bounds bounds;
+    private final int minZoom;
+    private final int maxZoom;
+    private final File file;
+
+    private final AtomicInteger failedTiles = new AtomicInteger();
+    private final AtomicReference<IOException> writeFailure = new AtomicReference<>();
+    private volatile boolean cancelled;
+    private String errorMessage;
+    private int exportedTiles;
+
+    /**
+     * Creates the export task.
+     *
+     * @param layer   the authenticated heatmap layer to export.
+     * @param bounds  the area to export.
+     * @param minZoom the lowest zoom level to export.
+     * @param maxZoom the highest zoom level to export.
+     * @param file    the region pack file.
+     */
+    public StravaTilePackExportTask(StravaHeatmapLayer layer, Bounds bounds, int minZoom, int maxZoom, File file) {
+        super(I18n.tr("Exporting the Strava heatmap"));
+        this.layer = layer;
+        this.bounds = bounds;
+        this.minZoom = minZoom;
+        this.maxZoom = maxZoom;
+        this.file = file;
+    }
+
+    /**
+     * Returns the number of tiles of the area.
+     *
+     * @param bounds  the area to export.
+     * @param minZoom the lowest zoom level to export.
+     * @param maxZoom the highest zoom level to export.
+     * @return the number of tiles.
+     */
+    public static long getTileCount(Bounds bounds, int minZoom, int maxZoom) {
+        long tileCount = 0;
+        for (int zoom = minZoom; zoom <= maxZoom; zoom++) {
+            tileCount += new StravaTileRange(bounds, zoom).getTileCount();
+        }
+        return tileCount;
+    }
+
+    /**
+     * Returns the maximum number of tiles of a region pack.
+     * The value is read from the preference "strava.heatmap.pack.maxtiles".
+     *
+     * @return the maximum number of tiles.
+     */
+    public static int getMaxTileCount() {
+        return Config.getPref().getInt("strava.heatmap.pack.maxtiles", DEFAULT_MAX_TILES);
+    }
+
+    @Override
+    protected void realRun() throws IOException {
+        String tileStoreKey = layer.getTileStoreKey();
+        if (tileStoreKey == null) {
+            errorMessage = I18n.tr("The Strava heatmap layer is not authenticated.");
+            return;
+        }
+        String cookies;
+        try {
+            cookies = StravaAuthenticationService.getInstance().getCookiesAsHttpHeaderAsync().join();
+        } catch (CompletionException e) {
+            Logging.error(e.getCause());
+            errorMessage = I18n.tr("Authentication on the Strava website failed.");
+            return;
+        }
+
+        List<StravaTileRange> ranges = new ArrayList<>();
+        for (int zoom = minZoom; zoom <= maxZoom; zoom++) {
+            ranges.add(new StravaTileRange(bounds, zoom));
+        }
+        getProgressMonitor().setTicksCount((int) getTileCount(bounds, minZoom, maxZoom));
+
+        StravaTileStore tileStore = StravaTileStore.getInstance();
+        StravaTileFetcher tileFetcher = StravaTileFetcher.getInstance();
+        int workerCount = Math.max(1, Config.getPref().getInt("strava.heatmap.pack.workers", DEFAULT_WORKERS));
+        Semaphore workers = new Semaphore(workerCount);
+        try (StravaTilePackWriter writer = new StravaTilePackWriter(file)) {
+            for (StravaTileRange range : ranges) {
+                getProgressMonitor().setCustomText(I18n.tr("Zoom level {0}", range.getZoom()));
+                for (int x = range.getMinX(); x <= range.getMaxX() && !cancelled; x++) {
+                    for (int y = range.getMinY(); y <= range.getMaxY() && !cancelled; y++) {
+                        int zoom = range.getZoom();
+                        int tileX = x;
+                        int tileY = y;
+                        byte[] storedTile = tileStore == null ? null : tileStore.get(tileStoreKey, zoom, x, y);
+                        if (storedTile != null) {
+                            addTile(writer, zoom, tileX, tileY, storedTile);
+                            continue;
+                        }
+                        workers.acquireUninterruptibly();
+                        tileFetcher.fetch(layer.getTileUrl(zoom, x, y), cookies).whenComplete((encodedImage, throwable) -> {
+                            try {
+                                if (throwable != null) {
+                                    failedTiles.incrementAndGet();
+                                    Logging.debug(throwable);
+                                    getProgressMonitor().worked(1);
+                                } else {
+                                    if (tileStore != null) {
+                                        tileStore.put(tileStoreKey, zoom, tileX, tileY, encodedImage);
+                                    }
+                                    addTile(writer, zoom, tileX, tileY, encodedImage);
+                                }
+                            } finally {
+                                // released once the tile is written, so that the pack is finished after the last tile
+                                workers.release();
+                            }
+                        });
+                    }
+                }
+            }
+            // wait for the last downloads
+            workers.acquireUninterruptibly(workerCount);
+            if (writeFailure.get() != null) {
+                throw writeFailure.get();
+            }
+            if (!cancelled) {
+                exportedTiles = writer.getTileCount();
+                writer.finish(layer.getName());
+            }
+        }
+    }
+
+    private void addTile(StravaTilePackWriter writer, int zoom, int x, int y, byte[] encodedImage) {
+        try {
+            writer.addTile(zoom, x, y, encodedImage);
+        } catch (IOException e) {
+            writeFailure.compareAndSet(null, e);
+            cancelled = true;
+        }
+        getProgressMonitor().worked(1);
+    }
+
+    @Override
+    protected void finish() {
+        if (errorMessage != null) {
+            JOptionPane.showMessageDialog(MainApplication.getMainFrame(), errorMessage,
+                    I18n.tr("Error"), JOptionPane.ERROR_MESSAGE);
+        } else if (!cancelled) {
+            Logging.info("Strava heatmap region pack " + file + ": " + exportedTiles + " tiles exported, " + failedTiles.get() + " failed");
+            if (failedTiles.get() > 0) {
+                JOptionPane.showMessageDialog(MainApplication.getMainFrame(),
+                        I18n.tr("{0} tiles could not be downloaded and are missing from the region pack.", failedTiles.get()),
+                        I18n.tr("Warning"), JOptionPane.WARNING_MESSAGE);
+            }
+        }
+    }
+
+    @Override
+    protected void cancel() {
+        cancelled = true;
+    }
+}
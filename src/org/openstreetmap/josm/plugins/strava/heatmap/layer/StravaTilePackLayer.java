@@ -0,0 +1,45 @@
+package org.openstreetmap.josm.plugins.strava.heatmap.layer;
+
+import org.openstreetmap.josm.data.imagery.ImageryInfo;
+import org.openstreetmap.josm.data.imagery.TileLoaderFactory;
+import org.openstreetmap.josm.gui.layer.TMSLayer;
+import org.openstreetmap.josm.plugins.strava.heatmap.cache.StravaTilePackReader;
+import org.openstreetmap.josm.tools.I18n;
+
+/**
+ * A read-only TMS layer displaying the heatmap tiles of a region pack, without network access.
+ */
+public class StravaTilePackLayer extends TMSLayer {
+
+    private final StravaTilePackReader reader;
+
+    /**
+     * Creates a layer displaying a region pack. The region pack is closed when the layer is closed.
+     *
+     * @param reader the region pack.
+     */
+    public StravaTilePackLayer(StravaTilePackReader reader) {
+        super(createImageryInfo(reader));
+        this.reader = reader;
+    }
+
+    private static ImageryInfo createImageryInfo(StravaTilePackReader reader) {
+        // the URL is never requested, the tiles are read by the StravaTilePackTileLoader
+        ImageryInfo info = new ImageryInfo(I18n.tr("{0} (offline)", reader.getMetadata()),
+                reader.getFile().toURI() + "/{zoom}/{x}/{y}.png", "tms", null, null);
+        info.setDefaultMinZoom(reader.getMinZoom());
+        info.setDefaultMaxZoom(reader.getMaxZoom());
+        return info;
+    }
+
+    @Override
+    protected TileLoaderFactory getTileLoaderFactory() {
+        return (listener, headers, minimumExpiryTime) -> new StravaTilePackTileLoader(listener, reader);
+    }
+
+    @Override
+    public synchronized void destroy() {
+        super.destroy();
+        reader.close();
+    }
+}
@@ -0,0 +1,69 @@
+package org.openstreetmap.josm.plugins.strava.heatmap.layer;
+
+import org.openstreetmap.gui.jmapviewer.Tile;
+import org.openstreetmap.gui.jmapviewer.interfaces.TileJob;
+import org.openstreetmap.gui.jmapviewer.interfaces.TileLoader;
+import org.openstreetmap.gui.jmapviewer.interfaces.TileLoaderListener;
+import org.openstreetmap.josm.plugins.strava.heatmap.cache.StravaTilePackReader;
+import org.openstreetmap.josm.tools.I18n;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+/**
+ * Tile loader reading the tiles from a region pack. Never accesses the network.
+ */
+public class StravaTilePackTileLoader implements TileLoader {
+
+    private final TileLoaderListener listener;
+    private final StravaTilePackReader reader;
+
+    /**
+     * Creates a tile loader.
+     *
+     * @param listener the listener notified when a tile is loaded, usually the layer.
+     * @param reader   the region pack.
+     */
+    public StravaTilePackTileLoader(TileLoaderListener listener, StravaTilePackReader reader) {
+        this.listener = listener;
+        this.reader = reader;
+    }
+
+    @Override
+    public TileJob createTileLoaderJob(Tile tile) {
+        return new TileJob() {
+            @Override
+            public void submit() {
+                submit(false);
+            }
+
+            @Override
+            public void submit(boolean force) {
+                tile.initLoading();
+                StravaTileLoader.getTileStoreExecutor().execute(() -> load(tile));
+            }
+        };
+    }
+
+    @Override
+    public void cancelOutstandingTasks() {
+        // the tiles are read from a local file: there is nothing worth cancelling
+    }
+
+    private void load(Tile tile) {
+        byte[] encodedImage = reader.getTile(tile.getZoom(), tile.getXtile(), tile.getYtile());
+        boolean success = false;
+        if (encodedImage == null) {
+            tile.setError(I18n.tr("Tile not in the region pack"));
+        } else {
+            try {
+                tile.loadImage(new ByteArrayInputStream(encodedImage));
+                success = true;
+            } catch (IOException e) {
+                tile.setError(e.getMessage());
+            }
+        }
+        tile.finishLoading();
+        listener.tileLoadingFinished(tile, success);
+    }
+}
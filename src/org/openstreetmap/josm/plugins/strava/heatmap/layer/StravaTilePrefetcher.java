@@ -0,0 +1,236 @@
+package org.openstreetmap.josm.plugins.strava.heatmap.layer;
+
+import org.openstreetmap.josm.data.Bounds;
+import org.openstreetmap.josm.plugins.strava.heatmap.cache.StravaTileStore;
+import org.openstreetmap.josm.spi.preferences.Config;
+import org.openstreetmap.josm.tools.Logging;
+import org.openstreetmap.josm.tools.Utils;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Downloads in the background the heatmap tiles covering the downloaded areas of a data layer,
+ * so that the heatmap is displayed from the {@link StravaTileStore} when the user pans and zooms while mapping.
+ * <ul>
+ * <li>The tiles are requested zoom level by zoom level, from the lowest zoom level to the highest.</li>
+ * <li>The tiles already in the store are skipped.</li>
+ * <li>The downloads are low-priority downloads of the {@link StravaTileFetcher}, they never delay the tiles of the current view.</li>
+ * <li>The number of downloaded tiles is limited by the preference "strava.heatmap.prefetch.budget".</li>
+ * </ul>
+ */
+public final class StravaTilePrefetcher {
+
+    private static final int DEFAULT_MIN_ZOOM = 12;
+    private static final int DEFAULT_MAX_ZOOM = 15;
+    private static final int DEFAULT_BUDGET = 2000;
+
+    /**
+     * The maximum number of tiles handed to the tile fetcher at the same time.
+     */
+    private static final int MAX_OUTSTANDING_FETCHES = 4;
+
+    private static ExecutorService executor;
+    private static PrefetchTask currentTask;
+    private static Future<?> currentFuture;
+
+    private StravaTilePrefetcher() {
+        // utility class
+    }
+
+    /**
+     * Starts downloading the tiles of the given layers covering the given areas.
+     * A prefetch already running is cancelled.
+     * Does nothing if the tile store is not available, since the downloaded tiles could not be kept.
+     *
+     * @param layers the authenticated heatmap layers.
+     * @param bounds the areas to cover, usually the data source bounds of the edited data set.
+     */
+    public static synchronized void prefetch(List<StravaHeatmapLayer> layers, List<Bounds> bounds) {
+        cancelPrefetch();
+        StravaTileStore tileStore = StravaTileStore.getInstance();
+        if (tileStore == null || bounds.isEmpty()) {
+            return;
+        }
+        List<PrefetchLayer> prefetchLayers = new ArrayList<>();
+        for (StravaHeatmapLayer layer : layers) {
+            String tileStoreKey = layer.getTileStoreKey();
+            if (tileStoreKey != null) {
+                prefetchLayers.add(new PrefetchLayer(layer, tileStoreKey));
+            }
+        }
+        if (prefetchLayers.isEmpty()) {
+            return;
+        }
+        if (executor == null) {
+            executor = Executors.newSingleThreadExecutor(Utils.newThreadFactory("strava-heatmap-prefetch-%d", Thread.MIN_PRIORITY));
+        }
+        currentTask = new PrefetchTask(tileStore, prefetchLayers, new ArrayList<>(bounds));
+        currentFuture = executor.submit(currentTask);
+    }
+
+    /**
+     * Cancels the running prefetch, if any.
+     * The tile downloads not yet started are cancelled, the ongoing downloads complete normally.
+     */
+    public static synchronized void cancelPrefetch() {
+        if (currentTask != null) {
+            currentTask.cancel();
+            currentFuture.cancel(true);
+            currentTask = null;
+            currentFuture = null;
+        }
+    }
+
+    /**
+     * Tests if a prefetch is running.
+     *
+     * @return true if a prefetch is running.
+     */
+    public static synchronized boolean isPrefetching() {
+        return currentFuture != null && !currentFuture.isDone();
+    }
+
+    /**
+     * Cancels the running prefetch and stops the prefetch thread.
+     * Called when the plugin is unloaded.
+     */
+    public static synchronized void shutdown() {
+        cancelPrefetch();
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    private static final class PrefetchLayer {
+        private final StravaHeatmapLayer layer;
+        private final String tileStoreKey;
+
+        private PrefetchLayer(StravaHeatmapLayer layer, String tileStoreKey) {
+            this.layer = layer;
+            this.tileStoreKey = tileStoreKey;
+        }
+    }
+
+    private static final class PrefetchTask implements Runnable {
+
+        private final StravaTileStore tileStore;
+        private final List<PrefetchLayer> layers;
+        private final List<Bounds> bounds;
+        private final StravaTileFetcher tileFetcher = StravaTileFetcher.getInstance();
+        private final Semaphore outstandingFetches = new Semaphore(MAX_OUTSTANDING_FETCHES);
+        private final Set<CompletableFuture<byte[]>> pendingRequests = new HashSet<>();
+        private final AtomicInteger downloadedTiles = new AtomicInteger();
+        private final AtomicInteger failedTiles = new AtomicInteger();
+        private volatile boolean cancelled;
+
+        private PrefetchTask(StravaTileStore tileStore, List<PrefetchLayer> layers, List<Bounds> bounds) {
+            this.tileStore = tileStore;
+            this.layers = layers;
+            this.bounds = bounds;
+        }
+
+        @Override
+        public void run() {
+            int minZoom = Config.getPref().getInt("strava.heatmap.prefetch.minzoom", DEFAULT_MIN_ZOOM);
+            int maxZoom = Config.getPref().getInt("strava.heatmap.prefetch.maxzoom", DEFAULT_MAX_ZOOM);
+            int budget = Config.getPref().getInt("strava.heatmap.prefetch.budget", DEFAULT_BUDGET);
+            int requestedTiles = 0;
+            try {
+                for (int zoom = minZoom; zoom <= maxZoom; zoom++) {
+                    // the tiles are enumerated lazily, the budget may be used up long before the whole areas are covered
+                    List<StravaTileRange> ranges = new ArrayList<>(bounds.size());
+                    for (Bounds area : bounds) {
+                        StravaTileRange range = new StravaTileRange(area, zoom);
+                        for (int x = range.getMinX(); x <= range.getMaxX(); x++) {
+                            for (int y = range.getMinY(); y <= range.getMaxY(); y++) {
+                                // the areas of a data set often overlap: each tile is requested once
+                                if (isInAnyRange(ranges, x, y)) {
+                                    continue;
+                                }
+                                for (PrefetchLayer layer : layers) {
+                                    if (cancelled || requestedTiles >= budget) {
+                                        return;
+                                    }
+                                    if (prefetchTile(layer, zoom, x, y)) {
+                                        requestedTiles++;
+                                    }
+                                }
+                            }
+                        }
+                        ranges.add(range);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                Logging.info("Strava heatmap prefetch " + (cancelled ? "cancelled" : "finished") + ": " + requestedTiles + " tiles requested, "
+                        + downloadedTiles.get() + " downloaded, " + failedTiles.get() + " failed");
+            }
+        }
+
+        private static boolean isInAnyRange(List<StravaTileRange> ranges, int x, int y) {
+            for (StravaTileRange range : ranges) {
+                if (range.contains(x, y)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Requests a tile if it is not in the store.
+         * Blocks while the maximum number of tiles are being downloaded.
+         *
+         * @return true if the tile has been requested.
+         */
+        private boolean prefetchTile(PrefetchLayer layer, int zoom, int x, int y) throws InterruptedException {
+            if (tileStore.contains(layer.tileStoreKey, zoom, x, y)) {
+                return false;
+            }
+            outstandingFetches.acquire();
+            String url = layer.layer.getTileUrl(zoom, x, y);
+            CompletableFuture<byte[]> request;
+            synchronized (pendingRequests) {
+                if (cancelled) {
+                    outstandingFetches.release();
+                    return false;
+                }
+                request = tileFetcher.fetch(url, layer.layer.getInfo().getCookies(), true);
+                pendingRequests.add(request);
+            }
+            request.whenComplete((encodedImage, throwable) -> {
+                synchronized (pendingRequests) {
+                    pendingRequests.remove(request);
+                }
+                outstandingFetches.release();
+                if (throwable == null) {
+                    tileStore.put(layer.tileStoreKey, zoom, x, y, encodedImage);
+                    downloadedTiles.incrementAndGet();
+                } else if (!cancelled) {
+                    failedTiles.incrementAndGet();
+                    Logging.debug(throwable);
+                }
+            });
+            return true;
+        }
+
+        private void cancel() {
+            List<CompletableFuture<byte[]>> requests;
+            synchronized (pendingRequests) {
+                cancelled = true;
+                requests = new ArrayList<>(pendingRequests);
+            }
+            requests.forEach(tileFetcher::cancel);
+        }
+    }
+}
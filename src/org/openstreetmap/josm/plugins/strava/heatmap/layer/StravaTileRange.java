@@ -0,0 +1,148 @@
+package org.openstreetmap.josm.plugins.strava.heatmap.layer;
+
+import org.openstreetmap.josm.data.Bounds;
+import org.openstreetmap.josm.data.coor.LatLon;
+
+/**
+ * The range of web mercator tiles covering an area at a zoom level.
+ */
+public final class StravaTileRange {
+
+    private static final double MAX_LATITUDE = 85.05112878;
+
+    private final int zoom;
+    private final int minX;
+    private final int maxX;
+    private final int minY;
+    private final int maxY;
+
+    /**
+     * Computes the tiles covering an area.
+     *
+     * @param bounds the area.
+     * @param zoom   the zoom level.
+     */
+    public StravaTileRange(Bounds bounds, int zoom) {
+        this.zoom = zoom;
+        this.minX = lonToTileX(bounds.getMinLon(), zoom);
+        this.maxX = lonToTileX(bounds.getMaxLon(), zoom);
+        // the tile y coordinate grows southwards
+        this.minY = latToTileY(bounds.getMaxLat(), zoom);
+        this.maxY = latToTileY(bounds.getMinLat(), zoom);
+    }
+
+    /**
+     * Returns the zoom level.
+     *
+     * @return the zoom level.
+     */
+    public int getZoom() {
+        return zoom;
+    }
+
+    /**
+     * Returns the lowest tile x coordinate.
+     *
+     * @return the lowest tile x coordinate.
+     */
+    public int getMinX() {
+        return minX;
+    }
+
+    /**
+     * Returns the highest tile x coordinate.
+     *
+     * @return the highest tile x coordinate.
+     */
+    public int getMaxX() {
+        return maxX;
+    }
+
+    /**
+     * Returns the lowest tile y coordinate, at the north.
+     *
+     * @return the lowest tile y coordinate, at the north.
+     */
+    public int getMinY() {
+        return minY;
+    }
+
+    /**
+     * Returns the highest tile y coordinate, at the south.
+     *
+     * @return the highest tile y coordinate, at the south.
+     */
+    public int getMaxY() {
+        return maxY;
+    }
+
+    /**
+     * Returns the number of tiles of the range.
+     *
+     * @return the number of tiles.
+     */
+    public long getTileCount() {
+        return (long) (maxX - minX + 1) * (maxY - minY + 1);
+    }
+
+    /**
+     * Tests if a tile is in the range.
+     *
+     * @param x the tile x coordinate.
+     * @param y the tile y coordinate.
+     * @return true if the tile is in the range.
+     */
+    public boolean contains(int x, int y) {
+        return x >= minX && x <= maxX && y >= minY && y <= maxY;
+    }
+
+    /**
+     * Returns the coordinates of a point given in tile coordinates, e.g. (x + 0.5, y + 0.5) for the center of a tile.
+     *
+     * @param zoom  the zoom level.
+     * @param tileX the x tile coordinate, with a fractional part.
+     * @param tileY the y tile coordinate, with a fractional part.
+     * @return the coordinates.
+     */
+    public static LatLon toLatLon(int zoom, double tileX, double tileY) {
+        double tileCount = 1 << zoom;
+        double lon = tileX / tileCount * 360 - 180;
+        double lat = Math.toDegrees(Math.atan(Math.sinh(Math.PI * (1 - 2 * tileY / tileCount))));
+        return new LatLon(lat, lon);
+    }
+
+    /**
+     * Returns the tile x coordinate of a longitude.
+     *
+     * @param lon  the longitude.
+     * @param zoom the zoom level.
+     * @return the tile x coordinate, with a fractional part.
+     */
+    public static double toTileX(double lon, int zoom) {
+        return (lon + 180) / 360 * (1 << zoom);
+    }
+
+    /**
+     * Returns the tile y coordinate of a latitude.
+     *
+     * @param lat  the latitude, clamped to the latitudes covered by the web mercator projection.
+     * @param zoom the zoom level.
+     * @return the tile y coordinate, with a fractional part.
+     */
+    public static double toTileY(double lat, int zoom) {
+        double latRad = Math.toRadians(Math.max(-MAX_LATITUDE, Math.min(MAX_LATITUDE, lat)));
+        return (1 - Math.log(Math.tan(latRad) + 1 / Math.cos(latRad)) / Math.PI) / 2 * (1 << zoom);
+    }
+
+    private static int lonToTileX(double lon, int zoom) {
+        return clamp((int) Math.floor(toTileX(lon, zoom)), zoom);
+    }
+
+    private static int latToTileY(double lat, int zoom) {
+        return clamp((int) Math.floor(toTileY(lat, zoom)), zoom);
+    }
+
+    private static int clamp(int tile, int zoom) {
+        return Math.max(0, Math.min((1 << zoom) - 1, tile));
+    }
+}
@@ -0,0 +1,140 @@
+package org.openstreetmap.josm.plugins.strava.heatmap.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of latencies, cheap enough to record every request.
+ * <p>
+ * The latencies are counted in microseconds into log-linear buckets: each power of two is split into 4 buckets,
+ * so that a percentile is known within 25% whatever the latency. Recording a latency updates two counters
+ * and never takes a lock.
+ */
+public class StravaLatencyHistogram {
+
+    /**
+     * The number of buckets per power of two, as a power of two.
+     */
+    private static final int SUB_BUCKET_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * Latencies up to 2^36 microseconds (19 hours) are told apart, longer latencies are counted in the last bucket.
+     */
+    private static final int MAX_EXPONENT = 36;
+    private static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final LongAdder totalMicros = new LongAdder();
+    private final LongAccumulator maxMicros = new LongAccumulator(Math::max, 0);
+
+    /**
+     * Records a latency.
+     *
+     * @param nanos the latency, in nanoseconds.
+     */
+    public void record(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        buckets.incrementAndGet(bucketIndex(micros));
+        totalMicros.add(micros);
+        maxMicros.accumulate(micros);
+    }
+
+    /**
+     * Returns the bucket of a latency.
+     * The latencies below {@link #SUB_BUCKETS} microseconds have a bucket each, the other latencies are bucketed
+     * according to their highest bit and the {@link #SUB_BUCKET_BITS} bits that follow.
+     */
+    static int bucketIndex(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKET_COUNT - 1;
+        }
+        int subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * Returns the highest latency of a bucket.
+     */
+    static long bucketUpperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        if (index == BUCKET_COUNT - 1) {
+            // the longer latencies are counted in the last bucket
+            return Long.MAX_VALUE;
+        }
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        int subBucket = index % SUB_BUCKETS;
+        return ((long) (SUB_BUCKETS + subBucket + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+
+    /**
+     * Returns the number of recorded latencies.
+     *
+     * @return the number of latencies.
+     */
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            count += buckets.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * Returns a snapshot of the histogram.
+     * The latencies recorded while the snapshot is taken may be missing from some of its values.
+     *
+     * @return the statistics of the recorded latencies.
+     */
+    public StravaLatencyStatistics getStatistics() {
+        long[] counts = new long[BUCKET_COUNT];
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = buckets.get(i);
+            count += counts[i];
+        }
+        long max = maxMicros.get();
+        double mean = count == 0 ? 0 : (double) totalMicros.sum() / count;
+        return new StravaLatencyStatistics(count, mean / 1000,
+                percentile(counts, count, 0.5, max) / 1000.0,
+                percentile(counts, count, 0.9, max) / 1000.0,
+                percentile(counts, count, 0.99, max) / 1000.0,
+                max / 1000.0);
+    }
+
+    /**
+     * Returns the upper bound of the bucket holding a percentile, which is never above the highest latency.
+     */
+    private static long percentile(long[] counts, long count, double percentile, long max) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(percentile * count);
+        long cumulatedCount = 0;
+        for (int i = 0; i < counts.length; i++) {
+            cumulatedCount += counts[i];
+            if (cumulatedCount >= rank) {
+                return Math.min(bucketUpperBound(i), max);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Clears the histogram.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            buckets.set(i, 0);
+        }
+        totalMicros.reset();
+        maxMicros.reset();
+    }
+}
@@ -0,0 +1,263 @@
+package org.openstreetmap.josm.plugins.strava.heatmap.metrics;
+
+import org.openstreetmap.josm.tools.Logging;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures where the time goes when the heatmap loads: the authentication steps, the HTTP requests
+ * and the tile downloads.
+ * <p>
+ * The metrics are always recorded, a measure costs a few uncontended atomic additions.
+ * They are exposed over JMX under the name {@value #OBJECT_NAME}, and in the plugin preferences.
+ */
+public class StravaMetrics implements StravaMetricsMXBean {
+
+    /**
+     * The JMX name of the metrics.
+     */
+    public static final String OBJECT_NAME = "org.openstreetmap.josm.plugins.strava.heatmap:type=StravaMetrics";
+
+    private static final String FAILED = "failed";
+
+    private static final StravaMetrics INSTANCE = new StravaMetrics();
+
+    /**
+     * The measured steps.
+     */
+    public enum Step {
+        /** Any HTTP request sent to the Strava website or to the tile server. */
+        HTTP_REQUEST,
+        /** The download of the CSRF token from the login page. */
+        CSRF_TOKEN,
+        /** The submission of the login form. */
+        LOGIN,
+        /** The retrieval of the heatmap cookies after the login. */
+        HEATMAP_COOKIES,
+        /** The test of the validity of the stored cookies against the tile server. */
+        VALIDITY_PROBE,
+        /** The download of a tile, including the time spent waiting for a free connection. */
+        TILE_FETCH
+    }
+
+    private final Map<Step, StravaLatencyHistogram> histograms = new EnumMap<>(Step.class);
+    private final ConcurrentMap<String, LongAdder> responseCounts = new ConcurrentHashMap<>();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder tileStoreHits = new LongAdder();
+    private final LongAdder tileStoreMisses = new LongAdder();
+    private final ConcurrentMap<String, Integer> tileConcurrencyLimits = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, LongAdder> tileFetchCounts = new ConcurrentHashMap<>();
+
+    private StravaMetrics() {
+        for (Step step : Step.values()) {
+            histograms.put(step, new StravaLatencyHistogram());
+        }
+    }
+
+    public static StravaMetrics getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Records the duration of a step.
+     *
+     * @param step       the step.
+     * @param startNanos the start of the step, as returned by {@link System#nanoTime()}.
+     */
+    public void record(Step step, long startNanos) {
+        histograms.get(step).record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Records an HTTP response.
+     *
+     * @param statusCode the HTTP status code.
+     * @param bodyLength the number of bytes of the body read by the plugin.
+     */
+    public void recordResponse(int statusCode, long bodyLength) {
+        responseCounts.computeIfAbsent(Integer.toString(statusCode), k -> new LongAdder()).increment();
+        bytesReceived.add(bodyLength);
+    }
+
+    /**
+     * Records an HTTP request that failed without a response.
+     */
+    public void recordFailedRequest() {
+        responseCounts.computeIfAbsent(FAILED, k -> new LongAdder()).increment();
+    }
+
+    /**
+     * Records bytes of a body read after the response is recorded, when the body is streamed.
+     *
+     * @param length the number of bytes.
+     */
+    public void recordBytesReceived(long length) {
+        bytesReceived.add(length);
+    }
+
+    /**
+     * Records a tile requested by a layer and found in the tile store.
+     */
+    public void recordTileStoreHit() {
+        tileStoreHits.increment();
+    }
+
+    /**
+     * Records a tile requested by a layer and not found in the tile store.
+     */
+    public void recordTileStoreMiss() {
+        tileStoreMisses.increment();
+    }
+
+    /**
+     * Records the current limit of the concurrent tile downloads from a host.
+     *
+     * @param host  the host of the tile server.
+     * @param limit the maximum number of concurrent downloads.
+     */
+    public void recordTileConcurrencyLimit(String host, int limit) {
+        tileConcurrencyLimits.put(host, limit);
+    }
+
+    /**
+     * Records a tile downloaded from a host.
+     *
+     * @param host the host of the tile server.
+     */
+    public void recordTileFetched(String host) {
+        tileFetchCounts.computeIfAbsent(host, k -> new LongAdder()).increment();
+    }
+
+    /**
+     * Returns the statistics of a step.
+     *
+     * @param step the step.
+     * @return the statistics of the durations of the step.
+     */
+    public StravaLatencyStatistics getLatency(Step step) {
+        return histograms.get(step).getStatistics();
+    }
+
+    @Override
+    public StravaLatencyStatistics getHttpRequestLatency() {
+        return getLatency(Step.HTTP_REQUEST);
+    }
+
+    @Override
+    public StravaLatencyStatistics getCsrfTokenLatency() {
+        return getLatency(Step.CSRF_TOKEN);
+    }
+
+    @Override
+    public StravaLatencyStatistics getLoginLatency() {
+        return getLatency(Step.LOGIN);
+    }
+
+    @Override
+    public StravaLatencyStatistics getHeatmapCookiesLatency() {
+        return getLatency(Step.HEATMAP_COOKIES);
+    }
+
+    @Override
+    public StravaLatencyStatistics getValidityProbeLatency() {
+        return getLatency(Step.VALIDITY_PROBE);
+    }
+
+    @Override
+    public StravaLatencyStatistics getTileFetchLatency() {
+        return getLatency(Step.TILE_FETCH);
+    }
+
+    @Override
+    public Map<String, Long> getResponseCounts() {
+        Map<String, Long> counts = new TreeMap<>();
+        responseCounts.forEach((statusCode, count) -> counts.put(statusCode, count.sum()));
+        return counts;
+    }
+
+    @Override
+    public Map<String, Integer> getTileConcurrencyLimits() {
+        return new TreeMap<>(tileConcurrencyLimits);
+    }
+
+    @Override
+    public Map<String, Long> getTileFetchCounts() {
+        Map<String, Long> counts = new TreeMap<>();
+        tileFetchCounts.forEach((host, count) -> counts.put(host, count.sum()));
+        return counts;
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    @Override
+    public long getTileStoreHits() {
+        return tileStoreHits.sum();
+    }
+
+    @Override
+    public long getTileStoreMisses() {
+        return tileStoreMisses.sum();
+    }
+
+    @Override
+    public double getTileStoreHitRatio() {
+        long hits = tileStoreHits.sum();
+        long total = hits + tileStoreMisses.sum();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    @Override
+    public void reset() {
+        histograms.values().forEach(StravaLatencyHistogram::reset);
+        responseCounts.clear();
+        // the concurrency limits are the current state of the downloads, not measures
+        tileFetchCounts.clear();
+        bytesReceived.reset();
+        tileStoreHits.reset();
+        tileStoreMisses.reset();
+    }
+
+    /**
+     * Exposes the metrics over JMX.
+     * Called when the plugin is loaded.
+     */
+    public static void registerMBean() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(INSTANCE, name);
+            }
+        } catch (JMException | SecurityException e) {
+            Logging.log(Logging.LEVEL_WARN, "Unable to expose the Strava heatmap metrics over JMX", e);
+        }
+    }
+
+    /**
+     * Removes the metrics from JMX.
+     * Called when the plugin is unloaded.
+     */
+    public static void unregisterMBean() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        } catch (JMException | SecurityException e) {
+            Logging.log(Logging.LEVEL_WARN, "Unable to remove the Strava heatmap metrics from JMX", e);
+        }
+    }
+}
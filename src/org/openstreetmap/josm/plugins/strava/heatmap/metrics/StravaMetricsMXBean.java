@@ -0,0 +1,52 @@
+package org.openstreetmap.josm.plugins.strava.heatmap.metrics;
+
+import java.util.Map;
+
+/**
+ * The plugin metrics exposed over JMX, see {@link StravaMetrics}.
+ */
+public interface StravaMetricsMXBean {
+
+    StravaLatencyStatistics getHttpRequestLatency();
+
+    StravaLatencyStatistics getCsrfTokenLatency();
+
+    StravaLatencyStatistics getLoginLatency();
+
+    StravaLatencyStatistics getHeatmapCookiesLatency();
+
+    StravaLatencyStatistics getValidityProbeLatency();
+
+    StravaLatencyStatistics getTileFetchLatency();
+
+    /**
+     * @return the number of HTTP responses by status code, "failed" counting the requests without a response.
+     */
+    Map<String, Long> getResponseCounts();
+
+    /**
+     * @return the current limit of the concurrent tile downloads, by host.
+     */
+    Map<String, Integer> getTileConcurrencyLimits();
+
+    /**
+     * @return the number of tiles downloaded, by host.
+     */
+    Map<String, Long> getTileFetchCounts();
+
+    long getBytesReceived();
+
+    long getTileStoreHits();
+
+    long getTileStoreMisses();
+
+    /**
+     * @return the ratio of the tiles read from the tile store to the tiles requested by the layers.
+     */
+    double getTileStoreHitRatio();
+
+    /**
+     * Clears all the metrics.
+     */
+    void reset();
+}
@@ -2,6 +2,7 @@ package org.openstreetmap.josm.plugins.strava.heatmap.preference;
 
 import org.openstreetmap.josm.gui.preferences.DefaultTabPreferenceSetting;
 import org.openstreetmap.josm.gui.preferences.PreferenceTabbedPane;
+import org.openstreetmap.josm.plugins.strava.heatmap.authentication.StravaCookiesRetriever;
 import org.openstreetmap.josm.spi.preferences.Config;
 import org.openstreetmap.josm.tools.GBC;
 import org.openstreetmap.josm.tools.I18n;
@@ -20,6 +21,8 @@ public class StravaHeatmapPreferenceSetting extends DefaultTabPreferenceSetting
 
     private JTextField email = new JTextField(20);
     private JPasswordField password = new JPasswordField(20);
+    private JCheckBox storeSession = new JCheckBox(I18n.tr("Stay logged in to Strava after JOSM is closed"));
+    private JCheckBox warmUp = new JCheckBox(I18n.tr("Connect to Strava when JOSM starts"));
 
 
     public StravaHeatmapPreferenceSetting() {
@@ -51,6 +54,20 @@ public class StravaHeatmapPreferenceSetting extends DefaultTabPreferenceSetting
         stravaHeatmap.add(jLabelPassword, GBC.eop().insets(0, 0, 0, 0));
         stravaHeatmap.add(password, GBC.eol().fill(GBC.HORIZONTAL).insets(5, 0, 0, 5));
 
+        storeSession.setSelected(Config.getPref().getBoolean("strava.heatmap.session.store", false));
+        storeSession.setToolTipText(tr(I18n.tr("<html>Stores the cookies of the Strava website session with the JOSM credentials,"
+                + " so that the password is not sent again at each start.<br/>"
+                + "The session cookies give access to your Strava account: unless a password manager plugin is installed,"
+                + " they are stored in plain text in the JOSM preferences file</html>")));
+        stravaHeatmap.add(storeSession, GBC.eol().insets(0, 5, 0, 0));
+
+        warmUp.setSelected(Config.getPref().getBoolean("strava.heatmap.warmup", false));
+        warmUp.setToolTipText(tr(I18n.tr("<html>Opens the connections and checks the authentication in the background,"
+                + " so that the first heatmap layer is displayed sooner</html>")));
+        stravaHeatmap.add(warmUp, GBC.eol().insets(0, 5, 0, 0));
+
+        stravaHeatmap.add(new StravaMetricsPanel(), GBC.eol().fill(GBC.HORIZONTAL).insets(0, 10, 0, 5));
+
         stravaHeatmap.add(Box.createVerticalGlue(), GBC.eol().fill(GBC.VERTICAL));
         JScrollPane scrollpane = new JScrollPane(stravaHeatmap);
         scrollpane.setBorder(BorderFactory.createEmptyBorder(0, 0, 0, 0));
@@ -62,6 +79,11 @@ public class StravaHeatmapPreferenceSetting extends DefaultTabPreferenceSetting
     public boolean ok() {
         Config.getPref().put("strava.heatmap.email", email.getText());
         Config.getPref().put("strava.heatmap.password", new String(password.getPassword()));
+        Config.getPref().putBoolean("strava.heatmap.session.store", storeSession.isSelected());
+        if (!storeSession.isSelected()) {
+            StravaCookiesRetriever.forgetStoredWebSession();
+        }
+        Config.getPref().putBoolean("strava.heatmap.warmup", warmUp.isSelected());
         return false;
     }
 }
@@ -0,0 +1,179 @@
+package org.openstreetmap.josm.plugins.strava.heatmap.preference;
+
+import org.openstreetmap.josm.plugins.strava.heatmap.metrics.StravaLatencyStatistics;
+import org.openstreetmap.josm.plugins.strava.heatmap.metrics.StravaMetrics;
+import org.openstreetmap.josm.tools.GBC;
+import org.openstreetmap.josm.tools.I18n;
+import org.openstreetmap.josm.tools.Utils;
+
+import javax.swing.*;
+import javax.swing.table.AbstractTableModel;
+import java.awt.*;
+import java.util.Collections;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Shows the {@link StravaMetrics} in the plugin preferences.
+ * The metrics are refreshed every second while the panel is displayed.
+ * The tile throughput of each host is measured between two refreshes.
+ */
+public class StravaMetricsPanel extends JPanel {
+
+    private static final int REFRESH_DELAY_MILLIS = 1000;
+
+    private final StravaMetrics metrics = StravaMetrics.getInstance();
+    private final LatencyTableModel latencyTableModel = new LatencyTableModel();
+    private final JLabel responses = new JLabel();
+    private final JLabel bytesReceived = new JLabel();
+    private final JLabel tileStore = new JLabel();
+    private final JLabel tileHosts = new JLabel();
+    private Map<String, Long> previousTileFetchCounts = Collections.emptyMap();
+    private long previousRefreshNanos = System.nanoTime();
+    private final Timer refreshTimer = new Timer(REFRESH_DELAY_MILLIS, e -> refresh());
+
+    public StravaMetricsPanel() {
+        super(new GridBagLayout());
+        setBorder(BorderFactory.createTitledBorder(I18n.tr("Statistics")));
+
+        JTable latencyTable = new JTable(latencyTableModel);
+        latencyTable.setFillsViewportHeight(true);
+        latencyTable.setPreferredScrollableViewportSize(new Dimension(450, latencyTable.getRowHeight() * StravaMetrics.Step.values().length));
+        add(new JScrollPane(latencyTable), GBC.eol().fill(GBC.HORIZONTAL).insets(5, 0, 5, 5));
+
+        add(new JLabel(I18n.tr("HTTP responses")), GBC.std().insets(5, 0, 10, 0));
+        add(responses, GBC.eol().fill(GBC.HORIZONTAL));
+        add(new JLabel(I18n.tr("Bytes received")), GBC.std().insets(5, 0, 10, 0));
+        add(bytesReceived, GBC.eol().fill(GBC.HORIZONTAL));
+        add(new JLabel(I18n.tr("Tile store hits")), GBC.std().insets(5, 0, 10, 0));
+        add(tileStore, GBC.eol().fill(GBC.HORIZONTAL));
+        add(new JLabel(I18n.tr("Tile servers")), GBC.std().insets(5, 0, 10, 0));
+        add(tileHosts, GBC.eol().fill(GBC.HORIZONTAL));
+
+        JButton reset = new JButton(I18n.tr("Reset"));
+        reset.addActionListener(e -> {
+            metrics.reset();
+            refresh();
+        });
+        add(reset, GBC.eol().anchor(GBC.EAST).insets(0, 5, 5, 5));
+        refresh();
+    }
+
+    @Override
+    public void addNotify() {
+        super.addNotify();
+        refreshTimer.start();
+    }
+
+    @Override
+    public void removeNotify() {
+        refreshTimer.stop();
+        super.removeNotify();
+    }
+
+    private void refresh() {
+        latencyTableModel.refresh();
+        Map<String, Long> responseCounts = metrics.getResponseCounts();
+        responses.setText(responseCounts.isEmpty() ? "-" : responseCounts.entrySet().stream()
+                .map(entry -> entry.getKey() + ": " + entry.getValue())
+                .collect(Collectors.joining(", ")));
+        bytesReceived.setText(Utils.getSizeString(metrics.getBytesReceived(), null));
+        long hits = metrics.getTileStoreHits();
+        long requests = hits + metrics.getTileStoreMisses();
+        tileStore.setText(I18n.tr("{0} of {1} ({2}%)", hits, requests, Math.round(metrics.getTileStoreHitRatio() * 100)));
+        refreshTileHosts();
+    }
+
+    private void refreshTileHosts() {
+        long nanos = System.nanoTime();
+        double seconds = Math.max(1e-3, (nanos - previousRefreshNanos) / 1e9);
+        Map<String, Long> tileFetchCounts = metrics.getTileFetchCounts();
+        Map<String, Integer> limits = metrics.getTileConcurrencyLimits();
+        tileHosts.setText(limits.isEmpty() ? "-" : limits.entrySet().stream()
+                .map(entry -> {
+                    long count = tileFetchCounts.getOrDefault(entry.getKey(), 0L);
+                    // the counts drop when the metrics are reset
+                    long fetched = Math.max(0, count - previousTileFetchCounts.getOrDefault(entry.getKey(), 0L));
+                    return I18n.tr("{0}: {1} concurrent downloads, {2} tiles/s", entry.getKey(), entry.getValue(),
+                            String.format("%.1f", fetched / seconds));
+                })
+                .collect(Collectors.joining(", ")));
+        previousTileFetchCounts = tileFetchCounts;
+        previousRefreshNanos = nanos;
+    }
+
+    /**
+     * The latency statistics of each step, in milliseconds.
+     */
+    private final class LatencyTableModel extends AbstractTableModel {
+
+        private final String[] columnNames = {
+                I18n.tr("Step"), I18n.tr("Count"), I18n.tr("Mean"), I18n.tr("p50"), I18n.tr("p90"), I18n.tr("p99"), I18n.tr("Max")
+        };
+        private final StravaLatencyStatistics[] statistics = new StravaLatencyStatistics[StravaMetrics.Step.values().length];
+
+        private void refresh() {
+            for (StravaMetrics.Step step : StravaMetrics.Step.values()) {
+                statistics[step.ordinal()] = metrics.getLatency(step);
+            }
+            fireTableRowsUpdated(0, statistics.length - 1);
+        }
+
+        @Override
+        public int getRowCount() {
+            return statistics.length;
+        }
+
+        @Override
+        public int getColumnCount() {
+            return columnNames.length;
+        }
+
+        @Override
+        public String getColumnName(int column) {
+            return columnNames[column];
+        }
+
+        @Override
+        public Object getValueAt(int row, int column) {
+            StravaLatencyStatistics rowStatistics = statistics[row];
+            switch (column) {
+                case 0:
+                    return getStepName(StravaMetrics.Step.values()[row]);
+                case 1:
+                    return rowStatistics.getCount();
+                case 2:
+                    return formatMillis(rowStatistics.getMeanMillis());
+                case 3:
+                    return formatMillis(rowStatistics.getP50Millis());
+                case 4:
+                    return formatMillis(rowStatistics.getP90Millis());
+                case 5:
+                    return formatMillis(rowStatistics.getP99Millis());
+                default:
+                    return formatMillis(rowStatistics.getMaxMillis());
+            }
+        }
+
+        private String getStepName(StravaMetrics.Step step) {
+            switch (step) {
+                case HTTP_REQUEST:
+                    return I18n.tr("HTTP requests");
+                case CSRF_TOKEN:
+                    return I18n.tr("CSRF token");
+                case LOGIN:
+                    return I18n.tr("Login");
+                case HEATMAP_COOKIES:
+                    return I18n.tr("Heatmap cookies");
+                case VALIDITY_PROBE:
+                    return I18n.tr("Validity probe");
+                default:
+                    return I18n.tr("Tile downloads");
+            }
+        }
+
+        private String formatMillis(double millis) {
+            return String.format("%.1f ms", millis);
+        }
+    }
+}
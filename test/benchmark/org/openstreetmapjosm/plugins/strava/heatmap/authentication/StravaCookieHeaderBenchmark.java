@@ -0,0 +1,49 @@
+package org.openstreetmapjosm.plugins.strava.heatmap.authentication;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openstreetmap.josm.plugins.strava.heatmap.authentication.StravaCookiesRetriever;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building of the heatmap "Cookie" header from the cookies held by the cookie store after the login:
+ * the three CloudFront cookies among the Strava session and tracking cookies.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StravaCookieHeaderBenchmark {
+
+    private final Map<String, String> cookies = new HashMap<>();
+
+    @Setup
+    public void setUp() {
+        cookies.put("CloudFront-Key-Pair-Id", "APKAIDPUN4QMG7VUQPSA");
+        cookies.put("CloudFront-Policy", "eyJTdGF0ZW1lbnQiOiBbeyJSZXNvdXJjZSI6Imh0dHBzOi8vaGVhdG1hcC1leHRlcm5hbC0qLnN0cmF2YS5jb20vKiIsIkNvbmRpdGlvbiI6eyJEYXRlTGVzc1RoYW4iOnsiQVdTOkVwb2NoVGltZSI6MTcwMDAwMDAwMH19fV19");
+        cookies.put("CloudFront-Signature", "Pm1TjVZ3dqm3Q2xB~k7pL0WnYvPzP5l3D0yB1OeJ7cO9fR7lXz1jvWm7iQ6o2s4nAqE8bG3hK5uT0cY9dF2xW__");
+        cookies.put("_strava4_session", "g2m8lq1h6p8d4r3v0o7q1e2n5c");
+        cookies.put("sp", "5d1f8c6e-2a4b-4c3d-9e8f-0a1b2c3d4e5f");
+        cookies.put("_sp_ses.047d", "*");
+        cookies.put("_sp_id.047d", "a1b2c3d4-e5f6-7a8b-9c0d-e1f2a3b4c5d6.1700000000.1.1700000000.1700000000.0");
+        cookies.put("_ga", "GA1.2.1234567890.1700000000");
+    }
+
+    @Benchmark
+    public String buildHeatmapCookieHeader() {
+        return StravaCookiesRetriever.buildHeatmapCookieHeader(cookies);
+    }
+}
@@ -0,0 +1,79 @@
+package org.openstreetmapjosm.plugins.strava.heatmap.authentication;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openstreetmap.josm.plugins.strava.heatmap.authentication.StravaCsrfTokenParser;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Extraction of the CSRF token from a login page shaped like the Strava one:
+ * the token is in the head, after the stylesheets and the other meta tags, and is followed by a large body.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StravaCsrfTokenParserBenchmark {
+
+    /**
+     * Where the token is: in the head of the page, or missing so that the whole page is scanned.
+     */
+    @Param({"head", "missing"})
+    public String tokenPosition;
+
+    private String page;
+    private byte[] pageBytes;
+
+    @Setup
+    public void setUp() {
+        StringBuilder html = new StringBuilder("<!DOCTYPE html>\n<html lang=\"en\"><head>\n<title>Log In | Strava</title>\n");
+        for (int i = 0; i < 40; i++) {
+            html.append("<link rel=\"stylesheet\" href=\"https://web-assets.strava.com/assets/stylesheet-").append(i)
+                    .append(".css\" media=\"screen\" />\n");
+            html.append("<meta property=\"og:property").append(i).append("\" content=\"Strava \u2013 Run and Cycling Tracking\" />\n");
+        }
+        html.append("<meta name=\"csrf-param\" content=\"authenticity_token\" />\n");
+        if ("head".equals(tokenPosition)) {
+            html.append("<meta name=\"csrf-token\" content=\"0Bq2cDhRUahnYyH1Zl+ti3EpvCPbdo8QFDj4OQl+7wYzmbPDqXiCSxXeCOOxfK4FLuUeLWUi5ns2EYhBmJQjEw==\" />\n");
+        }
+        html.append("</head><body class=\"logged-out responsive\">\n");
+        for (int i = 0; i < 2000; i++) {
+            html.append("<div class=\"panel\"><a href=\"/features/").append(i).append("\">\u00dcbersicht \u2013 feature ")
+                    .append(i).append("</a></div>\n");
+        }
+        html.append("<script>window.StravaSentry = { enabled: true };</script></body></html>\n");
+        page = html.toString();
+        pageBytes = page.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The page already decoded into a string.
+     */
+    @Benchmark
+    public String findInString() {
+        return new StravaCsrfTokenParser(page).findCsrfToken();
+    }
+
+    /**
+     * The page read from the response stream, as done on login.
+     */
+    @Benchmark
+    public String findInStream() throws IOException {
+        return StravaCsrfTokenParser.findCsrfToken(new ByteArrayInputStream(pageBytes));
+    }
+}
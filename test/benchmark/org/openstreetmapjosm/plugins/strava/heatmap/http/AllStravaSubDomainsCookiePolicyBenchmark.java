@@ -0,0 +1,68 @@
+package org.openstreetmapjosm.plugins.strava.heatmap.http;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openstreetmap.josm.plugins.strava.heatmap.http.AllStravaSubDomainsCookiePolicy;
+
+import java.net.HttpCookie;
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The cookie policy, which the JDK 8 client installs for all the cookies received by JOSM:
+ * a Strava cookie shared between the sub-domains, a heatmap cookie from the origin server,
+ * and a cookie from another imagery server.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AllStravaSubDomainsCookiePolicyBenchmark {
+
+    private final AllStravaSubDomainsCookiePolicy policy = new AllStravaSubDomainsCookiePolicy();
+
+    private URI stravaUri;
+    private HttpCookie stravaCookie;
+    private URI heatmapUri;
+    private HttpCookie heatmapCookie;
+    private URI otherUri;
+    private HttpCookie otherCookie;
+
+    @Setup
+    public void setUp() {
+        stravaUri = URI.create("https://www.strava.com/session");
+        stravaCookie = new HttpCookie("_strava4_session", "g2m8lq1h6p8d4r3v0o7q1e2n5c");
+        stravaCookie.setDomain("strava.com");
+        heatmapUri = URI.create("https://heatmap-external-a.strava.com/auth");
+        heatmapCookie = new HttpCookie("CloudFront-Signature", "Pm1TjVZ3dqm3Q2xB");
+        heatmapCookie.setDomain("heatmap-external-a.strava.com");
+        otherUri = URI.create("https://tile.openstreetmap.org/12/2048/1360.png");
+        otherCookie = new HttpCookie("session", "0123456789abcdef");
+        otherCookie.setDomain(".example.org");
+    }
+
+    @Benchmark
+    public boolean stravaSubDomainCookie() {
+        return policy.shouldAccept(stravaUri, stravaCookie);
+    }
+
+    @Benchmark
+    public boolean heatmapCookie() {
+        return policy.shouldAccept(heatmapUri, heatmapCookie);
+    }
+
+    @Benchmark
+    public boolean otherServerCookie() {
+        return policy.shouldAccept(otherUri, otherCookie);
+    }
+}
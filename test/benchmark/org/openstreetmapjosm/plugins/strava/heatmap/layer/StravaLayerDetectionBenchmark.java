@@ -0,0 +1,38 @@
+package org.openstreetmapjosm.plugins.strava.heatmap.layer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openstreetmap.josm.plugins.strava.heatmap.layer.StravaHeatmapLayerProcessor;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The detection of the Strava layers, run by {@link StravaHeatmapLayerProcessor} for every layer added or removed.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StravaLayerDetectionBenchmark {
+
+    /**
+     * The imagery identifier: the last default Strava layer, or another imagery.
+     */
+    @Param({"strava_winter_heatmap", "Mapnik"})
+    public String layerId;
+
+    @Benchmark
+    public boolean isStravaLayerId() {
+        return StravaHeatmapLayerProcessor.isStravaLayerId(layerId);
+    }
+}
@@ -0,0 +1,242 @@
+package org.openstreetmapjosm.plugins.strava.heatmap.load;
+
+import org.openstreetmap.josm.data.Preferences;
+import org.openstreetmap.josm.plugins.strava.heatmap.authentication.StravaCookiesRetriever;
+import org.openstreetmap.josm.plugins.strava.heatmap.http.Jdk8StravaHttpClient;
+import org.openstreetmap.josm.plugins.strava.heatmap.http.StravaHttpClient;
+import org.openstreetmap.josm.plugins.strava.heatmap.http.StravaHttpClientFactory;
+import org.openstreetmap.josm.plugins.strava.heatmap.http.StravaHttpRequest;
+import org.openstreetmap.josm.plugins.strava.heatmap.layer.StravaTileFetcher;
+import org.openstreetmap.josm.plugins.strava.heatmap.metrics.StravaLatencyHistogram;
+import org.openstreetmap.josm.plugins.strava.heatmap.metrics.StravaLatencyStatistics;
+import org.openstreetmap.josm.plugins.strava.heatmap.metrics.StravaMetrics;
+import org.openstreetmap.josm.spi.preferences.Config;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drives the HTTP clients and the tile path against a {@link StravaStandInServer} and reports the throughput
+ * and the latency percentiles of each scenario:
+ * <ul>
+ * <li>login: the whole authentication process (login page, login form, heatmap cookies);</li>
+ * <li>reauth: the renewal of the heatmap cookies with the website session of the previous login;</li>
+ * <li>probe: the validity test of the cookies;</li>
+ * <li>tiles: asynchronous tile downloads through the client;</li>
+ * <li>fetcher: tile downloads through the {@link StravaTileFetcher}, i.e. the path of the heatmap layers,
+ * which uses the client chosen by the plugin for the Java runtime.</li>
+ * </ul>
+ * The options are passed as {@code --name=value}: {@code clients} (jdk8, jdk11 or all), {@code concurrency},
+ * {@code logins}, {@code probes}, {@code tiles}, {@code latency} and {@code jitter} (milliseconds of delay of every response),
+ * {@code errors} (rate of injected HTTP 500 errors).
+ */
+public final class StravaLoadHarness {
+
+    private static final String EMAIL = "load@example.com";
+    private static final String PASSWORD = "load-password";
+
+    private final StravaStandInServer server;
+    private final int concurrency;
+
+    private StravaLoadHarness(StravaStandInServer server, int concurrency) {
+        this.server = server;
+        this.concurrency = concurrency;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseOptions(args);
+        int concurrency = Integer.parseInt(options.getOrDefault("concurrency", "16"));
+        int logins = Integer.parseInt(options.getOrDefault("logins", "200"));
+        int probes = Integer.parseInt(options.getOrDefault("probes", "2000"));
+        int tiles = Integer.parseInt(options.getOrDefault("tiles", "5000"));
+        String clients = options.getOrDefault("clients", "all");
+
+        Config.setPreferencesInstance(new Preferences());
+        Config.getPref().put("strava.heatmap.email", EMAIL);
+        Config.getPref().put("strava.heatmap.password", PASSWORD);
+
+        StravaStandInServer server = new StravaStandInServer(EMAIL, PASSWORD, Math.max(4, concurrency * 2));
+        server.setLatency(Long.parseLong(options.getOrDefault("latency", "20")), Long.parseLong(options.getOrDefault("jitter", "10")));
+        server.setErrorRate(Double.parseDouble(options.getOrDefault("errors", "0")));
+        server.start();
+        try {
+            StravaLoadHarness harness = new StravaLoadHarness(server, concurrency);
+            System.out.println(String.format(Locale.ROOT, "%-8s %-8s %8s %7s %10s %9s %9s %9s",
+                    "client", "scenario", "requests", "errors", "req/s", "p50 ms", "p99 ms", "max ms"));
+            for (Map.Entry<String, StravaHttpClient> client : createClients(clients).entrySet()) {
+                harness.run(client.getKey(), client.getValue(), logins, probes, tiles);
+                client.getValue().shutdown();
+            }
+            harness.runFetcher(tiles);
+        } finally {
+            server.stop();
+        }
+        System.exit(0);
+    }
+
+    private void run(String clientName, StravaHttpClient client, int logins, int probes, int tiles) throws InterruptedException {
+        StravaCookiesRetriever retriever = new StravaCookiesRetriever(client, server.getBaseUrl(), server.getBaseUrl());
+        String[] cookies = new String[1];
+        // the full login, then the renewal of the heatmap cookies with the website session
+        Config.getPref().putBoolean("strava.heatmap.session.reuse", false);
+        report(clientName, "login", runBlocking(logins, i -> {
+            cookies[0] = retriever.refreshCookiesAsHttpHeader();
+            return !cookies[0].isEmpty();
+        }));
+        Config.getPref().putBoolean("strava.heatmap.session.reuse", true);
+        report(clientName, "reauth", runBlocking(logins, i -> {
+            cookies[0] = retriever.refreshCookiesAsHttpHeader();
+            return !cookies[0].isEmpty();
+        }));
+        if (cookies[0] == null || cookies[0].isEmpty()) {
+            System.out.println(clientName + ": no cookies retrieved, the other scenarios are skipped");
+            return;
+        }
+        String cookieHeader = cookies[0];
+        report(clientName, "probe", runBlocking(probes, i -> retriever.areCookiesStillValid(cookieHeader)));
+        report(clientName, "tiles", runAsync(tiles, i -> {
+            StravaHttpRequest request = new StravaHttpRequest();
+            request.setUri(server.getTileUrl(15, i % 1024, i / 1024));
+            request.setCookieHeader(cookieHeader);
+            request.setBodyMode(StravaHttpRequest.BodyMode.BYTES);
+            return client.sendRequestAsync(request).thenApply(response -> response.getHttpStatusCode() == 200);
+        }));
+    }
+
+    private void runFetcher(int tiles) throws Exception {
+        StravaCookiesRetriever retriever = new StravaCookiesRetriever(
+                StravaHttpClientFactory.getStravaHttpClient(),
+                server.getBaseUrl(), server.getBaseUrl());
+        String cookieHeader = retriever.refreshCookiesAsHttpHeader();
+        StravaTileFetcher fetcher = StravaTileFetcher.getInstance();
+        // the fetcher bounds the concurrency itself
+        fetcher.setMaxConcurrentFetches(concurrency);
+        report("shared", "fetcher", runAsync(tiles, i -> fetcher.fetch(server.getTileUrl(16, i % 1024, i / 1024), cookieHeader)
+                .thenApply(tile -> tile.length > 0)));
+        System.out.println("fetcher concurrency limits: " + StravaMetrics.getInstance().getTileConcurrencyLimits());
+    }
+
+    /**
+     * Runs operations from {@link #concurrency} threads.
+     */
+    private Result runBlocking(int operations, BlockingOperation operation) throws InterruptedException {
+        Result result = new Result();
+        AtomicInteger nextOperation = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+        long startNanos = System.nanoTime();
+        for (int t = 0; t < concurrency; t++) {
+            executor.execute(() -> {
+                int i;
+                while ((i = nextOperation.getAndIncrement()) < operations) {
+                    long operationStartNanos = System.nanoTime();
+                    boolean success;
+                    try {
+                        success = operation.run(i);
+                    } catch (Exception e) {
+                        success = false;
+                    }
+                    result.record(operationStartNanos, success);
+                }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.HOURS);
+        result.elapsedNanos = System.nanoTime() - startNanos;
+        return result;
+    }
+
+    /**
+     * Runs asynchronous operations, at most {@link #concurrency} at once.
+     */
+    private Result runAsync(int operations, AsyncOperation operation) throws InterruptedException {
+        Result result = new Result();
+        Semaphore permits = new Semaphore(concurrency);
+        long startNanos = System.nanoTime();
+        for (int i = 0; i < operations; i++) {
+            permits.acquire();
+            long operationStartNanos = System.nanoTime();
+            operation.run(i).whenComplete((success, throwable) -> {
+                result.record(operationStartNanos, throwable == null && success);
+                permits.release();
+            });
+        }
+        permits.acquire(concurrency);
+        result.elapsedNanos = System.nanoTime() - startNanos;
+        return result;
+    }
+
+    private static void report(String clientName, String scenario, Result result) {
+        StravaLatencyStatistics statistics = result.latencies.getStatistics();
+        double throughput = statistics.getCount() / (result.elapsedNanos / 1e9);
+        System.out.println(String.format(Locale.ROOT, "%-8s %-8s %8d %7d %10.1f %9.1f %9.1f %9.1f",
+                clientName, scenario, statistics.getCount(), result.errors.get(), throughput,
+                statistics.getP50Millis(), statistics.getP99Millis(), statistics.getMaxMillis()));
+    }
+
+    private static Map<String, StravaHttpClient> createClients(String clients) throws ReflectiveOperationException {
+        Map<String, StravaHttpClient> clientsByName = new LinkedHashMap<>();
+        if ("all".equals(clients) || "jdk8".equals(clients)) {
+            clientsByName.put("jdk8", new Jdk8StravaHttpClient());
+        }
+        if ("all".equals(clients) || "jdk11".equals(clients)) {
+            try {
+                clientsByName.put("jdk11", Class.forName("org.openstreetmap.josm.plugins.strava.heatmap.http.Jdk11StravaHttpClient")
+                        .asSubclass(StravaHttpClient.class).getDeclaredConstructor().newInstance());
+            } catch (ClassNotFoundException | NoClassDefFoundError e) {
+                System.out.println("jdk11: client not available on this Java runtime");
+            }
+        }
+        return clientsByName;
+    }
+
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        List<String> unknown = new ArrayList<>();
+        for (String arg : args) {
+            int separatorIndex = arg.indexOf('=');
+            if (arg.startsWith("--") && separatorIndex > 2) {
+                options.put(arg.substring(2, separatorIndex), arg.substring(separatorIndex + 1));
+            } else {
+                unknown.add(arg);
+            }
+        }
+        if (!unknown.isEmpty()) {
+            throw new IllegalArgumentException("Unknown arguments " + unknown + ", expected --name=value");
+        }
+        return options;
+    }
+
+    @FunctionalInterface
+    private interface BlockingOperation {
+        boolean run(int i) throws Exception;
+    }
+
+    @FunctionalInterface
+    private interface AsyncOperation {
+        CompletableFuture<Boolean> run(int i);
+    }
+
+    private static final class Result {
+        private final StravaLatencyHistogram latencies = new StravaLatencyHistogram();
+        private final AtomicLong errors = new AtomicLong();
+        private long elapsedNanos;
+
+        private void record(long startNanos, boolean success) {
+            latencies.record(System.nanoTime() - startNanos);
+            if (!success) {
+                errors.incrementAndGet();
+            }
+        }
+    }
+}
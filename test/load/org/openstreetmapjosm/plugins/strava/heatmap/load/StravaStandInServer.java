@@ -0,0 +1,352 @@
+package org.openstreetmapjosm.plugins.strava.heatmap.load;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import javax.imageio.ImageIO;
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A local HTTP server emulating the parts of the Strava website used by the plugin, so that the authentication
+ * and the tile downloads can be measured offline and reproducibly.
+ * <ul>
+ * <li>{@code GET /login}: the login page, holding a CSRF token in its head and followed by a large body.</li>
+ * <li>{@code POST /session}: the login form, redirects to {@code /dashboard} with a session cookie
+ * when the token and the credentials are right, to {@code /login} otherwise.</li>
+ * <li>{@code GET /auth}: sets the CloudFront cookies for a valid session, whose policy expires after
+ * {@link #setCookieLifetimeMillis(long)}.</li>
+ * <li>{@code GET /tiles-auth/...}: a PNG tile for valid CloudFront cookies, 403 once they have expired.</li>
+ * <li>{@code GET /tiles/...}: the public tiles.</li>
+ * </ul>
+ * Every response is delayed by the configured latency, and an HTTP 500 error can be injected at a given rate.
+ * The website and the heatmap tile server share the same host: use {@link #getBaseUrl()} for both.
+ */
+public class StravaStandInServer {
+
+    private static final String SESSION_COOKIE = "_strava4_session";
+    private static final String SIGNATURE_COOKIE = "CloudFront-Signature";
+    private static final int LOGIN_PAGE_BODY_LINES = 2000;
+
+    static {
+        // the server writes the headers and the body separately: without TCP_NODELAY, Nagle's algorithm and the delayed
+        // acknowledgements of the client add about 40 ms to every response
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    private final String email;
+    private final String password;
+    private final String csrfToken = Base64.getEncoder().encodeToString(UUID.randomUUID().toString().getBytes(StandardCharsets.US_ASCII));
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final byte[] tile = createTile();
+    private byte[] loginPage;
+
+    private final Map<String, Boolean> sessions = new ConcurrentHashMap<>();
+    private final Map<String, Long> signatureExpiries = new ConcurrentHashMap<>();
+    private final Map<String, AtomicLong> requestCounts = new ConcurrentHashMap<>();
+
+    private volatile long latencyMillis;
+    private volatile long latencyJitterMillis;
+    private volatile double errorRate;
+    private volatile long cookieLifetimeMillis = TimeUnit.DAYS.toMillis(1);
+
+    /**
+     * Creates the server, listening on a free port of the loopback interface.
+     *
+     * @param email    the email of the only account.
+     * @param password the password of the only account.
+     * @param threads  the number of threads handling the requests.
+     * @throws IOException if the server cannot be created.
+     */
+    public StravaStandInServer(String email, String password, int threads) throws IOException {
+        this.email = email;
+        this.password = password;
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "strava-stand-in-server");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+        server.createContext("/login", handler("/login", this::handleLoginForm));
+        server.createContext("/session", handler("/session", this::handleLogin));
+        server.createContext("/dashboard", handler("/dashboard", exchange -> send(exchange, 200, new byte[0])));
+        server.createContext("/auth", handler("/auth", this::handleAuth));
+        server.createContext("/tiles-auth/", handler("/tiles-auth/", this::handleAuthenticatedTile));
+        server.createContext("/tiles/", handler("/tiles/", exchange -> send(exchange, 200, tile)));
+    }
+
+    public void start() {
+        server.start();
+        loginPage = createLoginPage();
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * Returns the URL of the server, to be used as the base URL of both the website and the heatmap tile server.
+     *
+     * @return the URL, without trailing slash.
+     */
+    public String getBaseUrl() {
+        return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort();
+    }
+
+    /**
+     * Returns the URL of an authenticated tile.
+     *
+     * @param zoom the zoom level.
+     * @param x    the tile x coordinate.
+     * @param y    the tile y coordinate.
+     * @return the tile URL.
+     */
+    public String getTileUrl(int zoom, int x, int y) {
+        return getBaseUrl() + "/tiles-auth/all/hot/" + zoom + "/" + x + "/" + y + ".png?px=256";
+    }
+
+    /**
+     * Sets the delay of every response.
+     *
+     * @param latencyMillis       the minimum delay, in milliseconds.
+     * @param latencyJitterMillis the maximum random delay added to the minimum delay, in milliseconds.
+     */
+    public void setLatency(long latencyMillis, long latencyJitterMillis) {
+        this.latencyMillis = latencyMillis;
+        this.latencyJitterMillis = latencyJitterMillis;
+    }
+
+    /**
+     * Sets the rate of the requests answered by an HTTP 500 error.
+     *
+     * @param errorRate the rate, between 0 and 1.
+     */
+    public void setErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+    }
+
+    /**
+     * Sets the lifetime of the CloudFront cookies set by {@code /auth}.
+     *
+     * @param cookieLifetimeMillis the lifetime, in milliseconds.
+     */
+    public void setCookieLifetimeMillis(long cookieLifetimeMillis) {
+        this.cookieLifetimeMillis = cookieLifetimeMillis;
+    }
+
+    /**
+     * Makes all the CloudFront cookies set so far expire, so that the tiles are answered by HTTP 403 errors.
+     */
+    public void expireCookies() {
+        signatureExpiries.replaceAll((signature, expiry) -> 0L);
+    }
+
+    /**
+     * Returns the number of requests received by an endpoint, including the requests answered by an injected error.
+     *
+     * @param path the path of the endpoint, e.g. "/login" or "/tiles-auth/".
+     * @return the number of requests.
+     */
+    public long getRequestCount(String path) {
+        AtomicLong count = requestCounts.get(path);
+        return count == null ? 0 : count.get();
+    }
+
+    private HttpHandler handler(String path, HttpHandler handler) {
+        AtomicLong requestCount = requestCounts.computeIfAbsent(path, p -> new AtomicLong());
+        return exchange -> {
+            try {
+                requestCount.incrementAndGet();
+                long delay = latencyMillis + (latencyJitterMillis > 0 ? ThreadLocalRandom.current().nextLong(latencyJitterMillis + 1) : 0);
+                if (delay > 0) {
+                    Thread.sleep(delay);
+                }
+                if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+                    send(exchange, 500, "Injected error".getBytes(StandardCharsets.US_ASCII));
+                } else {
+                    handler.handle(exchange);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                exchange.close();
+            }
+        };
+    }
+
+    private void handleLoginForm(HttpExchange exchange) throws IOException {
+        exchange.getResponseHeaders().add("Content-Type", "text/html; charset=utf-8");
+        send(exchange, 200, loginPage);
+    }
+
+    private void handleLogin(HttpExchange exchange) throws IOException {
+        Map<String, String> parameters = parseForm(exchange.getRequestBody());
+        boolean authenticated = "POST".equals(exchange.getRequestMethod())
+                && csrfToken.equals(parameters.get("authenticity_token"))
+                && email.equals(parameters.get("email"))
+                && password.equals(parameters.get("password"));
+        if (authenticated) {
+            String session = UUID.randomUUID().toString();
+            sessions.put(session, Boolean.TRUE);
+            exchange.getResponseHeaders().add("Set-Cookie", SESSION_COOKIE + "=" + session + "; Path=/");
+            exchange.getResponseHeaders().add("Location", getBaseUrl() + "/dashboard");
+        } else {
+            exchange.getResponseHeaders().add("Location", getBaseUrl() + "/login");
+        }
+        send(exchange, 302, new byte[0]);
+    }
+
+    private void handleAuth(HttpExchange exchange) throws IOException {
+        String session = getCookies(exchange.getRequestHeaders()).get(SESSION_COOKIE);
+        if (session == null || !sessions.containsKey(session)) {
+            send(exchange, 403, new byte[0]);
+            return;
+        }
+        long expiryMillis = System.currentTimeMillis() + cookieLifetimeMillis;
+        String signature = UUID.randomUUID().toString().replace("-", "");
+        signatureExpiries.put(signature, expiryMillis);
+        String policy = "{\"Statement\":[{\"Resource\":\"" + getBaseUrl() + "/*\",\"Condition\":{\"DateLessThan\":{\"AWS:EpochTime\":"
+                + TimeUnit.MILLISECONDS.toSeconds(expiryMillis) + "}}}]}";
+        // CloudFront replaces the characters that are invalid in cookies
+        String encodedPolicy = Base64.getEncoder().encodeToString(policy.getBytes(StandardCharsets.UTF_8))
+                .replace('+', '-').replace('=', '_').replace('/', '~');
+        Headers headers = exchange.getResponseHeaders();
+        headers.add("Set-Cookie", "CloudFront-Key-Pair-Id=APKAISTANDINSERVER; Path=/");
+        headers.add("Set-Cookie", "CloudFront-Policy=" + encodedPolicy + "; Path=/");
+        headers.add("Set-Cookie", SIGNATURE_COOKIE + "=" + signature + "; Path=/");
+        send(exchange, 200, "<html><body>OK</body></html>".getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private void handleAuthenticatedTile(HttpExchange exchange) throws IOException {
+        String signature = getCookies(exchange.getRequestHeaders()).get(SIGNATURE_COOKIE);
+        Long expiryMillis = signature == null ? null : signatureExpiries.get(signature);
+        if (expiryMillis == null || expiryMillis <= System.currentTimeMillis()) {
+            send(exchange, 403, "<Error><Code>AccessDenied</Code></Error>".getBytes(StandardCharsets.US_ASCII));
+            return;
+        }
+        exchange.getResponseHeaders().add("Content-Type", "image/png");
+        send(exchange, 200, tile);
+    }
+
+    private static void send(HttpExchange exchange, int statusCode, byte[] body) throws IOException {
+        exchange.sendResponseHeaders(statusCode, body.length == 0 ? -1 : body.length);
+        if (body.length > 0) {
+            try (OutputStream outputStream = exchange.getResponseBody()) {
+                outputStream.write(body);
+            }
+        }
+    }
+
+    /**
+     * Reads the cookies of all the "Cookie" headers, the clients may send both their own header and the cookies of their store.
+     */
+    private static Map<String, String> getCookies(Headers headers) {
+        Map<String, String> cookies = new HashMap<>();
+        List<String> cookieHeaders = headers.get("Cookie");
+        if (cookieHeaders != null) {
+            for (String cookieHeader : cookieHeaders) {
+                for (String cookie : cookieHeader.split(";")) {
+                    int separatorIndex = cookie.indexOf('=');
+                    if (separatorIndex > 0) {
+                        cookies.put(cookie.substring(0, separatorIndex).trim(), cookie.substring(separatorIndex + 1).trim());
+                    }
+                }
+            }
+        }
+        return cookies;
+    }
+
+    private static Map<String, String> parseForm(InputStream requestBody) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int length;
+        while ((length = requestBody.read(buffer)) != -1) {
+            body.write(buffer, 0, length);
+        }
+        Map<String, String> parameters = new HashMap<>();
+        for (String parameter : new String(body.toByteArray(), StandardCharsets.US_ASCII).split("&")) {
+            int separatorIndex = parameter.indexOf('=');
+            if (separatorIndex > 0) {
+                parameters.put(urlDecode(parameter.substring(0, separatorIndex)), urlDecode(parameter.substring(separatorIndex + 1)));
+            }
+        }
+        return parameters;
+    }
+
+    private static String urlDecode(String value) {
+        try {
+            return URLDecoder.decode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    /**
+     * Creates a login page shaped like the Strava one: the CSRF token is in the head and the body is large.
+     */
+    private byte[] createLoginPage() {
+        StringBuilder html = new StringBuilder("<!DOCTYPE html>\n<html lang=\"en\"><head>\n<title>Log In | Strava</title>\n");
+        for (int i = 0; i < 40; i++) {
+            html.append("<link rel=\"stylesheet\" href=\"").append(getBaseUrl()).append("/assets/stylesheet-").append(i)
+                    .append(".css\" media=\"screen\" />\n");
+        }
+        html.append("<meta name=\"csrf-param\" content=\"authenticity_token\" />\n");
+        html.append("<meta name=\"csrf-token\" content=\"").append(csrfToken).append("\" />\n");
+        html.append("</head><body class=\"logged-out responsive\">\n");
+        html.append("<form action=\"/session\" method=\"post\">");
+        for (int i = 0; i < LOGIN_PAGE_BODY_LINES; i++) {
+            html.append("<div class=\"panel\"><a href=\"/features/").append(i).append("\">Feature ").append(i).append("</a></div>\n");
+        }
+        html.append("</form></body></html>\n");
+        return html.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Creates a heatmap-like tile: a few opaque paths on a transparent background.
+     */
+    private static byte[] createTile() {
+        BufferedImage image = new BufferedImage(256, 256, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D graphics = image.createGraphics();
+        graphics.setStroke(new BasicStroke(3));
+        for (int i = 0; i < 8; i++) {
+            graphics.setColor(new Color(255, 60 + i * 20, 0, 80 + i * 20));
+            graphics.drawLine(0, i * 32, 255, 255 - i * 24);
+        }
+        graphics.dispose();
+        try {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            ImageIO.write(image, "png", outputStream);
+            return outputStream.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package org.openstreetmapjosm.plugins.strava.heatmap.analysis;
+
+import org.junit.Test;
+import org.openstreetmap.josm.plugins.strava.heatmap.analysis.StravaCoverageMask;
+
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StravaCoverageMaskTest {
+
+    private static final int WIDTH = 200;
+    private static final int HEIGHT = 100;
+
+    @Test
+    public void testSegmentCoverage() {
+        StravaCoverageMask mask = new StravaCoverageMask(WIDTH, HEIGHT);
+        mask.addSegment(20, 50, 180, 50, 5, 0, 0, WIDTH, HEIGHT);
+        assertTrue(mask.isCovered(100, 50));
+        assertTrue(mask.isCovered(100, 55));
+        assertFalse(mask.isCovered(100, 56));
+        // the ends of the segment are rounded
+        assertTrue(mask.isCovered(15, 50));
+        assertFalse(mask.isCovered(15, 54));
+        assertFalse(mask.isCovered(-1, 50));
+    }
+
+    @Test
+    public void testClipRectangle() {
+        StravaCoverageMask mask = new StravaCoverageMask(WIDTH, HEIGHT);
+        mask.addSegment(20, 50, 180, 50, 5, 0, 0, 100, HEIGHT);
+        assertTrue(mask.isCovered(99, 50));
+        assertFalse(mask.isCovered(100, 50));
+    }
+
+    @Test
+    public void testUncoveredStretches() {
+        StravaCoverageMask mask = new StravaCoverageMask(WIDTH, HEIGHT);
+        // a crossing way covers the middle of the polyline
+        mask.addSegment(100, 0, 100, 99, 5, 0, 0, WIDTH, HEIGHT);
+        List<int[]> stretches = mask.findUncoveredStretches(
+                Collections.singletonList(new int[]{10, 50, 60, 50, 190, 50}), 20);
+        assertEquals(2, stretches.size());
+        // the vertex of the polyline is kept
+        assertEquals(6, stretches.get(0).length);
+        assertEquals(10, stretches.get(0)[0]);
+        assertEquals(60, stretches.get(0)[2]);
+        assertEquals(94, stretches.get(0)[4]);
+        assertEquals(4, stretches.get(1).length);
+        assertEquals(106, stretches.get(1)[0]);
+        assertEquals(190, stretches.get(1)[2]);
+    }
+
+    @Test
+    public void testShortStretchesIgnored() {
+        StravaCoverageMask mask = new StravaCoverageMask(WIDTH, HEIGHT);
+        mask.addSegment(20, 50, 180, 50, 5, 0, 0, WIDTH, HEIGHT);
+        List<int[]> stretches = mask.findUncoveredStretches(
+                Collections.singletonList(new int[]{10, 50, 190, 50}), 20);
+        assertTrue(stretches.isEmpty());
+    }
+}
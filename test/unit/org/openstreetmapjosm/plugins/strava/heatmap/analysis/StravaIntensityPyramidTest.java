@@ -0,0 +1,94 @@
+package org.openstreetmapjosm.plugins.strava.heatmap.analysis;
+
+import org.junit.Test;
+import org.openstreetmap.josm.plugins.strava.heatmap.analysis.StravaIntensityPyramid;
+
+import java.awt.image.BufferedImage;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class StravaIntensityPyramidTest {
+
+    private static final int SIZE = StravaIntensityPyramid.TILE_SIZE;
+    private static final String NAMESPACE = "ride/hot";
+    private static final double DELTA = 1e-9;
+
+    /**
+     * A vertical path at the given column, 3 pixels wide, brightest in its center.
+     */
+    private static byte[] verticalPath(int column) {
+        byte[] intensities = new byte[SIZE * SIZE];
+        for (int y = 0; y < SIZE; y++) {
+            intensities[y * SIZE + column - 1] = (byte) 100;
+            intensities[y * SIZE + column] = (byte) 200;
+            intensities[y * SIZE + column + 1] = (byte) 100;
+        }
+        return intensities;
+    }
+
+    @Test
+    public void testRidgeCenter() {
+        StravaIntensityPyramid pyramid = new StravaIntensityPyramid(4);
+        pyramid.put(NAMESPACE, 10, 20, verticalPath(100));
+        // 5 pixels left of the path, in the tile (10, 20)
+        double[] ridge = pyramid.findRidge(NAMESPACE, 10 * SIZE + 95.2, 20 * SIZE + 50.7, 8, 64);
+        assertArrayEquals(new double[] {10 * SIZE + 100.5, 20 * SIZE + 50.5}, ridge, DELTA);
+    }
+
+    @Test
+    public void testRidgeBeyondRadius() {
+        StravaIntensityPyramid pyramid = new StravaIntensityPyramid(4);
+        pyramid.put(NAMESPACE, 0, 0, verticalPath(100));
+        assertNull(pyramid.findRidge(NAMESPACE, 80, 50, 8, 64));
+        assertNull("A path fainter than the threshold should be ignored", pyramid.findRidge(NAMESPACE, 95, 50, 8, 250));
+        assertNull("Another heatmap should be empty", pyramid.findRidge("run/hot", 95, 50, 8, 64));
+    }
+
+    @Test
+    public void testNearestPath() {
+        byte[] intensities = verticalPath(100);
+        // a brighter path 8 pixels right of the first one
+        for (int y = 0; y < SIZE; y++) {
+            intensities[y * SIZE + 108] = (byte) 255;
+        }
+        StravaIntensityPyramid pyramid = new StravaIntensityPyramid(4);
+        pyramid.put(NAMESPACE, 0, 0, intensities);
+        assertEquals(100.5, pyramid.findRidge(NAMESPACE, 102.5, 50, 10, 64)[0], DELTA);
+        assertEquals(108.5, pyramid.findRidge(NAMESPACE, 106.5, 50, 10, 64)[0], DELTA);
+    }
+
+    @Test
+    public void testRidgeAcrossTiles() {
+        StravaIntensityPyramid pyramid = new StravaIntensityPyramid(4);
+        pyramid.put(NAMESPACE, 1, 0, verticalPath(2));
+        double[] ridge = pyramid.findRidge(NAMESPACE, SIZE - 2.5, 30.5, 8, 64);
+        assertArrayEquals(new double[] {SIZE + 2.5, 30.5}, ridge, DELTA);
+    }
+
+    @Test
+    public void testLeastRecentlyUsedTileEvicted() {
+        StravaIntensityPyramid pyramid = new StravaIntensityPyramid(2);
+        pyramid.put(NAMESPACE, 0, 0, new byte[SIZE * SIZE]);
+        pyramid.put(NAMESPACE, 1, 0, new byte[SIZE * SIZE]);
+        // querying a tile makes it the most recently used
+        assertNull(pyramid.findRidge(NAMESPACE, 10, 10, 8, 64));
+        pyramid.put(NAMESPACE, 2, 0, new byte[SIZE * SIZE]);
+        assertTrue(pyramid.contains(NAMESPACE, 0, 0));
+        assertFalse(pyramid.contains(NAMESPACE, 1, 0));
+        assertTrue(pyramid.contains(NAMESPACE, 2, 0));
+    }
+
+    @Test
+    public void testIntensitiesOfHighResolutionTile() {
+        BufferedImage tile = new BufferedImage(2 * SIZE, 2 * SIZE, BufferedImage.TYPE_INT_ARGB);
+        tile.setRGB(20, 40, 0xc0ffffff);
+        byte[] intensities = StravaIntensityPyramid.toIntensities(tile);
+        assertEquals(SIZE * SIZE, intensities.length);
+        assertEquals(0xc0, intensities[20 * SIZE + 10] & 0xff);
+        assertEquals(0, intensities[20 * SIZE + 11]);
+    }
+}
@@ -0,0 +1,62 @@
+package org.openstreetmapjosm.plugins.strava.heatmap.analysis;
+
+import org.junit.Test;
+import org.openstreetmap.josm.plugins.strava.heatmap.analysis.StravaRidgeExtractor;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class StravaRidgeExtractorTest {
+
+    private static final int WIDTH = 200;
+    private static final int HEIGHT = 120;
+
+    private final StravaRidgeExtractor extractor = new StravaRidgeExtractor(64, 1.5, 10);
+
+    private static void fill(byte[] grid, int minX, int minY, int maxX, int maxY, int intensity) {
+        for (int y = minY; y <= maxY; y++) {
+            for (int x = minX; x <= maxX; x++) {
+                grid[y * WIDTH + x] = (byte) intensity;
+            }
+        }
+    }
+
+    @Test
+    public void testEmptyGrid() {
+        assertTrue(extractor.extract(new byte[WIDTH * HEIGHT], WIDTH, HEIGHT).isEmpty());
+    }
+
+    @Test
+    public void testStraightPath() {
+        byte[] grid = new byte[WIDTH * HEIGHT];
+        // a 5 pixel wide horizontal path
+        fill(grid, 10, 48, 189, 52, 200);
+        List<int[]> polylines = extractor.extract(grid, WIDTH, HEIGHT);
+        assertEquals(1, polylines.size());
+        int[] polyline = polylines.get(0);
+        // simplified into a single segment along the center of the path
+        assertEquals(4, polyline.length);
+        assertTrue(Math.abs(polyline[0] - polyline[2]) > 160);
+        assertTrue(Math.abs(polyline[1] - 50) <= 1);
+        assertTrue(Math.abs(polyline[3] - 50) <= 1);
+    }
+
+    @Test
+    public void testCrossing() {
+        byte[] grid = new byte[WIDTH * HEIGHT];
+        fill(grid, 10, 58, 189, 62, 200);
+        fill(grid, 98, 5, 102, 114, 200);
+        List<int[]> polylines = extractor.extract(grid, WIDTH, HEIGHT);
+        // the four branches meeting at the crossing
+        assertEquals(4, polylines.size());
+    }
+
+    @Test
+    public void testFaintTrackIgnored() {
+        byte[] grid = new byte[WIDTH * HEIGHT];
+        fill(grid, 10, 48, 189, 52, 30);
+        assertTrue(extractor.extract(grid, WIDTH, HEIGHT).isEmpty());
+    }
+}
@@ -0,0 +1,72 @@
+package org.openstreetmapjosm.plugins.strava.heatmap.authentication;
+
+import org.junit.Test;
+import org.openstreetmap.josm.plugins.strava.heatmap.authentication.StravaAuthenticationCircuitBreaker;
+import org.openstreetmap.josm.plugins.strava.heatmap.authentication.StravaAuthenticationException;
+import org.openstreetmap.josm.plugins.strava.heatmap.http.StravaHttpException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class StravaAuthenticationCircuitBreakerTest {
+
+    private static final long INITIAL_BACKOFF = 1000;
+    private static final long MAX_BACKOFF = 5000;
+    private static final String CREDENTIALS = "user@example.com";
+
+    private long now;
+
+    private final StravaAuthenticationCircuitBreaker breaker =
+            new StravaAuthenticationCircuitBreaker(INITIAL_BACKOFF, MAX_BACKOFF, () -> now);
+
+    @Test
+    public void testClosedInitially() {
+        assertNull(breaker.getFailureIfOpen(CREDENTIALS));
+        assertEquals(0, breaker.getRemainingMillis());
+    }
+
+    @Test
+    public void testBackoffDoublesUpToMaximum() {
+        StravaHttpException failure = new StravaHttpException("Network down");
+        long[] expectedBackoffs = {1000, 2000, 4000, 5000, 5000};
+        for (long expectedBackoff : expectedBackoffs) {
+            breaker.recordFailure(failure, CREDENTIALS);
+            assertSame(failure, breaker.getFailureIfOpen(CREDENTIALS));
+            assertEquals(expectedBackoff, breaker.getRemainingMillis());
+            now += expectedBackoff - 1;
+            assertSame("The breaker should still be open", failure, breaker.getFailureIfOpen(CREDENTIALS));
+            now++;
+            assertNull("The next attempt should be allowed", breaker.getFailureIfOpen(CREDENTIALS));
+        }
+    }
+
+    @Test
+    public void testSuccessCloses() {
+        breaker.recordFailure(new StravaHttpException("Network down"), CREDENTIALS);
+        breaker.recordFailure(new StravaHttpException("Network down"), CREDENTIALS);
+        now += 2000;
+        breaker.recordSuccess();
+        assertNull(breaker.getFailureIfOpen(CREDENTIALS));
+        // the backoff starts again from the initial delay
+        breaker.recordFailure(new StravaHttpException("Network down"), CREDENTIALS);
+        assertEquals(INITIAL_BACKOFF, breaker.getRemainingMillis());
+    }
+
+    @Test
+    public void testRejectedCredentials() {
+        StravaAuthenticationException failure = new StravaAuthenticationException("Authentication failed");
+        breaker.recordFailure(failure, CREDENTIALS);
+        assertEquals("Rejected credentials should not be retried before the maximum backoff", MAX_BACKOFF, breaker.getRemainingMillis());
+        assertSame(failure, breaker.getFailureIfOpen(CREDENTIALS));
+        assertNull("New credentials should be tried right away", breaker.getFailureIfOpen("other@example.com"));
+        assertNull(breaker.getFailureIfOpen(CREDENTIALS));
+    }
+
+    @Test
+    public void testNetworkFailureNotClearedByNewCredentials() {
+        StravaHttpException failure = new StravaHttpException("Network down");
+        breaker.recordFailure(failure, CREDENTIALS);
+        assertSame(failure, breaker.getFailureIfOpen("other@example.com"));
+    }
+}
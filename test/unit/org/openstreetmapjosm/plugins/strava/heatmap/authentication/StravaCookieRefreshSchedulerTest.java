@@ -0,0 +1,21 @@
+package org.openstreetmapjosm.plugins.strava.heatmap.authentication;
+
+import org.junit.Test;
+import org.openstreetmap.josm.plugins.strava.heatmap.authentication.StravaCookieRefreshScheduler;
+
+import static org.junit.Assert.assertFalse;
+
+public class StravaCookieRefreshSchedulerTest {
+
+    @Test
+    public void testNoRefreshWithoutSession() {
+        StravaCookieRefreshScheduler scheduler = new StravaCookieRefreshScheduler(() -> {
+        });
+        try {
+            scheduler.scheduleRefresh(null);
+            assertFalse(scheduler.isRefreshScheduled());
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package org.openstreetmapjosm.plugins.strava.heatmap.authentication;
+
+import org.junit.Test;
+import org.openstreetmap.josm.plugins.strava.heatmap.authentication.StravaCookieSession;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StravaCookieSessionTest {
+
+    private static final long EXPIRY_SECONDS = 1700000000L;
+
+    /**
+     * Encodes a policy the way CloudFront does in the "CloudFront-Policy" cookie.
+     */
+    private static String encodePolicy(String jsonPolicy) {
+        return Base64.getEncoder().encodeToString(jsonPolicy.getBytes(StandardCharsets.UTF_8))
+                .replace('+', '-').replace('=', '_').replace('/', '~');
+    }
+
+    private static String buildCookieHeader(String policy) {
+        return "CloudFront-Key-Pair-Id=AA;CloudFront-Signature=BB;CloudFront-Policy=" + policy;
+    }
+
+    @Test
+    public void testExpiryDecoded() {
+        String jsonPolicy = "{\"Statement\":[{\"Resource\":\"https://heatmap-external-*.strava.com/*\","
+                + "\"Condition\":{\"DateLessThan\":{\"AWS:EpochTime\":" + EXPIRY_SECONDS + "}}}]}";
+        StravaCookieSession session = new StravaCookieSession(buildCookieHeader(encodePolicy(jsonPolicy)));
+        assertTrue(session.hasKnownExpiry());
+        assertEquals(EXPIRY_SECONDS * 1000, session.getExpiryMillis());
+        assertTrue("The cookies should be valid before expiry", session.isValidAt(EXPIRY_SECONDS * 1000 - 3600_000));
+        assertFalse("The cookies should not be valid after expiry", session.isValidAt(EXPIRY_SECONDS * 1000 + 1));
+    }
+
+    @Test
+    public void testPolicyNotDecodable() {
+        StravaCookieSession session = new StravaCookieSession(buildCookieHeader("CC"));
+        assertFalse(session.hasKnownExpiry());
+        assertFalse(session.isValidAt(0));
+    }
+
+    @Test
+    public void testPolicyMissing() {
+        StravaCookieSession session = new StravaCookieSession("CloudFront-Key-Pair-Id=AA;CloudFront-Signature=BB");
+        assertFalse(session.hasKnownExpiry());
+    }
+}
@@ -3,7 +3,12 @@ package org.openstreetmapjosm.plugins.strava.heatmap.authentication;
 import org.junit.Test;
 import org.openstreetmap.josm.plugins.strava.heatmap.authentication.StravaCsrfTokenParser;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 public class StravaCsrfTokenParserTest {
 
@@ -26,4 +31,28 @@ public class StravaCsrfTokenParserTest {
         assertEquals("tokenvalue",token);
 
     }
+
+    @Test
+    public void testStreamMatch() throws IOException {
+        StringBuilder htmlContent = new StringBuilder("<html><head><meta name=\"csrf-param\" content=\"authenticity_token\" />");
+        // the tag is split between two reads of the parser
+        while (htmlContent.length() < 4090) {
+            htmlContent.append(' ');
+        }
+        htmlContent.append("<<meta name=\"csrf-token\" content=\"token/value+==\" />");
+        htmlContent.append("</head><body>");
+        for (int i = 0; i < 10000; i++) {
+            htmlContent.append("<div>content</div>");
+        }
+        ByteArrayInputStream inputStream = new ByteArrayInputStream(htmlContent.toString().getBytes(StandardCharsets.UTF_8));
+        assertEquals("token/value+==", StravaCsrfTokenParser.findCsrfToken(inputStream));
+        // the rest of the page is not read
+        assertTrue(inputStream.available() > 150000);
+    }
+
+    @Test
+    public void testStreamNoMatch() throws IOException {
+        byte[] htmlContent = "<meta name=\"csrf-token\" content".getBytes(StandardCharsets.UTF_8);
+        assertEquals("", StravaCsrfTokenParser.findCsrfToken(new ByteArrayInputStream(htmlContent)));
+    }
 }
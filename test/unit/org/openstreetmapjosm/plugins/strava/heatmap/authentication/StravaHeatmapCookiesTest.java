@@ -0,0 +1,177 @@
+package org.openstreetmapjosm.plugins.strava.heatmap.authentication;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.openstreetmap.josm.JOSMFixture;
+import org.openstreetmap.josm.plugins.strava.heatmap.authentication.StravaAuthenticationException;
+import org.openstreetmap.josm.plugins.strava.heatmap.authentication.StravaCookiesRetriever;
+import org.openstreetmap.josm.plugins.strava.heatmap.http.StravaHttpClient;
+import org.openstreetmap.josm.plugins.strava.heatmap.http.StravaHttpRequest;
+import org.openstreetmap.josm.plugins.strava.heatmap.http.StravaHttpResponse;
+import org.openstreetmap.josm.spi.preferences.Config;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.CookieManager;
+import java.net.CookiePolicy;
+import java.net.HttpCookie;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class StravaHeatmapCookiesTest {
+
+    private static final String BASE_URL = "https://www.strava.test";
+    private static final String HEATMAP_BASE_URL = "https://heatmap-external-a.strava.test";
+
+    /**
+     * Emulates the website and the heatmap server. Like the actual clients, the cookies of a response
+     * are read from the cookie store after the cookies set by the response have been added to it.
+     */
+    private static final class FakeWebsiteClient implements StravaHttpClient {
+        private final CookieManager cookieManager = new CookieManager(null, CookiePolicy.ACCEPT_ALL);
+        private boolean sessionValid;
+        private boolean heatmapAllowed = true;
+        private int logins;
+        private int grants;
+
+        @Override
+        public StravaHttpResponse sendRequest(StravaHttpRequest request) {
+            URI uri = URI.create(request.getUri());
+            List<String> setCookies = new ArrayList<>();
+            int status = 200;
+            String location = "";
+            String body = "";
+            switch (uri.getPath()) {
+                case "/login":
+                    body = "<html><head><meta name=\"csrf-token\" content=\"token\"></head></html>";
+                    break;
+                case "/session":
+                    logins++;
+                    sessionValid = true;
+                    setCookies.add("_strava4_session=session" + logins);
+                    status = 302;
+                    location = BASE_URL + "/dashboard";
+                    break;
+                case "/auth":
+                    // an expired session is redirected to the login page, which is answered with status 200
+                    if (sessionValid && heatmapAllowed) {
+                        grants++;
+                        setCookies.add("CloudFront-Key-Pair-Id=key");
+                        setCookies.add("CloudFront-Signature=signature" + grants);
+                    }
+                    break;
+                default:
+                    status = 404;
+                    break;
+            }
+            try {
+                cookieManager.put(uri, Collections.singletonMap("Set-Cookie", setCookies));
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            Map<String, String> cookies = cookieManager.getCookieStore().get(uri).stream()
+                    .collect(Collectors.toMap(HttpCookie::getName, HttpCookie::getValue));
+            if (request.getBodyMode() == StravaHttpRequest.BodyMode.STREAM) {
+                return new StravaHttpResponse(status, new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)), cookies, location);
+            }
+            return new StravaHttpResponse(status, cookies, location);
+        }
+
+        @Override
+        public CompletableFuture<StravaHttpResponse> sendRequestAsync(StravaHttpRequest request) {
+            return CompletableFuture.completedFuture(sendRequest(request));
+        }
+
+        @Override
+        public List<HttpCookie> getCookies(URI uri) {
+            return cookieManager.getCookieStore().get(uri);
+        }
+
+        @Override
+        public void addCookie(URI uri, HttpCookie cookie) {
+            cookieManager.getCookieStore().add(uri, cookie);
+        }
+
+        @Override
+        public void removeCookie(URI uri, HttpCookie cookie) {
+            cookieManager.getCookieStore().remove(uri, cookie);
+        }
+
+        @Override
+        public void removeAllCookiesFromCookieStore() {
+            cookieManager.getCookieStore().removeAll();
+        }
+
+        @Override
+        public void shutdown() {
+            // nothing to release
+        }
+    }
+
+    private FakeWebsiteClient httpClient;
+    private StravaCookiesRetriever cookiesRetriever;
+
+    @BeforeClass
+    public static void setUpBeforeClass() {
+        JOSMFixture.createUnitTestFixture().init();
+    }
+
+    @Before
+    public void setUp() {
+        Config.getPref().put("strava.heatmap.email", "user@example.com");
+        Config.getPref().put("strava.heatmap.password", "password");
+        Config.getPref().put("strava.heatmap.cookies", null);
+        Config.getPref().putBoolean("strava.heatmap.session.reuse", true);
+        httpClient = new FakeWebsiteClient();
+        cookiesRetriever = new StravaCookiesRetriever(httpClient, BASE_URL, HEATMAP_BASE_URL);
+    }
+
+    private static void assertGrant(int grant, String cookies) {
+        assertTrue("Cookies of grant " + grant + " expected: " + cookies,
+                cookies.contains("CloudFront-Signature=signature" + grant + ";")
+                        || cookies.endsWith("CloudFront-Signature=signature" + grant));
+    }
+
+    @Test
+    public void testRenewalWithWebSession() throws Exception {
+        assertGrant(1, cookiesRetriever.refreshCookiesAsHttpHeader());
+        assertGrant(2, cookiesRetriever.refreshCookiesAsHttpHeader());
+        assertEquals("The website session should be reused", 1, httpClient.logins);
+    }
+
+    @Test
+    public void testExpiredWebSessionNotTakenForRenewal() throws Exception {
+        assertGrant(1, cookiesRetriever.refreshCookiesAsHttpHeader());
+        httpClient.sessionValid = false;
+        // the cookies of the first grant are still in the cookie store
+        assertGrant(2, cookiesRetriever.refreshCookiesAsHttpHeader());
+        assertEquals("The expired website session should be replaced", 2, httpClient.logins);
+        assertGrant(2, Config.getPref().get("strava.heatmap.cookies"));
+    }
+
+    @Test
+    public void testRejectedGrantAfterLogin() throws Exception {
+        assertGrant(1, cookiesRetriever.refreshCookiesAsHttpHeader());
+        httpClient.sessionValid = false;
+        httpClient.heatmapAllowed = false;
+        // the cookies of the first grant are still in the cookie store
+        try {
+            cookiesRetriever.refreshCookiesAsHttpHeader();
+            fail("Rejected heatmap grant ignored");
+        } catch (StravaAuthenticationException e) {
+            // expected
+        }
+        assertEquals(2, httpClient.logins);
+    }
+}
@@ -0,0 +1,69 @@
+package org.openstreetmapjosm.plugins.strava.heatmap.authentication;
+
+import org.junit.Test;
+import org.openstreetmap.josm.plugins.strava.heatmap.authentication.StravaSessionCookieJar;
+
+import java.net.HttpCookie;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class StravaSessionCookieJarTest {
+
+    private static final long NOW = 1_600_000_000_000L;
+
+    @Test
+    public void testEncodeAndDecode() {
+        HttpCookie session = new HttpCookie("_strava4_session", "g2m8lq1h6p8d4r3v0o7q1e2n5c");
+        session.setDomain(".strava.com");
+        session.setPath("/");
+        session.setSecure(true);
+        session.setHttpOnly(true);
+        session.setMaxAge(TimeUnit.DAYS.toSeconds(14));
+        List<String> entries = StravaSessionCookieJar.encode(Collections.singletonList(session), NOW);
+        assertEquals(1, entries.size());
+
+        // one day later
+        List<HttpCookie> cookies = StravaSessionCookieJar.decode(entries, NOW + TimeUnit.DAYS.toMillis(1));
+        assertEquals(1, cookies.size());
+        HttpCookie cookie = cookies.get(0);
+        assertEquals("_strava4_session", cookie.getName());
+        assertEquals("g2m8lq1h6p8d4r3v0o7q1e2n5c", cookie.getValue());
+        assertEquals(".strava.com", cookie.getDomain());
+        assertEquals("/", cookie.getPath());
+        assertTrue(cookie.getSecure());
+        assertTrue(cookie.isHttpOnly());
+        assertEquals(0, cookie.getVersion());
+        assertEquals(TimeUnit.DAYS.toSeconds(13), cookie.getMaxAge());
+    }
+
+    @Test
+    public void testHeatmapCookiesLeftOut() {
+        List<String> entries = StravaSessionCookieJar.encode(Arrays.asList(
+                new HttpCookie("CloudFront-Policy", "AA"), new HttpCookie("_strava4_session", "BB")), NOW);
+        assertEquals(1, entries.size());
+        assertTrue(entries.get(0).startsWith("_strava4_session\t"));
+    }
+
+    @Test
+    public void testSessionCookieLifetime() {
+        HttpCookie session = new HttpCookie("_strava4_session", "BB");
+        List<String> entries = StravaSessionCookieJar.encode(Collections.singletonList(session), NOW);
+        long lifetimeMillis = StravaSessionCookieJar.SESSION_COOKIE_LIFETIME_MILLIS;
+        assertEquals(1, StravaSessionCookieJar.decode(entries, NOW + lifetimeMillis - 1000).size());
+        assertEquals("The session cookie should expire", 0, StravaSessionCookieJar.decode(entries, NOW + lifetimeMillis).size());
+    }
+
+    @Test
+    public void testMalformedEntriesIgnored() {
+        List<String> entries = Arrays.asList("", "name", "name\tvalue\t\t/\tfalse\tfalse\tnever",
+                "\tvalue\t\t/\tfalse\tfalse\t" + (NOW + 1000000), "name\tvalue\t\t\tfalse\tfalse\t" + (NOW + 1000000));
+        List<HttpCookie> cookies = StravaSessionCookieJar.decode(entries, NOW);
+        assertEquals(1, cookies.size());
+        assertEquals("name", cookies.get(0).getName());
+    }
+}
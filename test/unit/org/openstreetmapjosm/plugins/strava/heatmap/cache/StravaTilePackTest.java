@@ -0,0 +1,107 @@
+package org.openstreetmapjosm.plugins.strava.heatmap.cache;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openstreetmap.josm.plugins.strava.heatmap.cache.StravaTilePackReader;
+import org.openstreetmap.josm.plugins.strava.heatmap.cache.StravaTilePackWriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class StravaTilePackTest {
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("strava-tile-pack", ".stravapack");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    private static byte[] tile(int length, int seed) {
+        byte[] data = new byte[length];
+        Arrays.fill(data, (byte) seed);
+        return data;
+    }
+
+    @Test
+    public void testWriteRead() throws IOException {
+        StravaTilePackWriter writer = new StravaTilePackWriter(file);
+        // tiles added out of order, as they are downloaded in parallel
+        writer.addTile(15, 16001, 11000, tile(5000, 1));
+        writer.addTile(13, 4000, 2750, tile(3000, 2));
+        writer.addTile(15, 16000, 11000, tile(100, 3));
+        writer.addTile(15, 16000, 11001, tile(100, 3));
+        writer.finish("Strava cycling heatmap");
+
+        StravaTilePackReader reader = new StravaTilePackReader(file);
+        assertEquals(4, reader.getTileCount());
+        assertEquals(13, reader.getMinZoom());
+        assertEquals(15, reader.getMaxZoom());
+        assertEquals("Strava cycling heatmap", reader.getMetadata());
+        assertArrayEquals(tile(5000, 1), reader.getTile(15, 16001, 11000));
+        assertArrayEquals(tile(3000, 2), reader.getTile(13, 4000, 2750));
+        assertArrayEquals(tile(100, 3), reader.getTile(15, 16000, 11000));
+        assertArrayEquals(tile(100, 3), reader.getTile(15, 16000, 11001));
+        assertNull(reader.getTile(15, 16000, 11002));
+        assertNull(reader.getTile(14, 8000, 5500));
+        reader.close();
+        // header, tiles (the identical small tiles are stored once), directory and metadata
+        assertEquals(64 + 5000 + 3000 + 100 + 4 * 20 + "Strava cycling heatmap".length(), file.length());
+    }
+
+    @Test
+    public void testDistinctSmallTilesKept() throws IOException {
+        StravaTilePackWriter writer = new StravaTilePackWriter(file);
+        writer.addTile(15, 1, 1, tile(100, 1));
+        writer.addTile(15, 1, 2, tile(100, 2));
+        writer.addTile(15, 1, 3, tile(100, 1));
+        writer.addTile(15, 1, 4, tile(101, 1));
+        writer.finish("");
+
+        StravaTilePackReader reader = new StravaTilePackReader(file);
+        assertArrayEquals(tile(100, 1), reader.getTile(15, 1, 1));
+        assertArrayEquals(tile(100, 2), reader.getTile(15, 1, 2));
+        assertArrayEquals(tile(100, 1), reader.getTile(15, 1, 3));
+        assertArrayEquals(tile(101, 1), reader.getTile(15, 1, 4));
+        reader.close();
+        assertEquals(64 + 100 + 100 + 101 + 4 * 20, file.length());
+    }
+
+    @Test
+    public void testUnfinishedPackDeleted() throws IOException {
+        StravaTilePackWriter writer = new StravaTilePackWriter(file);
+        writer.addTile(15, 1, 1, tile(100, 1));
+        writer.close();
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void testTruncatedPackRejected() throws IOException {
+        StravaTilePackWriter writer = new StravaTilePackWriter(file);
+        writer.addTile(15, 1, 1, tile(100, 1));
+        writer.finish("");
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            randomAccessFile.setLength(randomAccessFile.length() - 1);
+        }
+        try {
+            new StravaTilePackReader(file);
+            fail("truncated pack accepted");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
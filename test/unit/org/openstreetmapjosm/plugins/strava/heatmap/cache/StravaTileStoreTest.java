@@ -0,0 +1,194 @@
+package org.openstreetmapjosm.plugins.strava.heatmap.cache;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openstreetmap.josm.plugins.strava.heatmap.cache.StravaTileStore;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class StravaTileStoreTest {
+
+    private static final String LAYER_KEY = "ride/hot";
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("strava-tile-store", ".store");
+        assertTrue(file.delete());
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    private static byte[] tile(int length, int seed) {
+        byte[] data = new byte[length];
+        Arrays.fill(data, (byte) seed);
+        return data;
+    }
+
+    @Test
+    public void testPutGet() throws IOException {
+        StravaTileStore store = new StravaTileStore(file, 1024 * 1024);
+        store.put(LAYER_KEY, 15, 16000, 11000, tile(1000, 1));
+        store.put("run/hot", 15, 16000, 11000, tile(2000, 2));
+        assertArrayEquals(tile(1000, 1), store.get(LAYER_KEY, 15, 16000, 11000));
+        assertArrayEquals(tile(2000, 2), store.get("run/hot", 15, 16000, 11000));
+        assertNull(store.get(LAYER_KEY, 15, 16000, 11001));
+        assertNull(store.get("ride/blue", 15, 16000, 11000));
+        assertEquals(2, store.size());
+        store.close();
+    }
+
+    @Test
+    public void testContains() throws IOException {
+        StravaTileStore store = new StravaTileStore(file, 1024 * 1024);
+        store.put(LAYER_KEY, 12, 2000, 1400, tile(500, 4));
+        assertTrue(store.contains(LAYER_KEY, 12, 2000, 1400));
+        assertFalse(store.contains(LAYER_KEY, 12, 2000, 1401));
+        assertFalse(store.contains("run/hot", 12, 2000, 1400));
+        store.close();
+    }
+
+    @Test
+    public void testOverwrite() throws IOException {
+        StravaTileStore store = new StravaTileStore(file, 1024 * 1024);
+        store.put(LAYER_KEY, 14, 1, 2, tile(100, 1));
+        store.put(LAYER_KEY, 14, 1, 2, tile(200, 2));
+        assertArrayEquals(tile(200, 2), store.get(LAYER_KEY, 14, 1, 2));
+        assertEquals(1, store.size());
+        store.close();
+    }
+
+    @Test
+    public void testPersistence() throws IOException {
+        StravaTileStore store = new StravaTileStore(file, 1024 * 1024);
+        store.put(LAYER_KEY, 13, 4000, 3000, tile(5000, 3));
+        store.close();
+
+        StravaTileStore reopenedStore = new StravaTileStore(file, 1024 * 1024);
+        assertArrayEquals(tile(5000, 3), reopenedStore.get(LAYER_KEY, 13, 4000, 3000));
+        reopenedStore.close();
+    }
+
+    @Test
+    public void testEviction() throws IOException {
+        StravaTileStore store = new StravaTileStore(file, 64 * 1024);
+        for (int x = 0; x < 100; x++) {
+            store.put(LAYER_KEY, 15, x, 0, tile(3000, x));
+        }
+        // the data region holds about 20 tiles: the oldest ones have been evicted
+        assertNull(store.get(LAYER_KEY, 15, 0, 0));
+        assertArrayEquals(tile(3000, 99), store.get(LAYER_KEY, 15, 99, 0));
+        assertTrue(store.size() < 25);
+        store.close();
+    }
+
+    @Test
+    public void testRecentlyUsedTileKept() throws IOException {
+        StravaTileStore store = new StravaTileStore(file, 64 * 1024);
+        store.put(LAYER_KEY, 15, 0, 0, tile(3000, 7));
+        for (int x = 1; x < 100; x++) {
+            store.put(LAYER_KEY, 15, x, 0, tile(3000, x));
+            // reading the first tile regularly keeps it away from the tail of the log
+            assertNotNull(store.get(LAYER_KEY, 15, 0, 0));
+        }
+        assertArrayEquals(tile(3000, 7), store.get(LAYER_KEY, 15, 0, 0));
+        store.close();
+    }
+
+    @Test
+    public void testWrappedLogKeptOnOpen() throws IOException {
+        StravaTileStore store = new StravaTileStore(file, 64 * 1024);
+        for (int x = 0; x < 37; x++) {
+            store.put(LAYER_KEY, 15, x, 0, tile(1000 + 100 * x, x));
+        }
+        int size = store.size();
+        store.close();
+        StravaTileStore reopenedStore = new StravaTileStore(file, 64 * 1024);
+        assertEquals(size, reopenedStore.size());
+        assertArrayEquals(tile(4600, 36), reopenedStore.get(LAYER_KEY, 15, 36, 0));
+        reopenedStore.close();
+    }
+
+    /**
+     * Overwrites a value of the store file, as another process or a torn write would.
+     */
+    private void corrupt(long position, long value) throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            randomAccessFile.seek(position);
+            randomAccessFile.writeLong(value);
+        }
+    }
+
+    /**
+     * Returns the position of the data region of a store of 64 KB: header, then 2048 index slots of 32 bytes.
+     */
+    private static long dataStart() {
+        return 64 + 2048 * 32;
+    }
+
+    @Test
+    public void testCorruptedRecordLengthCleared() throws IOException {
+        StravaTileStore store = new StravaTileStore(file, 64 * 1024);
+        store.put(LAYER_KEY, 15, 0, 0, tile(3000, 1));
+        store.put(LAYER_KEY, 15, 1, 0, tile(3000, 2));
+        // the total length and the payload length of the oldest record
+        corrupt(dataStart(), 0);
+        for (int x = 2; x < 100; x++) {
+            store.put(LAYER_KEY, 15, x, 0, tile(3000, x));
+        }
+        assertArrayEquals(tile(3000, 99), store.get(LAYER_KEY, 15, 99, 0));
+        store.close();
+    }
+
+    @Test
+    public void testCorruptedEntryCountCleared() throws IOException {
+        StravaTileStore store = new StravaTileStore(file, 64 * 1024);
+        store.put(LAYER_KEY, 15, 0, 0, tile(3000, 1));
+        // the entry count of the header
+        corrupt(48, 2048);
+        store.put(LAYER_KEY, 15, 1, 0, tile(3000, 2));
+        assertArrayEquals(tile(3000, 2), store.get(LAYER_KEY, 15, 1, 0));
+        assertEquals(1, store.size());
+        store.close();
+    }
+
+    @Test
+    public void testCorruptedIndexEntryIgnored() throws IOException {
+        StravaTileStore store = new StravaTileStore(file, 64 * 1024);
+        store.put(LAYER_KEY, 15, 0, 0, tile(3000, 1));
+        for (int slot = 0; slot < 2048; slot++) {
+            // the record offset of every index slot
+            corrupt(64 + slot * 32 + 16, 1L << 40);
+        }
+        assertNull(store.get(LAYER_KEY, 15, 0, 0));
+        assertEquals(0, store.size());
+        store.close();
+    }
+
+    @Test
+    public void testCorruptedLogClearedOnOpen() throws IOException {
+        StravaTileStore store = new StravaTileStore(file, 64 * 1024);
+        store.put(LAYER_KEY, 15, 0, 0, tile(3000, 1));
+        store.close();
+        corrupt(dataStart(), -1L);
+        StravaTileStore reopenedStore = new StravaTileStore(file, 64 * 1024);
+        assertEquals(0, reopenedStore.size());
+        assertNull(reopenedStore.get(LAYER_KEY, 15, 0, 0));
+        reopenedStore.close();
+    }
+}
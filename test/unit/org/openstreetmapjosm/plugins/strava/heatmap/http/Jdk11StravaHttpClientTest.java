@@ -0,0 +1,22 @@
+package org.openstreetmapjosm.plugins.strava.heatmap.http;
+
+import org.junit.Assume;
+import org.openstreetmap.josm.plugins.strava.heatmap.http.StravaHttpClient;
+
+public class Jdk11StravaHttpClientTest extends StravaHttpClientBodyTestCase {
+
+    /**
+     * Creates the client by reflection, since it is not compiled on a pre-JDK11 build.
+     */
+    @Override
+    protected StravaHttpClient createHttpClient() {
+        try {
+            return Class.forName("org.openstreetmap.josm.plugins.strava.heatmap.http.Jdk11StravaHttpClient")
+                    .asSubclass(StravaHttpClient.class)
+                    .getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            Assume.assumeNoException("JDK 11 HTTP client not available", e);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package org.openstreetmapjosm.plugins.strava.heatmap.http;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.Test;
+import org.openstreetmap.josm.plugins.strava.heatmap.http.Jdk8StravaHttpClient;
+import org.openstreetmap.josm.plugins.strava.heatmap.http.StravaHttpClient;
+import org.openstreetmap.josm.plugins.strava.heatmap.http.StravaHttpException;
+import org.openstreetmap.josm.plugins.strava.heatmap.http.StravaHttpRequest;
+import org.openstreetmap.josm.plugins.strava.heatmap.http.StravaHttpResponse;
+
+import java.io.IOException;
+import java.net.CookieHandler;
+import java.net.CookieManager;
+import java.net.CookiePolicy;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class Jdk8StravaHttpClientTest extends StravaHttpClientBodyTestCase {
+
+    @Override
+    protected StravaHttpClient createHttpClient() {
+        return new Jdk8StravaHttpClient();
+    }
+
+    @Test
+    public void testCookiesKeptOutOfDefaultHandler() throws IOException, StravaHttpException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/session", exchange -> {
+            exchange.getResponseHeaders().add("Set-Cookie", "_strava4_session=AA; Path=/");
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+        });
+        server.start();
+        CookieHandler previous = CookieHandler.getDefault();
+        CookieManager defaultHandler = new CookieManager(null, CookiePolicy.ACCEPT_ALL);
+        CookieHandler.setDefault(defaultHandler);
+        StravaHttpClient httpClient = createHttpClient();
+        try {
+            String url = "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + "/session";
+            StravaHttpRequest request = new StravaHttpRequest();
+            request.setUri(url);
+            request.setBodyMode(StravaHttpRequest.BodyMode.DISCARD);
+            StravaHttpResponse response = httpClient.sendRequest(request);
+            assertEquals("AA", response.getCookies().get("_strava4_session"));
+            assertEquals(1, httpClient.getCookies(URI.create(url)).size());
+            assertSame("The default cookie handler should be left in place", defaultHandler, CookieHandler.getDefault());
+            assertTrue(defaultHandler.getCookieStore().getCookies().isEmpty());
+        } finally {
+            httpClient.shutdown();
+            CookieHandler.setDefault(previous);
+            server.stop(0);
+        }
+    }
+}
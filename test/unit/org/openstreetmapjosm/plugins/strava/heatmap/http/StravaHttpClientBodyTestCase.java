@@ -0,0 +1,126 @@
+package org.openstreetmapjosm.plugins.strava.heatmap.http;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.openstreetmap.josm.JOSMFixture;
+import org.openstreetmap.josm.plugins.strava.heatmap.http.StravaHttpClient;
+import org.openstreetmap.josm.plugins.strava.heatmap.http.StravaHttpException;
+import org.openstreetmap.josm.plugins.strava.heatmap.http.StravaHttpRequest;
+import org.openstreetmap.josm.plugins.strava.heatmap.http.StravaHttpResponse;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests the body modes of an HTTP client against a local server, see the subclasses for each client.
+ * The server answers "/fixed/n" with a body of n bytes and a "Content-Length" header,
+ * and "/chunked/n" with a body of n bytes whose length is not announced.
+ */
+public abstract class StravaHttpClientBodyTestCase {
+
+    private static final int MAX_BODY_LENGTH = 1000;
+
+    private HttpServer server;
+    private StravaHttpClient httpClient;
+
+    /**
+     * Creates the client under test.
+     *
+     * @return the HTTP client.
+     */
+    protected abstract StravaHttpClient createHttpClient();
+
+    @BeforeClass
+    public static void setUpBeforeClass() {
+        JOSMFixture.createUnitTestFixture().init();
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/fixed/", exchange -> send(exchange, false));
+        server.createContext("/chunked/", exchange -> send(exchange, true));
+        server.start();
+        httpClient = createHttpClient();
+    }
+
+    @After
+    public void tearDown() {
+        httpClient.shutdown();
+        server.stop(0);
+    }
+
+    private static byte[] body(int length) {
+        byte[] body = new byte[length];
+        Arrays.fill(body, (byte) 'x');
+        return body;
+    }
+
+    private static void send(HttpExchange exchange, boolean chunked) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        byte[] body = body(Integer.parseInt(path.substring(path.lastIndexOf('/') + 1)));
+        exchange.sendResponseHeaders(200, chunked ? 0 : body.length);
+        try (OutputStream outputStream = exchange.getResponseBody()) {
+            outputStream.write(body);
+        } catch (IOException e) {
+            // the client dropped the connection
+        }
+    }
+
+    private StravaHttpRequest request(String path, StravaHttpRequest.BodyMode bodyMode) {
+        StravaHttpRequest request = new StravaHttpRequest();
+        request.setUri("http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + path);
+        request.setBodyMode(bodyMode);
+        request.setMaxBodyLength(MAX_BODY_LENGTH);
+        return request;
+    }
+
+    private void assertRejected(String path) {
+        try {
+            httpClient.sendRequest(request(path, StravaHttpRequest.BodyMode.BYTES));
+            fail("Body " + path + " longer than " + MAX_BODY_LENGTH + " bytes accepted");
+        } catch (StravaHttpException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testBodyAtLimit() throws StravaHttpException {
+        for (String path : new String[] {"/fixed/" + MAX_BODY_LENGTH, "/chunked/" + MAX_BODY_LENGTH}) {
+            StravaHttpResponse response = httpClient.sendRequest(request(path, StravaHttpRequest.BodyMode.BYTES));
+            assertEquals(200, response.getHttpStatusCode());
+            assertArrayEquals(body(MAX_BODY_LENGTH), response.getBodyBytes());
+        }
+    }
+
+    @Test
+    public void testBodyOverLimit() {
+        assertRejected("/fixed/" + (MAX_BODY_LENGTH + 1));
+        assertRejected("/chunked/" + (MAX_BODY_LENGTH + 1));
+        assertRejected("/chunked/" + 100 * MAX_BODY_LENGTH);
+    }
+
+    @Test
+    public void testDiscardedBody() throws StravaHttpException {
+        for (String path : new String[] {"/fixed/100000", "/chunked/100000"}) {
+            StravaHttpResponse response = httpClient.sendRequest(request(path, StravaHttpRequest.BodyMode.DISCARD));
+            assertEquals(200, response.getHttpStatusCode());
+            assertNull(response.getBody());
+            assertNull(response.getBodyBytes());
+        }
+        // the connection is still usable
+        assertEquals(200, httpClient.sendRequest(request("/fixed/10", StravaHttpRequest.BodyMode.DISCARD)).getHttpStatusCode());
+    }
+}
@@ -0,0 +1,31 @@
+package org.openstreetmapjosm.plugins.strava.heatmap.layer;
+
+import org.junit.Test;
+import org.openstreetmap.josm.plugins.strava.heatmap.layer.StravaCompositeActivity;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class StravaCompositeActivityTest {
+
+    @Test
+    public void testFormatAndParse() {
+        StravaCompositeActivity activity = StravaCompositeActivity.parse(new StravaCompositeActivity("run", 0x2878ff, 60).format());
+        assertEquals("run", activity.getActivity());
+        assertEquals(0x2878ff, activity.getTint());
+        assertEquals(60, activity.getWeight());
+    }
+
+    @Test
+    public void testWeightClamped() {
+        assertEquals(StravaCompositeActivity.MAX_WEIGHT, StravaCompositeActivity.parse("ride:ff0000:250").getWeight());
+        assertEquals(0, new StravaCompositeActivity("ride", 0xff0000, -5).getWeight());
+    }
+
+    @Test
+    public void testMalformedEntries() {
+        assertNull(StravaCompositeActivity.parse("ride:ff0000"));
+        assertNull(StravaCompositeActivity.parse("ride:red:100"));
+        assertNull(StravaCompositeActivity.parse(":ff0000:100"));
+    }
+}
@@ -0,0 +1,57 @@
+package org.openstreetmapjosm.plugins.strava.heatmap.layer;
+
+import org.junit.Test;
+import org.openstreetmap.josm.plugins.strava.heatmap.layer.StravaCompositeBlender;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class StravaCompositeBlenderTest {
+
+    private static final int RED = 0xff0000;
+    private static final int BLUE = 0x0000ff;
+
+    @Test
+    public void testTransparentSourceLeavesDestination() {
+        int[] destination = {0x80123456, 0};
+        StravaCompositeBlender.blendOver(destination, new int[]{0x00ffffff, 0x00ffffff}, 2, RED, 255);
+        assertArrayEquals(new int[]{0x80123456, 0}, destination);
+    }
+
+    @Test
+    public void testSourceColorReplacedByTint() {
+        int[] destination = {0, 0};
+        StravaCompositeBlender.blendOver(destination, new int[]{0xff808080, 0x40ffffff}, 2, RED, 255);
+        assertArrayEquals(new int[]{0xffff0000, 0x40ff0000}, destination);
+    }
+
+    @Test
+    public void testWeightScalesIntensity() {
+        int[] destination = {0};
+        StravaCompositeBlender.blendOver(destination, new int[]{0xff000000}, 1, BLUE, 128);
+        assertEquals(0x800000ff, destination[0]);
+        destination[0] = 0;
+        StravaCompositeBlender.blendOver(destination, new int[]{0xff000000}, 1, BLUE, 0);
+        assertEquals(0, destination[0]);
+    }
+
+    @Test
+    public void testSourceOverDestination() {
+        // half transparent blue over opaque red
+        int[] destination = {0xffff0000};
+        StravaCompositeBlender.blendOver(destination, new int[]{0x80000000}, 1, BLUE, 255);
+        assertEquals(0xff7f0080, destination[0]);
+        // half transparent blue over half transparent red: alpha = 0.5 + 0.5 * 0.5
+        destination[0] = 0x80ff0000;
+        StravaCompositeBlender.blendOver(destination, new int[]{0x80000000}, 1, BLUE, 255);
+        assertEquals(0xc0, destination[0] >>> 24);
+        assertEquals("Blue should dominate the red below", 0xaa, destination[0] & 0xff);
+    }
+
+    @Test
+    public void testLengthBoundsTheBlend() {
+        int[] destination = {0, 0};
+        StravaCompositeBlender.blendOver(destination, new int[]{0xff000000, 0xff000000}, 1, RED, 255);
+        assertArrayEquals(new int[]{0xffff0000, 0}, destination);
+    }
+}
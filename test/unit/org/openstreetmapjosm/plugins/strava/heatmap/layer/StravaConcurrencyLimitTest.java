@@ -0,0 +1,85 @@
+package org.openstreetmapjosm.plugins.strava.heatmap.layer;
+
+import org.junit.Test;
+import org.openstreetmap.josm.plugins.strava.heatmap.layer.StravaConcurrencyLimit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StravaConcurrencyLimitTest {
+
+    private static final long LATENCY_NANOS = 50_000_000L;
+
+    @Test
+    public void testAdditiveIncrease() {
+        StravaConcurrencyLimit limit = new StravaConcurrencyLimit(8, 2, 64);
+        // each download raises the limit by 1 / limit: a round of downloads raises it by one
+        for (int i = 0; i < 8; i++) {
+            limit.onSuccess(LATENCY_NANOS, 8);
+        }
+        assertEquals(8, limit.getLimit());
+        limit.onSuccess(LATENCY_NANOS, 8);
+        assertEquals(9, limit.getLimit());
+    }
+
+    @Test
+    public void testNoIncreaseWhenUnused() {
+        StravaConcurrencyLimit limit = new StravaConcurrencyLimit(8, 2, 64);
+        for (int i = 0; i < 100; i++) {
+            limit.onSuccess(LATENCY_NANOS, 1);
+        }
+        assertEquals(8, limit.getLimit());
+    }
+
+    @Test
+    public void testMaxLimit() {
+        StravaConcurrencyLimit limit = new StravaConcurrencyLimit(8, 2, 10);
+        for (int i = 0; i < 1000; i++) {
+            limit.onSuccess(LATENCY_NANOS, 10);
+        }
+        assertEquals(10, limit.getLimit());
+        limit.setMaxLimit(4);
+        assertEquals(4, limit.getLimit());
+    }
+
+    @Test
+    public void testFailureHalvesOncePerRound() {
+        StravaConcurrencyLimit limit = new StravaConcurrencyLimit(16, 2, 64);
+        limit.onFailure();
+        assertEquals(8, limit.getLimit());
+        // the downloads started before the decrease fail too
+        limit.onFailure();
+        limit.onFailure();
+        assertEquals(8, limit.getLimit());
+        for (int i = 0; i < 8; i++) {
+            limit.onFailure();
+        }
+        assertEquals(4, limit.getLimit());
+        for (int i = 0; i < 100; i++) {
+            limit.onFailure();
+        }
+        assertEquals("The limit should not go below the minimum", 2, limit.getLimit());
+    }
+
+    @Test
+    public void testLatencyIncreaseLowersLimit() {
+        StravaConcurrencyLimit limit = new StravaConcurrencyLimit(20, 2, 64);
+        limit.onSuccess(LATENCY_NANOS, 1);
+        limit.onSuccess(LATENCY_NANOS * 3, 1);
+        assertEquals(18, limit.getLimit());
+        // a latency close to the baseline is fine
+        limit.onSuccess(LATENCY_NANOS * 3 / 2, 1);
+        assertEquals(18, limit.getLimit());
+    }
+
+    @Test
+    public void testOverloadedStatusCodes() {
+        assertTrue(StravaConcurrencyLimit.isOverloaded(429));
+        assertTrue(StravaConcurrencyLimit.isOverloaded(503));
+        assertTrue(StravaConcurrencyLimit.isOverloaded(504));
+        assertFalse(StravaConcurrencyLimit.isOverloaded(200));
+        assertFalse(StravaConcurrencyLimit.isOverloaded(403));
+        assertFalse(StravaConcurrencyLimit.isOverloaded(500));
+    }
+}
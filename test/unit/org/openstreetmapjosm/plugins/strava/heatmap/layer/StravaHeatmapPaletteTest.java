@@ -0,0 +1,93 @@
+package org.openstreetmapjosm.plugins.strava.heatmap.layer;
+
+import org.junit.Test;
+import org.openstreetmap.josm.plugins.strava.heatmap.layer.StravaHeatmapPalette;
+import org.openstreetmap.josm.plugins.strava.heatmap.layer.StravaOverzoomCache;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class StravaHeatmapPaletteTest {
+
+    @Test
+    public void testSupportedColors() {
+        assertTrue(StravaHeatmapPalette.isSupported("hot"));
+        assertTrue(StravaHeatmapPalette.isSupported(StravaHeatmapPalette.CANONICAL_COLOR));
+        assertFalse(StravaHeatmapPalette.isSupported("unknown"));
+        assertFalse(StravaHeatmapPalette.isSupported(null));
+    }
+
+    @Test
+    public void testColorModel() {
+        IndexColorModel colorModel = StravaHeatmapPalette.createColorModel("hot", 1);
+        assertEquals(256, colorModel.getMapSize());
+        assertEquals("No activity should be transparent", 0, colorModel.getAlpha(0));
+        // the highest intensity is the last color of the ramp, fully opaque
+        assertEquals(0xffffffdc, colorModel.getRGB(255));
+    }
+
+    @Test
+    public void testContrastBrightensFaintTraces() {
+        IndexColorModel normal = StravaHeatmapPalette.createColorModel("blue", 1);
+        IndexColorModel contrasted = StravaHeatmapPalette.createColorModel("blue", 2);
+        assertTrue(contrasted.getAlpha(32) > normal.getAlpha(32));
+        assertEquals(normal.getRGB(255), contrasted.getRGB(255));
+    }
+
+    @Test
+    public void testIntensityFromAlpha() {
+        BufferedImage tile = new BufferedImage(2, 1, BufferedImage.TYPE_INT_ARGB);
+        tile.setRGB(0, 0, 0x00000000);
+        tile.setRGB(1, 0, 0x80ffffff);
+        BufferedImage intensity = StravaHeatmapPalette.toIntensityImage(tile);
+        assertEquals(BufferedImage.TYPE_BYTE_GRAY, intensity.getType());
+        assertEquals(0, intensity.getRaster().getSample(0, 0, 0));
+        assertEquals(0x80, intensity.getRaster().getSample(1, 0, 0));
+    }
+
+    @Test
+    public void testIntensityFromLuminance() {
+        BufferedImage tile = new BufferedImage(2, 1, BufferedImage.TYPE_INT_RGB);
+        tile.setRGB(0, 0, 0x000000);
+        tile.setRGB(1, 0, 0xffffff);
+        BufferedImage intensity = StravaHeatmapPalette.toIntensityImage(tile);
+        assertEquals(0, intensity.getRaster().getSample(0, 0, 0));
+        assertEquals(255, intensity.getRaster().getSample(1, 0, 0));
+    }
+
+    @Test
+    public void testRecolorSharesRaster() {
+        BufferedImage tile = new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB);
+        tile.setRGB(0, 0, 0xffffffff);
+        BufferedImage intensity = StravaHeatmapPalette.toIntensityImage(tile);
+        IndexColorModel hot = StravaHeatmapPalette.createColorModel("hot", 1);
+        BufferedImage colored = StravaHeatmapPalette.recolor(intensity, hot);
+        assertSame(intensity.getRaster(), colored.getRaster());
+        assertEquals(hot.getRGB(255), colored.getRGB(0, 0));
+        // recoloring a colored image applies the new color scheme to the same pixels
+        IndexColorModel purple = StravaHeatmapPalette.createColorModel("purple", 1);
+        BufferedImage recolored = StravaHeatmapPalette.recolor(colored, purple);
+        assertSame(intensity.getRaster(), recolored.getRaster());
+        assertEquals(purple.getRGB(255), recolored.getRGB(0, 0));
+    }
+
+    @Test
+    public void testResampleIntensityImage() {
+        BufferedImage parent = new BufferedImage(256, 256, BufferedImage.TYPE_BYTE_GRAY);
+        for (int y = 0; y < 256; y++) {
+            for (int x = 0; x < 256; x++) {
+                parent.getRaster().setSample(x, y, 0, x < 128 ? 40 : 200);
+            }
+        }
+        BufferedImage left = StravaOverzoomCache.resample(parent, 16, 0, 0);
+        BufferedImage right = StravaOverzoomCache.resample(parent, 16, 1, 0);
+        assertEquals(BufferedImage.TYPE_BYTE_GRAY, left.getType());
+        assertEquals(40, left.getRaster().getSample(128, 128, 0));
+        assertEquals(200, right.getRaster().getSample(128, 128, 0));
+    }
+}
@@ -0,0 +1,83 @@
+package org.openstreetmapjosm.plugins.strava.heatmap.layer;
+
+import org.junit.Test;
+import org.openstreetmap.josm.plugins.strava.heatmap.layer.StravaOverzoomCache;
+
+import java.awt.image.BufferedImage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class StravaOverzoomCacheTest {
+
+    private static final int[] QUADRANT_COLORS = {0xffff0000, 0xff00ff00, 0xff0000ff, 0xffffffff};
+
+    /**
+     * Builds a 256x256 tile whose quadrants have a uniform color: red, green on the top row, blue, white on the bottom row.
+     */
+    private static BufferedImage buildParentTile() {
+        BufferedImage parent = new BufferedImage(256, 256, BufferedImage.TYPE_INT_ARGB);
+        for (int y = 0; y < 256; y++) {
+            for (int x = 0; x < 256; x++) {
+                parent.setRGB(x, y, QUADRANT_COLORS[(y / 128) * 2 + x / 128]);
+            }
+        }
+        return parent;
+    }
+
+    @Test
+    public void testParentCoordinates() {
+        assertFalse(StravaOverzoomCache.isOverzoomed(15));
+        assertTrue(StravaOverzoomCache.isOverzoomed(16));
+        assertEquals(5, StravaOverzoomCache.getParentCoordinate(11, 16));
+        assertEquals(5, StravaOverzoomCache.getParentCoordinate(23, 17));
+    }
+
+    @Test
+    public void testResampleQuadrants() {
+        BufferedImage parent = buildParentTile();
+        // the four z16 children of the parent tile 10/20 at z15
+        for (int quadrant = 0; quadrant < 4; quadrant++) {
+            BufferedImage child = StravaOverzoomCache.resample(parent, 16, 20 + quadrant % 2, 40 + quadrant / 2);
+            assertEquals(256, child.getWidth());
+            assertEquals(256, child.getHeight());
+            assertEquals(QUADRANT_COLORS[quadrant], child.getRGB(0, 0));
+            assertEquals(QUADRANT_COLORS[quadrant], child.getRGB(128, 128));
+            assertEquals(QUADRANT_COLORS[quadrant], child.getRGB(255, 255));
+        }
+    }
+
+    @Test
+    public void testResampleDeepZoom() {
+        // at z19, each child covers 16x16 pixels of the parent: the child 15/15 is in the bottom right quadrant
+        BufferedImage child = StravaOverzoomCache.resample(buildParentTile(), 19, 15, 15);
+        assertEquals(QUADRANT_COLORS[3], child.getRGB(128, 128));
+    }
+
+    @Test
+    public void testOverzoomedTileResampledOnce() {
+        StravaOverzoomCache cache = new StravaOverzoomCache(4);
+        BufferedImage parent = buildParentTile();
+        BufferedImage child = cache.getOverzoomedTile("ride/hot", parent, 16, 1, 1);
+        assertSame(child, cache.getOverzoomedTile("ride/hot", parent, 16, 1, 1));
+        assertSame(child, cache.get(StravaOverzoomCache.getKey("ride/hot", 16, 1, 1)));
+        assertNull("The heatmaps should not share tiles", cache.get(StravaOverzoomCache.getKey("run/hot", 16, 1, 1)));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEvicted() {
+        StravaOverzoomCache cache = new StravaOverzoomCache(2);
+        BufferedImage image = new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB);
+        cache.put("a", image);
+        cache.put("b", image);
+        assertNotNull(cache.get("a"));
+        cache.put("c", image);
+        assertNull("The least recently used image should be evicted", cache.get("b"));
+        assertNotNull(cache.get("a"));
+        assertNotNull(cache.get("c"));
+    }
+}
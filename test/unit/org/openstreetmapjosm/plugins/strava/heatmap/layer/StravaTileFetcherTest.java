@@ -0,0 +1,202 @@
+package org.openstreetmapjosm.plugins.strava.heatmap.layer;
+
+import org.junit.Test;
+import org.openstreetmap.josm.plugins.strava.heatmap.http.StravaHttpClient;
+import org.openstreetmap.josm.plugins.strava.heatmap.http.StravaHttpException;
+import org.openstreetmap.josm.plugins.strava.heatmap.http.StravaHttpRequest;
+import org.openstreetmap.josm.plugins.strava.heatmap.http.StravaHttpResponse;
+import org.openstreetmap.josm.plugins.strava.heatmap.layer.StravaTileFetcher;
+
+import java.net.HttpCookie;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class StravaTileFetcherTest {
+
+    private static final byte[] TILE = {1, 2, 3};
+
+    /**
+     * Records the requests, completed by the tests.
+     */
+    private static final class FakeHttpClient implements StravaHttpClient {
+        private final List<String> uris = new ArrayList<>();
+        private final List<CompletableFuture<StravaHttpResponse>> responses = new ArrayList<>();
+        private RuntimeException failure;
+
+        @Override
+        public StravaHttpResponse sendRequest(StravaHttpRequest stravaHttpRequest) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public CompletableFuture<StravaHttpResponse> sendRequestAsync(StravaHttpRequest stravaHttpRequest) {
+            if (failure != null) {
+                throw failure;
+            }
+            CompletableFuture<StravaHttpResponse> response = new CompletableFuture<>();
+            uris.add(stravaHttpRequest.getUri());
+            responses.add(response);
+            return response;
+        }
+
+        private void respond(int index, int httpStatusCode) {
+            responses.get(index).complete(new StravaHttpResponse(httpStatusCode, TILE, Collections.emptyMap(), ""));
+        }
+
+        @Override
+        public List<HttpCookie> getCookies(URI uri) {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public void addCookie(URI uri, HttpCookie cookie) {
+            // no cookies
+        }
+
+        @Override
+        public void removeCookie(URI uri, HttpCookie cookie) {
+            // no cookies
+        }
+
+        @Override
+        public void removeAllCookiesFromCookieStore() {
+            // no cookies
+        }
+
+        @Override
+        public void shutdown() {
+            // nothing to release
+        }
+    }
+
+    private static String url(String host, int x) {
+        return "https://heatmap-external-" + host + ".strava.com/tiles-auth/ride/hot/15/" + x + "/11000.png";
+    }
+
+    @Test
+    public void testRequestsCoalesced() {
+        FakeHttpClient httpClient = new FakeHttpClient();
+        StravaTileFetcher fetcher = new StravaTileFetcher(() -> httpClient, 8, false);
+        CompletableFuture<byte[]> first = fetcher.fetch(url("a", 1), "");
+        // the tiles of the "b" and "c" hosts are the tiles of the "a" host
+        CompletableFuture<byte[]> second = fetcher.fetch(url("b", 1), "");
+        assertEquals(Collections.singletonList(url("a", 1)), httpClient.uris);
+        httpClient.respond(0, 200);
+        assertArrayEquals(TILE, first.join());
+        assertArrayEquals(TILE, second.join());
+    }
+
+    @Test
+    public void testConcurrencyBound() {
+        FakeHttpClient httpClient = new FakeHttpClient();
+        StravaTileFetcher fetcher = new StravaTileFetcher(() -> httpClient, 2, false);
+        for (int x = 0; x < 5; x++) {
+            fetcher.fetch(url("a", x), "");
+        }
+        assertEquals(2, httpClient.uris.size());
+        httpClient.respond(0, 200);
+        assertEquals(3, httpClient.uris.size());
+        httpClient.respond(1, 404);
+        httpClient.respond(2, 200);
+        assertEquals(5, httpClient.uris.size());
+    }
+
+    @Test
+    public void testLastInFirstOut() {
+        FakeHttpClient httpClient = new FakeHttpClient();
+        StravaTileFetcher fetcher = new StravaTileFetcher(() -> httpClient, 1, false);
+        for (int x = 0; x < 4; x++) {
+            fetcher.fetch(url("a", x), "");
+        }
+        // requested again: downloaded before the tiles requested since
+        fetcher.fetch(url("a", 1), "");
+        for (int i = 0; i < 3; i++) {
+            httpClient.respond(i, 200);
+        }
+        assertEquals(Arrays.asList(url("a", 0), url("a", 1), url("a", 3), url("a", 2)), httpClient.uris);
+    }
+
+    @Test
+    public void testBackgroundRequestsWaitForTheView() {
+        FakeHttpClient httpClient = new FakeHttpClient();
+        StravaTileFetcher fetcher = new StravaTileFetcher(() -> httpClient, 1, false);
+        fetcher.fetch(url("a", 0), "");
+        fetcher.fetch(url("a", 1), "", true);
+        fetcher.fetch(url("a", 2), "");
+        httpClient.respond(0, 200);
+        httpClient.respond(1, 200);
+        assertEquals(Arrays.asList(url("a", 0), url("a", 2), url("a", 1)), httpClient.uris);
+    }
+
+    @Test
+    public void testCancelEachRequest() {
+        FakeHttpClient httpClient = new FakeHttpClient();
+        StravaTileFetcher fetcher = new StravaTileFetcher(() -> httpClient, 1, false);
+        CompletableFuture<byte[]> running = fetcher.fetch(url("a", 0), "");
+        // the same loader requests a tile twice, e.g. for a tile and its overzoomed parent
+        CompletableFuture<byte[]> first = fetcher.fetch(url("a", 1), "");
+        CompletableFuture<byte[]> second = fetcher.fetch(url("a", 1), "");
+        CompletableFuture<byte[]> other = fetcher.fetch(url("a", 2), "");
+        fetcher.cancel(first);
+        assertTrue(first.isCancelled());
+        assertFalse(second.isDone());
+        fetcher.cancel(second);
+        fetcher.cancel(other);
+        // a started download is not cancelled
+        fetcher.cancel(running);
+        assertFalse(running.isCancelled());
+        httpClient.respond(0, 200);
+        assertArrayEquals(TILE, running.join());
+        assertEquals("The cancelled tiles should not be downloaded", Collections.singletonList(url("a", 0)), httpClient.uris);
+    }
+
+    @Test
+    public void testHttpError() {
+        FakeHttpClient httpClient = new FakeHttpClient();
+        StravaTileFetcher fetcher = new StravaTileFetcher(() -> httpClient, 1, false);
+        CompletableFuture<byte[]> request = fetcher.fetch(url("a", 0), "");
+        httpClient.respond(0, 403);
+        try {
+            request.join();
+            fail("HTTP error ignored");
+        } catch (CompletionException e) {
+            assertTrue(e.getCause() instanceof StravaHttpException);
+        }
+    }
+
+    @Test
+    public void testRequestNotSent() {
+        FakeHttpClient httpClient = new FakeHttpClient();
+        // the adaptive limit of the host must not keep the slots of the failed downloads
+        StravaTileFetcher fetcher = new StravaTileFetcher(() -> httpClient, 2, true);
+        httpClient.failure = new RejectedExecutionException("client shut down");
+        List<CompletableFuture<byte[]>> requests = new ArrayList<>();
+        for (int x = 0; x < 4; x++) {
+            requests.add(fetcher.fetch(url("a", x), ""));
+        }
+        for (CompletableFuture<byte[]> request : requests) {
+            try {
+                request.join();
+                fail("Failed request completed");
+            } catch (CompletionException e) {
+                assertTrue(e.getCause() instanceof StravaHttpException);
+            }
+        }
+        httpClient.failure = null;
+        fetcher.fetch(url("a", 4), "");
+        fetcher.fetch(url("a", 5), "");
+        assertEquals(Arrays.asList(url("a", 4), url("a", 5)), httpClient.uris);
+    }
+}
@@ -0,0 +1,61 @@
+package org.openstreetmapjosm.plugins.strava.heatmap.metrics;
+
+import org.junit.Test;
+import org.openstreetmap.josm.plugins.strava.heatmap.metrics.StravaLatencyHistogram;
+import org.openstreetmap.josm.plugins.strava.heatmap.metrics.StravaLatencyStatistics;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class StravaLatencyHistogramTest {
+
+    @Test
+    public void testEmptyHistogram() {
+        StravaLatencyStatistics statistics = new StravaLatencyHistogram().getStatistics();
+        assertEquals(0, statistics.getCount());
+        assertEquals(0, statistics.getP99Millis(), 0);
+    }
+
+    @Test
+    public void testPercentiles() {
+        StravaLatencyHistogram histogram = new StravaLatencyHistogram();
+        // 1 to 1000 ms
+        for (int millis = 1; millis <= 1000; millis++) {
+            histogram.record(TimeUnit.MILLISECONDS.toNanos(millis));
+        }
+        StravaLatencyStatistics statistics = histogram.getStatistics();
+        assertEquals(1000, statistics.getCount());
+        assertEquals(500.5, statistics.getMeanMillis(), 0.01);
+        // within the width of a bucket
+        assertBetween(500, 625, statistics.getP50Millis());
+        assertBetween(900, 1000, statistics.getP90Millis());
+        assertBetween(990, 1000, statistics.getP99Millis());
+        assertEquals(1000, statistics.getMaxMillis(), 0);
+    }
+
+    @Test
+    public void testLongLatencies() {
+        StravaLatencyHistogram histogram = new StravaLatencyHistogram();
+        histogram.record(TimeUnit.DAYS.toNanos(3));
+        histogram.record(-1);
+        StravaLatencyStatistics statistics = histogram.getStatistics();
+        assertEquals(2, statistics.getCount());
+        assertEquals(TimeUnit.DAYS.toMillis(3), statistics.getP99Millis(), 0);
+        assertEquals(0, statistics.getP50Millis(), 0);
+    }
+
+    @Test
+    public void testReset() {
+        StravaLatencyHistogram histogram = new StravaLatencyHistogram();
+        histogram.record(1000);
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getStatistics().getMaxMillis(), 0);
+    }
+
+    private static void assertBetween(double min, double max, double value) {
+        assertTrue(value + " not in [" + min + ", " + max + "]", value >= min && value <= max);
+    }
+}